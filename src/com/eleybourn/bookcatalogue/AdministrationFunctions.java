@@ -354,6 +354,21 @@ public class AdministrationFunctions extends ActivityWithTasks {
 				}
 			});
 		}
+
+		// Build cover cache
+		{
+			View v = findViewById(R.id.build_cover_cache_label);
+			// Make line flash when clicked.
+			v.setBackgroundResource(android.R.drawable.list_selector_background);
+			v.setOnClickListener(new OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					ThumbnailPregenerateTask.warmCache();
+					Toast.makeText(AdministrationFunctions.this, R.string.building_cover_cache, Toast.LENGTH_LONG).show();
+					return;
+				}
+			});
+		}
 		{
 			/* Backup Catalogue Link */
 			View v = findViewById(R.id.backup_catalogue_label);
@@ -34,6 +34,16 @@ public class BookCataloguePreferences {
 	public static final String PREF_LAST_BACKUP_FILE = "Backup.LastFile";
 	/** Preferred interface locale */
 	public static final String PREF_APP_LOCALE = "App.Locale";
+	/** Use the original reentrant database locking instead of the readers/writer locks */
+	public static final String PREF_USE_REENTRANT_DB_LOCKING = "App.UseReentrantDbLocking";
+	/** Compress backup archives; off by default since older versions can not read them */
+	public static final String PREF_COMPRESS_BACKUPS = "Backup.Compress";
+	/** Write backups as snapshots in an incremental backup store */
+	public static final String PREF_INCREMENTAL_BACKUPS = "Backup.Incremental";
+	/** Maximum size of the covers thumbnail cache, in MB; 0 for no limit */
+	public static final String PREF_COVER_CACHE_SIZE = "App.CoverCacheSize";
+	/** Keep cover thumbnails in a pack file instead of the covers database */
+	public static final String PREF_COVER_CACHE_PACK_FILE = "App.CoverCachePackFile";
 
 	/** Get startup activity preference */
 	public boolean getStartInMyBook() {
@@ -37,6 +37,7 @@ import com.eleybourn.bookcatalogue.Fields.Field;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
 import com.eleybourn.bookcatalogue.cropper.CropCropImage;
 import com.eleybourn.bookcatalogue.debug.Tracker;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.HintManager;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.StorageUtils;
@@ -658,8 +659,12 @@ public abstract class BookDetailsAbstract extends BookEditFragmentAbstract {
 		if (rowId != null && rowId != 0) {
 			try {
 				String hash = mDbHelper.getBookUuid(rowId);			
+				// The cover file has been written or deleted
+				CoverFileIndex.coverChanged(hash);
 				Utils u = new Utils();
 				u.deleteCachedBookCovers(hash);
+				// Build the new thumbnails now, rather than when the book list is next shown
+				ThumbnailPregenerateTask.queue(hash);
 			} catch (Exception e) {
 				Logger.logError(e,"Error cleaning up cached cover images");
 			}
@@ -56,6 +56,7 @@ import com.eleybourn.bookcatalogue.dialogs.PartialDatePickerFragment.OnPartialDa
 import com.eleybourn.bookcatalogue.dialogs.StandardDialogs;
 import com.eleybourn.bookcatalogue.dialogs.TextFieldEditorFragment;
 import com.eleybourn.bookcatalogue.dialogs.TextFieldEditorFragment.OnTextFieldEditorListener;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.Utils;
 //import android.app.LocalActivityManager;
@@ -795,7 +796,10 @@ public class BookEdit extends BookCatalogueActivity implements BookEditFragmentA
 				setRowId(id);
 				File thumb = CatalogueDBAdapter.getTempThumbnail();
 				File real = CatalogueDBAdapter.fetchThumbnailByUuid(mDbHelper.getBookUuid(mRowId));
-				thumb.renameTo(real);
+				if (thumb.renameTo(real)) {
+					CoverFileIndex.coverChanged(real);
+					ThumbnailPregenerateTask.queue(real);
+				}
 			}
 		} else {
 			mDbHelper.updateBook(mRowId, mBookData, 0);
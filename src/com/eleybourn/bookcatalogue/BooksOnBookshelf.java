@@ -46,6 +46,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
+import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
@@ -79,6 +80,7 @@ import com.eleybourn.bookcatalogue.dialogs.StandardDialogs.SimpleDialogMenuItem;
 import com.eleybourn.bookcatalogue.dialogs.StandardDialogs.SimpleDialogOnClickListener;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsManager;
 import com.eleybourn.bookcatalogue.goodreads.GoodreadsUtils;
+import com.eleybourn.bookcatalogue.utils.BitmapPool;
 import com.eleybourn.bookcatalogue.utils.HintManager;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
@@ -230,6 +232,15 @@ public class BooksOnBookshelf extends BookCatalogueActivity implements BooklistC
 				}
 			});
 	
+			// Rows that scroll out of view give up their cover, so it can be reused for the rows that replace them
+			getListView().setRecyclerListener(new RecyclerListener() {
+				@Override
+				public void onMovedToScrapHeap(View view) {
+					ImageView cover = (ImageView) view.findViewById(R.id.cover);
+					if (cover != null)
+						BitmapPool.setImageBitmap(cover, null);
+				}});
+
 			// use the custom fast scroller (the ListView in the XML is our custome version).
 			getListView().setFastScrollEnabled(true);
 	
@@ -803,11 +814,11 @@ public class BooksOnBookshelf extends BookCatalogueActivity implements BooklistC
 	 * @return 	The BooklistBuilder object used to build the data
 	 */
 	private BooklistBuilder buildBooklist(boolean isFullRebuild) {
-		// If not a full rebuild then just use the current builder to requery the underlying data
+		// If not a full rebuild then just use the current builder to apply changes to the underlying data
 		if (mList != null && !isFullRebuild) {
-			System.out.println("Doing rebuild()");
+			System.out.println("Doing update()");
 			BooklistBuilder b = mList.getBuilder();
-			b.rebuild();
+			b.update();
 			return b;
 		} else {
 			System.out.println("Doing full reconstruct");
@@ -24,6 +24,7 @@ import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_AUTHO
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_BOOK;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_BOOKSHELF_ID;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_BOOK_UUID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_CHANGE_COUNTER;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_DESCRIPTION;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_DOCID;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_GENRE;
@@ -45,6 +46,8 @@ import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_ANTHO
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_AUTHORS;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS_FTS;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS_FTS_QUEUE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_CHANGES;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_AUTHOR;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_BOOKSHELF;
 import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_LIST_STYLES;
@@ -63,7 +66,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
-import android.app.SearchManager;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -76,11 +78,14 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQuery;
 import android.graphics.Bitmap;
-import android.provider.BaseColumns;
 import android.widget.ImageView;
 
+import com.eleybourn.bookcatalogue.booklist.BooklistCache;
+import com.eleybourn.bookcatalogue.booklist.BooklistChanges;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
+import com.eleybourn.bookcatalogue.database.BookChildCursor;
+import com.eleybourn.bookcatalogue.database.DbSync;
 import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
 import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer;
@@ -88,6 +93,7 @@ import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
 import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
 import com.eleybourn.bookcatalogue.database.SerializationUtils;
 import com.eleybourn.bookcatalogue.database.SqlStatementManager;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.IsbnUtils;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.StorageUtils;
@@ -115,7 +121,7 @@ public class CatalogueDBAdapter {
 	private SqlStatementManager mStatements;
 
 	/** Synchronizer to coordinate DB access. Must be STATIC so all instances share same sync */
-	private static final Synchronizer mSynchronizer = new Synchronizer();
+	private static final Synchronizer mSynchronizer = DbSync.newSynchronizer();
 
 	/** Convenience to avoid writing "String[] {}" in many DB routines */
 	public static final String[] EMPTY_STRING_ARRAY = new String[]{};
@@ -186,6 +192,8 @@ public class CatalogueDBAdapter {
 
 	private static DatabaseHelper mDbHelper;
 	private static SynchronizedDb mDb;
+	/** Database file used instead of the default one, if set; see setDatabaseName(). DEBUG ONLY */
+	private static String mDatabaseNameOverride = null;
 	/** Instance of Utils created if necessary */
 	private Utils mUtils = null;
 	/** Flag indicating close() has been called */
@@ -605,7 +613,7 @@ public class CatalogueDBAdapter {
 //						+ " LEFT OUTER JOIN " + DB_TB_SERIES + " s ON (s." + KEY_ROWID + "=w." + KEY_SERIES_ID + ") ";
 
 	//TODO: Update database version RELEASE: Update database version
-	public static final int DATABASE_VERSION = 82;
+	public static final int DATABASE_VERSION = 84;
 
 	private TableInfo mBooksInfo = null;
 
@@ -631,7 +639,7 @@ public class CatalogueDBAdapter {
 		private static boolean mDbWasCreated;
 
 		DatabaseHelper(Context context) {
-			super(context, StorageUtils.getDatabaseName(), mTrackedCursorFactory, DATABASE_VERSION);
+			super(context, mDatabaseNameOverride != null ? mDatabaseNameOverride : StorageUtils.getDatabaseName(), mTrackedCursorFactory, DATABASE_VERSION);
 		}
 
 		/**
@@ -667,7 +675,9 @@ public class CatalogueDBAdapter {
 
 			DatabaseDefinitions.TBL_BOOK_LIST_NODE_SETTINGS.createAll(sdb, true);
 			DatabaseDefinitions.TBL_BOOKS_FTS.create(sdb, false);
+			TBL_BOOKS_FTS_QUEUE.create(sdb, true);
 			DatabaseDefinitions.TBL_BOOK_LIST_STYLES.createAll(sdb, true);
+			createBooklistCacheTables(sdb);
 
 			createTriggers(sdb);
 
@@ -675,6 +685,18 @@ public class CatalogueDBAdapter {
 		}
 
 
+		/**
+		 * Create the tables used to save built booklists between sessions, and the counter used
+		 * to detect if they are out of date.
+		 *
+		 * @param db
+		 */
+		private void createBooklistCacheTables(SynchronizedDb db) {
+			DatabaseDefinitions.TBL_BOOK_LIST_CACHE.createAll(db, true);
+			TBL_BOOK_CHANGES.create(db, true);
+			db.execSQL(TBL_BOOK_CHANGES.getInsert(DOM_CHANGE_COUNTER) + " Values (0)");
+		}
+
 		/**
 		 * Create the database triggers. Currently only one, and the implementation needs refinining!
 		 *
@@ -1637,6 +1659,14 @@ public class CatalogueDBAdapter {
 				curVersion++;
 				recreateAndReloadTable(sdb, DB_TB_BOOKS, DATABASE_CREATE_BOOKS);
 			}
+			if (curVersion == 82) {
+				curVersion++;
+				createBooklistCacheTables(sdb);
+			}
+			if (curVersion == 83) {
+				curVersion++;
+				TBL_BOOKS_FTS_QUEUE.create(sdb, true);
+			}
 			// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
 			// vvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvv
 			// NOTE: As of 4.2, DO NOT USE OnUpgrade TO DISPLAY UPGRADE MESSAGES. See header for details.
@@ -1667,10 +1697,11 @@ public class CatalogueDBAdapter {
 			while (c.moveToNext()) {
 				final long id = c.getLong(0);
 				final String hash = c.getString(1);
-				File f = CatalogueDBAdapter.fetchThumbnailByName(Long.toString(id),"");
+				File f = CatalogueDBAdapter.fetchLegacyThumbnail(Long.toString(id),"");
 				if ( f.exists() ) {
 					File newFile = CatalogueDBAdapter.fetchThumbnailByUuid(hash);
-					f.renameTo(newFile);
+					if (f.renameTo(newFile))
+						CoverFileIndex.coverChanged(hash);
 				}
 			}
 		} finally {
@@ -1795,6 +1826,30 @@ public class CatalogueDBAdapter {
 			mDbHelper = new DatabaseHelper(ctx);
 	}
 	
+	/**
+	 * Use a different database file for all CatalogueDBAdapter objects created after this call, or
+	 * return to the default database if name is null. DEBUG ONLY; used by the benchmarks so they
+	 * do not touch the real catalogue.
+	 * 
+	 * Must only be called when there are no CatalogueDBAdapter objects in use.
+	 * 
+	 * @param name	Name of database, as passed to SQLiteOpenHelper, or null
+	 */
+	public static void setDatabaseName(String name) {
+		synchronized(mInstanceCount) {
+			if (name == null ? mDatabaseNameOverride == null : name.equals(mDatabaseNameOverride))
+				return;
+			if (mInstanceCount != 0)
+				throw new RuntimeException("Can not change database while " + mInstanceCount + " adapters are in use");
+			if (mDbHelper != null) {
+				try { mDbHelper.close(); } catch (Exception e) { Logger.logError(e); }
+			}
+			mDbHelper = null;
+			mDb = null;
+			mDatabaseNameOverride = name;
+		}
+	}
+
 	/**
 	 * Open the books database. If it cannot be opened, try to create a new
 	 * instance of the database. If it cannot be created, throw an exception to
@@ -1922,6 +1977,9 @@ public class CatalogueDBAdapter {
 	 * return the thumbnail (as a File object) for the given id. Optionally use a suffix
 	 * on the file name.
 	 * 
+	 * Covers (without a suffix) are found using CoverFileIndex, so no file system
+	 * access is needed.
+	 * 
 	 * @param id The id of the book
 	 * @return The File object
 	 */
@@ -1929,21 +1987,34 @@ public class CatalogueDBAdapter {
 		if (suffix == null)
 			suffix = "";
 
-		File file = null;
 		if (prefix == null || prefix.equals("")) {
 			return getTempThumbnail(suffix);
+		} else if (suffix.equals("")) {
+			return CoverFileIndex.getCoverFile(prefix);
 		} else {
-			final String base = StorageUtils.getSharedStorage() + "/" + prefix + suffix;
-			file = new File(base + ".jpg");
-			if (!file.exists()) {
-				File png = new File(base + ".png");
-				if (png.exists())
-					return png;
-				else
-					return file;
-			} else {
+			return fetchLegacyThumbnail(prefix, suffix);
+		}
+	}
+
+	/**
+	 * return the thumbnail (as a File object) with the given name in the shared storage
+	 * directory, where covers were kept by older versions.
+	 * 
+	 * @param prefix	File name, without extension
+	 * @param suffix	Suffix for the file name
+	 * @return The File object
+	 */
+	private static File fetchLegacyThumbnail(String prefix, String suffix) {
+		final String base = StorageUtils.getSharedStorage() + "/" + prefix + suffix;
+		File file = new File(base + ".jpg");
+		if (!file.exists()) {
+			File png = new File(base + ".png");
+			if (png.exists())
+				return png;
+			else
 				return file;
-			}
+		} else {
+			return file;
 		}
 	}
 	
@@ -2153,12 +2224,7 @@ public class CatalogueDBAdapter {
 	 * @return BooksCursor over all books, authors, etc
 	 */
 	public BooksCursor exportBooks(Date sinceDate) {
-		String sinceClause;
-		if (sinceDate == null) {
-			sinceClause = ""; 
-		} else {
-			sinceClause = " Where b." + DOM_LAST_UPDATE_DATE + " > '" + Utils.toSqlDateTime(sinceDate) + "' ";
-		}
+		final String sinceClause = getExportSinceClause(sinceDate);
 
 		String sql = "SELECT DISTINCT " +
 				getBookFields("b",KEY_ROWID) + ", " +
@@ -2169,6 +2235,109 @@ public class CatalogueDBAdapter {
 			" ORDER BY b._id";
 		return fetchBooks(sql, EMPTY_STRING_ARRAY);
 	}
+
+	/**
+	 * Get the condition used to select books changed since the passed date, or "" for all books.
+	 * 
+	 * @param sinceDate		Date, or null
+	 * 
+	 * @return	Where clause using alias 'b' for the books table
+	 */
+	private String getExportSinceClause(Date sinceDate) {
+		if (sinceDate == null) {
+			return ""; 
+		} else {
+			return " Where b." + DOM_LAST_UPDATE_DATE + " > '" + Utils.toSqlDateTime(sinceDate) + "' ";
+		}
+	}
+
+	/**
+	 * Get the join and condition used to restrict a child table with alias 'child' to the books
+	 * returned by exportBooks().
+	 * 
+	 * @param sinceDate		Date, or null
+	 * 
+	 * @return	SQL to append to the FROM clause
+	 */
+	private String getExportChildRestriction(Date sinceDate) {
+		if (sinceDate == null) {
+			return "";
+		} else {
+			return " Join " + DB_TB_BOOKS + " b On b." + KEY_ROWID + " = child." + KEY_BOOK + getExportSinceClause(sinceDate);
+		}
+	}
+
+	/**
+	 * Get the authors of all books returned by exportBooks(), sorted by book ID then as in 
+	 * fetchAllAuthorsByBook().
+	 * 
+	 * @return Cursor of book ID, author ID, family name and given names
+	 */
+	public Cursor exportBookAuthors(Date sinceDate) {
+		String sql = "SELECT DISTINCT child." + KEY_BOOK + " as " + KEY_BOOK
+			+ ", a." + KEY_ROWID + " as " + KEY_ROWID 
+			+ ", a." + KEY_FAMILY_NAME + " as " + KEY_FAMILY_NAME
+			+ ", a." + KEY_GIVEN_NAMES + " as " + KEY_GIVEN_NAMES
+			+ ", child." + KEY_AUTHOR_POSITION
+			+ " FROM " + DB_TB_BOOK_AUTHOR + " child Join " + DB_TB_AUTHORS + " a "
+			+ "       On a." + KEY_ROWID + " = child." + KEY_AUTHOR_ID
+			+ getExportChildRestriction(sinceDate)
+			+ " ORDER BY child." + KEY_BOOK + ", child." + KEY_AUTHOR_POSITION + " Asc, Upper(a." + KEY_FAMILY_NAME + ") " + COLLATION + " ASC,"
+			+ " Upper(a." + KEY_GIVEN_NAMES + ") " + COLLATION + " ASC";
+		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+	}
+
+	/**
+	 * Get the series of all books returned by exportBooks(), sorted by book ID then as in 
+	 * fetchAllSeriesByBook().
+	 * 
+	 * @return Cursor of book ID, series ID, series name and number
+	 */
+	public Cursor exportBookSeries(Date sinceDate) {
+		String sql = "SELECT DISTINCT child." + KEY_BOOK + " as " + KEY_BOOK
+			+ ", s." + KEY_ROWID + " as " + KEY_ROWID 
+			+ ", s." + KEY_SERIES_NAME + " as " + KEY_SERIES_NAME
+			+ ", child." + KEY_SERIES_NUM + " as " + KEY_SERIES_NUM
+			+ ", child." + KEY_SERIES_POSITION + " as " + KEY_SERIES_POSITION
+			+ " FROM " + DB_TB_BOOK_SERIES + " child Join " + DB_TB_SERIES + " s "
+			+ "       On s." + KEY_ROWID + " = child." + KEY_SERIES_ID
+			+ getExportChildRestriction(sinceDate)
+			+ " ORDER BY child." + KEY_BOOK + ", child." + KEY_SERIES_POSITION + ", Upper(s." + KEY_SERIES_NAME + ") " + COLLATION + " ASC";
+		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+	}
+
+	/**
+	 * Get the bookshelves of all books returned by exportBooks(), sorted by book ID then as in 
+	 * fetchAllBookshelvesByBook().
+	 * 
+	 * @return Cursor of book ID, bookshelf ID and bookshelf name
+	 */
+	public Cursor exportBookBookshelves(Date sinceDate) {
+		String sql = "SELECT DISTINCT child." + KEY_BOOK + " as " + KEY_BOOK
+			+ ", bs." + KEY_ROWID + " as " + KEY_ROWID + ", bs." + KEY_BOOKSHELF + " as " + KEY_BOOKSHELF
+			+ " FROM " + DB_TB_BOOK_BOOKSHELF_WEAK + " child Join " + DB_TB_BOOKSHELF + " bs "
+			+ "       On bs." + KEY_ROWID + " = child." + KEY_BOOKSHELF
+			+ getExportChildRestriction(sinceDate)
+			+ " ORDER BY child." + KEY_BOOK + ", Upper(bs." + KEY_BOOKSHELF + ") " + COLLATION;
+		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+	}
+
+	/**
+	 * Get the anthology titles of all books returned by exportBooks(), sorted by book ID then as in 
+	 * fetchAnthologyTitlesByBook().
+	 * 
+	 * @return Cursor of book ID, title and author name
+	 */
+	public Cursor exportAnthologyTitles(Date sinceDate) {
+		String sql = "SELECT child." + KEY_BOOK + " as " + KEY_BOOK
+				+ ", child." + KEY_TITLE + " as " + KEY_TITLE 
+				+ ", au." + KEY_FAMILY_NAME + " || ', ' || au." + KEY_GIVEN_NAMES + " as " + KEY_AUTHOR_NAME 
+			+ " FROM " + DB_TB_ANTHOLOGY + " child Join " + DB_TB_AUTHORS + " au "
+			+ "       On au." + KEY_ROWID + " = child." + KEY_AUTHOR_ID
+			+ getExportChildRestriction(sinceDate)
+			+ " ORDER BY child." + KEY_BOOK + ", child." + KEY_POSITION;
+		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+	}
 	
 	/**
 	 * Return a Cursor over the list of all books in the database
@@ -3236,34 +3405,41 @@ public class CatalogueDBAdapter {
 	 * @return Cursor of search suggestions
 	 */
 	public Cursor fetchSearchSuggestions(String query) {
-		String sql = "Select * From (SELECT \"BK\" || b." + KEY_ROWID + " as " + BaseColumns._ID 
-				+ ", b." + KEY_TITLE + " as " + SearchManager.SUGGEST_COLUMN_TEXT_1 
-				+ ", b." + KEY_TITLE + " as " + SearchManager.SUGGEST_COLUMN_INTENT_DATA +
-			" FROM " + DB_TB_BOOKS + " b" + 
-			" WHERE b." + KEY_TITLE + " LIKE '"+query+"%'" +
-			" UNION " + 
-			" SELECT \"AF\" || a." + KEY_ROWID + " as " + BaseColumns._ID 
-				+ ", a." + KEY_FAMILY_NAME + " as " + SearchManager.SUGGEST_COLUMN_TEXT_1 
-				+ ", a." + KEY_FAMILY_NAME + " as " + SearchManager.SUGGEST_COLUMN_INTENT_DATA +
-			" FROM " + DB_TB_AUTHORS + " a" + 
-			" WHERE a." + KEY_FAMILY_NAME + " LIKE '"+query+"%'" +
-			" UNION " + 
-			" SELECT \"AG\" || a." + KEY_ROWID + " as " + BaseColumns._ID 
-				+ ", a." + KEY_GIVEN_NAMES + " as " + SearchManager.SUGGEST_COLUMN_TEXT_1 
-				+ ", a." + KEY_GIVEN_NAMES + " as " + SearchManager.SUGGEST_COLUMN_INTENT_DATA +
-			" FROM " + DB_TB_AUTHORS + " a" + 
-			" WHERE a." + KEY_GIVEN_NAMES + " LIKE '"+query+"%'" +
-			" UNION " + 
-			" SELECT \"BK\" || b." + KEY_ROWID + " as " + BaseColumns._ID 
-				+ ", b." + KEY_ISBN + " as " + SearchManager.SUGGEST_COLUMN_TEXT_1 
-				+ ", b." + KEY_ISBN + " as " + SearchManager.SUGGEST_COLUMN_INTENT_DATA +
-			" FROM " + DB_TB_BOOKS + " b" + 
-			" WHERE b." + KEY_ISBN + " LIKE '"+query+"%'" +
-			" ) as zzz " + 
-			" ORDER BY Upper(" + SearchManager.SUGGEST_COLUMN_TEXT_1 + ") " + COLLATION;
-			;
-		Cursor results = mDb.rawQuery(sql, null);
-		return results;
+		return SearchSuggestionIndex.getIndex(this).getSuggestions(query, SearchSuggestionIndex.MAX_SUGGESTIONS);
+	}
+
+	/**
+	 * Get the text used to build the search suggestion index: titles, author family names,
+	 * author given names and ISBNs, each with the number of books it applies to. The same
+	 * text may appear more than once.
+	 * 
+	 * @return Cursor of text and book count
+	 */
+	public Cursor fetchSearchSuggestionSource() {
+		String sql = "SELECT b." + KEY_TITLE + ", Count(*) FROM " + DB_TB_BOOKS + " b" +
+				" WHERE Coalesce(b." + KEY_TITLE + ", '') <> '' GROUP BY b." + KEY_TITLE +
+			" UNION ALL " +
+			" SELECT a." + KEY_FAMILY_NAME + ", Count(ba." + KEY_BOOK + ") FROM " + DB_TB_AUTHORS + " a" +
+				" LEFT OUTER JOIN " + DB_TB_BOOK_AUTHOR + " ba ON ba." + KEY_AUTHOR_ID + " = a." + KEY_ROWID +
+				" WHERE Coalesce(a." + KEY_FAMILY_NAME + ", '') <> '' GROUP BY a." + KEY_FAMILY_NAME +
+			" UNION ALL " +
+			" SELECT a." + KEY_GIVEN_NAMES + ", Count(ba." + KEY_BOOK + ") FROM " + DB_TB_AUTHORS + " a" +
+				" LEFT OUTER JOIN " + DB_TB_BOOK_AUTHOR + " ba ON ba." + KEY_AUTHOR_ID + " = a." + KEY_ROWID +
+				" WHERE Coalesce(a." + KEY_GIVEN_NAMES + ", '') <> '' GROUP BY a." + KEY_GIVEN_NAMES +
+			" UNION ALL " +
+			" SELECT b." + KEY_ISBN + ", Count(*) FROM " + DB_TB_BOOKS + " b" +
+				" WHERE Coalesce(b." + KEY_ISBN + ", '') <> '' GROUP BY b." + KEY_ISBN;
+		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
+	}
+
+	/**
+	 * Get the current value of the book change counter; it changes whenever books, or the
+	 * authors and series they refer to, are changed.
+	 * 
+	 * @return	Counter value
+	 */
+	public long getBookChangeCounter() {
+		return BooklistCache.getChangeCounter(mStatements);
 	}
 	
 	/**
@@ -3559,7 +3735,6 @@ public class CatalogueDBAdapter {
 	 */
 	private long getAnthologyTitleId(long bookId, long authorId, String title) {
 		if (mGetAnthologyTitleIdStmt == null) {
-			// Build the FTS update statement base. The parameter order MUST match the order expected in ftsSendBooks().
 			String sql = "Select Coalesce( Min(" + KEY_ROWID + "),-1) from " + DB_TB_ANTHOLOGY + " Where " + KEY_BOOK + " = ? and " + KEY_AUTHOR_ID + " = ? and " + KEY_TITLE + " = ? " + COLLATION;
 			mGetAnthologyTitleIdStmt = mStatements.add("mGetAnthologyTitleIdStmt", sql);
 		}
@@ -3656,7 +3831,11 @@ public class CatalogueDBAdapter {
 			// ALWAYS set the INSTANCE_UPDATE_DATE; this is used for backups
 			//initialValues.put(DOM_INSTANCE_UPDATE_DATE.name, Utils.toSqlDateTime(Calendar.getInstance().getTime()));
 
-			long rowId = mDb.insert(DB_TB_BOOKS, null, initialValues);
+			long rowId;
+			if (mInBulkLoad)
+				rowId = bulkInsertBook(initialValues);
+			else
+				rowId = mDb.insert(DB_TB_BOOKS, null, initialValues);
 
 			String bookshelf = values.getBookshelfList();
 			if (bookshelf != null && !bookshelf.trim().equals("")) {
@@ -3671,10 +3850,16 @@ public class CatalogueDBAdapter {
 			ArrayList<AnthologyTitle> anthologyTitles = values.getAnthologyTitles();
 			createBookAnthologyTitles(rowId, anthologyTitles, false);
 
-			try {
-				insertFts(rowId);
-			} catch (Exception e) {
-				Logger.logError(e, "Failed to update FTS");
+			if (mInBulkLoad) {
+				bulkBookChanged(rowId);
+			} else {
+				try {
+					queueFtsUpdate(rowId);
+				} catch (Exception e) {
+					Logger.logError(e, "Failed to update FTS");
+				}
+
+				setBookChanged(rowId);
 			}
 
 			return rowId;
@@ -3767,6 +3952,8 @@ public class CatalogueDBAdapter {
 
 		if (dirtyBookIfNecessary)
 			setBookDirty(values.getRowId());
+		else
+			setBookChanged(values.getRowId());
 
 		return result;
 	}
@@ -3871,10 +4058,21 @@ public class CatalogueDBAdapter {
 	}
 
 	private String getSeriesIdOrCreate(String name) {
+		String key = null;
+		if (mInBulkLoad) {
+			key = name.toUpperCase();
+			Long cached = mBulkSeriesIds.get(key);
+			if (cached != null)
+				return cached.toString();
+		}
+
 		long id = getSeriesId(name);
 		if (id == 0)
 			id = createSeries(name);
 
+		if (key != null)
+			mBulkSeriesIds.put(key, id);
+
 		return Long.toString(id);
 	}
 
@@ -3898,19 +4096,53 @@ public class CatalogueDBAdapter {
 	}
 
 	private String getAuthorIdOrCreate(String[] names) {
+		String key = null;
+		if (mInBulkLoad) {
+			key = (names[0] + "\n" + names[1]).toUpperCase();
+			Long cached = mBulkAuthorIds.get(key);
+			if (cached != null)
+				return cached.toString();
+		}
+
 		long id = getAuthorId(names);
 		if (id == 0)
 			id = createAuthor(names[0], names[1]);
 
+		if (key != null)
+			mBulkAuthorIds.put(key, id);
+
 		return Long.toString(id);
 	}
 
 	public long lookupAuthorId(Author a) {
-		return getAuthorId(new String[] {a.familyName, a.givenNames});
+		String[] names = new String[] {a.familyName, a.givenNames};
+		if (!mInBulkLoad)
+			return getAuthorId(names);
+
+		// Use the IDs remembered during the bulk load; only existing authors are remembered
+		String key = (names[0] + "\n" + names[1]).toUpperCase();
+		Long cached = mBulkAuthorIds.get(key);
+		if (cached != null)
+			return cached;
+		long id = getAuthorId(names);
+		if (id != 0)
+			mBulkAuthorIds.put(key, id);
+		return id;
 	}
 
 	public long lookupSeriesId(Series s) {
-		return getSeriesId(s.name);
+		if (!mInBulkLoad)
+			return getSeriesId(s.name);
+
+		// Use the IDs remembered during the bulk load; only existing series are remembered
+		String key = s.name.toUpperCase();
+		Long cached = mBulkSeriesIds.get(key);
+		if (cached != null)
+			return cached;
+		long id = getSeriesId(s.name);
+		if (id != 0)
+			mBulkSeriesIds.put(key, id);
+		return id;
 	}
 
 	/**
@@ -4205,6 +4437,187 @@ public class CatalogueDBAdapter {
 	/** Flag indicating to skip doing the 'purge' step; mainly used in batch operations. */
 	public static final int BOOK_UPDATE_SKIP_PURGE_REFERENCES = 2;
 
+	/** Number of books changed in a bulk load above which the FTS table is rebuilt rather than updated book by book */
+	private static final int BULK_FTS_REBUILD_THRESHOLD = 100;
+
+	/** Set while a bulk load is in progress; see startBulkLoad() */
+	private boolean mInBulkLoad = false;
+	/** Author IDs found or created during the bulk load, keyed by upper case name */
+	private Hashtable<String, Long> mBulkAuthorIds = null;
+	/** Series IDs found or created during the bulk load, keyed by upper case name */
+	private Hashtable<String, Long> mBulkSeriesIds = null;
+	/** Compiled book INSERT and UPDATE statements, keyed by SQL; each distinct column list gets its own statement */
+	private Hashtable<String, SynchronizedStatement> mBulkBookStmts = null;
+	/** Books created or updated during the bulk load that need their FTS data updated */
+	private ArrayList<Long> mBulkFtsBooks = null;
+	/** Set if too many books have changed during the bulk load to update the FTS data book by book */
+	private boolean mBulkFtsRebuild = false;
+
+	/**
+	 * Start loading a large number of books, eg. when importing a CSV file. Until endBulkLoad() is called:
+	 * 
+	 * - author and series IDs are remembered rather than looked up for every book.
+	 * - books are written with compiled statements that are reused for books with the same columns.
+	 * - FTS data is not maintained; endBulkLoad() queues the changed books for the FTS indexer, or rebuilds it.
+	 * - changes are not recorded book by book; endBulkLoad() records that all books may have changed.
+	 * 
+	 * The caller is responsible for transactions; large batches of books should be written in
+	 * a single transaction. Any purge of unused authors and series should be done after endBulkLoad().
+	 */
+	public void startBulkLoad() {
+		if (mInBulkLoad)
+			throw new RuntimeException("Bulk load already in progress");
+		mBulkAuthorIds = new Hashtable<String, Long>();
+		mBulkSeriesIds = new Hashtable<String, Long>();
+		mBulkBookStmts = new Hashtable<String, SynchronizedStatement>();
+		mBulkFtsBooks = new ArrayList<Long>();
+		mBulkFtsRebuild = false;
+		mInBulkLoad = true;
+	}
+
+	/**
+	 * Finish a bulk load started by startBulkLoad(): update the FTS data and record the changes.
+	 * 
+	 * Must NOT be called inside a transaction since the FTS table may be rebuilt.
+	 */
+	public void endBulkLoad() {
+		if (!mInBulkLoad)
+			return;
+		mInBulkLoad = false;
+
+		for(SynchronizedStatement stmt: mBulkBookStmts.values()) {
+			try { stmt.close(); } catch (Exception e) {};
+		}
+		mBulkBookStmts = null;
+		mBulkAuthorIds = null;
+		mBulkSeriesIds = null;
+
+		final boolean changed = mBulkFtsRebuild || mBulkFtsBooks.size() > 0;
+		try {
+			if (mBulkFtsRebuild) {
+				rebuildFts();
+			} else if (mBulkFtsBooks.size() > 0) {
+				SyncLock l = mDb.beginTransaction(true);
+				try {
+					// Books may be new or existing; the indexer replaces any FTS row
+					for(Long id: mBulkFtsBooks)
+						queueFtsUpdate(id);
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction(l);
+				}
+			}
+		} catch (Exception e) {
+			Logger.logError(e, "Failed to update FTS");
+		}
+		mBulkFtsBooks = null;
+
+		if (changed)
+			setAllBooksChanged();
+	}
+
+	/**
+	 * Record a book created or updated during a bulk load.
+	 * 
+	 * @param bookId
+	 */
+	private void bulkBookChanged(long bookId) {
+		if (mBulkFtsRebuild)
+			return;
+		if (mBulkFtsBooks.size() >= BULK_FTS_REBUILD_THRESHOLD) {
+			mBulkFtsRebuild = true;
+			mBulkFtsBooks.clear();
+		} else {
+			mBulkFtsBooks.add(bookId);
+		}
+	}
+
+	/**
+	 * Insert a book during a bulk load using a compiled statement for its set of columns.
+	 * 
+	 * @param values	Filtered book columns
+	 * 
+	 * @return	rowId of new book
+	 */
+	private long bulkInsertBook(ContentValues values) {
+		StringBuilder cols = new StringBuilder();
+		StringBuilder params = new StringBuilder();
+		ArrayList<Object> args = new ArrayList<Object>();
+		for(Map.Entry<String, Object> e: values.valueSet()) {
+			if (args.size() > 0) {
+				cols.append(", ");
+				params.append(", ");
+			}
+			cols.append(e.getKey());
+			params.append("?");
+			args.add(e.getValue());
+		}
+		SynchronizedStatement stmt = getBulkBookStmt("Insert Into " + DB_TB_BOOKS + " (" + cols + ") Values (" + params + ")", args);
+		return stmt.executeInsert();
+	}
+
+	/**
+	 * Update a book during a bulk load using a compiled statement for its set of columns.
+	 * 
+	 * @param rowId		ID of book
+	 * @param values	Filtered book columns
+	 * 
+	 * @return	true if the book was updated, false if there is no book with that ID
+	 */
+	private boolean bulkUpdateBook(long rowId, ContentValues values) {
+		StringBuilder cols = new StringBuilder();
+		ArrayList<Object> args = new ArrayList<Object>();
+		for(Map.Entry<String, Object> e: values.valueSet()) {
+			if (args.size() > 0)
+				cols.append(", ");
+			cols.append(e.getKey());
+			cols.append(" = ?");
+			args.add(e.getValue());
+		}
+		args.add(rowId);
+		SynchronizedStatement stmt = getBulkBookStmt("Update " + DB_TB_BOOKS + " Set " + cols + " Where " + KEY_ROWID + " = ?", args);
+		stmt.execute();
+		// executeUpdateDelete() needs API 11, so ask SQLite how many rows the update changed. Bulk
+		// loads run in the caller's transaction, so no other write can run in between.
+		SynchronizedStatement changes = getBulkBookStmt("Select changes()", new ArrayList<Object>());
+		return changes.simpleQueryForLong() > 0;
+	}
+
+	/**
+	 * Get (compiling if necessary) the bulk load statement for the passed SQL and bind the arguments.
+	 * 
+	 * @param sql	SQL of statement
+	 * @param args	Values to bind, in order
+	 * 
+	 * @return	Statement ready to execute
+	 */
+	private SynchronizedStatement getBulkBookStmt(String sql, ArrayList<Object> args) {
+		SynchronizedStatement stmt = mBulkBookStmts.get(sql);
+		if (stmt == null) {
+			stmt = mDb.compileStatement(sql);
+			mBulkBookStmts.put(sql, stmt);
+		}
+		stmt.clearBindings();
+		for(int i = 0; i < args.size(); i++) {
+			final Object v = args.get(i);
+			final int pos = i + 1;
+			if (v == null) {
+				stmt.bindNull(pos);
+			} else if (v instanceof Float || v instanceof Double) {
+				stmt.bindDouble(pos, ((Number)v).doubleValue());
+			} else if (v instanceof Number) {
+				stmt.bindLong(pos, ((Number)v).longValue());
+			} else if (v instanceof Boolean) {
+				stmt.bindLong(pos, ((Boolean)v) ? 1 : 0);
+			} else if (v instanceof byte[]) {
+				stmt.bindBlob(pos, (byte[])v);
+			} else {
+				stmt.bindString(pos, v.toString());
+			}
+		}
+		return stmt;
+	}
+
 	/**
 	 * Update the book using the details provided. The book to be updated is
 	 * specified using the rowId, and it is altered to use values passed in
@@ -4237,7 +4650,10 @@ public class CatalogueDBAdapter {
 				args.put(DOM_LAST_UPDATE_DATE.name, Utils.toSqlDateTime(Calendar.getInstance().getTime()));
 			// ALWAYS set the INSTANCE_UPDATE_DATE; this is used for backups
 			//args.put(DOM_INSTANCE_UPDATE_DATE.name, Utils.toSqlDateTime(Calendar.getInstance().getTime()));
-			success = mDb.update(DB_TB_BOOKS, args, KEY_ROWID + "=" + rowId, null) > 0;
+			if (mInBulkLoad)
+				success = bulkUpdateBook(rowId, args);
+			else
+				success = mDb.update(DB_TB_BOOKS, args, KEY_ROWID + "=" + rowId, null) > 0;
 
 			String bookshelf = values.getBookshelfList();
 			if (bookshelf != null && !bookshelf.trim().equals("")) {
@@ -4266,11 +4682,18 @@ public class CatalogueDBAdapter {
 				purgeSeries();			
 			}
 
-			try {
-				updateFts(rowId);
-			} catch (Exception e) {
-				Logger.logError(e, "Failed to update FTS");
+			if (mInBulkLoad) {
+				bulkBookChanged(rowId);
+			} else {
+				try {
+					queueFtsUpdate(rowId);
+				} catch (Exception e) {
+					Logger.logError(e, "Failed to update FTS");
+				}
+
+				setBookChanged(rowId);
 			}
+
 			return success;
 		} catch (Exception e) {
 			Logger.logError(e);
@@ -4458,8 +4881,40 @@ public class CatalogueDBAdapter {
 		String sql = "Update " + TBL_BOOKS + " set " + DOM_LAST_UPDATE_DATE + " = current_timestamp where "
 				+ TBL_BOOKS + "." + DOM_ID + " = " + bookId;
 		mDb.execSQL(sql);
+		setBookChanged(bookId);
 	}
 	
+	private SynchronizedStatement mIncrementChangeCounterStmt = null;
+	/**
+	 * Record that a book has been added, changed or deleted so that open booklists can be updated
+	 * and saved booklists are known to be out of date.
+	 * 
+	 * @param bookId
+	 */
+	private void setBookChanged(long bookId) {
+		BooklistChanges.bookChanged(bookId);
+		incrementChangeCounter();
+	}
+
+	/**
+	 * Record that an unknown set of books has changed. Saved booklists are no longer used.
+	 */
+	public void setAllBooksChanged() {
+		BooklistChanges.allBooksChanged();
+		incrementChangeCounter();
+	}
+
+	/**
+	 * Increment the persistent change counter. Saved booklists are only used if this has not
+	 * changed since they were saved.
+	 */
+	private void incrementChangeCounter() {
+		if (mIncrementChangeCounterStmt == null) {
+			mIncrementChangeCounterStmt = mStatements.add("mIncrementChangeCounterStmt", "Update " + TBL_BOOK_CHANGES + " Set " + DOM_CHANGE_COUNTER + " = " + DOM_CHANGE_COUNTER + " + 1");
+		}
+		mIncrementChangeCounterStmt.execute();
+	}
+
 	/**
 	 * Utility routine to set all books referencing a given author as dirty.
 	 * 
@@ -4477,6 +4932,7 @@ public class CatalogueDBAdapter {
 				+ " Exists(Select * From " + TBL_BOOK_AUTHOR.ref() + " Where " + TBL_BOOK_AUTHOR.dot(DOM_AUTHOR_ID) + " = " + authorId
 				+ " and " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " = " + TBL_BOOKS + "." + DOM_ID + ")";
 		mDb.execSQL(sql);
+		setAllBooksChanged();
 	}
 	
 	private void setBooksDirtyBySeries(long seriesId) {
@@ -4485,6 +4941,7 @@ public class CatalogueDBAdapter {
 				+ " Exists(Select * From " + TBL_BOOK_SERIES.ref() + " Where " + TBL_BOOK_SERIES.dot(DOM_SERIES_ID) + " = " + seriesId
 				+ " and " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " = " + TBL_BOOKS + "." + DOM_ID + ")";
 		mDb.execSQL(sql);		
+		setAllBooksChanged();
 	}
 
 	private void setBooksDirtyByBookshelf(long bookshelfId) {
@@ -4493,6 +4950,7 @@ public class CatalogueDBAdapter {
 				+ " Exists(Select * From " + TBL_BOOK_BOOKSHELF.ref() + " Where " + TBL_BOOK_BOOKSHELF.dot(DOM_BOOKSHELF_ID) + " = " + bookshelfId
 				+ " and " + TBL_BOOK_BOOKSHELF.dot(DOM_BOOK) + " = " + TBL_BOOKS + "." + DOM_ID + ")";
 		mDb.execSQL(sql);		
+		setAllBooksChanged();
 	}
 
 	/**
@@ -4652,8 +5110,10 @@ public class CatalogueDBAdapter {
 		// Mark book dirty
 		if (dirtyBookIfNecessary)
 			setBookDirty(bookRowId);
-		// Cleanup the author list, if necessary (we may have deleted the only work by an author)
-		purgeAuthors();
+		// Cleanup the author list, if necessary (we may have deleted the only work by an author).
+		// Bulk loads purge once when finished.
+		if (!mInBulkLoad)
+			purgeAuthors();
 		return success;
 	}
 
@@ -4703,6 +5163,10 @@ public class CatalogueDBAdapter {
 									+ " Not In (SELECT DISTINCT " + KEY_ROWID + " FROM " + DB_TB_BOOKS + ") ");
 		}
 
+		// Unused authors may be deleted below, so forget any remembered IDs
+		if (mInBulkLoad)
+			mBulkAuthorIds.clear();
+
 		boolean success;
 		try {
 			mPurgeBookAuthorsStmt.execute();
@@ -4743,6 +5207,10 @@ public class CatalogueDBAdapter {
 			mPurgeBookSeriesStmt = mStatements.add("mPurgeBookSeriesStmt", "Delete From "+ DB_TB_BOOK_SERIES + " Where " 
 									+ KEY_BOOK + " NOT IN (SELECT DISTINCT " + KEY_ROWID + " FROM " + DB_TB_BOOKS + ")");
 		}
+		// Unused series may be deleted below, so forget any remembered IDs
+		if (mInBulkLoad)
+			mBulkSeriesIds.clear();
+
 		boolean success;
 		// Delete DB_TB_BOOK_SERIES with no books
 		try {
@@ -4816,6 +5284,7 @@ public class CatalogueDBAdapter {
 
 		success = mDb.delete(DB_TB_BOOKS, KEY_ROWID + "=" + rowId, null) > 0;
 		purgeAuthors();
+		setBookChanged(rowId);
 
 		try {
 			deleteFts(rowId);
@@ -4825,11 +5294,7 @@ public class CatalogueDBAdapter {
 		// Delete thumbnail(s)
 		if (uuid != null) {
 			try {
-				File f = fetchThumbnailByUuid(uuid);
-				while (f.exists()) {
-					f.delete();				
-					f = fetchThumbnailByUuid(uuid);
-				}	
+				CoverFileIndex.deleteCover(uuid);
 			} catch (Exception e) {
 				Logger.logError(e, "Failed to delete cover thumbnail");
 			}
@@ -4874,6 +5339,8 @@ public class CatalogueDBAdapter {
 		success = mDb.delete(DB_TB_LOAN, KEY_BOOK+ "=" + bookId, null) > 0;
 		//Special cleanup step - Delete all loans without books
 		this.deleteLoanInvalids();
+		if (!dirtyBookIfNecessary)
+			setBookChanged(bookId);
 		return success;
 	}
 	
@@ -5600,14 +6067,32 @@ public class CatalogueDBAdapter {
 		}
 	}
 	
+	/** Set when the current transaction has been marked successful */
+	private boolean mTxSuccessful = false;
+
 	public SyncLock startTransaction(boolean isUpdate) {
-		return mDb.beginTransaction(isUpdate);
+		SyncLock l = mDb.beginTransaction(isUpdate);
+		mTxSuccessful = false;
+		return l;
 	}
 	public void endTransaction(SyncLock lock) {
-		mDb.endTransaction(lock);
+		boolean committed = false;
+		try {
+			mDb.endTransaction(lock);
+			committed = mTxSuccessful;
+		} finally {
+			mTxSuccessful = false;
+			// Authors and series created in a rolled back transaction no longer exist, so
+			// forget the IDs remembered during a bulk load.
+			if (mInBulkLoad && !committed) {
+				mBulkAuthorIds.clear();
+				mBulkSeriesIds.clear();
+			}
+		}
 	}
 	public void setTransactionSuccessful() {
 		mDb.setTransactionSuccessful();
+		mTxSuccessful = true;
 	}
 	
 	public void analyzeDb() {
@@ -5685,159 +6170,137 @@ public class CatalogueDBAdapter {
 	 */
 
 	/**
-	 * Send the book details from the cursor to the passed fts query. 
+	 * Send the details of the books matching the passed condition to the passed fts query.
+	 * 
+	 * Rather than running three queries for each book to get its authors, series and anthology
+	 * titles, each of those tables is read with ONE query sorted by book ID. The books cursor is
+	 * sorted the same way, so all four cursors are advanced together in a single merge pass.
 	 * 
 	 * NOTE: This assumes a specific order for query parameters.
 	 * 
-	 * @param books		Cursor of books to update
-	 * @param stmt		Statement to execute
+	 * @param bookCondition		Condition on book ID, eg. "= ?", or null for all books
+	 * @param args				Parameters for bookCondition
+	 * @param stmt				Statement to execute
 	 * 
+	 * @return	Number of books sent
 	 */
-	public void ftsSendBooks(BooksCursor books, SynchronizedStatement stmt) {
+	private int ftsSendBooks(String bookCondition, String[] args, SynchronizedStatement stmt) {
+		final String bookWhere = bookCondition == null ? "" : " Where " + TBL_BOOKS.dot(DOM_ID) + " " + bookCondition;
+		final String bookSql = "Select " + TBL_BOOKS.dotAs(DOM_ID) + ", " + TBL_BOOKS.dot(KEY_TITLE) + ", " + TBL_BOOKS.dot(KEY_DESCRIPTION) + ", " + TBL_BOOKS.dot(KEY_NOTES) + ", "
+				+ TBL_BOOKS.dot(KEY_PUBLISHER) + ", " + TBL_BOOKS.dot(KEY_GENRE) + ", " + TBL_BOOKS.dot(KEY_LOCATION) + ", " + TBL_BOOKS.dot(KEY_ISBN)
+				+ " from " + TBL_BOOKS.ref() + bookWhere
+				+ " Order by " + TBL_BOOKS.dot(DOM_ID);
 
-		// Get a rowview for the cursor
-		final BooksRowView book = books.getRowView();
-		// Build the SQL to get author details for a book.
+		// The child queries all return the book ID in column 0
+		final String childCondition = bookCondition == null ? "" : " " + bookCondition;
 		// ... all authors
-		final String authorBaseSql = "Select " + TBL_AUTHORS.dot("*") + " from " + TBL_BOOK_AUTHOR.ref() + TBL_BOOK_AUTHOR.join(TBL_AUTHORS) +
-				" Where " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " = ";
+		final String authorSql = "Select " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + ", " + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME)
+				+ " from " + TBL_BOOK_AUTHOR.ref() + TBL_BOOK_AUTHOR.join(TBL_AUTHORS)
+				+ " Where " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + (bookCondition == null ? " not null" : childCondition)
+				+ " Order by " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + ", " + TBL_BOOK_AUTHOR.dot(KEY_AUTHOR_POSITION);
 		// ... all series
-		final String seriesBaseSql = "Select " + TBL_SERIES.dot(DOM_SERIES_NAME) + " || ' ' || Coalesce(" + TBL_BOOK_SERIES.dot(DOM_SERIES_NUM) + ",'') as seriesInfo from " + TBL_BOOK_SERIES.ref() + TBL_BOOK_SERIES.join(TBL_SERIES) +
-				" Where " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " = ";
+		final String seriesSql = "Select " + TBL_BOOK_SERIES.dot(DOM_BOOK) + ", " + TBL_SERIES.dot(DOM_SERIES_NAME) + " || ' ' || Coalesce(" + TBL_BOOK_SERIES.dot(DOM_SERIES_NUM) + ",'')"
+				+ " from " + TBL_BOOK_SERIES.ref() + TBL_BOOK_SERIES.join(TBL_SERIES)
+				+ " Where " + TBL_BOOK_SERIES.dot(DOM_BOOK) + (bookCondition == null ? " not null" : childCondition)
+				+ " Order by " + TBL_BOOK_SERIES.dot(DOM_BOOK) + ", " + TBL_BOOK_SERIES.dot(KEY_SERIES_POSITION);
 		// ... all anthology titles
-		final String anthologyBaseSql = "Select " + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + " as anthologyAuthorInfo, " + DOM_TITLE + " as anthologyTitleInfo "
-				+ " from " + TBL_ANTHOLOGY.ref() + TBL_ANTHOLOGY.join(TBL_AUTHORS) +
-				" Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " = ";
-		
+		final String anthologySql = "Select " + TBL_ANTHOLOGY.dot(DOM_BOOK) + ", " + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + ", " + TBL_ANTHOLOGY.dot(DOM_TITLE)
+				+ " from " + TBL_ANTHOLOGY.ref() + TBL_ANTHOLOGY.join(TBL_AUTHORS)
+				+ " Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + (bookCondition == null ? " not null" : childCondition)
+				+ " Order by " + TBL_ANTHOLOGY.dot(DOM_BOOK) + ", " + TBL_ANTHOLOGY.dot(KEY_POSITION);
+
 		// Accumulator for author names for each book
 		StringBuilder authorText = new StringBuilder();
 		// Accumulator for series names for each book
 		StringBuilder seriesText = new StringBuilder();
 		// Accumulator for title names for each anthology
 		StringBuilder titleText = new StringBuilder();
-		// Indexes of author name fields.
-		int colGivenNames = -1;
-		int colFamilyName = -1;
-		int colSeriesInfo = -1;
-		int colAnthologyAuthorInfo = -1;
-		int colAnthologyTitleInfo = -1;
-
-		// Process each book
-		while (books.moveToNext()) {
-			// Reset authors/series/title
-			authorText.setLength(0);
-			seriesText.setLength(0);
-			titleText.setLength(0);
-			// Get list of authors
-			{
-				Cursor c = mDb.rawQuery(authorBaseSql + book.getId());
-				try {
-					// Get column indexes, if not already got
-					if (colGivenNames < 0)
-						colGivenNames = c.getColumnIndex(KEY_GIVEN_NAMES);
-					if (colFamilyName < 0)
-						colFamilyName = c.getColumnIndex(KEY_FAMILY_NAME);
-					// Append each author
-					while (c.moveToNext()) {
-						authorText.append(c.getString(colGivenNames));
-						authorText.append(" ");
-						authorText.append(c.getString(colFamilyName));
-						authorText.append(";");
-					}
-				} finally {
-					c.close();
-				}
-			}
 
-			// Get list of series
-			{
-				Cursor c = mDb.rawQuery(seriesBaseSql + book.getId());
-				try {
-					// Get column indexes, if not already got
-					if (colSeriesInfo < 0)
-						colSeriesInfo = c.getColumnIndex("seriesInfo");
-					// Append each series
-					while (c.moveToNext()) {
-						seriesText.append(c.getString(colSeriesInfo));
-						seriesText.append(";");
-					}
-				} finally {
-					c.close();
-				}				
-			}
+		int count = 0;
+		Cursor books = null;
+		BookChildCursor authors = null;
+		BookChildCursor series = null;
+		BookChildCursor anthology = null;
+		try {
+			books = mDb.rawQuery(bookSql, args);
+			authors = new BookChildCursor(mDb.rawQuery(authorSql, args));
+			series = new BookChildCursor(mDb.rawQuery(seriesSql, args));
+			anthology = new BookChildCursor(mDb.rawQuery(anthologySql, args));
+
+			// Process each book
+			while (books.moveToNext()) {
+				final long bookId = books.getLong(0);
+				// Reset authors/series/title
+				authorText.setLength(0);
+				seriesText.setLength(0);
+				titleText.setLength(0);
+
+				// Append each author
+				while (authors.moveToNextFor(bookId)) {
+					authorText.append(authors.getString(1));
+					authorText.append(";");
+				}
+				// Append each series
+				while (series.moveToNextFor(bookId)) {
+					seriesText.append(series.getString(1));
+					seriesText.append(";");
+				}
+				// Append each anthology author and title
+				while (anthology.moveToNextFor(bookId)) {
+					authorText.append(anthology.getString(1));
+					authorText.append(";");
+					titleText.append(anthology.getString(2));
+					titleText.append(";");
+				}
 
-			// Get list of anthology data (author and title)
-			{
-				Cursor c = mDb.rawQuery(anthologyBaseSql + book.getId());
-				try {
-					// Get column indexes, if not already got
-					if (colAnthologyAuthorInfo < 0)
-						colAnthologyAuthorInfo = c.getColumnIndex("anthologyAuthorInfo");
-					if (colAnthologyTitleInfo < 0)
-						colAnthologyTitleInfo = c.getColumnIndex("anthologyTitleInfo");
-					// Append each series
-					while (c.moveToNext()) {
-						authorText.append(c.getString(colAnthologyAuthorInfo));
-						authorText.append(";");
-						titleText.append(c.getString(colAnthologyTitleInfo));
-						titleText.append(";");
-					}
-				} finally {
-					c.close();
-				}				
+				// Set the parameters and call
+				bindStringOrNull(stmt, 1, authorText.toString());
+				// Titles should only contain title, not SERIES
+				bindStringOrNull(stmt, 2, books.getString(1) + "; " + titleText.toString());
+				// We could add a 'series' column, or just add it as part of the desciption
+				bindStringOrNull(stmt, 3, books.getString(2) + seriesText.toString());
+				bindStringOrNull(stmt, 4, books.getString(3));
+				bindStringOrNull(stmt, 5, books.getString(4));
+				bindStringOrNull(stmt, 6, books.getString(5));
+				bindStringOrNull(stmt, 7, books.getString(6));
+				bindStringOrNull(stmt, 8, books.getString(7));
+				stmt.bindLong(9, bookId);
+
+				stmt.execute();
+				count++;
 			}
-
-			// Set the parameters and call
-			bindStringOrNull(stmt, 1, authorText.toString());
-			// Titles should only contain title, not SERIES
-			bindStringOrNull(stmt, 2, book.getTitle() + "; " + titleText.toString());
-			// We could add a 'series' column, or just add it as part of the desciption
-			bindStringOrNull(stmt, 3, book.getDescription() + seriesText.toString());
-			bindStringOrNull(stmt, 4, book.getNotes());
-			bindStringOrNull(stmt, 5, book.getPublisher());
-			bindStringOrNull(stmt, 6, book.getGenre());
-			bindStringOrNull(stmt, 7, book.getLocation());
-			bindStringOrNull(stmt, 8, book.getIsbn());
-			stmt.bindLong(9, book.getId());
-
-			stmt.execute();
+		} finally {
+			if (books != null)
+				try { books.close(); } catch (Exception e) {};
+			if (authors != null)
+				authors.close();
+			if (series != null)
+				series.close();
+			if (anthology != null)
+				anthology.close();
 		}
+		return count;
 	}
-	
+
 	/**
 	 * Insert a book into the FTS. Assumes book does not already exist in FTS.
 	 * 
 	 * @param bookId
 	 */
-	private SynchronizedStatement mInsertFtsStmt = null;
 	public void insertFts(long bookId) {
 		//long t0 = System.currentTimeMillis();
-		
-		if (mInsertFtsStmt == null) {
-			// Build the FTS insert statement base. The parameter order MUST match the order expected in ftsSendBooks().
-			String sql = TBL_BOOKS_FTS.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES, 
-												DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
-												+ " Values (?,?,?,?,?,?,?,?,?)";
-			mInsertFtsStmt = mStatements.add("mInsertFtsStmt", sql);
-		}
-
-		BooksCursor books = null;
 
 		// Start an update TX
 		SyncLock l = null;
 		if (!mDb.inTransaction())
 			l = mDb.beginTransaction(true);
 		try {
-			// Compile statement and get books cursor
-			books = fetchBooks("select * from " + TBL_BOOKS + " where " + DOM_ID + " = " + bookId, EMPTY_STRING_ARRAY);
 			// Send the book
-			ftsSendBooks(books, mInsertFtsStmt);
+			ftsSendBooks("= ?", new String[] {Long.toString(bookId)}, getInsertFtsStmt());
 			if (l != null)
 				mDb.setTransactionSuccessful();
 		} finally {
 			// Cleanup
-			if (books != null)
-				try { books.close(); } catch (Exception e) {};
 			if (l != null)
 				mDb.endTransaction(l);
 			//long t1 = System.currentTimeMillis();
@@ -5845,6 +6308,21 @@ public class CatalogueDBAdapter {
 		}
 	}
 	
+	/**
+	 * Get the statement used to insert FTS rows.
+	 */
+	private SynchronizedStatement mInsertFtsStmt = null;
+	private SynchronizedStatement getInsertFtsStmt() {
+		if (mInsertFtsStmt == null) {
+			// Build the FTS insert statement base. The parameter order MUST match the order expected in ftsSendBooks().
+			String sql = TBL_BOOKS_FTS.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES, 
+												DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
+												+ " Values (?,?,?,?,?,?,?,?,?)";
+			mInsertFtsStmt = mStatements.add("mInsertFtsStmt", sql);
+		}
+		return mInsertFtsStmt;
+	}
+
 	/**
 	 * Update an existing FTS record.
 	 * 
@@ -5861,21 +6339,15 @@ public class CatalogueDBAdapter {
 												+ " Where " + DOM_DOCID + " = ?";
 			mUpdateFtsStmt = mStatements.add("mUpdateFtsStmt", sql);
 		}
-		BooksCursor books = null;
-
 		SyncLock l = null;
 		if (!mDb.inTransaction())
 			l = mDb.beginTransaction(true);
 		try {
-			// Compile statement and get cursor
-			books = fetchBooks("select * from " + TBL_BOOKS + " where " + DOM_ID + " = " + bookId, EMPTY_STRING_ARRAY);
-			ftsSendBooks(books, mUpdateFtsStmt);
+			ftsSendBooks("= ?", new String[] {Long.toString(bookId)}, mUpdateFtsStmt);
 			if (l != null)
 				mDb.setTransactionSuccessful();
 		} finally {
 			// Cleanup
-			if (books != null)
-				try { books.close(); } catch (Exception e) {};
 			if (l != null)
 				mDb.endTransaction(l);
 			//long t1 = System.currentTimeMillis();
@@ -5901,6 +6373,80 @@ public class CatalogueDBAdapter {
 		//System.out.println("Deleted from FTS in " + (t1-t0) + "ms");
 	}
 	
+	/**
+	 * Queue a book to have its FTS record replaced by the background indexer, and make sure
+	 * the indexer is running. Until then, searchFts() will find the book with a LIKE search.
+	 * 
+	 * @param bookId
+	 */
+	private SynchronizedStatement mQueueFtsStmt = null;
+	private void queueFtsUpdate(long bookId) {
+		if (mQueueFtsStmt == null) {
+			String sql = "Insert or Ignore Into " + TBL_BOOKS_FTS_QUEUE + " (" + DOM_BOOK + ") Values (?)";
+			mQueueFtsStmt = mStatements.add("mQueueFtsStmt", sql);
+		}
+		mQueueFtsStmt.bindLong(1, bookId);
+		mQueueFtsStmt.execute();
+		FtsIndexer.start();
+	}
+
+	/**
+	 * Get the number of books waiting for the FTS indexer.
+	 * 
+	 * @return	Number of books
+	 */
+	private SynchronizedStatement mCountFtsQueueStmt = null;
+	public long countFtsQueue() {
+		if (mCountFtsQueueStmt == null) {
+			String sql = "Select Count(*) From " + TBL_BOOKS_FTS_QUEUE;
+			mCountFtsQueueStmt = mStatements.add("mCountFtsQueueStmt", sql);
+		}
+		return mCountFtsQueueStmt.simpleQueryForLong();
+	}
+
+	/**
+	 * Replace the FTS records of the next batch of queued books and remove them from the queue.
+	 * Books that no longer exist just have their FTS records removed.
+	 * 
+	 * @param maxBooks	Maximum number of books to process
+	 * 
+	 * @return	Number of books processed; 0 if the queue is empty
+	 */
+	public int processFtsQueue(int maxBooks) {
+		int count = 0;
+		SyncLock l = null;
+		if (!mDb.inTransaction())
+			l = mDb.beginTransaction(true);
+		try {
+			// Get the next batch
+			StringBuilder ids = new StringBuilder();
+			Cursor c = mDb.rawQuery("Select " + DOM_BOOK + " From " + TBL_BOOKS_FTS_QUEUE + " Order by " + DOM_BOOK + " Limit " + maxBooks, EMPTY_STRING_ARRAY);
+			try {
+				while (c.moveToNext()) {
+					if (count > 0)
+						ids.append(",");
+					ids.append(c.getLong(0));
+					count++;
+				}
+			} finally {
+				c.close();
+			}
+
+			if (count > 0) {
+				final String condition = "In (" + ids + ")";
+				mDb.execSQL("Delete From " + TBL_BOOKS_FTS + " Where " + DOM_DOCID + " " + condition);
+				ftsSendBooks(condition, EMPTY_STRING_ARRAY, getInsertFtsStmt());
+				mDb.execSQL("Delete From " + TBL_BOOKS_FTS_QUEUE + " Where " + DOM_BOOK + " " + condition);
+			}
+			if (l != null)
+				mDb.setTransactionSuccessful();
+		} finally {
+			if (l != null)
+				mDb.endTransaction(l);
+		}
+		return count;
+	}
+
 	/**
 	 * Rebuild the entire FTS database. This can take several seconds with many books or a slow phone.
 	 * 
@@ -5915,7 +6461,7 @@ public class CatalogueDBAdapter {
 		ftsTemp.setName(ftsTemp.getName() + "_temp");
 
 		SynchronizedStatement insert = null;
-		BooksCursor c = null;
+		int count = 0;
 
 		SyncLock l = null;
 		if (!mDb.inTransaction())
@@ -5924,6 +6470,8 @@ public class CatalogueDBAdapter {
 			// Drop and recreate our temp copy
 			ftsTemp.drop(mDb);
 			ftsTemp.create(mDb, false);
+			// All books are about to be indexed
+			mDb.execSQL("Delete From " + TBL_BOOKS_FTS_QUEUE);
 
 			// Build the FTS update statement base. The parameter order MUST match the order expected in ftsSendBooks().
 			final String sql = ftsTemp.getInsert(DOM_AUTHOR_NAME, DOM_TITLE, DOM_DESCRIPTION, DOM_NOTES, DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN, DOM_DOCID)
@@ -5932,10 +6480,8 @@ public class CatalogueDBAdapter {
 			// Compile an INSERT statement
 			insert = mDb.compileStatement(sql);
 
-			// Get ALL books in the DB
-			c = fetchBooks("select * from " + TBL_BOOKS, EMPTY_STRING_ARRAY);
-			// Send each book
-			ftsSendBooks(c, insert);
+			// Send ALL books in the DB
+			count = ftsSendBooks(null, EMPTY_STRING_ARRAY, insert);
 			// Drop old table, ready for rename
 			TBL_BOOKS_FTS.drop(mDb);
 			// Done
@@ -5946,8 +6492,6 @@ public class CatalogueDBAdapter {
 			gotError = true;
 		} finally {
 			// Cleanup
-			if (c != null) 
-				try { c.close(); } catch (Exception e) {};
 			if (insert != null) 
 				try { insert.close(); } catch (Exception e) {};
 			if (l != null)
@@ -5966,7 +6510,8 @@ public class CatalogueDBAdapter {
 		}
 
 		long t1 = System.currentTimeMillis();
-		System.out.println("books reindexed in " + (t1-t0) + "ms");
+		final long rate = (t1 > t0) ? count * 1000L / (t1 - t0) : count;
+		System.out.println(count + " books reindexed in " + (t1-t0) + "ms (" + rate + " books/sec)");
 	}
 
 	/**
@@ -6085,8 +6630,71 @@ public class CatalogueDBAdapter {
 		}
 		sql += "'";
 
+		// Books waiting for the FTS indexer may have missing or out of date FTS records, so
+		// search their current details with LIKE instead.
+		if (countFtsQueue() > 0) {
+			sql += " and " + DOM_DOCID + " not in (Select " + DOM_BOOK + " From " + TBL_BOOKS_FTS_QUEUE + ")"
+					+ " Union " + getFtsQueueSearchSql(authorWords, titleWords, anywhere.split(" "));
+		}
+
 		return mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
 	}
+
+	/**
+	 * Build a query that applies the FTS search terms to the books waiting for the FTS indexer
+	 * using LIKE. The text searched is built the same way as in ftsSendBooks(). Prefix matches
+	 * become substring matches, so it may find slightly more books than FTS would.
+	 * 
+	 * @param authorWords		Author words, as passed to FTS
+	 * @param titleWords		Title words, as passed to FTS
+	 * @param anywhereWords		Words to find anywhere, as passed to FTS
+	 * 
+	 * @return	SQL returning the matching book IDs
+	 */
+	private String getFtsQueueSearchSql(String[] authorWords, String[] titleWords, String[] anywhereWords) {
+		final String authorText = "Coalesce((Select group_concat(" + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + ", ' ')"
+					+ " From " + TBL_BOOK_AUTHOR.ref() + TBL_BOOK_AUTHOR.join(TBL_AUTHORS) + " Where " + TBL_BOOK_AUTHOR.dot(DOM_BOOK) + " = " + TBL_BOOKS.dot(DOM_ID) + "), '')"
+				+ " || ' ' || Coalesce((Select group_concat(" + TBL_AUTHORS.dot(KEY_GIVEN_NAMES) + " || ' ' || " + TBL_AUTHORS.dot(KEY_FAMILY_NAME) + ", ' ')"
+					+ " From " + TBL_ANTHOLOGY.ref() + TBL_ANTHOLOGY.join(TBL_AUTHORS) + " Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " = " + TBL_BOOKS.dot(DOM_ID) + "), '')";
+		final String titleText = "Coalesce(" + TBL_BOOKS.dot(KEY_TITLE) + ", '')"
+				+ " || ' ' || Coalesce((Select group_concat(" + TBL_ANTHOLOGY.dot(DOM_TITLE) + ", ' ')"
+					+ " From " + TBL_ANTHOLOGY.ref() + " Where " + TBL_ANTHOLOGY.dot(DOM_BOOK) + " = " + TBL_BOOKS.dot(DOM_ID) + "), '')";
+		final String otherText = "Coalesce((Select group_concat(" + TBL_SERIES.dot(DOM_SERIES_NAME) + " || ' ' || Coalesce(" + TBL_BOOK_SERIES.dot(DOM_SERIES_NUM) + ",''), ' ')"
+					+ " From " + TBL_BOOK_SERIES.ref() + TBL_BOOK_SERIES.join(TBL_SERIES) + " Where " + TBL_BOOK_SERIES.dot(DOM_BOOK) + " = " + TBL_BOOKS.dot(DOM_ID) + "), '')"
+				+ " || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_DESCRIPTION) + ", '') || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_NOTES) + ", '')"
+				+ " || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_PUBLISHER) + ", '') || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_GENRE) + ", '')"
+				+ " || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_LOCATION) + ", '') || ' ' || Coalesce(" + TBL_BOOKS.dot(KEY_ISBN) + ", '')";
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("Select " + DOM_ID + " From (Select " + TBL_BOOKS.dotAs(DOM_ID) + ", " + authorText + " as fts_author, " + titleText + " as fts_title, " + otherText + " as fts_other"
+				+ " From " + TBL_BOOKS.ref() + " Where " + TBL_BOOKS.dot(DOM_ID) + " In (Select " + DOM_BOOK + " From " + TBL_BOOKS_FTS_QUEUE + "))"
+				+ " Where 1 = 1");
+		appendLikeConditions(sql, "fts_author", authorWords);
+		appendLikeConditions(sql, "fts_title", titleWords);
+		appendLikeConditions(sql, "fts_author || ' ' || fts_title || ' ' || fts_other", anywhereWords);
+		return sql.toString();
+	}
+
+	/**
+	 * Add a LIKE condition to the passed SQL for each FTS search word. Words starting with '-' are
+	 * negated; other punctuation is removed.
+	 * 
+	 * @param sql		SQL to append to
+	 * @param text		Expression to search
+	 * @param words		Search words
+	 */
+	private static void appendLikeConditions(StringBuilder sql, String text, String[] words) {
+		for(String w : words) {
+			final boolean negate = w.startsWith("-");
+			StringBuilder word = new StringBuilder();
+			for(char c : w.toCharArray()) {
+				if (Character.isLetterOrDigit(c))
+					word.append(c);
+			}
+			if (word.length() > 0)
+				sql.append(" and " + text + (negate ? " not like '%" : " like '%") + word + "%'");
+		}
+	}
 	
 	/**
 	 * Get the local database.
@@ -0,0 +1,146 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+
+/**
+ * Background indexer that keeps the FTS table up to date.
+ * 
+ * Rather than updating the FTS table as each book is saved, CatalogueDBAdapter records the
+ * book in the FTS queue table. This class processes that table in batches, each in its own
+ * transaction, pausing between batches so that it does not hog the database. Because the
+ * queue is a table, books saved just before the app was stopped are indexed the next time it
+ * starts (see StartupActivity).
+ * 
+ * While books are queued, CatalogueDBAdapter.searchFts() finds them with a LIKE search.
+ * 
+ * @author Philip Warner
+ */
+public class FtsIndexer implements SimpleTask {
+	/** Number of books to index in each transaction */
+	private static final int BATCH_SIZE = 100;
+	/** Default pause between batches, in ms */
+	private static final long DEFAULT_BATCH_DELAY = 50;
+
+	/** Single-thread queue for the indexer */
+	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("fts-indexer", 1);
+	static {
+		// Searching is less important than anything the user is waiting for
+		mQueue.setThreadPriority(Thread.MIN_PRIORITY);
+	}
+
+	/** true if an indexer task is queued or running */
+	private static boolean mIsRunning = false;
+	/** true if books were queued while the indexer was running */
+	private static boolean mRestartRequired = false;
+	/** Pause between batches, in ms */
+	private static long mBatchDelay = DEFAULT_BATCH_DELAY;
+
+	/**
+	 * Make sure the indexer is running. Cheap to call if it is already running.
+	 */
+	public static synchronized void start() {
+		if (mIsRunning) {
+			mRestartRequired = true;
+		} else {
+			mIsRunning = true;
+			mRestartRequired = false;
+			mQueue.enqueue(new FtsIndexer());
+		}
+	}
+
+	/**
+	 * Set the pause between batches. A longer pause reduces the impact on other database
+	 * users; 0 indexes as quickly as possible.
+	 * 
+	 * @param delay		Pause in ms
+	 */
+	public static synchronized void setBatchDelay(long delay) {
+		mBatchDelay = delay;
+	}
+
+	/**
+	 * Check if the indexer is running.
+	 */
+	public static synchronized boolean isRunning() {
+		return mIsRunning;
+	}
+
+	/**
+	 * Decide if the indexer is done after it found the queue empty.
+	 * 
+	 * @return	true if the indexer should stop
+	 */
+	private static synchronized boolean stopIfIdle() {
+		if (mRestartRequired) {
+			mRestartRequired = false;
+			return false;
+		} else {
+			mIsRunning = false;
+			return true;
+		}
+	}
+
+	private static synchronized long getBatchDelay() {
+		return mBatchDelay;
+	}
+
+	private FtsIndexer() {
+	}
+
+	@Override
+	public void run(SimpleTaskContext taskContext) {
+		taskContext.setRequiresFinish(false);
+
+		try {
+			CatalogueDBAdapter db = taskContext.getDb();
+			while (true) {
+				final int count = db.processFtsQueue(BATCH_SIZE);
+				if (count == 0) {
+					if (stopIfIdle())
+						break;
+				} else {
+					final long delay = getBatchDelay();
+					if (delay > 0) {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+			}
+		} catch (Exception e) {
+			// Leave the remaining books queued; they will be indexed when the indexer next starts
+			synchronized(FtsIndexer.class) {
+				mIsRunning = false;
+			}
+			Logger.logError(e, "FTS indexer failed");
+		}
+	}
+
+	@Override
+	public void onFinish(Exception e) {
+	}
+}
@@ -20,13 +20,15 @@
 
 package com.eleybourn.bookcatalogue;
 
-import java.io.File;
 import java.lang.ref.WeakReference;
 
 import android.graphics.Bitmap;
 import android.widget.ImageView;
 
 import com.eleybourn.bookcatalogue.booklist.BooklistPreferencesActivity;
+import com.eleybourn.bookcatalogue.utils.BitmapPool;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
+import com.eleybourn.bookcatalogue.utils.CoverMemoryCache;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
@@ -38,15 +40,20 @@ import com.eleybourn.bookcatalogue.utils.ViewTagger;
  * apply the resulting Bitmap to the related view.
  * 
  * This object also has it's own statically defined SimpleTaskQueue for getting thumbnails in
- * background.
+ * background. The queue is LIFO so the most recently requested (ie. visible) rows are done first,
+ * and uses one thread per processor unless set otherwise in the booklist preferences. Results are
+ * written to the covers database by ThumbnailCacheWriterTask in a separate, lower priority, queue.
+ * 
+ * When a view is reused for another book, its old task is removed from the queue or, if already
+ * running, cancelled before doing any more expensive work.
  * 
  * @author Philip Warner
  */
 public class GetThumbnailTask implements SimpleTask {
 
-	// Queue for background thumbnail retrieval; allow 2 threads. More is nice, but with 
-	// many books to process it introduces what looks like lag when scrolling: 5 tasks
-	// building now-invisible views is pointless. 
+	// Queue for background thumbnail retrieval. The number of threads is set from preferences when
+	// tasks are queued; tasks for views that are reused are cancelled, so extra threads do not
+	// waste time building now-invisible views.
 	private static final SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnails", 1);
 
 	/**
@@ -59,6 +66,7 @@ public class GetThumbnailTask implements SimpleTask {
 	 */
 	public static void getThumbnail(String hash, ImageView view, int maxWidth, int maxHeight, boolean cacheWasChecked) {
 		GetThumbnailTask t = new GetThumbnailTask( hash, view, maxWidth, maxHeight, cacheWasChecked);
+		mQueue.setMaxTasks(BooklistPreferencesActivity.getThumbnailThreads());
 		mQueue.enqueue(t);
 	}
 	
@@ -87,6 +95,8 @@ public class GetThumbnailTask implements SimpleTask {
 	private int mHeight;
 	/** Indicated we want the queue manager to call the finished() method. */
 	private boolean  mWantFinished = true;
+	/** Set when the view has been reused for another request */
+	private volatile boolean mCancelled = false;
 	
 	public static boolean hasActiveTasks() {
 		return mQueue.hasActiveTasks();
@@ -104,7 +114,9 @@ public class GetThumbnailTask implements SimpleTask {
 		final GetThumbnailTask oldTask = (GetThumbnailTask)ViewTagger.getTag(v, R.id.TAG_GET_THUMBNAIL_TASK);
 		if (oldTask != null) {
 			ViewTagger.setTag(v, R.id.TAG_GET_THUMBNAIL_TASK, null);
-			mQueue.remove(oldTask);
+			// If it is already running, tell it to stop
+			if (!mQueue.remove(oldTask))
+				oldTask.mCancelled = true;
 		}		
 	}
 
@@ -159,19 +171,25 @@ public class GetThumbnailTask implements SimpleTask {
 
 			// Make sure the view is still associated with this task. We don't want to overwrite the wrong image
 			// in a recycled view.
-			if (!this.equals(ViewTagger.getTag(v, R.id.TAG_GET_THUMBNAIL_TASK))) {
+			if (mCancelled || !this.equals(ViewTagger.getTag(v, R.id.TAG_GET_THUMBNAIL_TASK))) {
 				mWantFinished = false;
 				return;
 			}
 
-			File originalFile = CatalogueDBAdapter.fetchThumbnailByUuid(mBookHash);
+			CoverFileIndex.CoverInfo originalInfo = CoverFileIndex.getInfo(mBookHash);
 
 			if (!mCacheWasChecked) {
 				final String cacheId = Utils.getCoverCacheId(mBookHash, mWidth, mHeight);
-				mBitmap = taskContext.getUtils().fetchCachedImageIntoImageView(originalFile, null, cacheId);
+				mBitmap = taskContext.getUtils().fetchCachedImageIntoImageView(originalInfo == null ? 0L : originalInfo.modified, null, cacheId, true);
 				mWasInCache = (mBitmap != null);
 			}
 
+			// The view may have been reused while checking the cache; if so, don't decode the original
+			if (mBitmap == null && mCancelled) {
+				mWantFinished = false;
+				return;
+			}
+
 			if (mBitmap == null)
 				mBitmap = taskContext.getUtils().fetchBookCoverIntoImageView(null, mWidth, mHeight, true, mBookHash, false, false);
 			//}			
@@ -209,11 +227,18 @@ public class GetThumbnailTask implements SimpleTask {
 			if (viewIsValid) {
 				//LayoutParams lp = new LayoutParams(mBitmap.getWidth(), mBitmap.getHeight()); 
 				//v.setLayoutParams(lp);
-				v.setImageBitmap(mBitmap);
-			} else {
+				BitmapPool.setImageBitmap(v, mBitmap);
+				// Keep it in memory so it can be reused without a database read or decode
+				if (!mWasInCache)
+					CoverMemoryCache.putBitmap(Utils.getCoverCacheId(mBookHash, mWidth, mHeight), mBitmap);
+			}
+			// Give up our reference; the view, memory cache and cache writer hold their own. It
+			// can then be reused once none of them need it.
+			if (!BitmapPool.release(mBitmap) && !viewIsValid && !mWasInCache) {
+				// Not from the pool. Bitmaps from the cache may be in use elsewhere, so only recycle new ones
 				mBitmap.recycle();
-				mBitmap = null;
 			}
+			mBitmap = null;
 		} else {
 			v.setImageResource(android.R.drawable.ic_dialog_alert);
 		}
@@ -74,6 +74,14 @@ public class OtherPreferences extends PreferencesBase {
 			.add(ScannerManager.SCANNER_ZXING_COMPATIBLE, R.string.zxing_compatible_scanner)
 			.add(ScannerManager.SCANNER_ZXING, R.string.zxing_scanner)
 			.add(ScannerManager.SCANNER_PIC2SHOP, R.string.pic2shop_scanner);
+
+	/** Cover cache sizes, in MB */
+	private static ItemEntries<Integer> mCoverCacheSizeListItems = new ItemEntries<Integer>()
+			.add(25, R.string.cover_cache_25mb)
+			.add(50, R.string.cover_cache_50mb)
+			.add(100, R.string.cover_cache_100mb)
+			.add(250, R.string.cover_cache_250mb)
+			.add(0, R.string.cover_cache_unlimited);
 	
 	private static final Properties mProperties = new Properties()
 
@@ -166,6 +174,20 @@ public class OtherPreferences extends PreferencesBase {
 		.setNameResourceId(R.string.use_external_image_cropper)
 		.setGroup(PropertyGroup.GRP_THUMBNAILS))		
 
+	.add(new IntegerListProperty( mCoverCacheSizeListItems, BookCataloguePreferences.PREF_COVER_CACHE_SIZE)
+		.setDefaultValue(ThumbnailCacheWriterTask.DEFAULT_CACHE_SIZE_MB)
+		.setPreferenceKey(BookCataloguePreferences.PREF_COVER_CACHE_SIZE)
+		.setGlobal(true)
+		.setNameResourceId(R.string.cover_cache_size)
+		.setGroup(PropertyGroup.GRP_THUMBNAILS) )
+
+	.add(new BooleanProperty(BookCataloguePreferences.PREF_COVER_CACHE_PACK_FILE)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_COVER_CACHE_PACK_FILE)
+		.setGlobal(true)
+		.setNameResourceId(R.string.cover_cache_pack_file)
+		.setGroup(PropertyGroup.GRP_THUMBNAILS) )
+
 	// Book list compatibility mode setting
 	.add (new IntegerListProperty(mListGenerationOptionsListItems, BookCataloguePreferences.PREF_BOOKLIST_GENERATION_MODE)
 		.setDefaultValue(BOOKLIST_GENERATE_AUTOMATIC)
@@ -173,6 +195,28 @@ public class OtherPreferences extends PreferencesBase {
 		.setGlobal(true)
 		.setNameResourceId(R.string.booklist_generation)
 		.setGroup(PropertyGroup.GRP_ADVANCED_OPTIONS))		
+
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_USE_REENTRANT_DB_LOCKING)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_USE_REENTRANT_DB_LOCKING)
+		.setGlobal(true)
+		.setNameResourceId(R.string.use_reentrant_db_locking)
+		.setGroup(PropertyGroup.GRP_ADVANCED_OPTIONS))
+
+	// Off by default; older versions can not read compressed backups
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_COMPRESS_BACKUPS)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_COMPRESS_BACKUPS)
+		.setGlobal(true)
+		.setNameResourceId(R.string.compress_backups)
+		.setGroup(PropertyGroup.GRP_ADVANCED_OPTIONS))
+
+	.add (new BooleanProperty(BookCataloguePreferences.PREF_INCREMENTAL_BACKUPS)
+		.setDefaultValue(false)
+		.setPreferenceKey(BookCataloguePreferences.PREF_INCREMENTAL_BACKUPS)
+		.setGlobal(true)
+		.setNameResourceId(R.string.incremental_backups)
+		.setGroup(PropertyGroup.GRP_ADVANCED_OPTIONS))
 	;
 
 	/**
@@ -40,6 +40,15 @@ import com.eleybourn.bookcatalogue.utils.Utils;
  * processes the data. Once all tasks are complete, it sends a message to its
  * creator via its SearchHandler.
  * 
+ * When searching by ISBN, all sources are searched at once, and the search ends as soon as the
+ * sources that have finished provide all of the 'required fields' (by default title, author
+ * and, if wanted, a cover); the remaining searches are cancelled and their results ignored.
+ * Any source that takes longer than the provider timeout is treated as having found nothing.
+ * 
+ * Results are always merged in mDefaultReliabilityOrder, whatever order they arrive in: for
+ * each field the first non-blank value wins, except that authors, series and thumbnails are
+ * combined from all sources, and a parseable publication date replaces one that is not.
+ * 
  * @author Philip Warner
  */
 public class SearchManager implements TaskManagerListener {
@@ -60,6 +69,11 @@ public class SearchManager implements TaskManagerListener {
 	// ENHANCE: Allow user to change the default search data priority
 	public static final int[] mDefaultReliabilityOrder = new int[] {SEARCH_GOODREADS, SEARCH_AMAZON, SEARCH_GOOGLE, SEARCH_LIBRARY_THING};
 
+	/** Default time to wait for any one source, in milliseconds */
+	public static final long DEFAULT_PROVIDER_TIMEOUT = 20000;
+	/** Key used by search threads for thumbnail file names */
+	private static final String KEY_THUMBNAIL = "__thumbnail";
+
 	/** Flags applicable to *current* search */
 	int mSearchFlags;
 
@@ -89,6 +103,16 @@ public class SearchManager implements TaskManagerListener {
 
 	// List of threads created by *this* object.
 	private ArrayList<ManagedTask> mRunningTasks = new ArrayList<ManagedTask>();
+	// Threads cancelled by this object because they are too slow or no longer needed; their results are ignored
+	private ArrayList<ManagedTask> mAbandonedTasks = new ArrayList<ManagedTask>();
+	// Pending timeout for each running thread, so it can be removed when the thread is done with
+	private Hashtable<ManagedTask,Runnable> mTimeouts = new Hashtable<ManagedTask,Runnable>();
+	// Fields that end the search early once found; null means use the defaults
+	private String[] mRequiredFields = null;
+	// Time to wait for each source
+	private long mProviderTimeout = DEFAULT_PROVIDER_TIMEOUT;
+	// Set when the results have been sent
+	private boolean mResultsSent = false;
 
 //	/**
 //	 * Task handler for thread management; caller MUST implement this to get
@@ -113,36 +137,162 @@ public class SearchManager implements TaskManagerListener {
 		getMessageSwitch().addListener(getSenderId(), taskHandler, false);
 	}
 
+	/**
+	 * Set the fields that, once found, end an ISBN search without waiting for the slower sources.
+	 * 
+	 * @param fields	Book data keys; pass none to always wait for every source
+	 */
+	public void setRequiredFields(String... fields) {
+		mRequiredFields = fields;
+	}
+
+	/**
+	 * Set the time to wait for any one source before ignoring it.
+	 * 
+	 * @param timeout	Timeout in milliseconds
+	 */
+	public void setProviderTimeout(long timeout) {
+		mProviderTimeout = timeout;
+	}
+
 	/**
 	 * When a task has ended, see if we are finished (no more tasks running).
 	 * If so, finish.
 	 */
 	@Override
 	public void onTaskEnded(TaskManager manager, ManagedTask task) {
-		int size;
 		//System.out.println(task.getClass().getSimpleName() + "(" +  + task.getId() + ") FINISHED starting");
 
+		// Remove the finished task, ignoring tasks we have given up on
+		synchronized(mRunningTasks) {
+			if (mAbandonedTasks.remove(task) || !mRunningTasks.remove(task))
+				return;
+		}
+		cancelTimeout(task);
+
 		// Handle the result, and optionally queue another task
-		if (task instanceof SearchThread)
-			handleSearchTaskFinished((SearchThread)task);
+		if (task instanceof SearchThread) {
+			SearchThread st = (SearchThread)task;
+			handleSearchTaskFinished(st, st.getBookData(), st.isCancelled());
+		}
+
+		// Terminate if no more.
+		checkFinished();
+		//System.out.println(task.getClass().getSimpleName() + "(" +  + task.getId() + ") FINISHED Exiting");
+	}
 
-		// Remove the finished task, and terminate if no more.
+	/**
+	 * If no more tasks are running, send the results.
+	 */
+	private void checkFinished() {
 		synchronized(mRunningTasks) {
-			mRunningTasks.remove(task);
-			size = mRunningTasks.size();
+			if (mRunningTasks.size() > 0 || mResultsSent)
+				return;
+			mResultsSent = true;
 			//for(ManagedTask t: mRunningTasks) {
 			//	System.out.println(t.getClass().getSimpleName() + "(" +  + t.getId() + ") still running");
 			//}
+			// We stop listening below, so we will not hear when abandoned tasks end; forget them now
+			mAbandonedTasks.clear();
 		}
-		if (size == 0) {
-			// Stop listening FIRST...otherwise, if sendResults() calls a listener that starts
-			// a new task, we will stop listening for the new task.
-			TaskManager.getMessageSwitch().removeListener(mTaskManager.getSenderId(), this);
-			System.out.println("Not listening(1)");
-			// Notify the listeners.
-			sendResults();
+		// No timeouts should be left, but make sure none fire after the results are sent
+		for(ManagedTask t: new ArrayList<ManagedTask>(mTimeouts.keySet()))
+			cancelTimeout(t);
+		// Stop listening FIRST...otherwise, if sendResults() calls a listener that starts
+		// a new task, we will stop listening for the new task.
+		TaskManager.getMessageSwitch().removeListener(mTaskManager.getSenderId(), this);
+		System.out.println("Not listening(1)");
+		// Notify the listeners.
+		sendResults();
+	}
+
+	/**
+	 * Cancel a running search and ignore its results.
+	 * 
+	 * @param task	Task to abandon
+	 * 
+	 * @return	true if the task was still running
+	 */
+	private boolean abandon(SearchThread task) {
+		synchronized(mRunningTasks) {
+			if (!mRunningTasks.remove(task))
+				return false;
+			mAbandonedTasks.add(task);
 		}
-		//System.out.println(task.getClass().getSimpleName() + "(" +  + task.getId() + ") FINISHED Exiting");
+		cancelTimeout(task);
+		task.cancelTask();
+		return true;
+	}
+
+	/**
+	 * Remove the pending timeout for a task that is no longer running.
+	 * 
+	 * @param task	Task
+	 */
+	private void cancelTimeout(ManagedTask task) {
+		Runnable timeout = mTimeouts.remove(task);
+		if (timeout != null)
+			MessageSwitch.getHandler().removeCallbacks(timeout);
+	}
+
+	/**
+	 * Called when a source has run for longer than the provider timeout; carry on as if it
+	 * had found nothing.
+	 * 
+	 * @param task	Task that is too slow
+	 */
+	private void onProviderTimeout(SearchThread task) {
+		if (!abandon(task))
+			return;
+		System.out.println(task.getClass().getSimpleName() + " timed out after " + mProviderTimeout + "ms");
+		handleSearchTaskFinished(task, new Bundle(), false);
+		checkFinished();
+	}
+
+	/**
+	 * Cancel all running searches because the results so far are good enough.
+	 */
+	private void finishEarly() {
+		ArrayList<ManagedTask> running;
+		synchronized(mRunningTasks) {
+			running = new ArrayList<ManagedTask>(mRunningTasks);
+		}
+		for(ManagedTask t: running) {
+			if (t instanceof SearchThread && abandon((SearchThread)t))
+				System.out.println(t.getClass().getSimpleName() + " no longer needed");
+		}
+		checkFinished();
+	}
+
+	/**
+	 * Check if the results received so far contain all the required fields.
+	 */
+	private boolean hasRequiredFields() {
+		String[] required = mRequiredFields;
+		if (required == null) {
+			if (mFetchThumbnail)
+				required = new String[] {CatalogueDBAdapter.KEY_TITLE, CatalogueDBAdapter.KEY_AUTHOR_DETAILS, KEY_THUMBNAIL};
+			else
+				required = new String[] {CatalogueDBAdapter.KEY_TITLE, CatalogueDBAdapter.KEY_AUTHOR_DETAILS};
+		}
+		if (required.length == 0)
+			return false;
+
+		for(String key: required) {
+			boolean found = false;
+			for(Bundle bookData: mSearchResults.values()) {
+				// Results for a different book will be ignored when merging, so don't count them
+				if (mHasIsbn && bookData.containsKey(CatalogueDBAdapter.KEY_ISBN) && !IsbnUtils.matches(mIsbn, bookData.getString(CatalogueDBAdapter.KEY_ISBN)))
+					continue;
+				if (Utils.isNonBlankString(bookData, key)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -161,13 +311,22 @@ public class SearchManager implements TaskManagerListener {
 	 * 
 	 * @param thread	Task to start
 	 */
-	private void startOne(SearchThread thread) {
+	private void startOne(final SearchThread thread) {
 		synchronized(mRunningTasks) {
 			mRunningTasks.add(thread);
 			mTaskManager.addTask(thread);
 			//System.out.println(thread.getClass().getSimpleName() + "(" +  + thread.getId() + ") STARTING");
 		}
 		thread.start();
+		// Task end messages are delivered in the UI thread, so check the deadline there too
+		Runnable timeout = new Runnable() {
+			@Override
+			public void run() {
+				mTimeouts.remove(thread);
+				onProviderTimeout(thread);
+			}};
+		mTimeouts.put(thread, timeout);
+		MessageSwitch.getHandler().postDelayed(timeout, mProviderTimeout);
 	}
 
 	/**
@@ -244,6 +403,7 @@ public class SearchManager implements TaskManagerListener {
 
 		mWaitingForIsbn = false;
 		mCancelledFlg = false;
+		mResultsSent = false;
 
 		mAuthor = author;
 		mTitle = title;
@@ -351,7 +511,7 @@ public class SearchManager implements TaskManagerListener {
 							mBookData.putString(k, Utils.toSqlDateOnly(newDate));
 						}
 					}
-				} else if (k.equals("__thumbnail")) {
+				} else if (k.equals(KEY_THUMBNAIL)) {
 					appendData(k, bookData, mBookData);					
 				}
 			}
@@ -553,12 +713,12 @@ public class SearchManager implements TaskManagerListener {
 	/**
 	 * Handle task search results; start another task if necessary.
 	 * 
-	 * @param t
+	 * @param st			Task that finished
+	 * @param bookData		Data found by the task
+	 * @param cancelled		true if the user cancelled the search
 	 */
-	private void handleSearchTaskFinished(SearchThread t) {
-		SearchThread st = (SearchThread)t;
-		mCancelledFlg = st.isCancelled();
-		Bundle bookData = st.getBookData();
+	private void handleSearchTaskFinished(SearchThread st, Bundle bookData, boolean cancelled) {
+		mCancelledFlg = cancelled;
 		mSearchResults.put(st.getSearchId(), bookData);
 		if (mCancelledFlg) {
 			mWaitingForIsbn = false;
@@ -591,7 +751,10 @@ public class SearchManager implements TaskManagerListener {
 					// Start next one that has not run. 
 					startNext();
 				}
-			}				
+			} else if (!mSearchingAsin && hasRequiredFields()) {
+				// All sources are running at once; stop when we have enough
+				finishEarly();
+			}
 		}
 	}		
 
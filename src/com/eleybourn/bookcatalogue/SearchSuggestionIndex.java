@@ -0,0 +1,197 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Locale;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+
+/**
+ * In-memory index of the text used for search suggestions: titles, author family names,
+ * author given names and ISBNs.
+ * 
+ * The text is case-folded and stored in a sorted array, so all entries starting with a prefix
+ * are found with a binary search. Each entry has the number of books it applies to, and the
+ * most frequent matches are returned first.
+ * 
+ * The index is built when first needed, and rebuilt if the book change counter has changed
+ * since it was built.
+ * 
+ * @author Philip Warner
+ */
+public class SearchSuggestionIndex {
+	/** Maximum number of suggestions returned by CatalogueDBAdapter.fetchSearchSuggestions() */
+	public static final int MAX_SUGGESTIONS = 20;
+
+	/** Columns of the suggestion cursor */
+	private static final String[] COLUMNS = new String[] {BaseColumns._ID, SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_INTENT_DATA};
+
+	/** Current index */
+	private static SearchSuggestionIndex mIndex = null;
+
+	/** Case-folded text, sorted */
+	private final String[] mKeys;
+	/** Original text for each key */
+	private final String[] mTexts;
+	/** Number of books for each key */
+	private final int[] mCounts;
+	/** Book change counter when the index was built */
+	private final long mChangeCounter;
+
+	/**
+	 * Get the index, building it if it does not exist or is out of date.
+	 * 
+	 * @param db	Database to use
+	 * 
+	 * @return	Index
+	 */
+	public static synchronized SearchSuggestionIndex getIndex(CatalogueDBAdapter db) {
+		final long changeCounter = db.getBookChangeCounter();
+		if (mIndex == null || mIndex.mChangeCounter != changeCounter) {
+			mIndex = new SearchSuggestionIndex(db, changeCounter);
+		}
+		return mIndex;
+	}
+
+	/**
+	 * Constructor. Read and sort the suggestion text.
+	 * 
+	 * @param db				Database to use
+	 * @param changeCounter		Current book change counter
+	 */
+	private SearchSuggestionIndex(CatalogueDBAdapter db, long changeCounter) {
+		final long t0 = System.currentTimeMillis();
+		mChangeCounter = changeCounter;
+
+		// Combine entries with the same folded text
+		final Hashtable<String, Entry> entries = new Hashtable<String, Entry>();
+		Cursor c = db.fetchSearchSuggestionSource();
+		try {
+			while (c.moveToNext()) {
+				final String text = c.getString(0);
+				final String key = fold(text);
+				Entry e = entries.get(key);
+				if (e == null) {
+					e = new Entry(key, text);
+					entries.put(key, e);
+				}
+				e.count += c.getInt(1);
+			}
+		} finally {
+			c.close();
+		}
+
+		Entry[] sorted = entries.values().toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry lhs, Entry rhs) {
+				return lhs.key.compareTo(rhs.key);
+			}});
+
+		mKeys = new String[sorted.length];
+		mTexts = new String[sorted.length];
+		mCounts = new int[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			mKeys[i] = sorted[i].key;
+			mTexts[i] = sorted[i].text;
+			mCounts[i] = sorted[i].count;
+		}
+		System.out.println("Search suggestion index of " + sorted.length + " entries built in " + (System.currentTimeMillis() - t0) + "ms");
+	}
+
+	/**
+	 * Get the most frequent entries starting with the passed text.
+	 * 
+	 * @param query		Text typed by user
+	 * @param max		Maximum number of suggestions
+	 * 
+	 * @return	Cursor suitable for a search suggestion provider
+	 */
+	public Cursor getSuggestions(String query, int max) {
+		final String prefix = fold(query);
+		final int start = findFirst(prefix);
+
+		// Keep the best matches, most frequent first, in a small sorted list
+		final ArrayList<Integer> best = new ArrayList<Integer>();
+		for(int i = start; i < mKeys.length && mKeys[i].startsWith(prefix); i++) {
+			if (best.size() == max && mCounts[best.get(max - 1)] >= mCounts[i])
+				continue;
+			int pos = best.size();
+			while (pos > 0 && mCounts[best.get(pos - 1)] < mCounts[i])
+				pos--;
+			best.add(pos, i);
+			if (best.size() > max)
+				best.remove(max);
+		}
+
+		MatrixCursor c = new MatrixCursor(COLUMNS, best.size());
+		for(Integer i: best) {
+			c.addRow(new Object[] {i, mTexts[i], mTexts[i]});
+		}
+		return c;
+	}
+
+	/**
+	 * Find the position of the first key that is not less than the passed prefix.
+	 */
+	private int findFirst(String prefix) {
+		int lo = 0;
+		int hi = mKeys.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (mKeys[mid].compareTo(prefix) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Fold text for case-insensitive comparison.
+	 */
+	private static String fold(String s) {
+		return s.trim().toLowerCase(Locale.getDefault());
+	}
+
+	/**
+	 * Entry used while building the index
+	 * 
+	 * @author Philip Warner
+	 */
+	private static class Entry {
+		final String key;
+		final String text;
+		int count = 0;
+
+		Entry(String key, String text) {
+			this.key = key;
+			this.text = text;
+		}
+	}
+}
@@ -62,7 +62,7 @@ public class Series implements Serializable, Utils.ItemWithIdFixup {
 		this(0L, name, num);
 	}
 
-	Series(long id, String name, String num) {
+	public Series(long id, String name, String num) {
 		this.id = id;
 		this.name = name.trim();
 		this.num = cleanupSeriesPosition(num);
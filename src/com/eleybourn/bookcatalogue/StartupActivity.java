@@ -403,6 +403,9 @@ public class StartupActivity extends Activity {
 				db.rebuildFts();
 				prefs.setBoolean(PREF_FTS_REBUILD_REQUIRED, false);					
 			}
+			// Index any books that were queued when the app last stopped
+			if (db.countFtsQueue() > 0)
+				FtsIndexer.start();
 		}
 
 		@Override
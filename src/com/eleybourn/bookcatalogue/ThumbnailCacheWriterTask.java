@@ -22,7 +22,8 @@ package com.eleybourn.bookcatalogue;
 
 import android.graphics.Bitmap;
 
-import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.database.CoverCache;
+import com.eleybourn.bookcatalogue.utils.BitmapPool;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
 import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
@@ -34,6 +35,9 @@ import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
  * 
  * This class also has its onw statis SimpleTaskQueue.
  * 
+ * The same queue is used to keep the cache within the size set in preferences; a trim is
+ * queued after the first write, and every TRIM_INTERVAL writes after that.
+ * 
  * @author Philip Warner
  */
 public class ThumbnailCacheWriterTask implements SimpleTask {
@@ -45,6 +49,49 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	 * the database will force serialization of the updates.
 	 */
 	private static SimpleTaskQueue mQueue = new SimpleTaskQueue("cachewriter", 1);
+	static {
+		// Writing to the cache is less important than getting thumbnails for visible rows
+		mQueue.setThreadPriority(Thread.MIN_PRIORITY);
+	}
+
+	/** Default cache size in MB */
+	public static final int DEFAULT_CACHE_SIZE_MB = 100;
+	/** Number of writes between checks of the cache size */
+	private static final int TRIM_INTERVAL = 100;
+	/** Writes queued since the last trim was queued; starts full so the first write triggers a trim */
+	private static int mWritesSinceTrim = TRIM_INTERVAL;
+
+	/**
+	 * Get the cache size budget from preferences.
+	 * 
+	 * @return	Size in bytes, or 0 for no limit
+	 */
+	public static long getCacheBudget() {
+		int mb = BookCatalogueApp.getAppPreferences().getInt(BookCataloguePreferences.PREF_COVER_CACHE_SIZE, DEFAULT_CACHE_SIZE_MB);
+		return mb * 1024L * 1024L;
+	}
+
+	/**
+	 * Queue a task to bring the cache within its budget.
+	 */
+	public static void trimCache() {
+		mQueue.enqueue(new SimpleTask() {
+			@Override
+			public void run(SimpleTaskContext taskContext) {
+				CoverCache db = null;
+				try {
+					db = taskContext.getCoversDb();
+				} catch (Exception e) {
+					// No db...
+				}
+				if (db != null)
+					db.trimCache(getCacheBudget());
+			}
+
+			@Override
+			public void onFinish(Exception e) {
+			}});
+	}
 
 	/**
 	 * Queue the passed bitmap to be compresed and written to the database, will be recycled if
@@ -57,6 +104,15 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 	public static void writeToCache(String cacheId, Bitmap source, boolean canRecycle) {
 		ThumbnailCacheWriterTask t = new ThumbnailCacheWriterTask(cacheId, source, canRecycle);
 		mQueue.enqueue(t);
+		boolean trim = false;
+		synchronized(mQueue) {
+			if (++mWritesSinceTrim > TRIM_INTERVAL) {
+				mWritesSinceTrim = 0;
+				trim = true;
+			}
+		}
+		if (trim)
+			trimCache();
 	}
 
 	/**
@@ -89,6 +145,8 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 		mCacheId = cacheId;
 		mBitmap = source;
 		mCanRecycle = canRecycle;
+		// Make sure it is not reused before it is written
+		BitmapPool.retain(source);
 	}
 
 	/**
@@ -100,7 +158,7 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 			// Was probably recycled by rapid scrolling of view
 			mBitmap = null;
 		} else {
-			CoversDbHelper db = null;
+			CoverCache db = null;
 			try {
 				db = taskContext.getCoversDb();
 			} catch (Exception e) {
@@ -108,10 +166,9 @@ public class ThumbnailCacheWriterTask implements SimpleTask {
 			}
 			if (db != null)
 				db.saveFile(mCacheId, mBitmap);
-			if (mCanRecycle) {
+			if (!BitmapPool.release(mBitmap) && mCanRecycle)
 				mBitmap.recycle();
-				mBitmap = null;
-			}
+			mBitmap = null;
 		}
 		mCacheId = null;
 	}
@@ -0,0 +1,215 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue;
+
+import java.io.File;
+import java.util.Date;
+import java.util.TreeSet;
+
+import android.database.Cursor;
+import android.graphics.Bitmap;
+
+import com.eleybourn.bookcatalogue.booklist.BooklistPreferencesActivity;
+import com.eleybourn.bookcatalogue.booklist.BooklistRowView;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyles;
+import com.eleybourn.bookcatalogue.database.CoverCache;
+import com.eleybourn.bookcatalogue.utils.BitmapPool;
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+import com.eleybourn.bookcatalogue.utils.Utils;
+
+/**
+ * Background task to add a book's thumbnails to the covers cache, in every size used by the
+ * booklist styles, so that the booklist never has to decode the full-size cover when a row
+ * first scrolls into view. The cover is decoded once for all sizes.
+ *
+ * Queued whenever a cover is saved; warmCache() queues a task that does the same for every
+ * book in the library. Thumbnails that are already in the cache and up to date are skipped.
+ *
+ * This class has its own static SimpleTaskQueue.
+ *
+ * @author Philip Warner
+ */
+public class ThumbnailPregenerateTask implements SimpleTask {
+
+	// ******** STATIC Data ******** //
+
+	/** Set to TRUE to log how long a full pass takes. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_STATS = false;
+
+	/**
+	 * Single-thread queue; this is a background optimization so should not compete with
+	 * getting thumbnails for visible rows.
+	 */
+	private static SimpleTaskQueue mQueue = new SimpleTaskQueue("thumbnailpregen", 1);
+	static {
+		mQueue.setThreadPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Queue a task to create the cached thumbnails for the passed book.
+	 *
+	 * @param hash	Book UUID
+	 */
+	public static void queue(String hash) {
+		if (hash == null || hash.equals("") || !BooklistPreferencesActivity.isThumbnailCacheEnabled())
+			return;
+		mQueue.enqueue(new ThumbnailPregenerateTask(hash));
+	}
+
+	/**
+	 * Queue a task to create the cached thumbnails for the passed cover file, named by book UUID.
+	 *
+	 * @param coverFile		Cover file
+	 */
+	public static void queue(File coverFile) {
+		final String name = coverFile.getName();
+		final int pos = name.lastIndexOf('.');
+		queue(pos < 0 ? name : name.substring(0, pos));
+	}
+
+	/**
+	 * Queue a task to create the cached thumbnails for every book.
+	 */
+	public static void warmCache() {
+		if (!BooklistPreferencesActivity.isThumbnailCacheEnabled())
+			return;
+		mQueue.enqueue(new ThumbnailPregenerateTask(null));
+	}
+
+	/**
+	 * Get the thumbnail sizes, in pixels, used by the booklist styles.
+	 *
+	 * @param db	Database for user-defined styles
+	 *
+	 * @return	Sizes, smallest first. Thumbnails are square.
+	 */
+	private static int[] getThumbnailSizes(CatalogueDBAdapter db) {
+		TreeSet<Integer> sizes = new TreeSet<Integer>();
+		for(BooklistStyle s: BooklistStyles.getAllStyles(db)) {
+			final int extras = s.getExtras();
+			if ( (extras & BooklistStyle.EXTRAS_THUMBNAIL) != 0)
+				sizes.add(BooklistRowView.computeThumbnailSize(extras));
+		}
+		int[] result = new int[sizes.size()];
+		int i = 0;
+		for(Integer size: sizes)
+			result[i++] = size;
+		return result;
+	}
+
+	// ******** INSTANCE Data ******** //
+
+	/** Book to process, or null for all books */
+	private final String mHash;
+
+	/**
+	 * Constructor
+	 *
+	 * @param hash	Book UUID, or null for all books
+	 */
+	private ThumbnailPregenerateTask(String hash) {
+		mHash = hash;
+	}
+
+	@Override
+	public void run(SimpleTaskContext taskContext) {
+		CoverCache coversDb;
+		try {
+			coversDb = taskContext.getCoversDb();
+		} catch (Exception e) {
+			// No db...
+			return;
+		}
+		final int[] sizes = getThumbnailSizes(taskContext.getDb());
+		if (sizes.length == 0)
+			return;
+
+		if (mHash != null) {
+			pregenerate(coversDb, mHash, sizes);
+			return;
+		}
+
+		// All books
+		int books = 0;
+		int created = 0;
+		final long t0 = System.currentTimeMillis();
+		Cursor c = taskContext.getDb().getUuidList();
+		try {
+			while (c.moveToNext()) {
+				books++;
+				created += pregenerate(coversDb, c.getString(0), sizes);
+			}
+		} finally {
+			c.close();
+		}
+		if (DEBUG_STATS)
+			System.out.println("Pre-generated " + created + " thumbnails for " + books + " books in " + (System.currentTimeMillis() - t0) + "ms");
+		// The thumbnails were not written by the cache writer, so check the cache size now
+		ThumbnailCacheWriterTask.trimCache();
+	}
+
+	/**
+	 * Create any missing or out of date thumbnails for one book.
+	 *
+	 * @return	Number of thumbnails created
+	 */
+	private int pregenerate(CoverCache coversDb, String hash, int[] sizes) {
+		File cover = CatalogueDBAdapter.fetchThumbnailByUuid(hash);
+		if (!cover.exists())
+			return 0;
+
+		// Find the sizes that are needed
+		final Date lastModified = new Date(cover.lastModified());
+		int needed = 0;
+		int[] widths = new int[sizes.length];
+		for(int size: sizes) {
+			if (!coversDb.isEntryValid(Utils.getCoverCacheId(hash, size, size), lastModified))
+				widths[needed++] = size;
+		}
+		if (needed == 0)
+			return 0;
+		int[] required = new int[needed];
+		System.arraycopy(widths, 0, required, 0, needed);
+
+		Bitmap[] bitmaps = Utils.shrinkFileToSizes(cover.getPath(), required, required);
+		if (bitmaps == null)
+			return 0;
+		for(int i = 0; i < needed; i++) {
+			try {
+				coversDb.saveFile(Utils.getCoverCacheId(hash, required[i], required[i]), bitmaps[i]);
+			} catch (Exception e) {
+				Logger.logError(e, "Failed to save pre-generated thumbnail");
+			} finally {
+				if (!BitmapPool.release(bitmaps[i]))
+					bitmaps[i].recycle();
+			}
+		}
+		return needed;
+	}
+
+	@Override
+	public void onFinish(Exception e) {
+	}
+}
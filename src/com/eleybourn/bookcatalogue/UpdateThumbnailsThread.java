@@ -33,6 +33,7 @@ import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsage;
 import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsages;
 import com.eleybourn.bookcatalogue.UpdateFromInternet.FieldUsages.Usages;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.StorageUtils;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
@@ -305,7 +306,10 @@ public class UpdateThumbnailsThread extends ManagedTask {
 					}
 					if (copyThumb) {
 						File file = CatalogueDBAdapter.fetchThumbnailByUuid(bookUuid);
-						downloadedFile.renameTo(file);
+						if (downloadedFile.renameTo(file)) {
+							CoverFileIndex.coverChanged(bookUuid);
+							ThumbnailPregenerateTask.queue(bookUuid);
+						}
 					} else {
 						downloadedFile.delete();
 					}
@@ -28,6 +28,8 @@ import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.backup.BackupReader.BackupReaderListener;
 import com.eleybourn.bookcatalogue.backup.BackupWriter.BackupWriterListener;
+import com.eleybourn.bookcatalogue.backup.store.SnapshotManifest;
+import com.eleybourn.bookcatalogue.backup.store.StoreBackupContainer;
 import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
 import com.eleybourn.bookcatalogue.compat.BookCatalogueActivity;
 import com.eleybourn.bookcatalogue.utils.Logger;
@@ -57,9 +59,13 @@ public class BackupManager {
 		if (!file.exists())
 			throw new java.io.FileNotFoundException("Attempt to open non-existent backup file");
 		
-		// We only support one backup format; so we use that. In future we would need to 
-		// explore the file to determine which format to use
-		TarBackupContainer bkp = new TarBackupContainer(file);
+		// Snapshots in an incremental backup store are recognized by their header; anything
+		// else is assumed to be a TAR archive
+		BackupContainer bkp;
+		if (SnapshotManifest.isManifest(file))
+			bkp = new StoreBackupContainer(file);
+		else
+			bkp = new TarBackupContainer(file);
 		// Each format should provide a validator of some kind
 		if (!bkp.isValid())
 			throw new IOException("Not a valid backup file");
@@ -104,7 +110,14 @@ public class BackupManager {
 
 				try {
 					System.out.println("Starting " + tempFile.getAbsolutePath());
-					TarBackupContainer bkp = new TarBackupContainer(tempFile);
+					final BookCataloguePreferences prefs = BookCatalogueApp.getAppPreferences();
+					BackupContainer bkp;
+					if (prefs.getBoolean(BookCataloguePreferences.PREF_INCREMENTAL_BACKUPS, false)) {
+						bkp = new StoreBackupContainer(tempFile, StoreBackupContainer.getDefaultStoreDir(resultingFile));
+					} else {
+						final boolean compress = prefs.getBoolean(BookCataloguePreferences.PREF_COMPRESS_BACKUPS, false);
+						bkp = new TarBackupContainer(tempFile, compress);
+					}
 					wrt = bkp.newWriter();
 
 					wrt.backup(new BackupWriterListener() {
@@ -217,6 +230,11 @@ public class BackupManager {
 						@Override
 						public boolean isCancelled() {
 							return fragment.isCancelled();
+						}
+
+						@Override
+						public void onStageStats(PipelineStats stats) {
+							// Nothing to show; the reader logs the final figures
 						}}, importFlags);
 				} catch (Exception e) {
 					Logger.logError(e);
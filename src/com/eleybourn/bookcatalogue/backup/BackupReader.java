@@ -40,6 +40,8 @@ public interface BackupReader {
 		void step(String message, int delta);
 		/** Check if operation is cancelled */
 		boolean isCancelled();
+		/** Receive the throughput of each restore stage; called periodically, and when the restore ends */
+		void onStageStats(PipelineStats stats);
 	}
 
 	/**
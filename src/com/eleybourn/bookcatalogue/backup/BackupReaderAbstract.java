@@ -19,20 +19,29 @@
  */
 package com.eleybourn.bookcatalogue.backup;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.content.SharedPreferences;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.ThumbnailPregenerateTask;
+import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.database.SerializationUtils.DeserializationException;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.Logger;
-import com.eleybourn.bookcatalogue.utils.StorageUtils;
 
 /**
  * Basic implementation of format-agnostic BackupReader methods using 
@@ -42,7 +51,6 @@ import com.eleybourn.bookcatalogue.utils.StorageUtils;
  */
 public abstract class BackupReaderAbstract implements BackupReader {
 	private CatalogueDBAdapter mDbHelper;
-	private final File mSharedStorage = StorageUtils.getSharedStorage();
 
 	/**
 	 * Constructor
@@ -52,11 +60,26 @@ public abstract class BackupReaderAbstract implements BackupReader {
 		mDbHelper.open();
 	}
 
+	/** Number of covers that can be read from the backup but not yet written */
+	private static final int MAX_QUEUED_COVERS = 16;
+	/** Minimum time between stats reports to the listener */
+	private static final long STATS_INTERVAL = 1000;
+
 	/**
-	 * Do a full restore, sending progress to the listener
+	 * Do a full restore, sending progress to the listener.
+	 * 
+	 * The backup is read sequentially in this thread, but the slow work is handed to other threads
+	 * so it overlaps with reading:
+	 * 
+	 * - the books export is copied to a temp file and imported by a BooksRestorer thread (which
+	 *   itself parses, builds and writes books in separate threads; see CsvImporter).
+	 * - covers are read into memory and written to files by a CoverWriter thread.
+	 * 
+	 * The queues between the threads are bounded, so a slow stage holds back the ones before it.
+	 * The throughput of each stage is sent to the listener as it progresses.
 	 */
 	@Override
-	public void restore(BackupReaderListener listener, int importFlags) throws IOException {
+	public void restore(final BackupReaderListener listener, int importFlags) throws IOException {
 		// Just a stat for progress
 		int coverCount = 0;
 
@@ -71,96 +94,387 @@ public abstract class BackupReaderAbstract implements BackupReader {
 		maxSteps++;
 		listener.setMax(maxSteps);
 
-		// Get first entity (this will be the entity AFTER the INFO entities)
-		ReaderEntity entity = nextEntity();
-		// While not at end, loop, processing each entry based on type
-		while (entity != null && !listener.isCancelled()) {
-			switch (entity.getType()) {
-			case Books:
-				restoreBooks(listener, entity, importFlags);
-				break;
-			case Cover:
-				coverCount++;
-				restoreCover(listener, entity, importFlags);
-				break;
-			case Database:
-				break;
-			case Preferences:
-				restorePreferences(listener, entity);
-				break;
-			case BooklistStyle:
-				restoreStyle(listener, entity);
-				break;
-			case Info:
-				break;
-			default:
-				throw new RuntimeException("Unknown Entity type: " + entity.getType().toString());
-			}
-			entity = nextEntity();
-		}
-		close();
+		// Progress is sent from several threads
+		final BackupReaderListener progress = new BackupReaderListener() {
+			@Override
+			public synchronized void setMax(int max) {
+				listener.setMax(max);
+			}
+			@Override
+			public synchronized void step(String message, int delta) {
+				listener.step(message, delta);
+			}
+			@Override
+			public boolean isCancelled() {
+				return listener.isCancelled();
+			}
+			@Override
+			public void onStageStats(PipelineStats stats) {
+				listener.onStageStats(stats);
+			}
+		};
+
+		final PipelineStats stats = new PipelineStats();
+		stats.read.start();
+		CoverWriter coverWriter = new CoverWriter(progress, stats.covers);
+		coverWriter.start();
+		BooksRestorer booksRestorer = null;
+		long lastStats = System.currentTimeMillis();
 
+		// Covers are written to the files the index gives us, so don't let them be moved meanwhile
+		CoverFileIndex.holdMoves();
+		try {
+			// Get first entity (this will be the entity AFTER the INFO entities)
+			ReaderEntity entity = nextEntity();
+			// While not at end, loop, processing each entry based on type
+			while (entity != null && !listener.isCancelled()) {
+				switch (entity.getType()) {
+				case Books:
+					// Only one import at a time
+					if (booksRestorer != null)
+						booksRestorer.waitForCompletion();
+					booksRestorer = restoreBooks(progress, entity, importFlags, stats);
+					break;
+				case Cover:
+					coverCount++;
+					restoreCover(progress, entity, importFlags, coverWriter, stats.read);
+					break;
+				case Database:
+					break;
+				case Preferences:
+					restorePreferences(progress, entity);
+					break;
+				case BooklistStyle:
+					restoreStyle(progress, entity);
+					break;
+				case Info:
+					break;
+				default:
+					throw new RuntimeException("Unknown Entity type: " + entity.getType().toString());
+				}
+
+				final long now = System.currentTimeMillis();
+				if (now - lastStats > STATS_INTERVAL) {
+					listener.onStageStats(stats);
+					lastStats = now;
+				}
+				entity = nextEntity();
+			}
+			stats.read.finish();
+
+			// Wait for the other stages to finish
+			coverWriter.waitForCompletion(stats.read);
+			if (booksRestorer != null)
+				booksRestorer.waitForCompletion();
+		} finally {
+			coverWriter.finish();
+			if (booksRestorer != null)
+				booksRestorer.abandon();
+			CoverFileIndex.releaseMoves();
+			close();
+		}
+
+		// Build the booklist thumbnails for the restored covers in the background
+		if (coverCount > 0 && !listener.isCancelled())
+			ThumbnailPregenerateTask.warmCache();
+
+		listener.onStageStats(stats);
 		System.out.println("Restored " + coverCount + " covers");
+		System.out.println(stats);
 	}
 
 	/**
-	 * Restore the books from the export file.
+	 * Copy the books export to a temp file, and start a thread to import it. The reader can then
+	 * move on to the covers while the books are imported.
 	 * 
 	 * @param listener
 	 * @param entity
 	 * @throws IOException
 	 */
-	private void restoreBooks(final BackupReaderListener listener, ReaderEntity entity, int importFlags) throws IOException {
-		// Make a listener for the 'export' function that just passes on the progress to out listener
-		Importer.OnImporterListener importListener = new Importer.OnImporterListener() {
-			private int mLastPos = 0;
-
-			@Override
-			public void onProgress(String message, int position) {
-				// The progress is sent periodically and has jumps, so we calculate deltas
-				listener.step(message, position - mLastPos);
-				mLastPos = position;
-			}
-
-			@Override
-			public boolean isCancelled() {
-				return listener.isCancelled();
-			}
-
-			@Override
-			public void setMax(int max) {
-				// Ignore; we know how many books there are
+	private BooksRestorer restoreBooks(final BackupReaderListener listener, ReaderEntity entity, int importFlags, PipelineStats stats) throws IOException {
+		File temp = File.createTempFile("bookcat", ".csv");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				stats.read.addItems(1, copyStream(entity.getStream(), out));
+			} finally {
+				out.close();
 			}
-		};
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
 
-		// Now do the import
-		InputStream in = entity.getStream();
-		CsvImporter importer = new CsvImporter();
-		importer.importBooks(in, null, importListener, importFlags);
+		BooksRestorer restorer = new BooksRestorer(listener, temp, importFlags, stats);
+		restorer.start();
+		return restorer;
 	}
 
 	/**
-	 * Restore a cover file.
+	 * Read a cover file and queue it for the CoverWriter, unless the current cover is newer.
 	 * 
 	 * @param listener
 	 * @param cover
-
+	 * @param writer		Cover writer thread
+	 * @param readStats		Stats for the read stage
+	 * 
 	 * @throws IOException
 	 */
-	private void restoreCover(BackupReaderListener listener, ReaderEntity cover, int flags) throws IOException {
-		listener.step("Processing Covers...", 1);
-		final File curr = new File(mSharedStorage + "/" + cover.getName());
+	private void restoreCover(BackupReaderListener listener, ReaderEntity cover, int flags, CoverWriter writer, PipelineStats.Stage readStats) throws IOException {
+		final File curr = CoverFileIndex.getFileForName(cover.getName());
 		final Date covDate = cover.getDateModified();
 		if ( (flags & Importer.IMPORT_NEW_OR_UPDATED) != 0) {			
 			if (curr.exists()) {
 				Date currFileDate = new Date(curr.lastModified());
 				if (currFileDate.compareTo(covDate) >= 0) {
+					listener.step("Processing Covers...", 1);
 					return;
 				}
 			}
 		}
-		cover.saveToDirectory(mSharedStorage);
-		curr.setLastModified(covDate.getTime());
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		readStats.addItems(1, copyStream(cover.getStream(), data));
+		writer.queue(new CoverData(curr, covDate.getTime(), data.toByteArray()), readStats);
+	}
+
+	/**
+	 * Copy a stream to another; the input stream is not closed since it may be part of an archive.
+	 * 
+	 * @return	Number of bytes copied
+	 */
+	private static long copyStream(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[TarBackupContainer.BUFFER_SIZE];
+		long total = 0;
+		int cnt;
+		while ( (cnt = in.read(buffer)) > 0) {
+			out.write(buffer, 0, cnt);
+			total += cnt;
+		}
+		return total;
+	}
+
+	/**
+	 * A cover read from the backup, waiting to be written
+	 * 
+	 * @author pjw
+	 */
+	private static class CoverData {
+		final File file;
+		final long modified;
+		final byte[] data;
+
+		CoverData(File file, long modified, byte[] data) {
+			this.file = file;
+			this.modified = modified;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Thread that writes covers queued by the reader.
+	 * 
+	 * @author pjw
+	 */
+	private static class CoverWriter extends Thread {
+		/** Marks the end of the covers */
+		private static final CoverData END_OF_COVERS = new CoverData(null, 0, null);
+
+		private final BackupReaderListener mListener;
+		private final PipelineStats.Stage mStats;
+		private final ArrayBlockingQueue<CoverData> mQueue = new ArrayBlockingQueue<CoverData>(MAX_QUEUED_COVERS);
+		/** Set if the reader has stopped, and the queue should be abandoned */
+		private volatile boolean mIsFinished = false;
+		/** Exception thrown when writing, if any */
+		private volatile Exception mException = null;
+
+		CoverWriter(BackupReaderListener listener, PipelineStats.Stage stats) {
+			super("Restore-covers");
+			mListener = listener;
+			mStats = stats;
+		}
+
+		@Override
+		public void run() {
+			mStats.start();
+			try {
+				while (!mIsFinished) {
+					final long t0 = System.currentTimeMillis();
+					CoverData cover = mQueue.poll(100, TimeUnit.MILLISECONDS);
+					mStats.addInputWait(System.currentTimeMillis() - t0);
+					if (cover == END_OF_COVERS)
+						break;
+					if (cover != null) {
+						write(cover);
+						mStats.addItems(1, cover.data.length);
+						mListener.step("Processing Covers...", 1);
+					}
+				}
+			} catch (Exception e) {
+				mException = e;
+			} finally {
+				mStats.finish();
+			}
+		}
+
+		/** Write one cover */
+		private void write(CoverData cover) throws IOException {
+			FileOutputStream out = new FileOutputStream(cover.file);
+			try {
+				out.write(cover.data);
+			} finally {
+				out.close();
+			}
+			cover.file.setLastModified(cover.modified);
+			CoverFileIndex.coverChanged(cover.file);
+		}
+
+		/**
+		 * Add a cover to the queue, waiting for space.
+		 * 
+		 * @param producer	Stage to charge with the time spent waiting
+		 */
+		void queue(CoverData cover, PipelineStats.Stage producer) throws IOException {
+			final long t0 = System.currentTimeMillis();
+			try {
+				while (true) {
+					checkException();
+					if (mIsFinished || !isAlive())
+						throw new IOException("Cover writer has stopped");
+					if (mQueue.offer(cover, 100, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} finally {
+				producer.addOutputWait(System.currentTimeMillis() - t0);
+			}
+		}
+
+		/**
+		 * Tell the writer there are no more covers, and wait for it to write the queued ones.
+		 * 
+		 * @param producer	Stage to charge with the time spent waiting
+		 */
+		void waitForCompletion(PipelineStats.Stage producer) throws IOException {
+			queue(END_OF_COVERS, producer);
+			try {
+				join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			checkException();
+		}
+
+		/** Stop the writer, abandoning any queued covers */
+		void finish() {
+			mIsFinished = true;
+			mQueue.clear();
+		}
+
+		private void checkException() throws IOException {
+			if (mException != null) {
+				if (mException instanceof IOException)
+					throw (IOException)mException;
+				throw new RuntimeException("Unable to restore cover", mException);
+			}
+		}
+	}
+
+	/**
+	 * Thread that imports a books export from a temp file, then deletes the file.
+	 * 
+	 * @author pjw
+	 */
+	private static class BooksRestorer extends Thread {
+		private final BackupReaderListener mListener;
+		private final File mFile;
+		private final int mImportFlags;
+		private final PipelineStats mStats;
+		/** Exception thrown by the import, if any */
+		private volatile Exception mException = null;
+		/** Set if the restore has failed, and the import should stop */
+		private volatile boolean mIsAbandoned = false;
+
+		BooksRestorer(BackupReaderListener listener, File file, int importFlags, PipelineStats stats) {
+			super("Restore-books");
+			mListener = listener;
+			mFile = file;
+			mImportFlags = importFlags;
+			mStats = stats;
+		}
+
+		@Override
+		public void run() {
+			// Make a listener for the 'export' function that just passes on the progress to out listener
+			Importer.OnImporterListener importListener = new Importer.OnImporterListener() {
+				private int mLastPos = 0;
+
+				@Override
+				public void onProgress(String message, int position) {
+					// The progress is sent periodically and has jumps, so we calculate deltas
+					mListener.step(message, position - mLastPos);
+					mLastPos = position;
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return mIsAbandoned || mListener.isCancelled();
+				}
+
+				@Override
+				public void setMax(int max) {
+					// Ignore; we know how many books there are
+				}
+			};
+
+			// Now do the import
+			try {
+				InputStream in = new BufferedInputStream(new FileInputStream(mFile), TarBackupContainer.BUFFER_SIZE);
+				try {
+					CsvImporter importer = new CsvImporter();
+					importer.importBooks(in, null, importListener, mImportFlags, mFile.length(), mStats);
+				} finally {
+					in.close();
+				}
+			} catch (Exception e) {
+				mException = e;
+			} finally {
+				mFile.delete();
+			}
+		}
+
+		/** Wait for the import to finish */
+		void waitForCompletion() throws IOException {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (mException != null) {
+				if (mException instanceof IOException)
+					throw (IOException)mException;
+				throw new RuntimeException("Unable to restore books", mException);
+			}
+		}
+
+		/**
+		 * Called when the restore ends, successfully or not. Stops the import if it is still
+		 * running, and waits for it so that no books are written after the restore returns.
+		 */
+		void abandon() {
+			mIsAbandoned = true;
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -22,6 +22,7 @@ package com.eleybourn.bookcatalogue.backup;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 
 import android.content.SharedPreferences;
@@ -34,6 +35,8 @@ import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.booklist.BooklistStyles;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex.CoverInfo;
 import com.eleybourn.bookcatalogue.utils.Logger;
 
 /**
@@ -59,17 +62,21 @@ public abstract class BackupWriterAbstract implements BackupWriter {
 	@Override
 	public void backup(BackupWriterListener listener, final int backupFlags, Date since) throws IOException {
 		
+		// The cover list must stay valid until the covers have been written
+		CoverFileIndex.holdMoves();
 		try {
 			// Estimate the total steps
 			int estTotal = 1;
 			// First, see how many books in total
 			final int maxBooks = (int) mDbHelper.getBookCount();
 
-			int coverCount;
+			// Find the covers once; the list is used for both the count and the writing
+			CoverList covers;
 			if ((backupFlags & Exporter.EXPORT_COVERS) != 0)
-				coverCount = writeCovers(listener, backupFlags, since, true);
+				covers = findCovers(listener, backupFlags, since);
 			else
-				coverCount= 0;
+				covers = new CoverList();
+			final int coverCount = covers.files.size();
 
 			// If we are doing books, add them
 			if ( (backupFlags & Exporter.EXPORT_DETAILS) != 0)
@@ -92,12 +99,13 @@ public abstract class BackupWriterAbstract implements BackupWriter {
 			if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_DETAILS) != 0)
 				writeBooks(temp);
 			if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_COVERS) != 0)
-				writeCovers(listener, backupFlags, since, false);
+				writeCovers(listener, covers);
 			if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_PREFERENCES) != 0)
 				writePreferences(listener);
 			if (!listener.isCancelled() && (backupFlags & Exporter.EXPORT_STYLES) != 0)
 				writeStyles(listener);			
 		} finally {
+			CoverFileIndex.releaseMoves();
 			try {
 				close();							
 			} catch (Exception e) {
@@ -254,13 +262,25 @@ public abstract class BackupWriterAbstract implements BackupWriter {
 //	}
 
 	/**
-	 * Write each cover file corresponding to a book to the archive
+	 * Covers found for a backup
 	 * 
-	 * @param writer
+	 * @author pjw
+	 */
+	private static class CoverList {
+		/** Cover files to write */
+		final ArrayList<File> files = new ArrayList<File>();
+		/** Books with no cover file */
+		int missing = 0;
+		/** Covers not changed since the last backup */
+		int skipped = 0;
+	}
+
+	/**
+	 * Find each cover file corresponding to a book that should be written to the archive
 	 * 
-	 * @throws IOException
+	 * @return	List of covers
 	 */
-	private int writeCovers(final BackupWriterListener listener, final int backupFlags, final Date since, boolean dryRun) throws IOException {
+	private CoverList findCovers(final BackupWriterListener listener, final int backupFlags, final Date since) {
 		long sinceTime = 0;
 		if ( since != null && (backupFlags & Exporter.EXPORT_SINCE) != 0) {
 			try {
@@ -271,50 +291,54 @@ public abstract class BackupWriterAbstract implements BackupWriter {
 			}
 		}
 
-		System.out.println("Writing Images");
-		
-		int ok = 0;
-		int missing = 0;
-		int skipped = 0;
-		String fmt_noskip = BookCatalogueApp.getResourceString(R.string.covers_progress);
-		String fmt_skip = BookCatalogueApp.getResourceString(R.string.covers_progress_incr);
-
+		CoverList covers = new CoverList();
 		Cursor c = mDbHelper.getUuidList();
 		try {
 			final int uuidCol = c.getColumnIndex(DatabaseDefinitions.DOM_BOOK_UUID.toString());
 			while(c.moveToNext() && !listener.isCancelled()) {
-				File cover = CatalogueDBAdapter.fetchThumbnailByUuid(c.getString(uuidCol));
-				if (cover.exists()) {
-					if (cover.exists() 
-							&& (since == null || sinceTime < cover.lastModified())) 
-					{
-						if (!dryRun)
-							putCoverFile(cover);
-						ok++;
-					} else {
-						skipped++;
-					}
+				// The index has the date, so the file system is not touched for each book
+				CoverInfo cover = CoverFileIndex.getInfo(c.getString(uuidCol));
+				if (cover == null) {
+					covers.missing++;
+				} else if (since == null || sinceTime < cover.modified) {
+					covers.files.add(cover.file);
 				} else {
-					missing++;
-				}
-				if (!dryRun) {
-					String message;
-					if (skipped == 0) {
-						message = String.format(fmt_noskip, ok, missing);
-					} else {
-						message = String.format(fmt_skip, ok, missing, skipped);
-					}
-					listener.step(message, 1);					
+					covers.skipped++;
 				}
 			}			
 		} finally {
 			if (c != null && !c.isClosed())
 				c.close();			
 		}
-		if (!dryRun)
-			System.out.println("Wrote " + ok + " Images, "+ missing + " missing, and " + skipped + " skipped");
-		
-		return ok;
+		return covers;
+	}
+
+	/**
+	 * Write each cover file in the passed list to the archive
+	 * 
+	 * @throws IOException
+	 */
+	private void writeCovers(final BackupWriterListener listener, CoverList covers) throws IOException {
+		System.out.println("Writing Images");
+
+		int ok = 0;
+		String fmt_noskip = BookCatalogueApp.getResourceString(R.string.covers_progress);
+		String fmt_skip = BookCatalogueApp.getResourceString(R.string.covers_progress_incr);
+
+		for(File cover: covers.files) {
+			if (listener.isCancelled())
+				break;
+			putCoverFile(cover);
+			ok++;
+			String message;
+			if (covers.skipped == 0) {
+				message = String.format(fmt_noskip, ok, covers.missing);
+			} else {
+				message = String.format(fmt_skip, ok, covers.missing, covers.skipped);
+			}
+			listener.step(message, 1);					
+		}
+		System.out.println("Wrote " + ok + " Images, "+ covers.missing + " missing, and " + covers.skipped + " skipped");
 	}
 
 	/**
@@ -124,6 +124,11 @@ public class Backuptest {
 			@Override
 			public boolean isCancelled() {
 				return mIsCancelled;
+			}
+
+			@Override
+			public void onStageStats(PipelineStats stats) {
+				System.out.println("RST: " + stats);
 			}}, Importer.IMPORT_ALL);
 
 		System.out.println("Finished " + file.getAbsolutePath() + ", size = " + file.length());
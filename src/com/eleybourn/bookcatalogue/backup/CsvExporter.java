@@ -23,18 +23,22 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Date;
 
 import android.database.Cursor;
 
+import com.eleybourn.bookcatalogue.Author;
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.BookEditFields;
 import com.eleybourn.bookcatalogue.BooksCursor;
 import com.eleybourn.bookcatalogue.BooksRowView;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.R;
+import com.eleybourn.bookcatalogue.Series;
 import com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions;
-import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.database.BookChildCursor;
 import com.eleybourn.bookcatalogue.utils.StorageUtils;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
@@ -112,8 +116,7 @@ public class CsvExporter implements Exporter {
 			"\n");
 		
 		long lastUpdate = 0;
-		
-		StringBuilder row = new StringBuilder();
+		final long t0 = System.currentTimeMillis();
 
 		CatalogueDBAdapter db;
 		db = new CatalogueDBAdapter(BookCatalogueApp.context);
@@ -122,6 +125,13 @@ public class CsvExporter implements Exporter {
 		BooksCursor books = db.exportBooks(since);
 		BooksRowView rv = books.getRowView();
 
+		// Child rows for all books, each sorted by book ID like the books cursor, and merged in as
+		// each book is written. This avoids four queries per book.
+		BookChildCursor authors = null;
+		BookChildCursor series = null;
+		BookChildCursor bookshelves = null;
+		BookChildCursor anthologyTitles = null;
+
 		try {
 			final int totalBooks = books.getCount();
 
@@ -129,119 +139,122 @@ public class CsvExporter implements Exporter {
 	
 				listener.setMax(totalBooks);
 
+				authors = new BookChildCursor(db.exportBookAuthors(since));
+				series = new BookChildCursor(db.exportBookSeries(since));
+				bookshelves = new BookChildCursor(db.exportBookBookshelves(since));
+				anthologyTitles = new BookChildCursor(db.exportAnthologyTitles(since));
+
+				// Get the column indexes once
+				final int colId = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROWID);
+				final int colDatePublished = books.getColumnIndex(CatalogueDBAdapter.KEY_DATE_PUBLISHED);
+				final int colReadStart = books.getColumnIndex(CatalogueDBAdapter.KEY_READ_START);
+				final int colReadEnd = books.getColumnIndex(CatalogueDBAdapter.KEY_READ_END);
+				final int colDateAdded = books.getColumnIndex(CatalogueDBAdapter.KEY_DATE_ADDED);
+				final int colAnthology = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK);
+				final int colTitle = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE);
+				final int colRating = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_RATING);
+				final int colPages = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_PAGES);
+				final int colListPrice = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LIST_PRICE);
+				final int colFormat = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_FORMAT);
+				final int colSigned = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_SIGNED);
+				final int colLoanedTo = books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LOANED_TO);
+				final int colLastGoodreadsSync = books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_GOODREADS_SYNC_DATE.name);
+				final int colLastUpdate = books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
+
+				// Reusable accumulators for the child rows of each book
+				final StringBuilder anthologyText = new StringBuilder();
+				final StringBuilder bookshelfIdText = new StringBuilder();
+				final StringBuilder bookshelfNameText = new StringBuilder();
+				final ArrayList<Author> authorList = new ArrayList<Author>();
+				final ArrayList<Series> seriesList = new ArrayList<Series>();
+				// A book may appear more than once (eg. if loaned twice); its child rows will already have been read
+				long lastId = -1;
+
 				/* write to the SDCard */
 				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream, UTF8), BUFFER_SIZE);
 				out.write(export.toString());
 				if (books.moveToFirst()) {
 					do { 
 						num++;
-						long id = books.getLong(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ROWID));
-						// Just get the string from the database and save it. It should be in standard SQL form already.
-						String dateString = "";
-						try {
-							dateString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_PUBLISHED));
-						} catch (Exception e) {
-							//do nothing
-						}
-						// Just get the string from the database and save it. It should be in standard SQL form already.
-						String dateReadStartString = "";
-						try {
-							dateReadStartString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_START));
-						} catch (Exception e) {
-							Logger.logError(e);
-							//do nothing
-						}
-						// Just get the string from the database and save it. It should be in standard SQL form already.
-						String dateReadEndString = "";
-						try {
-							dateReadEndString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_READ_END));
-						} catch (Exception e) {
-							Logger.logError(e);
-							//do nothing
-						}
-						// Just get the string from the database and save it. It should be in standard SQL form already.
-						String dateAddedString = "";
-						try {
-							dateAddedString = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_DATE_ADDED));
-						} catch (Exception e) {
-							//do nothing
-						}
+						long id = books.getLong(colId);
+						final int anthology = books.getInt(colAnthology);
 
-						int anthology = books.getInt(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
-						String anthology_titles = "";
-						if (anthology != 0) {
-							Cursor titles = db.fetchAnthologyTitlesByBook(id);
-							try {
-								if (titles.moveToFirst()) {
-									do { 
-										String anth_title = titles.getString(titles.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE));
-										String anth_author = titles.getString(titles.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_AUTHOR_NAME));
-										anthology_titles += anth_title + " * " + anth_author + "|";
-									} while (titles.moveToNext()); 
+						if (id != lastId) {
+							lastId = id;
+							anthologyText.setLength(0);
+							while (anthologyTitles.moveToNextFor(id)) {
+								if (anthology != 0) {
+									anthologyText.append(anthologyTitles.getString(1));
+									anthologyText.append(" * ");
+									anthologyText.append(anthologyTitles.getString(2));
+									anthologyText.append("|");
 								}
-							} finally {
-								if (titles != null)
-									titles.close();
 							}
+
+							bookshelfIdText.setLength(0);
+							bookshelfNameText.setLength(0);
+							while (bookshelves.moveToNextFor(id)) {
+								bookshelfIdText.append(bookshelves.getString(1));
+								bookshelfIdText.append(BookEditFields.BOOKSHELF_SEPERATOR);
+								bookshelfNameText.append(Utils.encodeListItem(bookshelves.getString(2), BookEditFields.BOOKSHELF_SEPERATOR));
+								bookshelfNameText.append(BookEditFields.BOOKSHELF_SEPERATOR);
+							}
+
+							authorList.clear();
+							while (authors.moveToNextFor(id))
+								authorList.add(new Author(authors.getLong(1), authors.getString(2), authors.getString(3)));
+
+							seriesList.clear();
+							while (series.moveToNextFor(id))
+								seriesList.add(new Series(series.getLong(1), series.getString(2), series.getString(3)));
 						}
-						String title = books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_TITLE));
+
+						String title = books.getString(colTitle);
 						// Sanity check: ensure title is non-blank. This has not happened yet, but we 
 						// know if does for author, so completeness suggests making sure all 'required'
 						// fields are non-blank.
 						if (title == null || title.trim().equals(""))
 							title = UNKNOWN;
 
-						//Display the selected bookshelves
-						Cursor bookshelves = db.fetchAllBookshelvesByBook(id);
-						String bookshelves_id_text = "";
-						String bookshelves_name_text = "";
-						while (bookshelves.moveToNext()) {
-							bookshelves_id_text += bookshelves.getString(bookshelves.getColumnIndex(CatalogueDBAdapter.KEY_ROWID)) + BookEditFields.BOOKSHELF_SEPERATOR;
-							bookshelves_name_text += Utils.encodeListItem(bookshelves.getString(bookshelves.getColumnIndex(CatalogueDBAdapter.KEY_BOOKSHELF)),BookEditFields.BOOKSHELF_SEPERATOR) + BookEditFields.BOOKSHELF_SEPERATOR;
-						}
-						bookshelves.close();
-
-						String authorDetails = Utils.getAuthorUtils().encodeList( db.getBookAuthorList(id), '|' );
+						String authorDetails = Utils.getAuthorUtils().encodeList( authorList, '|' );
 						// Sanity check: ensure author is non-blank. This HAPPENS. Probably due to constraint failures.
 						if (authorDetails == null || authorDetails.trim().equals(""))
 							authorDetails = AUTHOR + ", " + UNKNOWN;
 
-						String seriesDetails = Utils.getSeriesUtils().encodeList( db.getBookSeriesList(id), '|' );
-
-						row.setLength(0);
-						row.append("\"" + formatCell(id) + "\",");
-						row.append("\"" + formatCell(authorDetails) + "\",");
-						row.append( "\"" + formatCell(title) + "\"," );
-						row.append("\"" + formatCell(rv.getIsbn()) + "\",");
-						row.append("\"" + formatCell(rv.getPublisher()) + "\",");
-						row.append("\"" + formatCell(dateString) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_RATING))) + "\",");
-						row.append("\"" + formatCell(bookshelves_id_text) + "\",");
-						row.append("\"" + formatCell(bookshelves_name_text) + "\",");
-						row.append("\"" + formatCell(rv.getRead()) + "\",");
-						row.append("\"" + formatCell(seriesDetails) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_PAGES))) + "\",");
-						row.append("\"" + formatCell(rv.getNotes()) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LIST_PRICE))) + "\",");
-						row.append("\"" + formatCell(anthology) + "\",");
-						row.append("\"" + formatCell(rv.getLocation()) + "\",");
-						row.append("\"" + formatCell(dateReadStartString) + "\",");
-						row.append("\"" + formatCell(dateReadEndString) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_FORMAT))) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_SIGNED))) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(CatalogueDBAdapter.KEY_LOANED_TO))+"") + "\",");
-						row.append("\"" + formatCell(anthology_titles) + "\",");
-						row.append("\"" + formatCell(rv.getDescription()) + "\",");
-						row.append("\"" + formatCell(rv.getGenre()) + "\",");
-						row.append("\"" + formatCell(rv.getLanguage()) + "\",");
-						row.append("\"" + formatCell(dateAddedString) + "\",");
-						row.append("\"" + formatCell(rv.getGoodreadsBookId()) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_GOODREADS_SYNC_DATE.name))) + "\",");
-						row.append("\"" + formatCell(books.getString(books.getColumnIndexOrThrow(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name))) + "\",");
-						row.append("\"" + formatCell(rv.getBookUuid()) + "\",");
-						row.append("\n");
-						out.write(row.toString());
-						//export.append(row);
+						String seriesDetails = Utils.getSeriesUtils().encodeList( seriesList, '|' );
+
+						// Just get the date strings from the database and save them. They should be in standard SQL form already.
+						writeCell(out, id);
+						writeCell(out, authorDetails);
+						writeCell(out, title);
+						writeCell(out, rv.getIsbn());
+						writeCell(out, rv.getPublisher());
+						writeCell(out, getOptionalString(books, colDatePublished));
+						writeCell(out, books.getString(colRating));
+						writeCell(out, bookshelfIdText.toString());
+						writeCell(out, bookshelfNameText.toString());
+						writeCell(out, rv.getRead());
+						writeCell(out, seriesDetails);
+						writeCell(out, books.getString(colPages));
+						writeCell(out, rv.getNotes());
+						writeCell(out, books.getString(colListPrice));
+						writeCell(out, anthology);
+						writeCell(out, rv.getLocation());
+						writeCell(out, getOptionalString(books, colReadStart));
+						writeCell(out, getOptionalString(books, colReadEnd));
+						writeCell(out, books.getString(colFormat));
+						writeCell(out, books.getString(colSigned));
+						writeCell(out, books.getString(colLoanedTo));
+						writeCell(out, anthologyText.toString());
+						writeCell(out, rv.getDescription());
+						writeCell(out, rv.getGenre());
+						writeCell(out, rv.getLanguage());
+						writeCell(out, getOptionalString(books, colDateAdded));
+						writeCell(out, rv.getGoodreadsBookId());
+						writeCell(out, books.getString(colLastGoodreadsSync));
+						writeCell(out, books.getString(colLastUpdate));
+						writeCell(out, rv.getBookUuid());
+						out.write('\n');
 						
 						long now = System.currentTimeMillis();
 						if ( (now - lastUpdate) > 200) {
@@ -260,7 +273,8 @@ public class CsvExporter implements Exporter {
 			}
 	
 		} finally {
-			System.out.println("Books Exported: " + num);
+			final long elapsed = System.currentTimeMillis() - t0;
+			System.out.println("Books Exported: " + num + " in " + elapsed + "ms (" + (elapsed > 0 ? num * 1000L / elapsed : num) + " books/sec)");
 			if (displayingStartupMessage) 
 				try {
 					listener.onProgress("",0);
@@ -268,6 +282,14 @@ public class CsvExporter implements Exporter {
 				} catch (Exception e) {
 					
 				}
+			if (authors != null)
+				authors.close();
+			if (series != null)
+				series.close();
+			if (bookshelves != null)
+				bookshelves.close();
+			if (anthologyTitles != null)
+				anthologyTitles.close();
 			if (books != null)
 				try { books.close(); } catch (Exception e) {};
 			if (db != null)
@@ -276,6 +298,40 @@ public class CsvExporter implements Exporter {
 		return true;
 	}
 
+	/**
+	 * Get a string from a column that may not be present in the cursor.
+	 * 
+	 * @param c		Cursor
+	 * @param col	Column index, or -1
+	 * 
+	 * @return	Value, or "" if the column is not present
+	 */
+	private static String getOptionalString(Cursor c, int col) {
+		if (col < 0)
+			return "";
+		else
+			return c.getString(col);
+	}
+
+	/**
+	 * Write a cell, quoted and formatted by formatCell(), followed by a comma.
+	 * 
+	 * @param out	Output
+	 * @param cell	The cell to write
+	 */
+	private void writeCell(Writer out, String cell) throws IOException {
+		out.write('"');
+		out.write(formatCell(cell));
+		out.write("\",");
+	}
+
+	/**
+	 * @see #writeCell(Writer, String)
+	 */
+	private void writeCell(Writer out, long cell) throws IOException {
+		writeCell(out, cell + "");
+	}
+
 	/**
 	 * Double quote all "'s and remove all newlines
 	 * 
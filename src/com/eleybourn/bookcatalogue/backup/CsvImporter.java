@@ -19,12 +19,16 @@
  */
 package com.eleybourn.bookcatalogue.backup;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.os.Bundle;
 
@@ -43,50 +47,66 @@ import com.eleybourn.bookcatalogue.utils.Utils;
 /**
  * Implementation of Importer that reads a CSV file.
  * 
+ * The file is read as a stream by a pipeline of threads connected by bounded queues, so memory
+ * use depends on the batch size, not the file size:
+ * 
+ * - parse: splits the file into rows (RowPipeline)
+ * - build: turns rows into BookData objects (BookBuilder)
+ * - write: the calling thread, which writes each batch to the database in one transaction
+ * 
+ * The time each stage spends waiting is recorded in a PipelineStats object.
+ * 
  * @author pjw
  */
 public class CsvImporter {
 	private static String UTF8 = "utf8";
 	private static int BUFFER_SIZE = 32768;
+	/** Number of rows passed from the parser to the importer at a time; each batch is imported in one transaction */
+	private static final int BATCH_SIZE = 200;
+	/** Number of parsed batches that can be waiting to be imported */
+	private static final int MAX_QUEUED_BATCHES = 2;
+	/** Set to TRUE to log the import rate and pipeline statistics. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_STATS = false;
 
 	public boolean importBooks(InputStream exportStream, Importer.CoverFinder coverFinder, Importer.OnImporterListener listener, int importFlags) throws IOException {
-		ArrayList<String> importedString = new ArrayList<String>();
-
-		BufferedReader in = new BufferedReader(new InputStreamReader(exportStream, UTF8),BUFFER_SIZE);
-		String line = "";
-		while ((line = in.readLine()) != null) {
-			importedString.add(line);
-		}
-
-		return importBooks(importedString, coverFinder, listener, importFlags);
+		return importBooks(exportStream, coverFinder, listener, importFlags, getFileLength(exportStream), new PipelineStats());
 	}
 
-	private boolean importBooks(ArrayList<String> export, Importer.CoverFinder coverFinder, Importer.OnImporterListener listener, int importFlags) {
-
-		if (export == null || export.size() == 0)
+	/**
+	 * Import books from the passed stream, recording the throughput of each stage.
+	 * 
+	 * @param totalBytes	Length of the export, or 0 if not known; used to estimate progress
+	 * @param stats			Figures for the parse, build and write stages are added to this object
+	 */
+	public boolean importBooks(InputStream exportStream, Importer.CoverFinder coverFinder, Importer.OnImporterListener listener, int importFlags, long totalBytes, PipelineStats stats) throws IOException {
+		long t0 = System.currentTimeMillis();
+
+		// The bytes read so far, against the length of the export, give an estimate of the number
+		// of rows for the progress display.
+		final CountingInputStream counter = new CountingInputStream(exportStream);
+		final CsvRowReader reader = new CsvRowReader(new InputStreamReader(counter, UTF8));
+
+		String[] names = reader.readRow(true);
+		if (names == null)
 			return true;
 
 		Integer nCreated = 0;
 		Integer nUpdated = 0;
 
-		listener.setMax(export.size() - 1);
-
-		// Container for values.
-		BookData values = new BookData();
-
-		String[] names = returnRow(export.get(0), true);
+		// Container for column names.
+		BookData columns = new BookData();
 
 		// Store the names so we can check what is present
 		for(int i = 0; i < names.length; i++) {
 			names[i] = names[i].toLowerCase();
-			values.putString(names[i], "");
+			columns.putString(names[i], "");
 		}
 
 		// See if we can deduce the kind of escaping to use based on column names.
 		// Version 1->3.3 export with family_name and author_id. Version 3.4+ do not; latest versions
 		// make an attempt at escaping characters etc to preserve formatting.
 		boolean fullEscaping;
-		if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_ID) && values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
+		if (columns.containsKey(CatalogueDBAdapter.KEY_AUTHOR_ID) && columns.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
 			// Old export, or one using old formats
 			fullEscaping = false;
 		} else {
@@ -99,15 +119,15 @@ public class CsvImporter {
 		// ENHANCE: Do a search if mandatory columns missing (eg. allow 'import' of a list of ISBNs).
 		// ENHANCE: Only make some columns mandatory if the ID is not in import, or not in DB (ie. if not an update)
 		// ENHANCE: Export/Import should use GUIDs for book IDs, and put GUIDs on Image file names.
-		requireColumnOr(values, CatalogueDBAdapter.KEY_ROWID, DatabaseDefinitions.DOM_BOOK_UUID.name);
-		requireColumnOr(values, CatalogueDBAdapter.KEY_FAMILY_NAME,
+		requireColumnOr(columns, CatalogueDBAdapter.KEY_ROWID, DatabaseDefinitions.DOM_BOOK_UUID.name);
+		requireColumnOr(columns, CatalogueDBAdapter.KEY_FAMILY_NAME,
 								CatalogueDBAdapter.KEY_AUTHOR_FORMATTED,
 								CatalogueDBAdapter.KEY_AUTHOR_NAME,
 								CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
 
 		boolean updateOnlyIfNewer;
 		if ( (importFlags & Importer.IMPORT_NEW_OR_UPDATED) != 0) {
-			if (!values.containsKey(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name)) {
+			if (!columns.containsKey(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name)) {
 				throw new RuntimeException("Imported data does not contain " + DatabaseDefinitions.DOM_LAST_UPDATE_DATE);
 			}
 			updateOnlyIfNewer = true;
@@ -119,292 +139,246 @@ public class CsvImporter {
 		CatalogueDBAdapter db;
 		db = new CatalogueDBAdapter(BookCatalogueApp.context);
 		db.open();
+		db.startBulkLoad();
 
 		int row = 1; // Start after headings.
 		boolean inTx = false;
-		int txRowCount = 0;
 
 		long lastUpdate = 0;
+		int lastMax = 0;
+
+		// Start parsing the remaining rows, and building books from them, in the background
+		RowPipeline pipeline = new RowPipeline(reader, fullEscaping, counter, stats.parse);
+		pipeline.start();
+		BookBuilder builder = new BookBuilder(pipeline, names, stats.build);
+		builder.start();
+		stats.write.start();
+
 		/* Iterate through each imported row */
 		SyncLock txLock = null;
 		try {
-			while (row < export.size() && !listener.isCancelled()) {
-				if (inTx && txRowCount > 10) {
+			ArrayList<BookData> batch;
+			while (!listener.isCancelled() && (batch = builder.nextBatch(stats.write)) != null) {
+				// Update the estimated row count
+				if (totalBytes > 0 && counter.getCount() > 0) {
+					int max = (int) (pipeline.getRowCount() * totalBytes / counter.getCount());
+					if (max > lastMax) {
+						listener.setMax(max);
+						lastMax = max;
+					}
+				}
+				// Import each batch in a single transaction
+				if (inTx) {
 					db.setTransactionSuccessful();
 					db.endTransaction(txLock);
 					inTx = false;
 				}
-				if (!inTx) {
-					txLock = db.startTransaction(true);
-					inTx = true;
-					txRowCount = 0;
-				}
-				txRowCount++;
+				txLock = db.startTransaction(true);
+				inTx = true;
 
-				// Get row
-				String[] imported = returnRow(export.get(row), fullEscaping);
-
-				values.clear();
-				for(int i = 0; i < names.length; i++) {
-					values.putString(names[i], imported[i]);
-				}
+				for(BookData values: batch) {
+					if (listener.isCancelled())
+						break;
 
-				boolean hasNumericId;
-				// Validate ID
-				String idStr = values.getString(CatalogueDBAdapter.KEY_ROWID.toLowerCase());
-				Long idLong;
-				if (idStr == null || idStr == "") {
-					hasNumericId = false;
-					idLong = 0L;
-				} else {
-					try {
-						idLong = Long.parseLong(idStr);
-						hasNumericId = true;
-					} catch (Exception e) {
+					boolean hasNumericId;
+					// Validate ID
+					String idStr = values.getString(CatalogueDBAdapter.KEY_ROWID.toLowerCase());
+					Long idLong;
+					if (idStr == null || idStr == "") {
 						hasNumericId = false;
 						idLong = 0L;
-					}
-				}
-				if (!hasNumericId) {
-					values.putString(CatalogueDBAdapter.KEY_ROWID, "0");					
-				}
-
-				// Get the UUID, and remove from collection if null/blank
-				boolean hasUuid;
-				final String uuidColumnName = DatabaseDefinitions.DOM_BOOK_UUID.name.toLowerCase();
-				String uuidVal = values.getString(uuidColumnName);
-				if (uuidVal != null && !uuidVal.equals("")) {
-					hasUuid = true;
-				} else {
-					// Remove any blank UUID column, just in case
-					if (values.containsKey(uuidColumnName))
-						values.remove(uuidColumnName);
-					hasUuid = false;
-				}
-
-				requireNonblank(values, row, CatalogueDBAdapter.KEY_TITLE);
-				String title = values.getString(CatalogueDBAdapter.KEY_TITLE);
-
-				// Keep author handling stuff local
-				{
-					// Get the list of authors from whatever source is available.
-					String authorDetails;
-					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
-					if (authorDetails == null || authorDetails.length() == 0) {
-						// Need to build it from other fields.
-						if (values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
-							// Build from family/given
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_FAMILY_NAME);
-							String given = "";
-							if (values.containsKey(CatalogueDBAdapter.KEY_GIVEN_NAMES))
-								given = values.getString(CatalogueDBAdapter.KEY_GIVEN_NAMES);
-							if (given != null && given.length() > 0)
-								authorDetails += ", " + given;
-						} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_NAME)) {
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_NAME);
-						} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED)) {
-							authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);					
+					} else {
+						try {
+							idLong = Long.parseLong(idStr);
+							hasNumericId = true;
+						} catch (Exception e) {
+							hasNumericId = false;
+							idLong = 0L;
 						}
 					}
+					if (!hasNumericId) {
+						values.putString(CatalogueDBAdapter.KEY_ROWID, "0");					
+					}
 
-					// A pre-existing bug sometimes results in blank author-details due to bad underlying data
-					// (it seems a 'book' record gets written without an 'author' record; should not happen)
-					// so we allow blank author_details and full in a regionalized version of "Author, Unknown"
-					if (authorDetails == null || authorDetails.length() == 0) {
-						authorDetails = BookCatalogueApp.getResourceString(R.string.author) + ", " + BookCatalogueApp.getResourceString(R.string.unknown);
-						//String s = BookCatalogueApp.getResourceString(R.string.column_is_blank);
-						//throw new ImportException(String.format(s, CatalogueDBAdapter.KEY_AUTHOR_DETAILS, row));
+					// Get the UUID, and remove from collection if null/blank
+					boolean hasUuid;
+					final String uuidColumnName = DatabaseDefinitions.DOM_BOOK_UUID.name.toLowerCase();
+					String uuidVal = values.getString(uuidColumnName);
+					if (uuidVal != null && !uuidVal.equals("")) {
+						hasUuid = true;
+					} else {
+						// Remove any blank UUID column, just in case
+						if (values.containsKey(uuidColumnName))
+							values.remove(uuidColumnName);
+						hasUuid = false;
 					}
 
-					// Now build the array for authors
-					ArrayList<Author> aa = Utils.getAuthorUtils().decodeList(authorDetails, '|', false);
-					Utils.pruneList(db, aa);
-					values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, aa);
-				}
+					String title = values.getString(CatalogueDBAdapter.KEY_TITLE);
 
-				// Keep series handling local
-				{
-					String seriesDetails;
-					seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_DETAILS);
-					if (seriesDetails == null || seriesDetails.length() == 0) {
-						// Try to build from SERIES_NAME and SERIES_NUM. It may all be blank
-						if (values.containsKey(CatalogueDBAdapter.KEY_SERIES_NAME)) {
-							seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_NAME);
-							if (seriesDetails != null && seriesDetails.length() != 0) {
-								String seriesNum = values.getString(CatalogueDBAdapter.KEY_SERIES_NUM);
-								if (seriesNum == null)
-									seriesNum = "";
-								seriesDetails += "(" + seriesNum + ")";
-							} else {
-								seriesDetails = null;
-							}
-						}
-					}
-					// Handle the series
-					ArrayList<Series> sa = Utils.getSeriesUtils().decodeList(seriesDetails, '|', false);
-					Utils.pruneSeriesList(sa);
-					Utils.pruneList(db, sa);
-					values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, sa);				
-				}
-				
-				
-				// Make sure we have bookself_text if we imported bookshelf
-				if (values.containsKey(CatalogueDBAdapter.KEY_BOOKSHELF) && !values.containsKey("bookshelf_text")) {
-					values.setBookshelfList(values.getString(CatalogueDBAdapter.KEY_BOOKSHELF));
-				}
+					// Resolve the authors and series; IDs are remembered by the bulk load, so most rows need no lookup
+					Utils.pruneList(db, values.getAuthorList());
+					Utils.pruneList(db, values.getSeriesList());
 
-				try {
-					boolean doUpdate;
-					if (!hasUuid && !hasNumericId) {
-						doUpdate = true;
-						// Always import empty IDs...even if they are duplicates.
-						Long id = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-						values.putString(CatalogueDBAdapter.KEY_ROWID, id.toString());
-						// Would be nice to import a cover, but with no ID/UUID thats not possible
-						//mImportCreated++;
-					} else {
-						boolean exists;
-						// Save the original ID from the file for use in checing for images
-						Long idFromFile = idLong;
-						// newId will get the ID allocated if a book is created
-						Long newId = 0L;
-
-						// Let the UUID trump the ID; we may be importing someone else's list with bogus IDs
-						if (hasUuid) {
-							Long l = db.getBookIdFromUuid(uuidVal);
-							if (l != 0) {
-								exists = true;
-								idLong = l;
+
+					try {
+						boolean doUpdate;
+						if (!hasUuid && !hasNumericId) {
+							doUpdate = true;
+							// Always import empty IDs...even if they are duplicates.
+							Long id = db.createBook(values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+							values.putString(CatalogueDBAdapter.KEY_ROWID, id.toString());
+							// Would be nice to import a cover, but with no ID/UUID thats not possible
+							//mImportCreated++;
+						} else {
+							boolean exists;
+							// Save the original ID from the file for use in checing for images
+							Long idFromFile = idLong;
+							// newId will get the ID allocated if a book is created
+							Long newId = 0L;
+
+							// Let the UUID trump the ID; we may be importing someone else's list with bogus IDs
+							if (hasUuid) {
+								Long l = db.getBookIdFromUuid(uuidVal);
+								if (l != 0) {
+									exists = true;
+									idLong = l;
+								} else {
+									exists = false;
+									// We have a UUID, but book does not exist. We will create a book.
+									// Make sure the ID (if present) is not already used.
+									if (hasNumericId && db.checkBookExists(idLong))
+										idLong = 0L;
+								}
 							} else {
-								exists = false;
-								// We have a UUID, but book does not exist. We will create a book.
-								// Make sure the ID (if present) is not already used.
-								if (hasNumericId && db.checkBookExists(idLong))
-									idLong = 0L;
+								exists = db.checkBookExists(idLong);							
 							}
-						} else {
-							exists = db.checkBookExists(idLong);							
-						}
 
-						if (exists) {
-							if (!updateOnlyIfNewer) {
-								doUpdate = true;
-							} else {
-								Date bookDate;
-								Date importDate;
-								String bookDateStr = db.getBookUpdateDate(idLong);
-								if (bookDateStr == null || bookDateStr.equals("")) {
-									bookDate = null; // Local record has never been updated
+							if (exists) {
+								if (!updateOnlyIfNewer) {
+									doUpdate = true;
 								} else {
-									try {
-										bookDate = Utils.parseDate(bookDateStr);
-									} catch (Exception e) {
-										bookDate = null; // Treat as if never updated
+									Date bookDate;
+									Date importDate;
+									String bookDateStr = db.getBookUpdateDate(idLong);
+									if (bookDateStr == null || bookDateStr.equals("")) {
+										bookDate = null; // Local record has never been updated
+									} else {
+										try {
+											bookDate = Utils.parseDate(bookDateStr);
+										} catch (Exception e) {
+											bookDate = null; // Treat as if never updated
+										}
 									}
-								}
-								String importDateStr = values.getString(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
-								if (importDateStr == null || importDateStr.equals("")) {
-									importDate = null; // Imported record has never been updated
-								} else {
-									try {
-										importDate = Utils.parseDate(importDateStr);
-									} catch (Exception e) {
-										importDate = null; // Treat as if never updated
+									String importDateStr = values.getString(DatabaseDefinitions.DOM_LAST_UPDATE_DATE.name);
+									if (importDateStr == null || importDateStr.equals("")) {
+										importDate = null; // Imported record has never been updated
+									} else {
+										try {
+											importDate = Utils.parseDate(importDateStr);
+										} catch (Exception e) {
+											importDate = null; // Treat as if never updated
+										}
+									}
+									if (importDate == null) {
+										doUpdate = false;
+									} else if (bookDate == null) {
+										doUpdate = true;
+									} else {
+										doUpdate = importDate.compareTo(bookDate) > 0;
 									}
 								}
-								if (importDate == null) {
-									doUpdate = false;
-								} else if (bookDate == null) {
-									doUpdate = true;
-								} else {
-									doUpdate = importDate.compareTo(bookDate) > 0;
+								if (doUpdate) {
+									db.updateBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES|CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);								
+									nUpdated++;
 								}
+								//mImportUpdated++;
+							} else {
+								doUpdate = true;
+								newId = db.createBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
+								nCreated++;
+								//mImportCreated++;
+								values.putString(CatalogueDBAdapter.KEY_ROWID, newId.toString());							
+								idLong = newId;
 							}
-							if (doUpdate) {
-								db.updateBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_SKIP_PURGE_REFERENCES|CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);								
-								nUpdated++;
-							}
-							//mImportUpdated++;
-						} else {
-							doUpdate = true;
-							newId = db.createBook(idLong, values, CatalogueDBAdapter.BOOK_UPDATE_USE_UPDATE_DATE_IF_PRESENT);
-							nCreated++;
-							//mImportCreated++;
-							values.putString(CatalogueDBAdapter.KEY_ROWID, newId.toString());							
-							idLong = newId;
-						}
 
-						// When importing a file that has an ID or UUID, try to import a cover.
-						if (coverFinder != null) {
-							coverFinder.copyOrRenameCoverFile(uuidVal, idFromFile, idLong);
+							// When importing a file that has an ID or UUID, try to import a cover.
+							if (coverFinder != null) {
+								coverFinder.copyOrRenameCoverFile(uuidVal, idFromFile, idLong);
+							}
+							// Save the real ID to the collection (will/may be used later)
+							values.putString(CatalogueDBAdapter.KEY_ROWID, idLong.toString());
 						}
-						// Save the real ID to the collection (will/may be used later)
-						values.putString(CatalogueDBAdapter.KEY_ROWID, idLong.toString());
-					}
 					
-					if (doUpdate) {
-						if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
-							int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROWID));
-							db.deleteLoan(id, false);
-							db.createLoan(values, false);
-						}
-
-						if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
-							int anthology;
-							try {
-								anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
-							} catch (Exception e) {
-								anthology = 0;
-							}
-							if (anthology != 0) {
+						if (doUpdate) {
+							if (values.containsKey(CatalogueDBAdapter.KEY_LOANED_TO) && !values.get(CatalogueDBAdapter.KEY_LOANED_TO).equals("")) {
 								int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROWID));
-								// We have anthology details, delete the current details.
-								db.deleteAnthologyTitles(id, false);
-								int oldi = 0;
-								String anthology_titles = values.getString("anthology_titles");
+								db.deleteLoan(id, false);
+								db.createLoan(values, false);
+							}
+
+							if (values.containsKey(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK)) {
+								int anthology;
 								try {
-									int i = anthology_titles.indexOf("|", oldi);
-									while (i > -1) {
-										String extracted_title = anthology_titles.substring(oldi, i).trim();
+									anthology = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ANTHOLOGY_MASK));
+								} catch (Exception e) {
+									anthology = 0;
+								}
+								if (anthology != 0) {
+									int id = Integer.parseInt(values.getString(CatalogueDBAdapter.KEY_ROWID));
+									// We have anthology details, delete the current details.
+									db.deleteAnthologyTitles(id, false);
+									int oldi = 0;
+									String anthology_titles = values.getString("anthology_titles");
+									try {
+										int i = anthology_titles.indexOf("|", oldi);
+										while (i > -1) {
+											String extracted_title = anthology_titles.substring(oldi, i).trim();
 										
-										int j = extracted_title.indexOf("*");
-										if (j > -1) {
-											String anth_title = extracted_title.substring(0, j).trim();
-											String anth_author = extracted_title.substring((j+1)).trim();
-											db.createAnthologyTitle(id, anth_author, anth_title, true, false);
+											int j = extracted_title.indexOf("*");
+											if (j > -1) {
+												String anth_title = extracted_title.substring(0, j).trim();
+												String anth_author = extracted_title.substring((j+1)).trim();
+												db.createAnthologyTitle(id, anth_author, anth_title, true, false);
+											}
+											oldi = i + 1;
+											i = anthology_titles.indexOf("|", oldi);
 										}
-										oldi = i + 1;
-										i = anthology_titles.indexOf("|", oldi);
+									} catch (NullPointerException e) {
+										//do nothing. There are no anthology titles
 									}
-								} catch (NullPointerException e) {
-									//do nothing. There are no anthology titles
 								}
-							}
-						}						
+							}						
+						}
+
+					} catch (Exception e) {
+						Logger.logError(e, "Import at row " + row);
 					}
 
-				} catch (Exception e) {
-					Logger.logError(e, "Import at row " + row);
-				}
+					long now = System.currentTimeMillis();
+					if ( (now - lastUpdate) > 200 && !listener.isCancelled()) {
+						listener.onProgress(title + "\n(" + BookCatalogueApp.getResourceString(R.string.n_created_m_updated, nCreated, nUpdated) + ")", row);
+						lastUpdate = now;
+					}
 
-				long now = System.currentTimeMillis();
-				if ( (now - lastUpdate) > 200 && !listener.isCancelled()) {
-					listener.onProgress(title + "\n(" + BookCatalogueApp.getResourceString(R.string.n_created_m_updated, nCreated, nUpdated) + ")", row);
-					lastUpdate = now;
+					// Increment row count
+					row++;
 				}
-
-				// Increment row count
-				row++;
-			}	
+				stats.write.addItems(batch.size(), 0);
+			}
 		} catch (Exception e) {
 			Logger.logError(e);
 			throw new RuntimeException(e);
 		} finally {
+			builder.finish();
+			pipeline.finish();
+			stats.write.finish();
 			if (inTx) {
 				db.setTransactionSuccessful();
 				db.endTransaction(txLock);
 			}
 			try {
+				// Update FTS data and record the changes
+				db.endBulkLoad();
 				db.purgeAuthors();
 				db.purgeSeries();
 				db.analyzeDb();
@@ -419,125 +393,512 @@ public class CsvImporter {
 				Logger.logError(e);
 			}
 		}
-		
-		return true;
 
-// XXX: Make sure this is replicated
-//		if (listener.isCancelled()) {
-//			doToast(getString(R.string.cancelled));
-//		} else {
-//			doToast(getString(R.string.import_complete));
-//		}
+		if (DEBUG_STATS) {
+			long elapsed = System.currentTimeMillis() - t0;
+			long rowsPerSec = elapsed > 0 ? (row - 1) * 1000L / elapsed : 0;
+			System.out.println("CSV import: " + (row - 1) + " rows in " + elapsed + "ms (" + rowsPerSec + " rows/sec), " + counter.getCount() + " bytes");
+			System.out.println(stats);
+		}
 		
+		return true;
 	}
 
-	//
-	// This CSV parser is not a complete parser, but it will parse files exported by older 
-	// versions. At some stage in the future it would be good to allow full CSV export 
-	// and import to allow for escape('\') chars so that cr/lf can be preserved.
-	// 
-	private String[] returnRow(String row, boolean fullEscaping) {
-		// Need to handle double quotes etc
-		int pos = 0;				// Current position
-		boolean inQuote = false;	// In a quoted string
-		boolean inEsc = false;		// Found an escape char
-		char c;						// 'Current' char
-		char next					// 'Next' char 
-				= (row.length() > 0) ? row.charAt(0) : '\0';
-		int endPos					// Last position in row 
-				= row.length() - 1;
-		ArrayList<String> fields	// Array of fields found in row
-				= new ArrayList<String>();
-
-		StringBuilder bld			// Temp. storage for current field
-				= new StringBuilder();
-
-		while (next != '\0')
-		{
-			// Get current and next char
-			c = next;
-			next = (pos < endPos) ? row.charAt(pos+1) : '\0';
-
-			// If we are 'escaped', just append the char, handling special cases
-			if (inEsc) {
-				bld.append(unescape(c));
-				inEsc = false;
+	/**
+	 * Get the length of the file being read by the passed stream, if it is reading a file
+	 * 
+	 * @return	Length, or 0 if not known
+	 */
+	private static long getFileLength(InputStream in) {
+		if (in instanceof FileInputStream) {
+			try {
+				return ((FileInputStream)in).getChannel().size();
+			} catch (IOException e) {
+				Logger.logError(e);
 			}
-			else if (inQuote)
-			{
-				switch(c) {
-					case QUOTE_CHAR:
-						if (next == QUOTE_CHAR)
-						{
-							// Double-quote: Advance one more and append a single quote
-							pos++;
-							next = (pos < endPos) ? row.charAt(pos+1) : '\0';
-							bld.append(c);
-						} else {
-							// Leave the quote
-							inQuote = false;
-						}
-						break;
-					case ESCAPE_CHAR:
-						if (fullEscaping)
-							inEsc = true;
-						else
-							bld.append(c);						
-						break;
-					default:
-						bld.append(c);						
-						break;
+		}
+		return 0;
+	}
+
+	/**
+	 * Stream wrapper that counts the bytes read; used to estimate progress.
+	 * 
+	 * @author pjw
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private volatile long mCount = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c >= 0)
+				mCount++;
+			return c;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int n = super.read(buffer, offset, count);
+			if (n > 0)
+				mCount += n;
+			return n;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+	}
+
+	/**
+	 * Reads CSV rows directly from a stream, one row at a time.
+	 * 
+	 * This CSV parser is not a complete parser, but it will parse files exported by older 
+	 * versions and current versions. Quoted fields may contain raw line breaks, and when 
+	 * 'full escaping' is used, '\' escapes can be used to preserve cr/lf etc.
+	 * 
+	 * @author pjw
+	 */
+	private static class CsvRowReader {
+		private final Reader mReader;
+		private final char[] mBuffer = new char[BUFFER_SIZE];
+		private int mPos = 0;
+		private int mLen = 0;
+
+		CsvRowReader(Reader reader) {
+			mReader = reader;
+		}
+
+		/** Return the next char without consuming it, or -1 at end of stream */
+		private int peek() throws IOException {
+			if (mPos >= mLen) {
+				mLen = mReader.read(mBuffer, 0, mBuffer.length);
+				mPos = 0;
+				if (mLen <= 0) {
+					mLen = 0;
+					return -1;
 				}
-			} else {
-				// This is just a raw string; no escape or quote active.
-				// Ignore leading space.
-				if ((c == ' ' || c == '\t') && bld.length() == 0 ) {
-					// Skip leading white space
-				} else {
-					switch(c){
+			}
+			return mBuffer[mPos];
+		}
+
+		/** Return and consume the next char, or -1 at end of stream */
+		private int next() throws IOException {
+			int c = peek();
+			if (c >= 0)
+				mPos++;
+			return c;
+		}
+
+		/**
+		 * Read the next row; blank lines are skipped.
+		 * 
+		 * @param fullEscaping	Indicates '\' is an escape char
+		 * 
+		 * @return	Array of fields, or null at end of stream
+		 * 
+		 * @throws IOException
+		 */
+		public String[] readRow(boolean fullEscaping) throws IOException {
+			boolean inQuote = false;	// In a quoted string
+			boolean inEsc = false;		// Found an escape char
+			boolean hasData = false;	// Anything other than a line break found
+			ArrayList<String> fields	// Array of fields found in row
+					= new ArrayList<String>();
+			StringBuilder bld			// Temp. storage for current field
+					= new StringBuilder();
+
+			int c;
+			while ((c = next()) >= 0) {
+				// Ignore the CR in a CR/LF pair
+				if (c == '\r' && peek() == '\n')
+					continue;
+
+				// If we are 'escaped', just append the char, handling special cases
+				if (inEsc) {
+					bld.append(unescape((char)c));
+					inEsc = false;
+				} else if (inQuote) {
+					switch(c) {
 						case QUOTE_CHAR:
-							if (bld.length() > 0) {
-								// Fields with quotes MUST be quoted...
-								throw new IllegalArgumentException();
+							if (peek() == QUOTE_CHAR) {
+								// Double-quote: Advance one more and append a single quote
+								next();
+								bld.append((char)c);
 							} else {
-								inQuote = true;
+								// Leave the quote
+								inQuote = false;
 							}
 							break;
 						case ESCAPE_CHAR:
 							if (fullEscaping)
 								inEsc = true;
 							else
-								bld.append(c);						
-							break;
-						case SEPARATOR:
-							// Add this field and reset it.
-							fields.add(bld.toString());
-							bld = new StringBuilder();
+								bld.append((char)c);
 							break;
 						default:
-							// Just append the char
-							bld.append(c);
+							// Includes line breaks inside quoted fields
+							bld.append((char)c);
 							break;
 					}
+				} else if (c == '\n' || c == '\r') {
+					// End of row; skip blank lines
+					if (hasData)
+						break;
+				} else {
+					hasData = true;
+					// This is just a raw string; no escape or quote active.
+					// Ignore leading space.
+					if ((c == ' ' || c == '\t') && bld.length() == 0 ) {
+						// Skip leading white space
+					} else {
+						switch(c){
+							case QUOTE_CHAR:
+								if (bld.length() > 0) {
+									// Fields with quotes MUST be quoted...
+									throw new IllegalArgumentException();
+								} else {
+									inQuote = true;
+								}
+								break;
+							case ESCAPE_CHAR:
+								if (fullEscaping)
+									inEsc = true;
+								else
+									bld.append((char)c);
+								break;
+							case SEPARATOR:
+								// Add this field and reset it.
+								fields.add(bld.toString());
+								bld = new StringBuilder();
+								break;
+							default:
+								// Just append the char
+								bld.append((char)c);
+								break;
+						}
+					}
 				}
 			}
-			pos++;
-		};
 
-		// Add the remaining chunk
-		fields.add(bld.toString());
+			if (!hasData)
+				return null;
+
+			// Add the remaining chunk
+			fields.add(bld.toString());
+
+			// Return the result as a String[].
+			String[] imported = new String[fields.size()];
+			fields.toArray(imported);
+
+			return imported;
+		}
+	}
+
+	/**
+	 * Background thread that parses rows into batches and queues them for the importer. The queue
+	 * is bounded so the parser can only get MAX_QUEUED_BATCHES ahead of the importer.
+	 * 
+	 * @author pjw
+	 */
+	private static class RowPipeline extends Thread {
+		/** Empty batch used to mark the end of the rows */
+		private static final ArrayList<String[]> END_OF_ROWS = new ArrayList<String[]>();
+
+		private final CsvRowReader mReader;
+		private final boolean mFullEscaping;
+		private final CountingInputStream mCounter;
+		private final PipelineStats.Stage mStats;
+		private final ArrayBlockingQueue<ArrayList<String[]>> mQueue = new ArrayBlockingQueue<ArrayList<String[]>>(MAX_QUEUED_BATCHES);
+		/** Set when the importer no longer wants rows */
+		private volatile boolean mIsFinished = false;
+		/** Number of rows parsed so far */
+		private volatile int mRowCount = 0;
+		/** Exception thrown by the parser, if any */
+		private volatile Exception mException = null;
+
+		RowPipeline(CsvRowReader reader, boolean fullEscaping, CountingInputStream counter, PipelineStats.Stage stats) {
+			super("CsvImporter-parser");
+			mReader = reader;
+			mFullEscaping = fullEscaping;
+			mCounter = counter;
+			mStats = stats;
+		}
+
+		@Override
+		public void run() {
+			mStats.start();
+			long lastBytes = mCounter.getCount();
+			try {
+				ArrayList<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+				String[] row;
+				while (!mIsFinished && (row = mReader.readRow(mFullEscaping)) != null) {
+					batch.add(row);
+					mRowCount++;
+					if (batch.size() >= BATCH_SIZE) {
+						final long bytes = mCounter.getCount();
+						mStats.addItems(batch.size(), bytes - lastBytes);
+						lastBytes = bytes;
+						queue(batch);
+						batch = new ArrayList<String[]>(BATCH_SIZE);
+					}
+				}
+				if (batch.size() > 0) {
+					mStats.addItems(batch.size(), mCounter.getCount() - lastBytes);
+					queue(batch);
+				}
+			} catch (Exception e) {
+				mException = e;
+			} finally {
+				mStats.finish();
+				try {
+					queue(END_OF_ROWS);
+				} catch (InterruptedException e) {
+					// Importer has gone
+				}
+			}
+		}
+
+		/** Add a batch to the queue, waiting for space unless the importer has finished */
+		private void queue(ArrayList<String[]> batch) throws InterruptedException {
+			final long t0 = System.currentTimeMillis();
+			try {
+				while (!mIsFinished) {
+					if (mQueue.offer(batch, 100, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} finally {
+				mStats.addOutputWait(System.currentTimeMillis() - t0);
+			}
+		}
+
+		/**
+		 * Get the next batch of rows, waiting for the parser if necessary.
+		 * 
+		 * @param consumer	Stage to charge with the time spent waiting
+		 * 
+		 * @return	Batch of rows, or null if there are no more rows
+		 * 
+		 * @throws Exception	Any exception thrown by the parser
+		 */
+		public ArrayList<String[]> nextBatch(PipelineStats.Stage consumer) throws Exception {
+			final long t0 = System.currentTimeMillis();
+			ArrayList<String[]> batch = mQueue.take();
+			consumer.addInputWait(System.currentTimeMillis() - t0);
+			if (batch == END_OF_ROWS) {
+				if (mException != null)
+					throw mException;
+				return null;
+			}
+			return batch;
+		}
 
-		// Return the result as a String[].
-		String[] imported = new String[fields.size()];
-		fields.toArray(imported);
+		/** Number of rows parsed so far */
+		public int getRowCount() {
+			return mRowCount;
+		}
+
+		/** Stop the parser; called when the import finishes or is cancelled */
+		public void finish() {
+			mIsFinished = true;
+			mQueue.clear();
+		}
+	}
+
+	/**
+	 * Background thread that turns batches of rows into batches of BookData objects and queues
+	 * them for the importer. Anything that needs the database is left to the importer, so it is
+	 * done in the import transaction.
+	 * 
+	 * @author pjw
+	 */
+	private class BookBuilder extends Thread {
+		/** Empty batch used to mark the end of the books */
+		private final ArrayList<BookData> END_OF_BOOKS = new ArrayList<BookData>();
+
+		private final RowPipeline mRows;
+		private final String[] mNames;
+		private final PipelineStats.Stage mStats;
+		private final ArrayBlockingQueue<ArrayList<BookData>> mQueue = new ArrayBlockingQueue<ArrayList<BookData>>(MAX_QUEUED_BATCHES);
+		/** Set when the importer no longer wants books */
+		private volatile boolean mIsFinished = false;
+		/** Exception thrown by the builder or parser, if any */
+		private volatile Exception mException = null;
+
+		BookBuilder(RowPipeline rows, String[] names, PipelineStats.Stage stats) {
+			super("CsvImporter-builder");
+			mRows = rows;
+			mNames = names;
+			mStats = stats;
+		}
+
+		@Override
+		public void run() {
+			mStats.start();
+			int row = 1; // Start after headings.
+			try {
+				ArrayList<String[]> rows;
+				while (!mIsFinished && (rows = mRows.nextBatch(mStats)) != null) {
+					ArrayList<BookData> batch = new ArrayList<BookData>(rows.size());
+					try {
+						for(String[] imported: rows) {
+							batch.add(buildBook(mNames, imported, row));
+							row++;
+						}
+					} catch (RuntimeException e) {
+						// Import the rows before the bad one, as if they had not been batched
+						if (batch.size() > 0)
+							queue(batch);
+						throw e;
+					}
+					mStats.addItems(batch.size(), 0);
+					queue(batch);
+				}
+			} catch (Exception e) {
+				mException = e;
+			} finally {
+				mStats.finish();
+				try {
+					queue(END_OF_BOOKS);
+				} catch (InterruptedException e) {
+					// Importer has gone
+				}
+			}
+		}
+
+		/** Add a batch to the queue, waiting for space unless the importer has finished */
+		private void queue(ArrayList<BookData> batch) throws InterruptedException {
+			final long t0 = System.currentTimeMillis();
+			try {
+				while (!mIsFinished) {
+					if (mQueue.offer(batch, 100, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} finally {
+				mStats.addOutputWait(System.currentTimeMillis() - t0);
+			}
+		}
+
+		/**
+		 * Get the next batch of books, waiting for the builder if necessary.
+		 * 
+		 * @param consumer	Stage to charge with the time spent waiting
+		 * 
+		 * @return	Batch of books, or null if there are no more
+		 * 
+		 * @throws Exception	Any exception thrown by the builder or parser
+		 */
+		public ArrayList<BookData> nextBatch(PipelineStats.Stage consumer) throws Exception {
+			final long t0 = System.currentTimeMillis();
+			ArrayList<BookData> batch = mQueue.take();
+			consumer.addInputWait(System.currentTimeMillis() - t0);
+			if (batch == END_OF_BOOKS) {
+				if (mException != null)
+					throw mException;
+				return null;
+			}
+			return batch;
+		}
+
+		/** Stop the builder; called when the import finishes or is cancelled */
+		public void finish() {
+			mIsFinished = true;
+			mQueue.clear();
+		}
+	}
+
+	/**
+	 * Build a book from an imported row, decoding the author and series lists.
+	 * 
+	 * @param names		Column names
+	 * @param imported	Column values
+	 * @param row		Row number, for error messages
+	 * 
+	 * @return	New BookData
+	 */
+	private BookData buildBook(String[] names, String[] imported, int row) {
+		BookData values = new BookData();
+		for(int i = 0; i < names.length; i++) {
+			values.putString(names[i], imported[i]);
+		}
+
+		requireNonblank(values, row, CatalogueDBAdapter.KEY_TITLE);
+
+		// Keep author handling stuff local
+		{
+			// Get the list of authors from whatever source is available.
+			String authorDetails;
+			authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_DETAILS);
+			if (authorDetails == null || authorDetails.length() == 0) {
+				// Need to build it from other fields.
+				if (values.containsKey(CatalogueDBAdapter.KEY_FAMILY_NAME)) {
+					// Build from family/given
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_FAMILY_NAME);
+					String given = "";
+					if (values.containsKey(CatalogueDBAdapter.KEY_GIVEN_NAMES))
+						given = values.getString(CatalogueDBAdapter.KEY_GIVEN_NAMES);
+					if (given != null && given.length() > 0)
+						authorDetails += ", " + given;
+				} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_NAME)) {
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_NAME);
+				} else if (values.containsKey(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED)) {
+					authorDetails = values.getString(CatalogueDBAdapter.KEY_AUTHOR_FORMATTED);					
+				}
+			}
+
+			// A pre-existing bug sometimes results in blank author-details due to bad underlying data
+			// (it seems a 'book' record gets written without an 'author' record; should not happen)
+			// so we allow blank author_details and full in a regionalized version of "Author, Unknown"
+			if (authorDetails == null || authorDetails.length() == 0) {
+				authorDetails = BookCatalogueApp.getResourceString(R.string.author) + ", " + BookCatalogueApp.getResourceString(R.string.unknown);
+				//String s = BookCatalogueApp.getResourceString(R.string.column_is_blank);
+				//throw new ImportException(String.format(s, CatalogueDBAdapter.KEY_AUTHOR_DETAILS, row));
+			}
+
+			// Now build the array for authors
+			ArrayList<Author> aa = Utils.getAuthorUtils().decodeList(authorDetails, '|', false);
+			values.putSerializable(CatalogueDBAdapter.KEY_AUTHOR_ARRAY, aa);
+		}
+
+		// Keep series handling local
+		{
+			String seriesDetails;
+			seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_DETAILS);
+			if (seriesDetails == null || seriesDetails.length() == 0) {
+				// Try to build from SERIES_NAME and SERIES_NUM. It may all be blank
+				if (values.containsKey(CatalogueDBAdapter.KEY_SERIES_NAME)) {
+					seriesDetails = values.getString(CatalogueDBAdapter.KEY_SERIES_NAME);
+					if (seriesDetails != null && seriesDetails.length() != 0) {
+						String seriesNum = values.getString(CatalogueDBAdapter.KEY_SERIES_NUM);
+						if (seriesNum == null)
+							seriesNum = "";
+						seriesDetails += "(" + seriesNum + ")";
+					} else {
+						seriesDetails = null;
+					}
+				}
+			}
+			// Handle the series
+			ArrayList<Series> sa = Utils.getSeriesUtils().decodeList(seriesDetails, '|', false);
+			Utils.pruneSeriesList(sa);
+			values.putSerializable(CatalogueDBAdapter.KEY_SERIES_ARRAY, sa);				
+		}
+
+		// Make sure we have bookself_text if we imported bookshelf
+		if (values.containsKey(CatalogueDBAdapter.KEY_BOOKSHELF) && !values.containsKey("bookshelf_text")) {
+			values.setBookshelfList(values.getString(CatalogueDBAdapter.KEY_BOOKSHELF));
+		}
 
-		return imported;
+		return values;
 	}
 
 	private final static char QUOTE_CHAR = '"';
 	private final static char ESCAPE_CHAR = '\\';
 	private final static char SEPARATOR = ',';
-	private char unescape(char c) {
+	private static char unescape(char c) {
 		switch(c) {
 		case 'r':
 			return '\r';
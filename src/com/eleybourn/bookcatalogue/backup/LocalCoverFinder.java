@@ -28,7 +28,7 @@ import java.io.OutputStream;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
-import com.eleybourn.bookcatalogue.utils.StorageUtils;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 
 /**
  * Class to find covers for an importer when the import is reading from a local directory.
@@ -40,14 +40,12 @@ public class LocalCoverFinder implements Importer.CoverFinder {
 	private final String mSrc;
 	private final String mDst;
 	private final boolean mIsForeign;
-	private final String mSharedStoragePath;
 	private CatalogueDBAdapter mDbHelper;
 
 	public LocalCoverFinder(String srcPath, String dstPath) {
 		mSrc = srcPath;
 		mDst = dstPath;
 		mIsForeign = !mSrc.equals(mDst);
-		mSharedStoragePath = StorageUtils.getSharedStorage().getAbsolutePath();
 
 		mDbHelper = new CatalogueDBAdapter(BookCatalogueApp.context);
 		mDbHelper.open();
@@ -102,14 +100,15 @@ public class LocalCoverFinder implements Importer.CoverFinder {
 				return newFile;
 			else
 				newFile.delete();
+			CoverFileIndex.coverChanged(newUuid);
 			newFile = CatalogueDBAdapter.fetchThumbnailByUuid(newUuid);
 		}
 		
 		// Get the new path based on the input file type.
 		if (orig.getAbsolutePath().toLowerCase().endsWith(".png")) 
-			newFile = new File(mSharedStoragePath + "/" + newUuid + ".png");
+			newFile = CoverFileIndex.getFileForName(newUuid + ".png");
 		else
-			newFile = new File(mSharedStoragePath + "/" + newUuid + ".jpg");
+			newFile = CoverFileIndex.getFileForName(newUuid + ".jpg");
 
 		return newFile;
 	}
@@ -150,6 +149,7 @@ public class LocalCoverFinder implements Importer.CoverFinder {
 			in = null;
 			out.close();
 			out = null;
+			CoverFileIndex.coverChanged(newFile);
 		} finally {
 			// If not already closed, close.
 			try {
@@ -181,7 +181,8 @@ public class LocalCoverFinder implements Importer.CoverFinder {
 		if (newFile.exists())
 			return;
 
-		orig.renameTo(newFile);
+		if (orig.renameTo(newFile))
+			CoverFileIndex.coverChanged(newFile);
 	}
 
 	/**
@@ -0,0 +1,149 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup;
+
+/**
+ * Throughput figures for the stages of a restore or import, each of which runs in its own thread.
+ *
+ * Each stage records the items and bytes it has processed, the time it spent waiting for input
+ * from the previous stage (starved) and the time it spent waiting for the next stage to accept
+ * its output (backpressure). The slowest stage is the one that is never waiting.
+ *
+ * Each stage is only updated by its own thread; other threads may read the figures at any time.
+ *
+ * @author pjw
+ */
+public class PipelineStats {
+
+	/**
+	 * Figures for one stage
+	 *
+	 * @author pjw
+	 */
+	public static class Stage {
+		/** Name of stage */
+		public final String name;
+		private volatile long mStarted = 0;
+		private volatile long mFinished = 0;
+		private volatile long mItems = 0;
+		private volatile long mBytes = 0;
+		private volatile long mInputWaitMs = 0;
+		private volatile long mOutputWaitMs = 0;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		/** Record the start of the stage; only the first call counts */
+		public void start() {
+			if (mStarted == 0)
+				mStarted = System.currentTimeMillis();
+		}
+
+		/** Record the end of the stage */
+		public void finish() {
+			mFinished = System.currentTimeMillis();
+		}
+
+		/** Add processed items */
+		public void addItems(long items, long bytes) {
+			mItems += items;
+			mBytes += bytes;
+		}
+
+		/** Add time spent waiting for the previous stage */
+		public void addInputWait(long ms) {
+			mInputWaitMs += ms;
+		}
+
+		/** Add time spent waiting for the next stage */
+		public void addOutputWait(long ms) {
+			mOutputWaitMs += ms;
+		}
+
+		public long getItems() {
+			return mItems;
+		}
+
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getInputWaitMs() {
+			return mInputWaitMs;
+		}
+
+		public long getOutputWaitMs() {
+			return mOutputWaitMs;
+		}
+
+		/** Time since the stage started, or its total time if it has finished */
+		public long getElapsedMs() {
+			if (mStarted == 0)
+				return 0;
+			final long end = mFinished == 0 ? System.currentTimeMillis() : mFinished;
+			return end - mStarted;
+		}
+
+		/** Items per second, or 0 if not started */
+		public long getItemsPerSec() {
+			final long elapsed = getElapsedMs();
+			return elapsed > 0 ? mItems * 1000 / elapsed : 0;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + mItems + " items, " + mBytes + " bytes in " + getElapsedMs() + "ms ("
+					+ getItemsPerSec() + "/sec), waited " + mInputWaitMs + "ms for input, " + mOutputWaitMs + "ms for output";
+		}
+	}
+
+	/** Reading entities from the backup */
+	public final Stage read = new Stage("read");
+	/** Splitting the CSV into rows */
+	public final Stage parse = new Stage("parse");
+	/** Turning rows into BookData objects */
+	public final Stage build = new Stage("build");
+	/** Writing books to the database */
+	public final Stage write = new Stage("write");
+	/** Writing cover files */
+	public final Stage covers = new Stage("covers");
+
+	/**
+	 * Get all stages, in pipeline order.
+	 */
+	public Stage[] getStages() {
+		return new Stage[] {read, parse, build, write, covers};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Stage s: getStages()) {
+			if (s.getElapsedMs() == 0)
+				continue;
+			if (sb.length() > 0)
+				sb.append("\n");
+			sb.append(s.toString());
+		}
+		return sb.toString();
+	}
+}
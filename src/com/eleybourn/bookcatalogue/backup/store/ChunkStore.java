@@ -0,0 +1,267 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Directory of data chunks, each stored once in a file named by the SHA-256 of its contents.
+ *
+ * Chunks are kept in 256 sub-directories (first two hex digits of the hash) to keep directory
+ * sizes reasonable on FAT file systems. Chunks are never deleted, so any snapshot that refers
+ * to a chunk can rely on it still being present.
+ *
+ * @author pjw
+ */
+public class ChunkStore {
+	/** Sub-directory holding the chunks */
+	private static final String CHUNK_DIR = "chunks";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Root of chunk directories */
+	private final File mChunkDir;
+	/** Hash function */
+	private final MessageDigest mDigest;
+	/** Buffer used when splitting streams */
+	private byte[] mChunkBuffer = null;
+
+	/** Stats: number of chunks written */
+	private int mChunksWritten = 0;
+	/** Stats: number of chunks that were already in the store */
+	private int mChunksReused = 0;
+	/** Stats: bytes written to new chunks */
+	private long mBytesWritten = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param storeDir	Backup store directory
+	 */
+	public ChunkStore(File storeDir) {
+		mChunkDir = new File(storeDir, CHUNK_DIR);
+		try {
+			mDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Split the passed stream into chunks and store any that are not already present.
+	 *
+	 * @param in	Stream to store. Not closed.
+	 *
+	 * @return	Hashes of the chunks making up the stream, in order
+	 *
+	 * @throws IOException
+	 */
+	public ArrayList<String> putStream(InputStream in) throws IOException {
+		if (mChunkBuffer == null)
+			mChunkBuffer = new byte[ContentChunker.MAX_CHUNK];
+
+		ArrayList<String> hashes = new ArrayList<String>();
+		ContentChunker chunker = new ContentChunker(in);
+		int len;
+		while ( (len = chunker.next(mChunkBuffer)) > 0) {
+			hashes.add(putChunk(mChunkBuffer, len));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Store a single chunk if it is not already present.
+	 *
+	 * @param data	Buffer
+	 * @param len	Length of chunk in buffer
+	 *
+	 * @return	Hash of chunk
+	 *
+	 * @throws IOException
+	 */
+	private String putChunk(byte[] data, int len) throws IOException {
+		mDigest.reset();
+		mDigest.update(data, 0, len);
+		final String hash = toHex(mDigest.digest());
+
+		final File f = getChunkFile(hash);
+		if (f.exists()) {
+			mChunksReused++;
+			return hash;
+		}
+
+		// Write to a temp file and rename so that a partly written chunk is never used
+		final File dir = f.getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir.getAbsolutePath());
+		final File temp = new File(dir, hash + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, 0, len);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(f)) {
+			temp.delete();
+			throw new IOException("Unable to save chunk " + hash);
+		}
+		mChunksWritten++;
+		mBytesWritten += len;
+		return hash;
+	}
+
+	/**
+	 * Check that all the passed chunks are present.
+	 *
+	 * @param hashes	Chunk hashes
+	 *
+	 * @return	true if all present
+	 */
+	public boolean hasChunks(List<String> hashes) {
+		for(String h: hashes) {
+			if (!getChunkFile(h).exists())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Open a stream that returns the passed chunks in order.
+	 *
+	 * @param hashes	Chunk hashes
+	 *
+	 * @return	Stream
+	 */
+	public InputStream openStream(List<String> hashes) {
+		return new ChunkInputStream(hashes);
+	}
+
+	/**
+	 * Get the file holding the passed chunk.
+	 */
+	private File getChunkFile(String hash) {
+		return new File(new File(mChunkDir, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Stats: number of chunks written
+	 */
+	public int getChunksWritten() {
+		return mChunksWritten;
+	}
+
+	/**
+	 * Stats: number of chunks that were already in the store
+	 */
+	public int getChunksReused() {
+		return mChunksReused;
+	}
+
+	/**
+	 * Stats: bytes written to new chunks
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * Convert bytes to lower case hex.
+	 */
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[i*2] = HEX[(bytes[i] >> 4) & 0x0F];
+			chars[i*2+1] = HEX[bytes[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Stream over a list of chunks, opening each chunk file only when it is reached.
+	 *
+	 * @author pjw
+	 */
+	private class ChunkInputStream extends InputStream {
+		private final List<String> mHashes;
+		private int mNext = 0;
+		private InputStream mCurrent = null;
+
+		ChunkInputStream(List<String> hashes) {
+			mHashes = hashes;
+		}
+
+		/**
+		 * Make sure mCurrent is open, moving to the next chunk if required.
+		 *
+		 * @return	false at end of stream
+		 */
+		private boolean openNext() throws IOException {
+			if (mCurrent != null)
+				mCurrent.close();
+			mCurrent = null;
+			if (mNext >= mHashes.size())
+				return false;
+			final String hash = mHashes.get(mNext++);
+			final File f = getChunkFile(hash);
+			if (!f.exists())
+				throw new IOException("Backup chunk " + hash + " is missing");
+			mCurrent = new FileInputStream(f);
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int cnt = read(b, 0, 1);
+			return cnt <= 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (true) {
+				if (mCurrent == null && !openNext())
+					return -1;
+				int cnt = mCurrent.read(b, off, len);
+				if (cnt > 0)
+					return cnt;
+				if (!openNext())
+					return -1;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mCurrent != null)
+				mCurrent.close();
+			mCurrent = null;
+			mNext = mHashes.size();
+		}
+	}
+}
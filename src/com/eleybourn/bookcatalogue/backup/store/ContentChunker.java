@@ -0,0 +1,118 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks.
+ *
+ * Chunk boundaries are chosen using a rolling 'gear' hash of the last 32 bytes, so an insertion
+ * or deletion only changes the chunks around it; the rest of the stream produces the same chunks
+ * as before and is stored only once. This matters for the books CSV, where editing one book
+ * would otherwise change every fixed-size block after it.
+ *
+ * @author pjw
+ */
+public class ContentChunker {
+	/** Smallest chunk, except at the end of the stream */
+	public static final int MIN_CHUNK = 2048;
+	/** Largest chunk */
+	public static final int MAX_CHUNK = 65536;
+	/** Boundary when the top 13 bits of the hash are zero; average chunk is about 8K above MIN_CHUNK */
+	private static final int BOUNDARY_MASK = 0xFFF80000;
+
+	/** Random value for each byte. Fixed seed: the table must never change or chunks will not match old backups */
+	private static final int[] GEAR = new int[256];
+	static {
+		Random r = new Random(0x426b43646cL);
+		for(int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextInt();
+	}
+
+	/** Stream being split */
+	private final InputStream mIn;
+	/** Read buffer */
+	private final byte[] mBuffer = new byte[MAX_CHUNK];
+	/** Position of next unread byte in buffer */
+	private int mPos = 0;
+	/** Number of valid bytes in buffer */
+	private int mLimit = 0;
+	/** Set when the stream is exhausted */
+	private boolean mEof = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in	Stream to split. Not closed by this object.
+	 */
+	public ContentChunker(InputStream in) {
+		mIn = in;
+	}
+
+	/**
+	 * Read the next chunk.
+	 *
+	 * @param chunk		Buffer of at least MAX_CHUNK bytes
+	 *
+	 * @return	Length of chunk, or 0 at end of stream
+	 *
+	 * @throws IOException
+	 */
+	public int next(byte[] chunk) throws IOException {
+		int len = 0;
+		int hash = 0;
+		while (len < MAX_CHUNK) {
+			if (mPos == mLimit) {
+				if (!fill())
+					break;
+			}
+			final byte b = mBuffer[mPos++];
+			chunk[len++] = b;
+			hash = (hash << 1) + GEAR[b & 0xFF];
+			if (len >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0)
+				break;
+		}
+		return len;
+	}
+
+	/**
+	 * Refill the read buffer.
+	 *
+	 * @return	false at end of stream
+	 *
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (mEof)
+			return false;
+		int cnt = mIn.read(mBuffer, 0, mBuffer.length);
+		if (cnt <= 0) {
+			mEof = true;
+			return false;
+		}
+		mPos = 0;
+		mLimit = cnt;
+		return true;
+	}
+}
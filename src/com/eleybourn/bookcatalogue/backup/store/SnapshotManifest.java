@@ -0,0 +1,239 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
+import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
+
+/**
+ * List of the entities in one snapshot of a backup store, and the chunks holding their data.
+ *
+ * Stored as UTF-8 text:
+ *
+ * 		BookCatalogue-Snapshot 1
+ * 		store <name of store directory>
+ * 		parent <file name of previous snapshot>			(optional)
+ * 		entry <type> <modified> <size> <name> <chunk> <chunk>...	(tab separated)
+ *
+ * @author pjw
+ */
+public class SnapshotManifest {
+	/** First line of every manifest; used to recognize them */
+	public static final String HEADER = "BookCatalogue-Snapshot";
+	/** Manifest format version */
+	private static final int VERSION = 1;
+
+	private static final String KEY_STORE = "store";
+	private static final String KEY_PARENT = "parent";
+	private static final String KEY_ENTRY = "entry";
+
+	/**
+	 * One entity in the snapshot
+	 *
+	 * @author pjw
+	 */
+	public static class Entry {
+		public final BackupEntityType type;
+		public final String name;
+		public final long modified;
+		public final long size;
+		public final ArrayList<String> chunks;
+
+		Entry(BackupEntityType type, String name, long modified, long size, ArrayList<String> chunks) {
+			this.type = type;
+			this.name = name;
+			this.modified = modified;
+			this.size = size;
+			this.chunks = chunks;
+		}
+	}
+
+	/** Name of the store directory */
+	private String mStoreName;
+	/** File name of the previous snapshot, or null */
+	private String mParent = null;
+	/** Entries in the order they were written */
+	private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+	/** Cover entries by name, built when first needed */
+	private HashMap<String, Entry> mCovers = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param storeName		Name of the store directory
+	 * @param parent		File name of the previous snapshot, or null
+	 */
+	public SnapshotManifest(String storeName, String parent) {
+		mStoreName = storeName;
+		mParent = parent;
+	}
+
+	public String getStoreName() {
+		return mStoreName;
+	}
+
+	public String getParent() {
+		return mParent;
+	}
+
+	public ArrayList<Entry> getEntries() {
+		return mEntries;
+	}
+
+	/**
+	 * Add an entry.
+	 */
+	public void add(BackupEntityType type, String name, long modified, long size, ArrayList<String> chunks) {
+		if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0)
+			throw new IllegalArgumentException("Invalid entry name '" + name + "'");
+		mEntries.add(new Entry(type, name, modified, size, chunks));
+		mCovers = null;
+	}
+
+	/**
+	 * Find a cover entry by name.
+	 *
+	 * @return	Entry, or null if not found
+	 */
+	public Entry findCover(String name) {
+		if (mCovers == null) {
+			mCovers = new HashMap<String, Entry>();
+			for(Entry e: mEntries) {
+				if (e.type == BackupEntityType.Cover)
+					mCovers.put(e.name, e);
+			}
+		}
+		return mCovers.get(name);
+	}
+
+	/**
+	 * Check if the passed file starts with a manifest header.
+	 */
+	public static boolean isManifest(File file) {
+		if (!file.isFile())
+			return false;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), TarBackupContainer.UTF8));
+			try {
+				String line = in.readLine();
+				return line != null && line.startsWith(HEADER + " ");
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read a manifest from a file.
+	 *
+	 * @param file	Manifest file
+	 *
+	 * @return	Manifest
+	 *
+	 * @throws IOException	if not a manifest, or unreadable
+	 */
+	public static SnapshotManifest read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), TarBackupContainer.UTF8), TarBackupContainer.BUFFER_SIZE);
+		try {
+			String line = in.readLine();
+			if (line == null || !line.startsWith(HEADER + " "))
+				throw new IOException("Not a backup snapshot");
+			final int version = Integer.parseInt(line.substring(HEADER.length() + 1).trim());
+			if (version > VERSION)
+				throw new IOException("Backup snapshot is from a newer version");
+
+			SnapshotManifest m = new SnapshotManifest(null, null);
+			while ( (line = in.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+				String[] fields = line.split("\t");
+				if (fields[0].equals(KEY_STORE)) {
+					m.mStoreName = fields[1];
+				} else if (fields[0].equals(KEY_PARENT)) {
+					m.mParent = fields[1];
+				} else if (fields[0].equals(KEY_ENTRY)) {
+					if (fields.length < 5)
+						throw new IOException("Invalid snapshot entry: " + line);
+					ArrayList<String> chunks = new ArrayList<String>(fields.length - 5);
+					chunks.addAll(Arrays.asList(fields).subList(5, fields.length));
+					m.add(BackupEntityType.valueOf(fields[1]), fields[4], Long.parseLong(fields[2]), Long.parseLong(fields[3]), chunks);
+				}
+				// Ignore unknown lines; later versions may add more
+			}
+			if (m.mStoreName == null)
+				throw new IOException("Backup snapshot does not name its store");
+			return m;
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException
+			throw new IOException("Invalid backup snapshot: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the manifest to a file.
+	 *
+	 * @param file	File to write
+	 *
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, TarBackupContainer.UTF8), TarBackupContainer.BUFFER_SIZE);
+		try {
+			out.write(HEADER + " " + VERSION + "\n");
+			out.write(KEY_STORE + "\t" + mStoreName + "\n");
+			if (mParent != null)
+				out.write(KEY_PARENT + "\t" + mParent + "\n");
+			for(Entry e: mEntries) {
+				out.write(KEY_ENTRY);
+				out.write("\t" + e.type.name());
+				out.write("\t" + e.modified);
+				out.write("\t" + e.size);
+				out.write("\t" + e.name);
+				for(String h: e.chunks) {
+					out.write("\t");
+					out.write(h);
+				}
+				out.write("\n");
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupReader;
+import com.eleybourn.bookcatalogue.backup.BackupWriter;
+import com.eleybourn.bookcatalogue.utils.Logger;
+
+/**
+ * Class to handle incremental backups kept in a content-addressed store.
+ *
+ * A store is a directory holding:
+ *
+ * - chunks/	the data of every entity ever backed up, split into chunks named by their hash
+ *   			(see ChunkStore). Unchanged covers and unchanged parts of the books export are
+ *   			stored only once, however many snapshots refer to them.
+ * - *.bcbk		one small manifest per snapshot (see SnapshotManifest), named by date so they
+ *   			sort in the order they were made. Each refers to the snapshot before it.
+ *
+ * The manifest is also written to the file the user asked for, so it shows up in the backup
+ * chooser like any other backup and can be restored from there. Any snapshot in the store can
+ * be restored by opening its manifest.
+ *
+ * @author pjw
+ */
+public class StoreBackupContainer implements BackupContainer {
+	/** Name of store directory, created next to the requested backup file */
+	public static final String STORE_DIR = "bookCatalogue.store";
+	/** Extension of snapshot manifests in the store */
+	public static final String SNAPSHOT_EXT = ".bcbk";
+
+	/** Manifest file to read or write */
+	private final File mFile;
+	/** Store directory; null until resolved when reading */
+	private File mStoreDir;
+
+	/**
+	 * Constructor for reading an existing snapshot.
+	 *
+	 * @param manifestFile	Snapshot manifest
+	 */
+	public StoreBackupContainer(File manifestFile) {
+		mFile = manifestFile;
+		mStoreDir = null;
+	}
+
+	/**
+	 * Constructor for writing a new snapshot.
+	 *
+	 * @param manifestFile	File to receive a copy of the new snapshot manifest
+	 * @param storeDir		Store directory
+	 */
+	public StoreBackupContainer(File manifestFile, File storeDir) {
+		mFile = manifestFile;
+		mStoreDir = storeDir;
+	}
+
+	/**
+	 * Get the default store directory for the passed backup file.
+	 */
+	public static File getDefaultStoreDir(File backupFile) {
+		return new File(backupFile.getAbsoluteFile().getParentFile(), STORE_DIR);
+	}
+
+	/**
+	 * Accessor
+	 */
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Get the store directory, reading the manifest if necessary.
+	 *
+	 * @throws IOException
+	 */
+	public File getStoreDir() throws IOException {
+		if (mStoreDir == null) {
+			SnapshotManifest m = SnapshotManifest.read(mFile);
+			mStoreDir = resolveStoreDir(mFile, m.getStoreName());
+		}
+		return mStoreDir;
+	}
+
+	/**
+	 * Find the store named in a manifest: the manifest is either a snapshot in the store
+	 * itself, or a copy next to the store.
+	 */
+	static File resolveStoreDir(File manifestFile, String storeName) {
+		final File dir = manifestFile.getAbsoluteFile().getParentFile();
+		if (dir.getName().equals(storeName))
+			return dir;
+		else
+			return new File(dir, storeName);
+	}
+
+	/**
+	 * Get the snapshots in a store, oldest first.
+	 *
+	 * @param storeDir	Store directory
+	 *
+	 * @return	Manifest files; empty if the store does not exist
+	 */
+	public static File[] getSnapshots(File storeDir) {
+		File[] files = storeDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SNAPSHOT_EXT);
+			}});
+		if (files == null)
+			return new File[0];
+		// Names are dates, so name order is date order
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Get a new, unused, snapshot file name in the passed store.
+	 */
+	static File newSnapshotFile(File storeDir) {
+		final String base = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+		File f = new File(storeDir, base + SNAPSHOT_EXT);
+		int i = 1;
+		while (f.exists()) {
+			f = new File(storeDir, base + "-" + i + SNAPSHOT_EXT);
+			i++;
+		}
+		return f;
+	}
+
+	@Override
+	public BackupReader newReader() throws IOException {
+		return new StoreBackupReader(this);
+	}
+
+	@Override
+	public BackupWriter newWriter() throws IOException {
+		return new StoreBackupWriter(this);
+	}
+
+	@Override
+	public int getVersion() {
+		return 1;
+	}
+
+	@Override
+	public boolean isValid() {
+		// The reader will do basic validation.
+		try {
+			BackupReader reader = new StoreBackupReader(this);
+			reader.close();
+		} catch (IOException e) {
+			Logger.logError(e);
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupInfo;
+import com.eleybourn.bookcatalogue.backup.BackupReaderAbstract;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
+
+/**
+ * Implementation of store-specific reader functions. Reassembles the entities of one snapshot
+ * from the chunk store.
+ *
+ * @author pjw
+ */
+public class StoreBackupReader extends BackupReaderAbstract {
+	/** Parent container */
+	private final StoreBackupContainer mContainer;
+	/** Snapshot being read */
+	private final SnapshotManifest mManifest;
+	/** Store holding the data */
+	private final ChunkStore mChunks;
+	/** Position of next entry in manifest */
+	private int mNext = 0;
+	/** Last entity returned, so its stream can be closed */
+	private StoreReaderEntity mCurrent = null;
+	/** The INFO data read from the start of the snapshot */
+	private BackupInfo mInfo;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param container		Parent 
+	 * 
+	 * @throws IOException
+	 */
+	public StoreBackupReader(StoreBackupContainer container) throws IOException {
+		mContainer = container;
+		mManifest = SnapshotManifest.read(container.getFile());
+
+		final File storeDir = container.getStoreDir();
+		if (!storeDir.isDirectory())
+			throw new IOException("Backup store " + storeDir.getAbsolutePath() + " not found");
+		mChunks = new ChunkStore(storeDir);
+
+		// Process the INFO entry. Should be first.
+		ReaderEntity info = nextEntity();
+		if (info == null || info.getType() != BackupEntityType.Info)
+			throw new IOException("Not a valid backup");
+		mInfo = new BackupInfo(info.getBundle());
+
+		// Skip any following INFOs, leaving mNext at the first real entity
+		while(mNext < mManifest.getEntries().size() && mManifest.getEntries().get(mNext).type == BackupEntityType.Info)
+			mNext++;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupContainer getContainer() {
+		return mContainer;
+	}
+
+	/**
+	 * Get the next entity.
+	 */
+	@Override
+	public ReaderEntity nextEntity() throws IOException {
+		closeCurrent();
+		if (mNext >= mManifest.getEntries().size())
+			return null;
+		mCurrent = new StoreReaderEntity(mChunks, mManifest.getEntries().get(mNext++));
+		return mCurrent;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupInfo getInfo() {
+		return mInfo;
+	}
+
+	/**
+	 * Close the stream of the last entity returned
+	 */
+	private void closeCurrent() throws IOException {
+		if (mCurrent != null)
+			mCurrent.close();
+		mCurrent = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		closeCurrent();
+	}
+}
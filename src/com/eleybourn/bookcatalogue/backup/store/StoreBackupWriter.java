@@ -0,0 +1,233 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.util.Date;
+
+import android.content.SharedPreferences;
+
+import com.eleybourn.bookcatalogue.backup.BackupContainer;
+import com.eleybourn.bookcatalogue.backup.BackupInfo;
+import com.eleybourn.bookcatalogue.backup.BackupUtils;
+import com.eleybourn.bookcatalogue.backup.BackupWriterAbstract;
+import com.eleybourn.bookcatalogue.backup.Exporter;
+import com.eleybourn.bookcatalogue.backup.ReaderEntity.BackupEntityType;
+import com.eleybourn.bookcatalogue.backup.tar.TarBackupContainer;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
+import com.eleybourn.bookcatalogue.database.SerializationUtils;
+import com.eleybourn.bookcatalogue.utils.Logger;
+
+/**
+ * Implementation of store-specific writer functions.
+ *
+ * Every snapshot is complete, but only data not already in the store is written. Covers whose
+ * name, size and date match the previous snapshot are not even read.
+ *
+ * @author pjw
+ */
+public class StoreBackupWriter extends BackupWriterAbstract {
+	private final StoreBackupContainer mContainer;
+	private final File mStoreDir;
+	private final ChunkStore mChunks;
+	/** Previous snapshot, or null */
+	private final SnapshotManifest mParent;
+	/** Snapshot being built */
+	private final SnapshotManifest mManifest;
+	private int mStyleCounter = 0;
+	private boolean mClosed = false;
+
+	/** Stats: covers taken from the previous snapshot without reading them */
+	private int mCoversReused = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param container		Parent
+	 * @throws IOException
+	 */
+	public StoreBackupWriter(StoreBackupContainer container) throws IOException {
+		mContainer = container;
+		mStoreDir = container.getStoreDir();
+		if (!mStoreDir.exists() && !mStoreDir.mkdirs())
+			throw new IOException("Unable to create backup store " + mStoreDir.getAbsolutePath());
+		mChunks = new ChunkStore(mStoreDir);
+
+		// Find the most recent snapshot; it is used to skip unchanged covers
+		SnapshotManifest parent = null;
+		String parentName = null;
+		File[] snapshots = StoreBackupContainer.getSnapshots(mStoreDir);
+		for(int i = snapshots.length - 1; i >= 0 && parent == null; i--) {
+			try {
+				parent = SnapshotManifest.read(snapshots[i]);
+				parentName = snapshots[i].getName();
+			} catch (IOException e) {
+				Logger.logError(e, "Unable to read backup snapshot " + snapshots[i].getName());
+			}
+		}
+		mParent = parent;
+		mManifest = new SnapshotManifest(mStoreDir.getName(), parentName);
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupContainer getContainer() {
+		return mContainer;
+	}
+
+	/**
+	 * Every snapshot contains everything; the store makes it cheap, and it means any
+	 * snapshot can be restored on its own. So the 'since' date is ignored.
+	 *
+	 * The snapshot is only added to the store if the backup completes.
+	 */
+	@Override
+	public void backup(BackupWriterListener listener, int backupFlags, Date since) throws IOException {
+		super.backup(listener, backupFlags & ~Exporter.EXPORT_SINCE, null);
+		if (!listener.isCancelled())
+			saveSnapshot();
+	}
+
+	/**
+	 * Save the books export file
+	 */
+	@Override
+	public void putBooks(File books) throws IOException {
+		FileInputStream in = new FileInputStream(books);
+		try {
+			putStream(BackupEntityType.Books, TarBackupContainer.BOOKS_FILE, books.lastModified(), books.length(), in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save a cover file, reusing the chunks from the previous snapshot if it is unchanged
+	 */
+	@Override
+	public void putCoverFile(File source) throws IOException {
+		final String name = source.getName();
+		final long modified = source.lastModified();
+		final long size = source.length();
+		if (mParent != null) {
+			SnapshotManifest.Entry prev = mParent.findCover(name);
+			// Chunks are never deleted, so the previous chunks are still present
+			if (prev != null && prev.modified == modified && prev.size == size) {
+				mManifest.add(BackupEntityType.Cover, name, modified, size, prev.chunks);
+				mCoversReused++;
+				return;
+			}
+		}
+		FileInputStream in = new FileInputStream(source);
+		try {
+			putStream(BackupEntityType.Cover, name, modified, size, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the INFO data
+	 */
+	@Override
+	public void putInfo(BackupInfo info) throws IOException {
+		ByteArrayOutputStream infoData = new ByteArrayOutputStream();
+		BufferedWriter infoOut = new BufferedWriter(new OutputStreamWriter(infoData, TarBackupContainer.UTF8), TarBackupContainer.BUFFER_SIZE);
+		BackupUtils.bundleToXml(infoOut, info.getBundle());
+		infoOut.close();
+		putBytes(BackupEntityType.Info, TarBackupContainer.INFO_FILE, infoData.toByteArray());
+	}
+
+	/**
+	 * Save a Booklist style. We save them with increasing suffix counters to ensure uniqueness
+	 */
+	@Override
+	public void putBooklistStyle(BooklistStyle style) throws IOException {
+		byte[] blob = SerializationUtils.serializeObject(style);
+		mStyleCounter++;
+		putBytes(BackupEntityType.BooklistStyle, TarBackupContainer.STYLE_PREFIX + mStyleCounter, blob);
+	}
+
+	/**
+	 * Save the preferences.
+	 */
+	@Override
+	public void putPreferences(SharedPreferences prefs) throws IOException {
+		ByteArrayOutputStream infoData = new ByteArrayOutputStream();
+		BufferedWriter infoOut = new BufferedWriter(new OutputStreamWriter(infoData, TarBackupContainer.UTF8), TarBackupContainer.BUFFER_SIZE);
+		BackupUtils.preferencesToXml(infoOut, prefs);
+		infoOut.close();
+		putBytes(BackupEntityType.Preferences, TarBackupContainer.PREFERENCES, infoData.toByteArray());
+	}
+
+	/**
+	 * Utility routine to save the passed bytes to an entry with the passed name
+	 */
+	private void putBytes(BackupEntityType type, String name, byte[] bytes) throws IOException {
+		InputStream in = new ByteArrayInputStream(bytes);
+		putStream(type, name, System.currentTimeMillis(), bytes.length, in);
+	}
+
+	/**
+	 * Utility routine to store a stream and add it to the manifest
+	 */
+	private void putStream(BackupEntityType type, String name, long modified, long size, InputStream in) throws IOException {
+		mManifest.add(type, name, modified, size, mChunks.putStream(in));
+	}
+
+	/**
+	 * Add the finished snapshot to the store. Written to a temp file first so that an
+	 * incomplete snapshot is never seen.
+	 */
+	private void saveSnapshot() throws IOException {
+		final File snapshot = StoreBackupContainer.newSnapshotFile(mStoreDir);
+		final File temp = new File(mStoreDir, snapshot.getName() + ".tmp");
+		mManifest.write(temp);
+		if (!temp.renameTo(snapshot)) {
+			temp.delete();
+			throw new IOException("Unable to save backup snapshot " + snapshot.getName());
+		}
+		System.out.println("Saved snapshot " + snapshot.getName() + ": " + mManifest.getEntries().size() + " entries, "
+				+ mCoversReused + " unchanged covers, " + mChunks.getChunksWritten() + " new chunks (" + mChunks.getBytesWritten() + " bytes), "
+				+ mChunks.getChunksReused() + " existing chunks");
+	}
+
+	/**
+	 * Cleanup; writes the manifest to the requested file
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (mClosed)
+			return;
+		mClosed = true;
+		mManifest.write(mContainer.getFile());
+	}
+}
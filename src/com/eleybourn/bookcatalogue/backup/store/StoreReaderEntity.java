@@ -0,0 +1,94 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import com.eleybourn.bookcatalogue.backup.ReaderEntityAbstract;
+
+/**
+ * Implementation of store-specific ReaderEntity functions. The data is read from the chunks
+ * listed in the snapshot manifest.
+ *
+ * @author pjw
+ */
+public class StoreReaderEntity extends ReaderEntityAbstract {
+	private final ChunkStore mChunks;
+	private final SnapshotManifest.Entry mEntry;
+	/** Stream over the chunks; opened when first needed and reused, like a tar entry stream */
+	private InputStream mStream = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param chunks	Store holding the data
+	 * @param entry		Corresponding manifest entry
+	 */
+	protected StoreReaderEntity(ChunkStore chunks, SnapshotManifest.Entry entry) {
+		mChunks = chunks;
+		mEntry = entry;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public BackupEntityType getType() {
+		return mEntry.type;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public InputStream getStream() throws IOException {
+		if (mStream == null)
+			mStream = mChunks.openStream(mEntry.chunks);
+		return mStream;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public String getName() {
+		return mEntry.name;
+	}
+
+	/**
+	 * Accessor
+	 */
+	@Override
+	public Date getDateModified() {
+		return new Date(mEntry.modified);
+	}
+
+	/**
+	 * Close the stream, if open
+	 */
+	void close() throws IOException {
+		if (mStream != null)
+			mStream.close();
+		mStream = null;
+	}
+}
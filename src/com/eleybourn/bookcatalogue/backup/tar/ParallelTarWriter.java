@@ -0,0 +1,382 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.backup.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+/**
+ * Writes a TAR archive, optionally gzip-compressed, preparing file entries on a pool of
+ * worker threads.
+ * 
+ * Each entry (header, data and padding) is built as a separate block of bytes and, when
+ * compressing, deflated as a separate gzip member. A gzip file may consist of several members
+ * that decompress to the concatenation of their contents, so the result is an ordinary .tar.gz
+ * that can be read with GzipCompressorInputStream(in, true).
+ * 
+ * Because entries are independent, file entries are read and compressed on worker threads.
+ * The thread calling this object is the only one that writes to the output; it appends the
+ * prepared entries in the order they were added, waiting for a worker only when too many
+ * entries are pending.
+ * 
+ * @author pjw
+ */
+public class ParallelTarWriter {
+	/** Size of TAR blocks */
+	private static final int BLOCK_SIZE = 512;
+	/** Size of TAR records; the archive is padded to a multiple of this, as TarArchiveOutputStream does */
+	private static final int RECORD_SIZE = 10240;
+	/** Maximum number of worker threads */
+	private static final int MAX_THREADS = 4;
+	/** Number of pending entries per worker before the caller waits */
+	private static final int PENDING_PER_THREAD = 4;
+
+	/** Destination */
+	private final OutputStream mOutput;
+	/** Indicates gzip members are written */
+	private final boolean mCompress;
+	/** Workers */
+	private final ExecutorService mWorkers;
+	/** Maximum number of entries waiting to be written */
+	private final int mMaxPending;
+	/** Entries being prepared, in archive order */
+	private final LinkedList<Future<PreparedEntry>> mPending = new LinkedList<Future<PreparedEntry>>();
+	/** Number of uncompressed TAR bytes written */
+	private long mTarBytes = 0;
+	/** Number of bytes written to the output */
+	private long mOutputBytes = 0;
+	/** Buffer for streaming entries */
+	private final byte[] mBuffer = new byte[TarBackupContainer.BUFFER_SIZE];
+
+	/**
+	 * Constructor
+	 * 
+	 * @param output		Destination; closed by close()
+	 * @param compress		true to write a gzip-compressed archive
+	 */
+	public ParallelTarWriter(OutputStream output, boolean compress) {
+		mOutput = output;
+		mCompress = compress;
+		final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+		mMaxPending = threads * PENDING_PER_THREAD;
+		mWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int mCount = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "backup-writer-" + (++mCount));
+				t.setDaemon(true);
+				return t;
+			}});
+	}
+
+	/**
+	 * Add an entry containing the passed bytes.
+	 * 
+	 * @param name		Entry name
+	 * @param modTime	Modification time, or 0 for now
+	 * @param data		Data
+	 */
+	public void putBytes(final String name, final long modTime, final byte[] data) throws IOException {
+		// Small entries are not worth passing to a worker
+		writeCompleted();
+		writeBlock(makeEntry(name, modTime, data, data.length), Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Add an entry containing a copy of the passed file. The file is read and compressed
+	 * by a worker thread.
+	 * 
+	 * @param name		Entry name
+	 * @param source	File to copy
+	 */
+	public void putFile(final String name, final File source) throws IOException {
+		Future<PreparedEntry> f = mWorkers.submit(new Callable<PreparedEntry>() {
+			@Override
+			public PreparedEntry call() throws Exception {
+				final byte[] data = readFile(source);
+				final byte[] entry = makeEntry(name, source.lastModified(), data, data.length);
+				// Covers are already compressed, so it is not worth trying hard
+				return new PreparedEntry(mCompress ? deflate(entry, Deflater.BEST_SPEED) : entry, entry.length);
+			}});
+		mPending.add(f);
+		// Keep the amount of memory used by pending entries bounded
+		while (mPending.size() > mMaxPending)
+			writeNext();
+	}
+
+	/**
+	 * Add an entry by copying the passed stream on the calling thread. Used for large
+	 * entries that should not be held in memory.
+	 * 
+	 * @param name		Entry name
+	 * @param modTime	Modification time, or 0 for now
+	 * @param size		Exact number of bytes in the stream
+	 * @param in		Stream to copy; closed by this method
+	 */
+	public void putStream(String name, long modTime, long size, InputStream in) throws IOException {
+		writeCompleted();
+		try {
+			OutputStream out;
+			CountingOutputStream counter = new CountingOutputStream(mOutput);
+			GZIPOutputStream gz = null;
+			if (mCompress) {
+				gz = new GZIPOutputStream(counter, TarBackupContainer.BUFFER_SIZE);
+				out = gz;
+			} else {
+				out = counter;
+			}
+
+			out.write(makeHeader(name, modTime, size));
+			long remaining = size;
+			while (remaining > 0) {
+				int cnt = in.read(mBuffer, 0, (int)Math.min(mBuffer.length, remaining));
+				if (cnt <= 0)
+					throw new IOException("Stream for '" + name + "' ended early");
+				out.write(mBuffer, 0, cnt);
+				remaining -= cnt;
+			}
+			out.write(new byte[getPadding(size)]);
+			if (gz != null)
+				gz.finish();
+
+			mTarBytes += BLOCK_SIZE + size + getPadding(size);
+			mOutputBytes += counter.getCount();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the number of bytes written to the output so far.
+	 */
+	public long getOutputBytes() {
+		return mOutputBytes;
+	}
+
+	/**
+	 * Get the uncompressed size of the archive written so far.
+	 */
+	public long getArchiveBytes() {
+		return mTarBytes;
+	}
+
+	/**
+	 * Write all pending entries and the end of archive marker, then close the output.
+	 */
+	public void close() throws IOException {
+		try {
+			writeCompleted();
+			// Two empty blocks mark the end, then pad to a whole record
+			long end = mTarBytes + 2 * BLOCK_SIZE;
+			end = ((end + RECORD_SIZE - 1) / RECORD_SIZE) * RECORD_SIZE;
+			writeBlock(new byte[(int)(end - mTarBytes)], Deflater.DEFAULT_COMPRESSION);
+			mTarBytes = end;
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Close the output without writing pending entries; the archive will be incomplete.
+	 */
+	public void abort() throws IOException {
+		shutdown();
+	}
+
+	/**
+	 * Stop the workers and close the output.
+	 */
+	private void shutdown() throws IOException {
+		mWorkers.shutdownNow();
+		mPending.clear();
+		mOutput.close();
+	}
+
+	/**
+	 * Write all pending entries.
+	 */
+	private void writeCompleted() throws IOException {
+		while (mPending.size() > 0)
+			writeNext();
+	}
+
+	/**
+	 * Wait for the oldest pending entry and write it.
+	 */
+	private void writeNext() throws IOException {
+		Future<PreparedEntry> f = mPending.removeFirst();
+		PreparedEntry entry;
+		try {
+			entry = f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing backup");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else
+				throw new RuntimeException("Failed to prepare backup entry", cause);
+		}
+		mOutput.write(entry.bytes);
+		mOutputBytes += entry.bytes.length;
+		mTarBytes += entry.tarLength;
+	}
+
+	/**
+	 * Write a block of uncompressed TAR data, compressing it if necessary.
+	 */
+	private void writeBlock(byte[] tarBytes, int level) throws IOException {
+		final byte[] bytes = mCompress ? deflate(tarBytes, level) : tarBytes;
+		mOutput.write(bytes);
+		mOutputBytes += bytes.length;
+		mTarBytes += tarBytes.length;
+	}
+
+	/**
+	 * Build the complete TAR representation of an entry: header, data and padding.
+	 */
+	private static byte[] makeEntry(String name, long modTime, byte[] data, int length) {
+		final int padding = getPadding(length);
+		byte[] entry = new byte[BLOCK_SIZE + length + padding];
+		System.arraycopy(makeHeader(name, modTime, length), 0, entry, 0, BLOCK_SIZE);
+		System.arraycopy(data, 0, entry, BLOCK_SIZE, length);
+		return entry;
+	}
+
+	/**
+	 * Build a TAR header block.
+	 */
+	private static byte[] makeHeader(String name, long modTime, long size) {
+		TarArchiveEntry e = new TarArchiveEntry(name);
+		if (modTime != 0)
+			e.setModTime(modTime);
+		e.setSize(size);
+		byte[] header = new byte[BLOCK_SIZE];
+		e.writeEntryHeader(header);
+		return header;
+	}
+
+	/**
+	 * Get the number of bytes needed to pad data to a whole number of blocks.
+	 */
+	private static int getPadding(long size) {
+		final int rem = (int)(size % BLOCK_SIZE);
+		return rem == 0 ? 0 : BLOCK_SIZE - rem;
+	}
+
+	/**
+	 * Compress the passed bytes into a single gzip member.
+	 */
+	private static byte[] deflate(byte[] data, final int level) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+		GZIPOutputStream gz = new GZIPOutputStream(bytes, TarBackupContainer.BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+		gz.write(data);
+		gz.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read an entire file.
+	 */
+	private static byte[] readFile(File source) throws IOException {
+		final long length = source.length();
+		byte[] data = new byte[(int)length];
+		FileInputStream in = new FileInputStream(source);
+		try {
+			int pos = 0;
+			while (pos < data.length) {
+				int cnt = in.read(data, pos, data.length - pos);
+				if (cnt <= 0)
+					throw new IOException("File '" + source + "' changed while being read");
+				pos += cnt;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Entry prepared by a worker
+	 * 
+	 * @author pjw
+	 */
+	private static class PreparedEntry {
+		/** Bytes to write; compressed if necessary */
+		final byte[] bytes;
+		/** Uncompressed TAR size of entry */
+		final int tarLength;
+
+		PreparedEntry(byte[] bytes, int tarLength) {
+			this.bytes = bytes;
+			this.tarLength = tarLength;
+		}
+	}
+
+	/**
+	 * Stream that counts the bytes written to another stream without closing it.
+	 * 
+	 * @author pjw
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream mOut;
+		private long mCount = 0;
+
+		CountingOutputStream(OutputStream out) {
+			mOut = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			mOut.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mOut.write(b, off, len);
+			mCount += len;
+		}
+
+		long getCount() {
+			return mCount;
+		}
+	}
+}
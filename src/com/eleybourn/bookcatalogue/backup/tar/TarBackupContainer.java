@@ -62,6 +62,8 @@ public class TarBackupContainer implements BackupContainer {
 
 	/** Backup file spec */
 	public File mFile;
+	/** Write archive entries gzip compressed */
+	private final boolean mCompressed;
 	/** UNICODE stream type for read/write text files */
 	public static String UTF8 = "utf8";
 	/** Buffer size for buffered streams */
@@ -73,7 +75,18 @@ public class TarBackupContainer implements BackupContainer {
 	 * @param file
 	 */
 	public TarBackupContainer(File file) {
+		this(file, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 * @param compressed	When writing, compress the archive. Readers detect compression themselves.
+	 */
+	public TarBackupContainer(File file, boolean compressed) {
 		mFile = file;
+		mCompressed = compressed;
 	}
 
 	/**
@@ -85,6 +98,15 @@ public class TarBackupContainer implements BackupContainer {
 		return mFile;
 	}
 
+	/**
+	 * Accessor
+	 * 
+	 * @return
+	 */
+	public boolean isCompressed() {
+		return mCompressed;
+	}
+
 	@Override
 	public BackupReader newReader() throws IOException {
 		return new TarBackupReader(this);
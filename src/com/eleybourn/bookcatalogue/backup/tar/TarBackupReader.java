@@ -19,11 +19,14 @@
  */
 package com.eleybourn.bookcatalogue.backup.tar;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 
 import com.eleybourn.bookcatalogue.backup.BackupContainer;
 import com.eleybourn.bookcatalogue.backup.BackupInfo;
@@ -57,7 +60,14 @@ public class TarBackupReader extends BackupReaderAbstract {
 		mContainer = container;
 
 		// Open the file and create the archive stream
-		FileInputStream in = new FileInputStream(container.getFile());
+		InputStream in = new BufferedInputStream(new FileInputStream(container.getFile()), TarBackupContainer.BUFFER_SIZE);
+		// Compressed archives are written as one gzip member per entry; check the signature
+		byte[] signature = new byte[2];
+		in.mark(signature.length);
+		int sigLength = in.read(signature);
+		in.reset();
+		if (sigLength == signature.length && GzipCompressorInputStream.matches(signature, signature.length))
+			in = new GzipCompressorInputStream(in, true);
 		mInput = new TarArchiveInputStream(in);
 
 		// Process the INFO entry. Should be first.
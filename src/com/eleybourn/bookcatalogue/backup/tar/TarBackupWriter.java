@@ -20,18 +20,13 @@
 package com.eleybourn.bookcatalogue.backup.tar;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-
 import android.content.SharedPreferences;
 
 import com.eleybourn.bookcatalogue.backup.BackupContainer;
@@ -42,13 +37,16 @@ import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
 import com.eleybourn.bookcatalogue.database.SerializationUtils;
 
 /**
- * Implementation of TAR-specific writer functions
+ * Implementation of TAR-specific writer functions.
+ * 
+ * Entries are written by a ParallelTarWriter, so cover files are read (and compressed, if the
+ * container is compressed) in background threads while earlier entries are being written.
  * 
  * @author pjw
  */
 public class TarBackupWriter extends BackupWriterAbstract {
 	private final TarBackupContainer mContainer;
-	private TarArchiveOutputStream mOutput;
+	private ParallelTarWriter mOutput;
 	private int mStyleCounter = 0;
 
 	/**
@@ -61,7 +59,7 @@ public class TarBackupWriter extends BackupWriterAbstract {
 		mContainer = container;
 		// Open the archive for writing
 		FileOutputStream out = new FileOutputStream(container.getFile());
-		mOutput = new TarArchiveOutputStream(out);
+		mOutput = new ParallelTarWriter(out, container.isCompressed());
 	}
 
 	/** 
@@ -78,12 +76,12 @@ public class TarBackupWriter extends BackupWriterAbstract {
 	 */
 	@Override
 	public void putBooks(File books) throws IOException {
-		TarArchiveEntry entry = new TarArchiveEntry(new File(TarBackupContainer.BOOKS_FILE));
-		entry.setModTime(books.lastModified());
-		entry.setSize(books.length());
-		mOutput.putArchiveEntry(entry);
 		FileInputStream in = new FileInputStream(books);
-		streamToArchive(in);
+		try {
+			mOutput.putStream(TarBackupContainer.BOOKS_FILE, books.lastModified(), books.length(), in);
+		} finally {
+			in.close();
+		}
 	}
 
 	/**
@@ -91,12 +89,7 @@ public class TarBackupWriter extends BackupWriterAbstract {
 	 */
 	@Override
 	public void putCoverFile(File source) throws IOException {
-		TarArchiveEntry entry = new TarArchiveEntry(source.getName());
-		entry.setModTime(source.lastModified());
-		entry.setSize(source.length());
-		mOutput.putArchiveEntry(entry);
-		FileInputStream in = new FileInputStream(source);
-		streamToArchive(in);
+		mOutput.putFile(source.getName(), source);
 	}
 
 	/**
@@ -138,35 +131,6 @@ public class TarBackupWriter extends BackupWriterAbstract {
 		bytesToArchive(TarBackupContainer.PREFERENCES, infoData.toByteArray());
 	}
 
-	/**
-	 * Utility routine to send the contents of a stream to the current archive entry
-	 * 
-	 * @param in			Stream to be saved
-	 * 
-	 * @throws IOException
-	 */
-	private void streamToArchive(InputStream in) throws IOException {
-		try {
-			byte[] buffer = new byte[TarBackupContainer.BUFFER_SIZE];
-			while (true) {
-				int cnt = in.read(buffer);
-				if (cnt <= 0)
-					break;
-				mOutput.write(buffer, 0, cnt);
-			}			
-		} finally {
-			try {
-				in.close();
-			} finally {
-			}
-			try {
-				mOutput.closeArchiveEntry();		
-			} finally {
-			}
-		}
-		
-	}
-
 	/**
 	 * Utility routine to save the passed bytes to an entry with the passed name
 	 * 
@@ -176,11 +140,7 @@ public class TarBackupWriter extends BackupWriterAbstract {
 	 * @throws IOException
 	 */
 	private void bytesToArchive(String name, byte[] bytes) throws IOException {
-		TarArchiveEntry entry = new TarArchiveEntry(name);
-		entry.setSize(bytes.length);
-		mOutput.putArchiveEntry(entry);
-		InputStream in = new ByteArrayInputStream(bytes);
-		streamToArchive(in);
+		mOutput.putBytes(name, 0, bytes);
 	}
 
 	/**
@@ -190,5 +150,6 @@ public class TarBackupWriter extends BackupWriterAbstract {
 	public void close() throws IOException {
 		super.close();
 		mOutput.close();
+		System.out.println("Backup archive written: " + mOutput.getArchiveBytes() + " bytes as " + mOutput.getOutputBytes() + " bytes");
 	}
 }
@@ -100,7 +100,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQuery;
 import android.os.Build;
 
@@ -121,6 +120,9 @@ import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition.TableTypes;
 import com.eleybourn.bookcatalogue.database.SqlStatementManager;
 import com.eleybourn.bookcatalogue.debug.Tracker;
 import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
 
 
 /**
@@ -165,6 +167,12 @@ public class BooklistBuilder {
 	private TableDefinition mListTable;
 	/** Local copy of the navigation table definition, renamed to match this instance */
 	private TableDefinition mNavTable;
+	/** In-memory copy of the navigation table state; null until needed */
+	private BooklistNavIndex mNavIndex = null;
+	/** Expand/collapse changes made in mNavIndex that have not been written to the navigation table */
+	private final ArrayList<NodeStateChange> mPendingNodeChanges = new ArrayList<NodeStateChange>();
+	/** Queue used to write expand/collapse changes in the background */
+	private SimpleTaskQueue mNodeStateQueue = null;
 
 	/** Object used in constructing the output table */
 	private SummaryBuilder mSummary = null;
@@ -174,6 +182,23 @@ public class BooklistBuilder {
 	/** Collection of statements used to build remaining data */
 	private ArrayList<SynchronizedStatement> mLevelBuildStmts = null;
 
+	/** Sequence number (from BooklistChanges) of the last change included in the list */
+	private long mChangeSequence = 0;
+	/** Indicates the list can be updated by reprocessing only the changed books */
+	private boolean mCanUpdate = false;
+	/** SQL components used to build the list; used to get rows for changed books */
+	private SqlComponents mSqlComponents = null;
+	/** Column list used to order the rows of the list */
+	private String mSortColumnList = null;
+	/** Indicates the list was built using nested triggers on the list table */
+	private boolean mUsedNestedTriggers = false;
+	/** Expand/collapse preference the list was built with; used for new header rows added by update() */
+	private int mPreferredState = BooklistPreferencesActivity.BOOKLISTS_STATE_PRESERVED;
+	/** Largest number of changed books that will be applied to an existing list; beyond this a rebuild is faster */
+	private static final int MAX_UPDATE_BOOKS = 50;
+	/** Saved copies of previously built lists */
+	private final BooklistCache mCache;
+
 	/** Debug counter */
 	private static Integer mInstanceCount = 0;
 
@@ -196,6 +221,7 @@ public class BooklistBuilder {
 		// Get the database and create a statements collection
 		mDb = adapter.getDb();
 		mStatements = new SqlStatementManager(mDb);
+		mCache = new BooklistCache(mDb, mStatements);
 		// Save the requested style
 		mStyle = style;
 
@@ -508,6 +534,10 @@ public class BooklistBuilder {
 	 * Drop and recreate all the data based on previous criteria
 	 */
 	public void rebuild() {
+		// Node settings are used to restore the expanded state
+		flushNodeState();
+		mChangeSequence = BooklistChanges.getSequence();
+
 		mSummary.recreateTable();
 
 		mNavTable.drop(mDb);
@@ -518,6 +548,218 @@ public class BooklistBuilder {
 		// Rebuild all the rest
 		for(SynchronizedStatement s : mLevelBuildStmts)
 			s.execute();
+
+		invalidateNavIndex();
+	}
+
+	/**
+	 * Bring the list up to date with any books changed since it was built. If only a few books
+	 * have changed, just the rows for those books are replaced, otherwise the list is rebuilt.
+	 */
+	public void update() {
+		HashSet<Long> books = null;
+		if (mCanUpdate)
+			books = BooklistChanges.getChangedBooks(mChangeSequence);
+
+		if (books == null || books.size() > MAX_UPDATE_BOOKS) {
+			System.out.println("Booklist update: rebuilding");
+			rebuild();
+		} else if (books.size() > 0) {
+			updateBooks(books);
+		}
+	}
+
+	/**
+	 * Replace the rows for the passed books in the existing list, adding header rows that are now
+	 * needed and removing header rows that no longer have any books under them, then rebuild the
+	 * navigator table to match.
+	 *
+	 * @param books		IDs of changed books
+	 */
+	private void updateBooks(HashSet<Long> books) {
+		long t0 = System.currentTimeMillis();
+		// The navigator state is preserved from the table
+		flushNodeState();
+		mChangeSequence = BooklistChanges.getSequence();
+
+		// Build the list for 'In (...)' clauses
+		StringBuilder ids = new StringBuilder();
+		for(Long id: books) {
+			if (ids.length() > 0)
+				ids.append(",");
+			ids.append(id);
+		}
+		final String bookIds = ids.toString();
+
+		// Tables to hold the new and old rows for the changed books
+		final TableDefinition newRows = mListTable.clone();
+		newRows.setName(mListTable + "_new");
+		final TableDefinition oldRows = mListTable.clone();
+		oldRows.setName(mListTable + "_old");
+		// Table to save the state of the navigator rows
+		final String navSave = mNavTable + "_old";
+
+		SyncLock txLock = mDb.beginTransaction(true);
+		try {
+			newRows.drop(mDb);
+			newRows.create(mDb, false);
+			oldRows.drop(mDb);
+			oldRows.create(mDb, false);
+
+			// Get the new rows for the changed books. Deleted books, or books that no longer match the
+			// criteria, will not have any rows.
+			String where;
+			if (mSqlComponents.where.equals("")) {
+				where = " where ";
+			} else {
+				where = mSqlComponents.where + " and ";
+			}
+			where += TBL_BOOKS.dot(DOM_ID) + " In (" + bookIds + ")";
+			mDb.execSQL("Insert Into " + newRows + "(" + mSqlComponents.destinationColumns + ") " + mSqlComponents.select + "\n From\n" + mSqlComponents.join + where);
+
+			// Save then remove the old rows
+			mDb.execSQL("Insert Into " + oldRows + " Select * From " + mListTable + " Where " + DOM_BOOK + " In (" + bookIds + ")");
+			mDb.execSQL("Delete From " + mListTable + " Where " + DOM_BOOK + " In (" + bookIds + ")");
+
+			// The nested triggers assume rows are inserted in sorted order, which is not the case
+			// here. We add any missing headers ourselves.
+			if (mUsedNestedTriggers) {
+				for (int i = 0; i < mStyle.size(); i++)
+					mDb.execSQL("Drop Trigger if exists header_A_tgL" + i);
+				mDb.execSQL("Drop Trigger if exists " + mListTable + "_TG_ZZZ");
+			}
+
+			// Loop from outermost group to innermost, adding any missing headers
+			for (int i = 0; i < mStyle.size(); i++) {
+				final BooklistGroup g = mStyle.getGroupAt(i);
+				final int levelId = i + 1;
+				// cols is the list of column names for the 'Insert' and 'Select' parts
+				String cols = "";
+				// collatedCols is used for the group-by
+				String collatedCols = "";
+				for(DomainDefinition d  : getHeaderDomains(i)) {
+					cols += ",\n	" + d.name;
+					collatedCols += "\n	" + d.name + CatalogueDBAdapter.COLLATION + ",";
+				}
+				String sql = "Insert Into " + mListTable + "(\n	" + DOM_LEVEL + ",\n	" + DOM_KIND +
+						cols + "," + DOM_ROOT_KEY +
+						")" +
+						"\n select " + levelId + " as " + DOM_LEVEL + ",\n	" + g.kind + " as " + DOM_KIND +
+						cols + "," + DOM_ROOT_KEY +
+						"\n from " + newRows + " n" +
+						"\n where not Exists(Select 1 From " + mListTable + " l Where l." + DOM_LEVEL + " = " + levelId +
+						"\n		and " + getGroupMatch(i, "l", "n") + ")" +
+						"\n Group by " + collatedCols + DOM_ROOT_KEY + CatalogueDBAdapter.COLLATION;
+				mDb.execSQL(sql);
+			}
+
+			// Add the book rows
+			mDb.execSQL("Insert Into " + mListTable + "(" + mSqlComponents.destinationColumns + ") Select " + mSqlComponents.destinationColumns + " From " + newRows);
+
+			// Loop from innermost group to outermost, removing headers that were used by the old rows and
+			// that no longer have any rows under them.
+			for (int i = mStyle.size()-1; i >= 0; i--) {
+				final int levelId = i + 1;
+				String sql = "Delete From " + mListTable + " Where " + DOM_LEVEL + " = " + levelId +
+						"\n	and Exists(Select 1 From " + oldRows + " o Where " + getGroupMatch(i, "o", mListTable.getName()) + ")" +
+						"\n	and not Exists(Select 1 From " + mListTable + " c Where c." + DOM_LEVEL + " = " + (levelId+1) +
+						"\n		and " + getGroupMatch(i, "c", mListTable.getName()) + ")";
+				mDb.execSQL(sql);
+			}
+
+			// Row positions have changed, so rebuild the navigator, keeping the state of existing rows.
+			TableDefinition.drop(mDb, navSave);
+			mDb.execSQL("Create Temp Table " + navSave + " as Select " + DOM_REAL_ROW_ID + ", " + DOM_VISIBLE + ", " + DOM_EXPANDED + " From " + mNavTable);
+			mNavTable.drop(mDb);
+			mNavTable.create(mDb, true);
+			// New rows (including the rows for changed books, which have new IDs) have no saved state;
+			// they are left null and set below.
+			String navSql = mNavTable.getInsert(DOM_REAL_ROW_ID, DOM_LEVEL, DOM_ROOT_KEY, DOM_VISIBLE, DOM_EXPANDED) +
+					" Select " + mListTable.dot(DOM_ID) + "," + mListTable.dot(DOM_LEVEL) + "," + mListTable.dot(DOM_ROOT_KEY) +
+					" ,\n	o." + DOM_VISIBLE + ", o." + DOM_EXPANDED + "\n" +
+					" From " + mListTable.ref() + "\n	left outer join " + navSave + " o" +
+					"\n		On o." + DOM_REAL_ROW_ID + " = " + mListTable.dot(DOM_ID) +
+					"\n	Order by " + mSortColumnList;
+			mDb.execSQL(navSql);
+
+			// New top level headers are visible, and expanded according to the style preference
+			// (or the saved node settings, as for rebuild()).
+			String topExpanded;
+			if (mPreferredState == BooklistPreferencesActivity.BOOKLISTS_ALWAYS_EXPANDED) {
+				topExpanded = "1";
+			} else if (mPreferredState == BooklistPreferencesActivity.BOOKLISTS_ALWAYS_COLLAPSED) {
+				topExpanded = "0";
+			} else {
+				topExpanded = "Exists(Select 1 From " + TBL_BOOK_LIST_NODE_SETTINGS + " s Where s." + DOM_ROOT_KEY + " = " + mNavTable.getName() + "." + DOM_ROOT_KEY +
+						" And s." + DOM_KIND + " = " + mStyle.getGroupAt(0).kind + ")";
+			}
+			mDb.execSQL("Update " + mNavTable.getName() + " Set " + DOM_VISIBLE + " = 1, " + DOM_EXPANDED + " = " + topExpanded +
+					" Where " + DOM_LEVEL + " = 1 And " + DOM_VISIBLE + " is null");
+
+			// Other new rows are visible if their parent is visible and expanded, and are expanded if their
+			// parent is. The parent is the nearest row before them on the level above. Outer levels are done
+			// first, so the parent is always set.
+			for (int level = 2; level <= mStyle.size() + 1; level++) {
+				final String parent = " From " + mNavTable.getName() + " p Where p." + DOM_LEVEL + " = " + (level - 1) +
+						" And p." + DOM_ID + " < " + mNavTable.getName() + "." + DOM_ID + " Order by p." + DOM_ID + " desc Limit 1)";
+				mDb.execSQL("Update " + mNavTable.getName() + " Set " + 
+						DOM_VISIBLE + " = Coalesce((Select p." + DOM_VISIBLE + " And p." + DOM_EXPANDED + parent + ", 0), " +
+						DOM_EXPANDED + " = Coalesce((Select p." + DOM_EXPANDED + parent + ", 0)" +
+						" Where " + DOM_LEVEL + " = " + level + " And " + DOM_VISIBLE + " is null");
+			}
+			mStatements.get("navIx1").execute();
+			mStatements.get("navIx2").execute();
+
+			TableDefinition.drop(mDb, navSave);
+			newRows.drop(mDb);
+			oldRows.drop(mDb);
+
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction(txLock);
+			newRows.close();
+			oldRows.close();
+		}
+		invalidateNavIndex();
+		System.out.println("Booklist update of " + books.size() + " books: " + (System.currentTimeMillis() - t0) + "ms");
+	}
+
+	/**
+	 * Get the domains that identify a header row at the passed level: the group domains of that
+	 * group and of all the groups above it. Without the ancestor domains, an inner header (eg.
+	 * a series) would match the header for the same value under a different parent.
+	 *
+	 * @param level	Index of the group in the style
+	 *
+	 * @return	List of distinct domains, outermost group first
+	 */
+	private ArrayList<DomainDefinition> getHeaderDomains(int level) {
+		ArrayList<DomainDefinition> domains = new ArrayList<DomainDefinition>();
+		for(int i = 0; i <= level; i++) {
+			for(DomainDefinition d : mStyle.getGroupAt(i).groupDomains) {
+				if (!domains.contains(d))
+					domains.add(d);
+			}
+		}
+		return domains;
+	}
+
+	/**
+	 * Get the SQL condition that matches the header row for the group at the passed level
+	 * between two tables, scoped by the domains of all the groups above it.
+	 *
+	 * @param level	Index of the group in the style
+	 * @param a		Name or alias of first table
+	 * @param b		Name or alias of second table
+	 *
+	 * @return	SQL fragment
+	 */
+	private String getGroupMatch(int level, String a, String b) {
+		String sql = a + "." + DOM_ROOT_KEY + " = " + b + "." + DOM_ROOT_KEY + CatalogueDBAdapter.COLLATION;
+		for(DomainDefinition d  : getHeaderDomains(level)) {
+			sql += "\n		and Coalesce(" + a + "." + d + ",'') = Coalesce(" + b + "." + d + ",'') " + CatalogueDBAdapter.COLLATION;
+		}
+		return sql;
 	}
 
 	private String mUNKNOWNText = null;
@@ -633,6 +875,10 @@ public class BooklistBuilder {
 		Tracker.handleEvent(this, "build-" + getId(), Tracker.States.Enter);
 		try {
 			long t0 = System.currentTimeMillis();
+
+			// Any changes after this point will need to be applied by update()
+			mChangeSequence = BooklistChanges.getSequence();
+			mCanUpdate = false;
 	
 			// Cleanup searchText
 			//
@@ -643,6 +889,9 @@ public class BooklistBuilder {
 				searchText = searchText.toLowerCase(Locale.getDefault());
 			}
 			
+			// Write any outstanding expand/collapse changes before the navigation table is replaced
+			flushNodeState();
+
 			// Rebuild the main table definition
 			mListTable = TBL_BOOK_LIST_DEFN.clone();
 			mListTable.setName(mListTable.getName() + "_" + getId());
@@ -1174,6 +1423,14 @@ public class BooklistBuilder {
 				sortColNameList = sortCols.toString();
 				sortIndexColumnList = indexCols.toString();
 			}
+
+			// Saved lists are identified by the criteria used, and validated by the SQL used to build them. We do 
+			// not save the results of text searches since they are unlikely to be repeated.
+			String cacheKey = null;
+			if (searchText.equals(""))
+				cacheKey = BooklistCache.makeKey(mStyle, bookshelf, authorWhere, bookWhere, loaned_to, seriesName);
+			final String cacheSignature = sqlCmp.destinationColumns + "\n" + sqlCmp.select + "\n" + sqlCmp.join + sqlCmp.where 
+					+ "\n" + sortColNameList + "\n" + useTriggers + "/" + flatTriggers;
 	
 			// Process the group-by columns suitable for a group-by statement or index
 			{
@@ -1272,6 +1529,15 @@ public class BooklistBuilder {
 
 				mLevelBuildStmts = new ArrayList<SynchronizedStatement>();
 
+				// If there is a saved copy of this list and no books have changed since, just reload it.
+				final long changeCounter = mCache.getChangeCounter();
+				boolean isRestored = false;
+				if (cacheKey != null) {
+					isRestored = mCache.restore(cacheKey, cacheSignature, changeCounter, mListTable);
+					if (isRestored)
+						System.out.println("Booklist restored from saved copy");
+				}
+
 				// Build the lowest level summary using our initial insert statement
 				long t2;
 				long t2a[] = new long[mStyle.size()];
@@ -1283,14 +1549,16 @@ public class BooklistBuilder {
 					String tgt = makeTriggers(summary, flatTriggers);
 					mBaseBuildStmt = mStatements.add("mBaseBuildStmt", "Insert Into " + tgt + "(" + sqlCmp.destinationColumns + ") " + sqlCmp.select + "\n From\n" + sqlCmp.join + sqlCmp.where + " order by " + sortColNameList);
 					//System.out.println("Base Build:\n" + sql);
-					mBaseBuildStmt.execute();
+					if (!isRestored)
+						mBaseBuildStmt.execute();
 					t2 = System.currentTimeMillis();
 					t3=t2;
 				} else {
 					// Without triggers we just get the base rows and add summary later
 					mBaseBuildStmt = mStatements.add("mBaseBuildStmt", sqlCmp.insertSelect + sqlCmp.join + sqlCmp.where);
 					//System.out.println("Base Build:\n" + sql);
-					mBaseBuildStmt.execute();
+					if (!isRestored)
+						mBaseBuildStmt.execute();
 					t2 = System.currentTimeMillis();
 
 					// Now build each summary level query based on the prior level.
@@ -1326,7 +1594,8 @@ public class BooklistBuilder {
 						// Save, compile and run this statement
 						SynchronizedStatement stmt = mStatements.add("L" + i, sql);
 						mLevelBuildStmts.add(stmt);
-						stmt.execute();
+						if (!isRestored)
+							stmt.execute();
 						t2a[pos++] = System.currentTimeMillis();
 					}
 				
@@ -1414,6 +1683,7 @@ public class BooklistBuilder {
 	
 				long t4b = System.currentTimeMillis();
 				mDb.execSQL("analyze " + mNavTable);
+				invalidateNavIndex();
 				long t4c = System.currentTimeMillis();
 	
 				long t8 = System.currentTimeMillis();
@@ -1425,6 +1695,11 @@ public class BooklistBuilder {
 				long t10 = System.currentTimeMillis();
 				//mDb.execSQL("analyze " + mTableName);
 				long t11 = System.currentTimeMillis();
+
+				// Save a copy of the list for next time
+				if (cacheKey != null && !isRestored)
+					mCache.save(cacheKey, cacheSignature, changeCounter, mListTable);
+				long t12 = System.currentTimeMillis();
 				
 				System.out.println("T0a: " + (t0a-t0));
 				System.out.println("T0b: " + (t0b-t0a));
@@ -1453,10 +1728,23 @@ public class BooklistBuilder {
 				System.out.println("T9: " + (t9-t8));
 				System.out.println("T10: " + (t10-t9));
 				System.out.println("T11: " + (t11-t10));
+				System.out.println("T12: " + (t12-t11));
 	
 				mDb.setTransactionSuccessful();
 	
 				mSummary = summary;
+
+				// Save the details needed to apply changes to individual books. Headers are
+				// placed by sorting, so this only works if all sorts are ascending.
+				mSqlComponents = sqlCmp;
+				mSortColumnList = sortColNameList;
+				mUsedNestedTriggers = useTriggers && !flatTriggers;
+				mPreferredState = preferredState;
+				mCanUpdate = true;
+				for (SortedDomainInfo sdi: summary.getSortedColumns()) {
+					if (sdi.isDescending)
+						mCanUpdate = false;
+				}
 	
 				//if (markId > 0)
 				//	ensureBookVisible(markId);
@@ -1753,6 +2041,14 @@ public class BooklistBuilder {
 	 * so that the next time this view is opened, the user will see the same opened/closed nodes.
 	 */
 	public void saveListNodeSettings() {
+		flushNodeState();
+		writeListNodeSettings();
+	}
+
+	/**
+	 * Save the currently expanded top level nodes from the navigation table.
+	 */
+	private void writeListNodeSettings() {
 		SyncLock l = null;
 		try {
 			if (!mDb.inTransaction())
@@ -1858,16 +2154,17 @@ public class BooklistBuilder {
 	 * @return		Array of row details, including absolute positions and visibility. Null if not present
 	 */
 	public ArrayList<BookRowInfo> getBookAbsolutePositions(long bookId) {
-		String sql = "select " + mNavTable.dot(DOM_ID) + ", " + mNavTable.dot(DOM_VISIBLE) + " From " + mListTable + " bl " 
+		String sql = "select " + mNavTable.dot(DOM_ID) + " From " + mListTable + " bl " 
 				+ mListTable.join(mNavTable) + " Where " + mListTable.dot(DOM_BOOK) + " = " + bookId;
 
+		final BooklistNavIndex index = getNavIndex();
 		Cursor c = mDb.rawQuery(sql, EMPTY_STRING_ARRAY);
 		try {
 			ArrayList<BookRowInfo> rows = new ArrayList<BookRowInfo>();
 			if (c.moveToFirst()) {
 				do {
 					int absPos = c.getInt(0) - 1;
-					rows.add(new BookRowInfo(absPos, getPosition(absPos), c.getInt(1)));
+					rows.add(new BookRowInfo(absPos, index.getPosition(absPos), index.isVisible(absPos) ? 1 : 0));
 				} while (c.moveToNext());
 				return rows;
 			} else {
@@ -1899,6 +2196,30 @@ public class BooklistBuilder {
 	 * Return a list cursor starting at a given offset, using a given limit.
 	 */
 	public BooklistCursor getOffsetCursor(int position, int size) {
+		// Get the navigation table IDs of the visible rows in the page
+		final BooklistNavIndex index = getNavIndex();
+		final int end = Math.min(position + size, index.getVisibleCount());
+		StringBuilder ids = new StringBuilder();
+		int first = -1;
+		int last = -1;
+		for(int i = position; i < end; i++) {
+			final int id = index.getAbsolutePosition(i) + 1;
+			if (first < 0)
+				first = id;
+			last = id;
+			if (ids.length() > 0)
+				ids.append(",");
+			ids.append(id);
+		}
+		// Use a range when the page has no hidden rows; this is common and makes shorter SQL.
+		final String idCondition;
+		if (first < 0)
+			idCondition = " = 0";
+		else if (last - first == end - position - 1)
+			idCondition = " Between " + first + " and " + last;
+		else
+			idCondition = " In (" + ids + ")";
+
 		// Get the domains
 		StringBuilder domains = new StringBuilder();
 		final String prefix = mListTable.getAlias() + ".";
@@ -1910,11 +2231,11 @@ public class BooklistBuilder {
 			domains.append(", ");
 		}
 
-		// Build the SQL, adding ABS POS.
+		// Build the SQL, adding ABS POS. The rows are found by primary key, so the cost does not
+		// depend on the position of the page in the list.
 		final String sql = "select " + domains + " (" + mNavTable.dot(DOM_ID) + " - 1) As " + DOM_ABSOLUTE_POSITION + 
 				" from " + mListTable.ref() + mListTable.join(mNavTable) + 
-				" Where " + mNavTable.dot(DOM_VISIBLE) + " = 1 Order by " + mNavTable.dot(DOM_ID) +
-				" Limit " + size + " Offset " + position 
+				" Where " + mNavTable.dot(DOM_ID) + idCondition + " Order by " + mNavTable.dot(DOM_ID)
 				;	
 
 		// Get and return the cursor
@@ -1951,7 +2272,104 @@ public class BooklistBuilder {
 	 * logical count of rows using a simple query rather than scanning the entire result set.
 	 */
 	public int getPseudoCount() {
-		return pseudoCount("NavTable", "Select count(*) from " + mNavTable + " Where " + DOM_VISIBLE + " = 1");
+		return getNavIndex().getVisibleCount();
+	}
+
+	/**
+	 * Get the in-memory copy of the navigation table state, loading it if necessary.
+	 *
+	 * @return	Index
+	 */
+	private synchronized BooklistNavIndex getNavIndex() {
+		if (mNavIndex == null)
+			mNavIndex = BooklistNavIndex.load(mDb, mNavTable);
+		return mNavIndex;
+	}
+
+	/**
+	 * Discard the in-memory copy of the navigation table state. Must be called after the
+	 * navigation table is rebuilt.
+	 */
+	private synchronized void invalidateNavIndex() {
+		mNavIndex = null;
+	}
+
+	/**
+	 * Details of an expand/collapse operation that has been applied to mNavIndex but not yet to
+	 * the navigation table and node settings.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class NodeStateChange {
+		/** Absolute position of node, or -1 for all nodes */
+		final int absPos;
+		/** Level of node */
+		final int level;
+		/** Absolute position of first row after node's descendants */
+		final int end;
+		/** New state */
+		final boolean expand;
+
+		NodeStateChange(int absPos, int level, int end, boolean expand) {
+			this.absPos = absPos;
+			this.level = level;
+			this.end = end;
+			this.expand = expand;
+		}
+	}
+
+	/**
+	 * Queue a change to be written to the database in the background.
+	 *
+	 * @param change	Change to write
+	 */
+	private void queueNodeStateChange(NodeStateChange change) {
+		synchronized(mPendingNodeChanges) {
+			mPendingNodeChanges.add(change);
+		}
+		if (mNodeStateQueue == null) {
+			mNodeStateQueue = new SimpleTaskQueue("booklist-node-state", 1);
+			mNodeStateQueue.setThreadPriority(Thread.MIN_PRIORITY);
+		}
+		mNodeStateQueue.enqueue(new SimpleTask() {
+			@Override
+			public void run(SimpleTaskContext taskContext) {
+				taskContext.setRequiresFinish(false);
+				flushNodeState();
+			}
+
+			@Override
+			public void onFinish(Exception e) {
+			}});
+	}
+
+	/**
+	 * Write all outstanding expand/collapse changes to the navigation table and node settings, in
+	 * the order they were made. Called in the background after each change, and before anything
+	 * that reads the state from the navigation table or replaces it.
+	 * 
+	 * If the write fails the changes stay queued and the exception is passed to the caller.
+	 */
+	private void flushNodeState() {
+		// Lock the list, not the builder, so that the UI can continue to use the builder
+		synchronized(mPendingNodeChanges) {
+			if (mPendingNodeChanges.size() == 0)
+				return;
+			SyncLock txLock = mDb.beginTransaction(true);
+			try {
+				for(NodeStateChange change: mPendingNodeChanges) {
+					if (change.absPos < 0)
+						writeExpandAll(change.expand);
+					else
+						writeExpandNode(change);
+				}
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction(txLock);
+			}
+			// Only forget the changes once they are committed; if the write failed, the next flush retries them
+			mPendingNodeChanges.clear();
+		}
 	}
 
 	/**
@@ -2001,8 +2419,6 @@ public class BooklistBuilder {
 		return mStyle.size()+1;
 	}
 
-	private SynchronizedStatement mGetPositionCheckVisibleStmt = null;
-	private SynchronizedStatement mGetPositionStmt = null;
 	/**
 	 * Given an absolute position, return the actual list position for a row taking into
 	 * account invisible rows.
@@ -2012,38 +2428,9 @@ public class BooklistBuilder {
 	 * @return		Actual list position.
 	 */
 	public int getPosition(int absolutePosition) {
-		if (mGetPositionCheckVisibleStmt == null) {
-			String sql = "Select visible from " + mNavTable + " Where " + DOM_ID + " = ?";
-			mGetPositionCheckVisibleStmt = mStatements.add("mGetPositionCheckVisibleStmt", sql);	
-		}
-		if (mGetPositionStmt == null) {
-			String sql = "Select count(*) From " + mNavTable + " Where visible = 1 and " + DOM_ID + " < ?";
-			mGetPositionStmt = mStatements.add("mGetPositionStmt", sql);					
-		}
-
-		// Check the absolute position is visible
-		final long rowId = absolutePosition + 1;
-		mGetPositionCheckVisibleStmt.bindLong(1, rowId);
-		long isVis;
-		try {
-			isVis = mGetPositionCheckVisibleStmt.simpleQueryForLong();
-		} catch (SQLiteDoneException e) {
-			// row is not in the current list at all
-			isVis = 0;
-		}
-		
-		// Count the number of *visible* rows *before* the specified one.
-		mGetPositionStmt.bindLong(1, rowId);
-		int newPos = (int)mGetPositionStmt.simpleQueryForLong();
-		// If specified row is visible, the the position is the count, otherwise, count -1 (ie. the
-		// previous visible row).
-		if (isVis == 1) 
-			return newPos;
-		else
-			return newPos > 0 ? newPos - 1 : 0;
+		return getNavIndex().getPosition(absolutePosition);
 	}
 
-	private SynchronizedStatement mGetNodeRootStmt = null;
 	/**
 	 * Find the visible root node for a given absolute position and ensure it is visible.
 	 * 
@@ -2054,25 +2441,13 @@ public class BooklistBuilder {
 		if (absPos < 0)
 			return;
 
-		final long rowId = absPos + 1;
-
-		if (mGetNodeRootStmt == null) {
-			String sql = "Select " + DOM_ID + "||'/'||" + DOM_EXPANDED + " From " + mNavTable + " Where " + DOM_LEVEL + " = 1 and " + DOM_ID + " <= ? Order by " + DOM_ID + " Desc Limit 1";
-			mGetNodeRootStmt = mStatements.add("mGetNodeRootStmt", sql);
-		}
-
-		// Get the root node, and expanded flag
-		mGetNodeRootStmt.bindLong(1, rowId);
-		String info[] = mGetNodeRootStmt.simpleQueryForString().split("/");
-		long rootId = Long.parseLong(info[0]);
-		long isExp = Long.parseLong(info[1]);
+		final BooklistNavIndex index = getNavIndex();
+		final int rootPos = index.getRoot((int)absPos);
 		// If root node is not the node we are checking, and root node is not expanded, expand it.
-		if (rootId != rowId && isExp == 0)
-			toggleExpandNode(rootId - 1);
+		if (rootPos != absPos && !index.isExpanded(rootPos))
+			toggleExpandNode(rootPos);
 	}
 
-	private SynchronizedStatement mGetNodeLevelStmt = null;
-	private SynchronizedStatement mGetNextAtSameLevelStmt = null;
 	private SynchronizedStatement mShowStmt = null;
 	private SynchronizedStatement mExpandStmt = null;
 
@@ -2080,18 +2455,6 @@ public class BooklistBuilder {
 	 * Build statements used by expand/collapse code.
 	 */
 	private void buildExpandNodeStatements() {
-		if (mGetNodeLevelStmt == null) {
-			String sql = "Select " + DOM_LEVEL + "||'/'||" + DOM_EXPANDED + " From " + mNavTable.ref() + " Where " + mNavTable.dot(DOM_ID) + " = ?";
-			mGetNodeLevelStmt = mStatements.add("mGetNodeLevelStmt", sql);	
-		}
-		if (mGetNextAtSameLevelStmt == null) {
-			String sql = "Select Coalesce( max(" + DOM_ID + "), -1) From (" +
-					" Select " + DOM_ID + " From " + mNavTable.ref() + " Where " + 
-					mNavTable.dot(DOM_ID) + " > ?" +
-					" and " + mNavTable.dot(DOM_LEVEL) + " = ?" +
-					" Order by " + DOM_ID + " Limit 1) zzz";
-			mGetNextAtSameLevelStmt = mStatements.add("mGetNextAtSameLevelStmt", sql);				
-		}
 		if (mShowStmt == null) {
 			String sql = "Update " + mNavTable +
 					" Set " + DOM_VISIBLE + " = ?," + DOM_EXPANDED + " = ?" + 
@@ -2110,14 +2473,25 @@ public class BooklistBuilder {
 	 * For EXPAND: Mark all rows as visible/expanded
 	 * For COLLAPSE: Mark all non-root rows as invisible/unexpanded and mark all root nodes as visible/unexpanded.
 	 * 
+	 * The change is made in memory immediately and written to the database in the background.
+	 * 
 	 * @param expand
 	 */
 	public void expandAll(boolean expand) {
-		long t0 = System.currentTimeMillis();
+		getNavIndex().expandAll(expand);
+		queueNodeStateChange(new NodeStateChange(-1, 0, 0, expand));
+	}
+
+	/**
+	 * Write an expand/collapse all operation to the database.
+	 * 
+	 * @param expand
+	 */
+	private void writeExpandAll(boolean expand) {
 		if (expand) {
 			String sql = "Update " + mNavTable + " Set expanded = 1, visible = 1";
 			mDb.execSQL(sql);
-			saveListNodeSettings();
+			writeListNodeSettings();
 		} else {				
 			String sql = "Update " + mNavTable + " Set expanded = 0, visible = 0 Where level > 1";
 			mDb.execSQL(sql);
@@ -2125,43 +2499,43 @@ public class BooklistBuilder {
 			mDb.execSQL(sql);
 			deleteListNodeSettings();
 		}
-		long t1 = System.currentTimeMillis() - t0;
-		System.out.println("Expand All: " + t1);
 	}
 
 	/**
 	 * Toggle the expand/collapse status of the node as the specified absolute position
 	 * 
+	 * The change is made in memory immediately and written to the database in the background.
+	 * 
 	 * @param absPos
 	 */
 	public void toggleExpandNode(long absPos) {
+		final BooklistNavIndex index = getNavIndex();
+		final int pos = (int)absPos;
+		final boolean expand = index.toggle(pos);
+		queueNodeStateChange(new NodeStateChange(pos, index.getLevel(pos), index.getSubtreeEnd(pos), expand));
+	}
+
+	/**
+	 * Write a single expand/collapse operation to the database.
+	 * 
+	 * @param change	Details of change
+	 */
+	private void writeExpandNode(NodeStateChange change) {
 		// This seems to get called sometimes after the database is closed...
 		// RELEASE: remove statements as members, and look them up in mStatements via static keys
 
 		buildExpandNodeStatements();
 
 		// row position starts at 0, id's start at 1...
-		final long rowId = absPos + 1;
-
-		// Get the details of the passed row position.
-		mGetNodeLevelStmt.bindLong(1, rowId);
-		String info[] = mGetNodeLevelStmt.simpleQueryForString().split("/");
-		long level = Long.parseLong(info[0]);
-		int exp = ( Integer.parseInt(info[1]) == 1 ) ? 0 : 1;
-
-		// Find the next row at the same level
-		mGetNextAtSameLevelStmt.bindLong(1, rowId);
-		mGetNextAtSameLevelStmt.bindLong(2, level);
-		long next = mGetNextAtSameLevelStmt.simpleQueryForLong();
-		if (next < 0) 
-			next = Long.MAX_VALUE;
+		final long rowId = change.absPos + 1;
+		final int exp = change.expand ? 1 : 0;
 
 		// Mark intervening nodes as visible/invisible
 		mShowStmt.bindLong(1, exp);
 		mShowStmt.bindLong(2, exp);
 		mShowStmt.bindLong(3, rowId);
-		mShowStmt.bindLong(4, level);
-		mShowStmt.bindLong(5, next);
+		mShowStmt.bindLong(4, change.level);
+		mShowStmt.bindLong(5, change.end + 1);
 
 		mShowStmt.execute();
 
@@ -2171,7 +2545,7 @@ public class BooklistBuilder {
 		mExpandStmt.execute();
 
 		// Update settings
-		saveListNodeSetting(rowId, exp == 1);
+		saveListNodeSetting(rowId, change.expand);
 	}
 	
 	/**
@@ -2206,6 +2580,14 @@ public class BooklistBuilder {
 	 * @param isFinalize
 	 */
 	private void cleanup(final boolean isFinalize) {
+		if (mNodeStateQueue != null) {
+			// Save the user's expand/collapse changes, unless it is too late
+			if (!isFinalize) {
+				try { flushNodeState(); } catch(Exception e) { Logger.logError(e); };
+			}
+			try { mNodeStateQueue.finish(); } catch(Exception e) { Logger.logError(e); };
+			mNodeStateQueue = null;
+		}
 		if (mStatements.size() != 0) {
 			if (isFinalize) {
 				System.out.println("Finalizing BooklistBuilder with active statements");				
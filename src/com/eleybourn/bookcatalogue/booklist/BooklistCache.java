@@ -0,0 +1,258 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.booklist;
+
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_CACHE_KEY;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_CACHE_SIGNATURE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_CHANGE_COUNTER;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_ID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_LAST_UPDATE_DATE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_CHANGES;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_LIST_CACHE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOK_LIST_CACHE_DATA_PREFIX;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDoneException;
+
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedStatement;
+import com.eleybourn.bookcatalogue.database.DbUtils.DomainDefinition;
+import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+import com.eleybourn.bookcatalogue.database.SqlStatementManager;
+
+/**
+ * Saves built booklists in permanent tables so that the next time a list with the same style,
+ * bookshelf and criteria is requested it can be copied back rather than rebuilt.
+ *
+ * Each saved list has an entry in TBL_BOOK_LIST_CACHE holding:
+ *
+ * - the key: style, bookshelf and criteria used to build the list.
+ * - the signature: the SQL used to build the list. If the style definition, extra domains or
+ *   the code that builds the list change, the SQL will differ and the saved list is not used.
+ * - the value of the book change counter (see TBL_BOOK_CHANGES) when the list was built. The
+ *   counter is incremented by CatalogueDBAdapter whenever a book is changed, so a saved list
+ *   is only used if no books have changed since it was saved.
+ *
+ * The list rows are saved in a table named TBL_BOOK_LIST_CACHE_DATA_PREFIX + entry ID.
+ *
+ * @author Philip Warner
+ */
+public class BooklistCache {
+	/** Increment if the list table contents change in a way that is not reflected in the build SQL */
+	private static final int CACHE_VERSION = 1;
+	/** Number of saved lists to keep */
+	private static final int MAX_SAVED_LISTS = 4;
+
+	/** Database to use */
+	private final SynchronizedDb mDb;
+	/** Statements collection of the owning builder */
+	private final SqlStatementManager mStatements;
+
+	private SynchronizedStatement mFindEntryStmt = null;
+	private SynchronizedStatement mTouchEntryStmt = null;
+	private SynchronizedStatement mAddEntryStmt = null;
+	private SynchronizedStatement mDeleteEntryStmt = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param db			Database to use
+	 * @param statements	Statement collection to use for compiled statements
+	 */
+	BooklistCache(SynchronizedDb db, SqlStatementManager statements) {
+		mDb = db;
+		mStatements = statements;
+	}
+
+	/**
+	 * Make the key used to identify a saved list.
+	 *
+	 * @param style			Style of list
+	 * @param bookshelf		Bookshelf being displayed
+	 * @param criteria		Any other criteria used to select books
+	 *
+	 * @return	Key
+	 */
+	public static String makeKey(BooklistStyle style, String bookshelf, String...criteria) {
+		StringBuilder key = new StringBuilder();
+		key.append(CACHE_VERSION);
+		key.append("/");
+		key.append(style.getRowId());
+		key.append("/");
+		key.append(style.getCanonicalName());
+		key.append("/");
+		key.append(bookshelf);
+		for(String c: criteria) {
+			key.append("/");
+			key.append(c);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Get the current value of the book change counter.
+	 *
+	 * @return	Counter value
+	 */
+	public long getChangeCounter() {
+		return getChangeCounter(mStatements);
+	}
+
+	/**
+	 * Get the current value of the book change counter; it changes whenever books, or the
+	 * authors and series they refer to, are changed.
+	 *
+	 * @param statements	Statements collection to compile the query in, and keep it for reuse
+	 *
+	 * @return	Counter value
+	 */
+	public static long getChangeCounter(SqlStatementManager statements) {
+		SynchronizedStatement stmt = statements.addOrGet("mGetChangeCounterStmt", "Select Coalesce(Max(" + DOM_CHANGE_COUNTER + "), 0) From " + TBL_BOOK_CHANGES);
+		return stmt.simpleQueryForLong();
+	}
+
+	/**
+	 * Copy a saved list into the passed (empty) list table, if there is one for the same key and
+	 * signature that is still current.
+	 *
+	 * @param key				Key from makeKey()
+	 * @param signature			SQL used to build list
+	 * @param changeCounter		Current value of the book change counter
+	 * @param listTable			Table to fill
+	 *
+	 * @return	true if the list was restored
+	 */
+	public boolean restore(String key, String signature, long changeCounter, TableDefinition listTable) {
+		if (mFindEntryStmt == null) {
+			mFindEntryStmt = mStatements.add("mFindEntryStmt", "Select " + DOM_ID + " From " + TBL_BOOK_LIST_CACHE
+					+ " Where " + DOM_CACHE_KEY + " = ? and " + DOM_CACHE_SIGNATURE + " = ? and " + DOM_CHANGE_COUNTER + " = ?");
+		}
+		long id;
+		mFindEntryStmt.bindString(1, key);
+		mFindEntryStmt.bindString(2, signature);
+		mFindEntryStmt.bindLong(3, changeCounter);
+		try {
+			id = mFindEntryStmt.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return false;
+		}
+
+		final String cols = getColumnList(listTable);
+		mDb.execSQL("Insert Into " + listTable + " (" + cols + ") Select " + cols + " From " + getDataTableName(id));
+
+		// Record the use so that the most recently used lists are kept
+		if (mTouchEntryStmt == null) {
+			mTouchEntryStmt = mStatements.add("mTouchEntryStmt", "Update " + TBL_BOOK_LIST_CACHE + " Set " + DOM_LAST_UPDATE_DATE + " = current_timestamp Where " + DOM_ID + " = ?");
+		}
+		mTouchEntryStmt.bindLong(1, id);
+		mTouchEntryStmt.execute();
+		return true;
+	}
+
+	/**
+	 * Save a copy of the passed list table, replacing any list saved with the same key, and
+	 * remove the least recently used lists if there are too many.
+	 *
+	 * @param key				Key from makeKey()
+	 * @param signature			SQL used to build list
+	 * @param changeCounter		Value of the book change counter when the list was built
+	 * @param listTable			Table to save
+	 */
+	public void save(String key, String signature, long changeCounter, TableDefinition listTable) {
+		deleteEntries("Select " + DOM_ID + " From " + TBL_BOOK_LIST_CACHE + " Where " + DOM_CACHE_KEY + " = ?", new String[] {key});
+
+		if (mAddEntryStmt == null) {
+			mAddEntryStmt = mStatements.add("mAddEntryStmt", TBL_BOOK_LIST_CACHE.getInsert(DOM_CACHE_KEY, DOM_CACHE_SIGNATURE, DOM_CHANGE_COUNTER) + " Values (?, ?, ?)");
+		}
+		mAddEntryStmt.bindString(1, key);
+		mAddEntryStmt.bindString(2, signature);
+		mAddEntryStmt.bindLong(3, changeCounter);
+		final long id = mAddEntryStmt.executeInsert();
+
+		// Copy the list rows into a permanent table with the same columns
+		final TableDefinition data = new TableDefinition(getDataTableName(id))
+				.addDomains(listTable.getDomains());
+		data.drop(mDb);
+		data.create(mDb, false);
+		final String cols = getColumnList(listTable);
+		mDb.execSQL("Insert Into " + data + " (" + cols + ") Select " + cols + " From " + listTable);
+
+		// Keep only the most recently used lists
+		deleteEntries("Select " + DOM_ID + " From " + TBL_BOOK_LIST_CACHE + " Order by " + DOM_LAST_UPDATE_DATE + " desc, " + DOM_ID + " desc"
+				+ " Limit -1 Offset " + MAX_SAVED_LISTS, new String[] {});
+	}
+
+	/**
+	 * Delete the saved lists whose IDs are returned by the passed query.
+	 *
+	 * @param sql	Query returning entry IDs
+	 * @param args	Query parameters
+	 */
+	private void deleteEntries(String sql, String[] args) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		Cursor c = mDb.rawQuery(sql, args);
+		try {
+			while (c.moveToNext())
+				ids.add(c.getLong(0));
+		} finally {
+			c.close();
+		}
+
+		if (mDeleteEntryStmt == null) {
+			mDeleteEntryStmt = mStatements.add("mDeleteEntryStmt", "Delete From " + TBL_BOOK_LIST_CACHE + " Where " + DOM_ID + " = ?");
+		}
+		for(Long id: ids) {
+			TableDefinition.drop(mDb, getDataTableName(id));
+			mDeleteEntryStmt.bindLong(1, id);
+			mDeleteEntryStmt.execute();
+		}
+	}
+
+	/**
+	 * Get the name of the table holding the rows of a saved list.
+	 *
+	 * @param id	Entry ID
+	 *
+	 * @return	Table name
+	 */
+	private static String getDataTableName(long id) {
+		return TBL_BOOK_LIST_CACHE_DATA_PREFIX + id;
+	}
+
+	/**
+	 * Get a comma-separated list of the columns in the passed table.
+	 *
+	 * @param table		Table
+	 *
+	 * @return	Column list
+	 */
+	private static String getColumnList(TableDefinition table) {
+		StringBuilder cols = new StringBuilder();
+		for(DomainDefinition d: table.getDomains()) {
+			if (cols.length() > 0)
+				cols.append(", ");
+			cols.append(d.name);
+		}
+		return cols.toString();
+	}
+}
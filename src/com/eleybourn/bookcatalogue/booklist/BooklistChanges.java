@@ -0,0 +1,94 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.booklist;
+
+import java.util.HashSet;
+
+/**
+ * Static log of the books that have been changed in the database. Used by BooklistBuilder
+ * to decide if a list can be updated by just reprocessing the changed books, rather than
+ * rebuilding the entire list.
+ *
+ * Each change is given a sequence number; a builder remembers the sequence number current
+ * when it was built and later asks for the set of books changed since then. Only the most
+ * recent MAX_CHANGES changes are kept; if the builder is older than that, or if a change
+ * that affects an unknown set of books was recorded (eg. renaming an author), then a full
+ * rebuild is required.
+ *
+ * @author Philip Warner
+ */
+public class BooklistChanges {
+	/** Number of individual changes to remember */
+	private static final int MAX_CHANGES = 256;
+
+	/** Ring buffer of changed book IDs */
+	private static final long[] mBooks = new long[MAX_CHANGES];
+	/** Sequence number of the most recent change */
+	private static long mSequence = 0;
+	/** Sequence number of the most recent change that affected all books */
+	private static long mLastGlobalChange = 0;
+
+	/**
+	 * Record that a single book has been added, changed or deleted.
+	 *
+	 * @param bookId	ID of book
+	 */
+	public static synchronized void bookChanged(long bookId) {
+		mSequence++;
+		mBooks[(int)(mSequence % MAX_CHANGES)] = bookId;
+	}
+
+	/**
+	 * Record that an unknown number of books may have changed.
+	 */
+	public static synchronized void allBooksChanged() {
+		mSequence++;
+		mBooks[(int)(mSequence % MAX_CHANGES)] = 0;
+		mLastGlobalChange = mSequence;
+	}
+
+	/**
+	 * Get the sequence number of the most recent change.
+	 *
+	 * @return	Sequence number
+	 */
+	public static synchronized long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * Get the set of books changed after the passed sequence number.
+	 *
+	 * @param since		Sequence number returned by a previous call to getSequence()
+	 *
+	 * @return	Set of book IDs, or null if the changes are not all known
+	 */
+	public static synchronized HashSet<Long> getChangedBooks(long since) {
+		if (since < mLastGlobalChange || mSequence - since >= MAX_CHANGES)
+			return null;
+
+		HashSet<Long> books = new HashSet<Long>();
+		for(long i = since + 1; i <= mSequence; i++) {
+			books.add(mBooks[(int)(i % MAX_CHANGES)]);
+		}
+		return books;
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.booklist;
+
+import java.util.ArrayList;
+
+import android.os.Looper;
+
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTask;
+import com.eleybourn.bookcatalogue.utils.SimpleTaskQueue.SimpleTaskContext;
+
+/**
+ * Manages the collection of BooklistCursor 'pages' that make up a BooklistPseudoCursor.
+ *
+ * The original implementation built a fixed-size page in the UI thread whenever the list moved
+ * to a row that was not in an existing page. This is fine for slow scrolling but a fling across
+ * a large list results in a new query every 20 rows.
+ *
+ * This class:
+ *
+ * - tracks the scroll velocity (rows/second) from the sequence of moves, and sizes new pages so
+ *   that each page covers roughly LOOKAHEAD_MS of scrolling at that velocity.
+ *
+ * - whenever a page is used, makes sure that the next page (or two pages, when scrolling fast) in
+ *   the direction of travel exists or has been requested. Requested pages are built, and their
+ *   cursor window filled, in a background thread.
+ *
+ * - keeps at most MAX_PAGES pages, discarding those furthest from the current position.
+ *
+ * - counts hits, misses (synchronous page loads) and prefetches so that the behaviour can be
+ *   checked on real lists.
+ *
+ * @author Philip Warner
+ */
+public class BooklistCursorPager {
+	/** Smallest page size; this was the original fixed page size */
+	private static final int MIN_PAGE_SIZE = 20;
+	/** Largest page size */
+	private static final int MAX_PAGE_SIZE = 200;
+	/** Page sizes are rounded up to a multiple of this */
+	private static final int PAGE_SIZE_QUANTUM = 10;
+	/** A new page should cover this much time of scrolling at the current velocity */
+	private static final int LOOKAHEAD_MS = 750;
+	/** If moves are further apart than this, the list is not being scrolled */
+	private static final int VELOCITY_RESET_MS = 500;
+	/** Weight given to the most recent velocity sample */
+	private static final double VELOCITY_SMOOTHING = 0.3;
+	/** Velocity (rows/sec) above which we prefetch two pages ahead instead of one */
+	private static final int FAST_SCROLL_VELOCITY = 100;
+	/** Maximum number of pages to keep. Not based on tuning; just more than 2*2+1. */
+	private static final int MAX_PAGES = 8;
+	/** Set to TRUE to log page loads and the pager statistics. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_PAGER = false;
+
+	/**
+	 * Counters describing how well the pager is doing.
+	 *
+	 * @author Philip Warner
+	 */
+	public static class Stats {
+		/** Number of moves satisfied by an existing page */
+		public long hits = 0;
+		/** Number of moves that required a page to be built in the calling thread */
+		public long misses = 0;
+		/** Number of pages requested in the background */
+		public long prefetches = 0;
+		/** Number of prefetched pages that were subsequently used */
+		public long prefetchesUsed = 0;
+		/** Number of prefetched pages discarded because they were already covered or out of date */
+		public long prefetchesDiscarded = 0;
+
+		Stats copy() {
+			Stats s = new Stats();
+			s.hits = hits;
+			s.misses = misses;
+			s.prefetches = prefetches;
+			s.prefetchesUsed = prefetchesUsed;
+			s.prefetchesDiscarded = prefetchesDiscarded;
+			return s;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits + ", misses=" + misses + ", prefetches=" + prefetches
+					+ ", used=" + prefetchesUsed + ", discarded=" + prefetchesDiscarded;
+		}
+	}
+
+	/**
+	 * Details of a single page. Pending pages (requested but not yet built) have a null cursor.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class Page {
+		/** Position of first row in page */
+		final int start;
+		/** Number of rows requested for page */
+		final int size;
+		/** Indicates page was built in the background */
+		final boolean prefetched;
+		/** Cursor for page */
+		BooklistCursor cursor = null;
+		/** Indicates a prefetched page has been used */
+		boolean used = false;
+
+		Page(int start, int size, boolean prefetched) {
+			this.start = start;
+			this.size = size;
+			this.prefetched = prefetched;
+		}
+
+		/** Position after the last row in the page */
+		int end() {
+			return start + size;
+		}
+
+		boolean contains(int position) {
+			return position >= start && position < start + size;
+		}
+	}
+
+	/** Underlying BooklistBuilder object */
+	private final BooklistBuilder mBuilder;
+	/** Pages that have been built */
+	private final ArrayList<Page> mPages = new ArrayList<Page>();
+	/** Pages that have been requested but not yet built */
+	private final ArrayList<Page> mPending = new ArrayList<Page>();
+	/** Queue used to build pages in the background; created when first needed in the UI thread */
+	private SimpleTaskQueue mQueue = null;
+	/** Incremented when all pages are discarded so that in-flight prefetches can be ignored */
+	private int mGeneration = 0;
+	/** Set when closed */
+	private boolean mIsClosed = false;
+
+	/** Last position requested */
+	private int mLastPosition = -1;
+	/** Time of last position change */
+	private long mLastMoveTime = 0;
+	/** Smoothed scroll velocity, in rows/second; negative when scrolling up */
+	private double mVelocity = 0;
+
+	/** Counters */
+	private final Stats mStats = new Stats();
+
+	/**
+	 * Constructor
+	 *
+	 * @param builder		The BooklistBuilder that created the table to which the pages refer
+	 */
+	BooklistCursorPager(BooklistBuilder builder) {
+		mBuilder = builder;
+	}
+
+	/**
+	 * Get a cursor positioned at the specified row, building a page if necessary, and
+	 * schedule any prefetches needed for the current direction of travel.
+	 *
+	 * @param position		Position in the pseudo-cursor
+	 * @param count			Total number of rows in the pseudo-cursor
+	 *
+	 * @return	Cursor positioned on the requested row
+	 */
+	public synchronized BooklistCursor moveTo(int position, int count) {
+		updateVelocity(position);
+
+		Page page = findPage(mPages, position);
+		if (page == null) {
+			// Build it now; it may already be pending, but we can't wait for it.
+			mStats.misses++;
+			final int size = getPageSize();
+			int start;
+			if (mVelocity < 0)
+				start = Math.max(0, position - size + 1);
+			else
+				start = position;
+			page = new Page(start, size, false);
+			if (DEBUG_PAGER)
+				System.out.println("Getting cursor at " + start + " (" + size + " rows)");
+			page.cursor = mBuilder.getOffsetCursor(start, size);
+			mPages.add(page);
+		} else {
+			mStats.hits++;
+			if (page.prefetched && !page.used) {
+				page.used = true;
+				mStats.prefetchesUsed++;
+			}
+		}
+
+		purgePages(position, page);
+		requestPrefetch(page, count);
+
+		page.cursor.moveToPosition(position - page.start);
+		return page.cursor;
+	}
+
+	/**
+	 * Update the smoothed velocity based on the new position.
+	 *
+	 * @param position	New position
+	 */
+	private void updateVelocity(int position) {
+		final long now = System.currentTimeMillis();
+		if (mLastPosition >= 0) {
+			final long dt = now - mLastMoveTime;
+			// ListView moves to several rows in the same millisecond when laying out; wait
+			// until time has passed so the row difference accumulates.
+			if (dt <= 0)
+				return;
+			if (dt > VELOCITY_RESET_MS) {
+				mVelocity = 0;
+			} else {
+				final double v = (position - mLastPosition) * 1000.0 / dt;
+				mVelocity = VELOCITY_SMOOTHING * v + (1 - VELOCITY_SMOOTHING) * mVelocity;
+			}
+		}
+		mLastPosition = position;
+		mLastMoveTime = now;
+	}
+
+	/**
+	 * Calculate the size of the next page based on the current velocity.
+	 *
+	 * @return	Page size
+	 */
+	private int getPageSize() {
+		int rows = (int)(Math.abs(mVelocity) * LOOKAHEAD_MS / 1000);
+		if (rows < MIN_PAGE_SIZE)
+			rows = MIN_PAGE_SIZE;
+		else if (rows > MAX_PAGE_SIZE)
+			rows = MAX_PAGE_SIZE;
+		return ((rows + PAGE_SIZE_QUANTUM - 1) / PAGE_SIZE_QUANTUM) * PAGE_SIZE_QUANTUM;
+	}
+
+	/**
+	 * Find the page in the passed collection that contains the specified position.
+	 *
+	 * @param pages		Collection to search
+	 * @param position	Position to find
+	 *
+	 * @return	Page, or null if not found
+	 */
+	private static Page findPage(ArrayList<Page> pages, int position) {
+		for(Page p: pages) {
+			if (p.contains(position))
+				return p;
+		}
+		return null;
+	}
+
+	/**
+	 * Find an existing or pending page containing the specified position.
+	 */
+	private Page findAnyPage(int position) {
+		Page p = findPage(mPages, position);
+		if (p == null)
+			p = findPage(mPending, position);
+		return p;
+	}
+
+	/**
+	 * Make sure the pages following (or preceding, if scrolling up) the current page exist or
+	 * have been requested.
+	 *
+	 * @param current	Page containing the current position
+	 * @param count		Total number of rows in the pseudo-cursor
+	 */
+	private void requestPrefetch(Page current, int count) {
+		if (mIsClosed)
+			return;
+		// The queue posts results via a Handler, so it can only be created in a thread with
+		// a Looper. Moves from elsewhere (eg. a background count) just don't prefetch.
+		if (mQueue == null && Looper.myLooper() == null)
+			return;
+
+		final int size = getPageSize();
+		final int ahead = Math.abs(mVelocity) > FAST_SCROLL_VELOCITY ? 2 : 1;
+
+		if (mVelocity >= 0) {
+			int start = current.end();
+			int n = 0;
+			while(n < ahead && start < count) {
+				Page p = findAnyPage(start);
+				if (p == null) {
+					p = queuePrefetch(start, Math.min(size, count - start));
+				}
+				start = p.end();
+				n++;
+			}
+		} else {
+			int end = current.start;
+			int n = 0;
+			while(n < ahead && end > 0) {
+				Page p = findAnyPage(end - 1);
+				if (p == null) {
+					final int start = Math.max(0, end - size);
+					p = queuePrefetch(start, end - start);
+				}
+				end = p.start;
+				n++;
+			}
+		}
+	}
+
+	/**
+	 * Queue a background task to build the specified page.
+	 *
+	 * @param start		First row of page
+	 * @param size		Number of rows in page
+	 *
+	 * @return	The pending page
+	 */
+	private Page queuePrefetch(int start, int size) {
+		final Page page = new Page(start, size, true);
+		final int generation = mGeneration;
+		mPending.add(page);
+		mStats.prefetches++;
+
+		if (mQueue == null)
+			mQueue = new SimpleTaskQueue("booklist-prefetch", 1);
+
+		mQueue.enqueue(new SimpleTask() {
+			@Override
+			public void run(SimpleTaskContext taskContext) {
+				taskContext.setRequiresFinish(false);
+				BooklistCursor c = null;
+				try {
+					synchronized(BooklistCursorPager.this) {
+						if (mIsClosed || generation != mGeneration)
+							return;
+					}
+					c = mBuilder.getOffsetCursor(page.start, page.size);
+					// Force the query to run and fill the cursor window here rather than in the UI thread
+					c.getCount();
+				} finally {
+					synchronized(BooklistCursorPager.this) {
+						mPending.remove(page);
+						if (c != null) {
+							if (mIsClosed || generation != mGeneration
+									|| (findPage(mPages, page.start) != null && findPage(mPages, page.end() - 1) != null)) {
+								c.close();
+								mStats.prefetchesDiscarded++;
+							} else {
+								page.cursor = c;
+								mPages.add(page);
+							}
+						}
+					}
+				}
+			}
+
+			@Override
+			public void onFinish(Exception e) {
+			}
+		});
+		return page;
+	}
+
+	/**
+	 * Discard the pages furthest from the current position until we have at most MAX_PAGES.
+	 *
+	 * @param position	Current position
+	 * @param current	Page containing the current position; never discarded
+	 */
+	private void purgePages(int position, Page current) {
+		while (mPages.size() > MAX_PAGES) {
+			Page furthest = null;
+			int maxDist = -1;
+			for(Page p: mPages) {
+				if (p != current) {
+					final int dist = (position < p.start) ? p.start - position : position - (p.end() - 1);
+					if (dist > maxDist) {
+						maxDist = dist;
+						furthest = p;
+					}
+				}
+			}
+			if (furthest == null)
+				break;
+			if (DEBUG_PAGER)
+				System.out.println("Removing cursor at " + furthest.start);
+			mPages.remove(furthest);
+			furthest.cursor.close();
+		}
+	}
+
+	/**
+	 * Close all pages. Prefetches that are in progress will be discarded when they complete.
+	 */
+	public synchronized void clear() {
+		mGeneration++;
+		for(Page p: mPages) {
+			p.cursor.close();
+		}
+		mPages.clear();
+		mPending.clear();
+	}
+
+	/**
+	 * Get a snapshot of the counters.
+	 *
+	 * @return	Copy of current counters
+	 */
+	public synchronized Stats getStats() {
+		return mStats.copy();
+	}
+
+	/**
+	 * Close all pages and stop the background queue.
+	 */
+	public synchronized void close() {
+		clear();
+		mIsClosed = true;
+		if (mQueue != null) {
+			mQueue.finish();
+			mQueue = null;
+		}
+		if (DEBUG_PAGER)
+			System.out.println("Booklist pager: " + mStats);
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.booklist;
+
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_EXPANDED;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_ID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_LEVEL;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_VISIBLE;
+
+import android.database.Cursor;
+
+import com.eleybourn.bookcatalogue.database.DbSync.SynchronizedDb;
+import com.eleybourn.bookcatalogue.database.DbUtils.TableDefinition;
+
+/**
+ * In-memory copy of the level, visible and expanded columns of a booklist navigation table,
+ * used to answer position and expand/collapse questions without querying the table.
+ *
+ * Rows are indexed by absolute position (navigation table ID - 1). The number of visible rows
+ * before any row is kept in a binary indexed (Fenwick) tree, so converting between absolute
+ * and list positions is O(log n), and expanding or collapsing a node costs O(log n) for each
+ * row whose visibility changes.
+ *
+ * All methods are synchronized because pages may be fetched in a background thread while
+ * the UI thread expands and collapses nodes.
+ *
+ * @author Philip Warner
+ */
+public class BooklistNavIndex {
+	/** Number of rows */
+	private final int mSize;
+	/** Level of each row */
+	private final byte[] mLevels;
+	/** Visible flag for each row */
+	private final boolean[] mVisible;
+	/** Expanded flag for each row */
+	private final boolean[] mExpanded;
+	/** For each row, the position of the first row after its descendants */
+	private final int[] mSubtreeEnd;
+	/** For each row, the position of the level 1 row it is under */
+	private final int[] mRoots;
+	/** Binary indexed tree of visible row counts; element 0 is unused */
+	private final int[] mTree;
+	/** Largest power of 2 not greater than mSize */
+	private final int mHighBit;
+	/** Total number of visible rows */
+	private int mVisibleCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param levels		Level of each row
+	 * @param visible		Visible flag for each row
+	 * @param expanded		Expanded flag for each row
+	 */
+	private BooklistNavIndex(byte[] levels, boolean[] visible, boolean[] expanded) {
+		mSize = levels.length;
+		mLevels = levels;
+		mVisible = visible;
+		mExpanded = expanded;
+		mSubtreeEnd = new int[mSize];
+		mRoots = new int[mSize];
+		mTree = new int[mSize + 1];
+
+		int highBit = 1;
+		while (highBit * 2 <= mSize)
+			highBit *= 2;
+		mHighBit = highBit;
+
+		// Find the end of each subtree using a stack of open nodes
+		int[] open = new int[mSize];
+		int depth = 0;
+		int root = 0;
+		for(int i = 0; i < mSize; i++) {
+			while (depth > 0 && mLevels[open[depth-1]] >= mLevels[i])
+				mSubtreeEnd[open[--depth]] = i;
+			open[depth++] = i;
+			if (mLevels[i] == 1)
+				root = i;
+			mRoots[i] = root;
+		}
+		while (depth > 0)
+			mSubtreeEnd[open[--depth]] = mSize;
+
+		rebuildTree();
+	}
+
+	/**
+	 * Read the passed navigation table.
+	 *
+	 * @param db			Database
+	 * @param navTable		Navigation table; IDs must run from 1 with no gaps
+	 *
+	 * @return	New index
+	 */
+	public static BooklistNavIndex load(SynchronizedDb db, TableDefinition navTable) {
+		Cursor c = db.rawQuery("Select " + DOM_LEVEL + ", " + DOM_VISIBLE + ", " + DOM_EXPANDED + " From " + navTable + " Order by " + DOM_ID, new String[] {});
+		try {
+			final int size = c.getCount();
+			byte[] levels = new byte[size];
+			boolean[] visible = new boolean[size];
+			boolean[] expanded = new boolean[size];
+			int i = 0;
+			while (c.moveToNext()) {
+				levels[i] = (byte)c.getInt(0);
+				visible[i] = c.getInt(1) == 1;
+				expanded[i] = c.getInt(2) == 1;
+				i++;
+			}
+			return new BooklistNavIndex(levels, visible, expanded);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Get the number of rows.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Get the number of visible rows.
+	 */
+	public synchronized int getVisibleCount() {
+		return mVisibleCount;
+	}
+
+	public synchronized int getLevel(int absPos) {
+		return mLevels[absPos];
+	}
+
+	public synchronized boolean isVisible(int absPos) {
+		return mVisible[absPos];
+	}
+
+	public synchronized boolean isExpanded(int absPos) {
+		return mExpanded[absPos];
+	}
+
+	/**
+	 * Get the absolute position of the level 1 row that the passed row is under.
+	 */
+	public synchronized int getRoot(int absPos) {
+		return mRoots[absPos];
+	}
+
+	/**
+	 * Get the absolute position of the first row after the descendants of the passed row.
+	 */
+	public synchronized int getSubtreeEnd(int absPos) {
+		return mSubtreeEnd[absPos];
+	}
+
+	/**
+	 * Given an absolute position, return the list position of the row, or of the previous
+	 * visible row if it is not visible.
+	 *
+	 * @param absPos	Absolute position
+	 *
+	 * @return	List position
+	 */
+	public synchronized int getPosition(int absPos) {
+		if (absPos < 0)
+			return 0;
+		if (absPos >= mSize)
+			return mVisibleCount > 0 ? mVisibleCount - 1 : 0;
+		final int before = countVisibleBefore(absPos);
+		if (mVisible[absPos])
+			return before;
+		else
+			return before > 0 ? before - 1 : 0;
+	}
+
+	/**
+	 * Given a list position, return the absolute position of the row.
+	 *
+	 * @param position	List position; must be less than getVisibleCount()
+	 *
+	 * @return	Absolute position
+	 */
+	public synchronized int getAbsolutePosition(int position) {
+		// Walk down the tree looking for the last node with fewer than (position + 1) visible rows before it
+		int node = 0;
+		int remaining = position + 1;
+		for(int step = mHighBit; step > 0; step >>= 1) {
+			final int next = node + step;
+			if (next <= mSize && mTree[next] < remaining) {
+				node = next;
+				remaining -= mTree[next];
+			}
+		}
+		// node is 1-based index of the row before the one we want
+		return node;
+	}
+
+	/**
+	 * Toggle the expanded state of the passed node, making its descendants visible and expanded,
+	 * or invisible and collapsed.
+	 *
+	 * @param absPos	Absolute position of node
+	 *
+	 * @return	New expanded state
+	 */
+	public synchronized boolean toggle(int absPos) {
+		final boolean expand = !mExpanded[absPos];
+		final int end = mSubtreeEnd[absPos];
+		for(int i = absPos + 1; i < end; i++) {
+			setVisible(i, expand);
+			mExpanded[i] = expand;
+		}
+		mExpanded[absPos] = expand;
+		return expand;
+	}
+
+	/**
+	 * Expand or collapse all nodes. When collapsing, level 1 rows stay visible.
+	 *
+	 * @param expand	New state
+	 */
+	public synchronized void expandAll(boolean expand) {
+		for(int i = 0; i < mSize; i++) {
+			mVisible[i] = expand || mLevels[i] == 1;
+			mExpanded[i] = expand;
+		}
+		rebuildTree();
+	}
+
+	/**
+	 * Change the visibility of one row, updating the tree if necessary.
+	 */
+	private void setVisible(int absPos, boolean visible) {
+		if (mVisible[absPos] == visible)
+			return;
+		mVisible[absPos] = visible;
+		final int delta = visible ? 1 : -1;
+		mVisibleCount += delta;
+		for(int node = absPos + 1; node <= mSize; node += node & (-node))
+			mTree[node] += delta;
+	}
+
+	/**
+	 * Count the visible rows before the passed row.
+	 */
+	private int countVisibleBefore(int absPos) {
+		int count = 0;
+		for(int node = absPos; node > 0; node -= node & (-node))
+			count += mTree[node];
+		return count;
+	}
+
+	/**
+	 * Build the tree from the visible flags in O(n).
+	 */
+	private void rebuildTree() {
+		mVisibleCount = 0;
+		for(int node = 1; node <= mSize; node++)
+			mTree[node] = 0;
+		for(int node = 1; node <= mSize; node++) {
+			if (mVisible[node - 1]) {
+				mTree[node]++;
+				mVisibleCount++;
+			}
+			final int parent = node + (node & (-node));
+			if (parent <= mSize)
+				mTree[parent] += mTree[node];
+		}
+	}
+}
@@ -52,6 +52,8 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 	public static final String PREF_BACKGROUND_THUMBNAILS = TAG + "BackgroundThumbnails";
 	/** Show flat backgrounds in Book lists */
 	public static final String PREF_CACHE_THUMBNAILS = TAG + "CacheThumbnails";
+	/** Number of threads used to get thumbnails */
+	public static final String PREF_THUMBNAIL_THREADS = TAG + "ThumbnailThreads";
 	/** Show flat backgrounds in Book lists */
 	public static final String PREF_FLAT_BACKGROUND = TAG + "FlatBackground";
 
@@ -124,6 +126,24 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 		mBackgroundThumbnailsProperty.setGlobal(true);
 	}
 
+	/** Maximum number of thumbnail threads */
+	private static final int MAX_THUMBNAIL_THREADS = 4;
+	/** Number of thumbnail threads property definition; 0 means one per processor */
+	private static ItemEntries<Integer> mThumbnailThreadsListItems = new ItemEntries<Integer>();
+	private static IntegerListProperty mThumbnailThreadsProperty = new IntegerListProperty(
+				mThumbnailThreadsListItems, 
+				PREF_THUMBNAIL_THREADS, 
+				PropertyGroup.GRP_THUMBNAILS, 
+				R.string.cover_thumbnail_threads, null, PREF_THUMBNAIL_THREADS, 0);
+	static {
+		mThumbnailThreadsListItems.add(null, R.string.use_default_setting);
+		mThumbnailThreadsListItems.add(0, R.string.one_thread_per_processor);
+		for(int i = 1; i <= MAX_THUMBNAIL_THREADS; i++)
+			mThumbnailThreadsListItems.add(i, R.string.n_threads, i);
+		mThumbnailThreadsProperty.setWeight(100);
+		mThumbnailThreadsProperty.setGlobal(true);
+	}
+
 	/**
 	 * Build the activity UI
 	 */
@@ -188,6 +208,7 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 		globalProps.add(mBooklistStateProperty);
 		globalProps.add(mCacheThumbnailsProperty);
 		globalProps.add(mBackgroundThumbnailsProperty);
+		globalProps.add(mThumbnailThreadsProperty);
 
 	}
 
@@ -244,4 +265,20 @@ public class BooklistPreferencesActivity extends PreferencesBase {
 	public static final boolean isBackgroundThumbnailsEnabled() {
 		return mBackgroundThumbnailsProperty.getResolvedValue();
 	}
+
+	/**
+	 * Get the number of threads to use for getting thumbnails.
+	 * 
+	 * @return
+	 */
+	public static final int getThumbnailThreads() {
+		Integer n = mThumbnailThreadsProperty.getResolvedValue();
+		if (n == null || n <= 0)
+			n = Runtime.getRuntime().availableProcessors();
+		if (n < 1)
+			n = 1;
+		if (n > MAX_THUMBNAIL_THREADS)
+			n = MAX_THUMBNAIL_THREADS;
+		return n;
+	}
 }
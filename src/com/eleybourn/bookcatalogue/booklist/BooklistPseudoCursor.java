@@ -19,10 +19,6 @@
  */
 
 package com.eleybourn.bookcatalogue.booklist;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Map.Entry;
-
 import android.database.AbstractCursor;
 
 import com.eleybourn.bookcatalogue.debug.Tracker;
@@ -54,11 +50,13 @@ import com.eleybourn.bookcatalogue.utils.Utils;
  * 
  * getCount() is implemented as one would hope: a direct count of visible rows
  * 
- * onMove(...) results in a new cursor being built when the row is not available in existing cursors.
+ * onMove(...) asks the pager for a cursor containing the row; a new cursor is only built in the calling
+ * thread when the row is not available in existing (or prefetched) cursors.
  * 
- * Cursors are kept in a hash based on their position; cursors more than 3 'windows' away from the current
- * position are eligible for purging if they are not in the Most Recently Used (MRU) list. The MRU list 
- * holds 8 cursors.
+ * Cursors were originally kept in a hash based on their position with an MRU list of 8 cursors. With very
+ * large lists, a fling still resulted in a new query every 20 rows, in the UI thread. Cursor management is
+ * now done by BooklistCursorPager, which sizes cursors based on the scroll velocity and builds the next
+ * cursor in the direction of travel in a background thread.
  * 
  * @author Philip Warner
  */
@@ -68,14 +66,10 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	/** Cached RowView for this cursor */
 	private BooklistRowView mRowView = null;
 
-	/** Collection of current cursors */
-	private final Hashtable<Integer, BooklistCursor> mCursors;
+	/** Manages the collection of cursors that make up this cursor */
+	private final BooklistCursorPager mPager;
 	/** The cursor to use for the last onMove() event */
 	private BooklistCursor mActiveCursor = null;
-	/** MRU ring buffer of cursors */
-	private final int[] mMruList;
-	/** Current MRU ring buffer position */
-	private int mMruListPos = 0;
 	/** Pseudo-count obtained from Builder */
 	private Integer mPseudoCount = null;
 	
@@ -85,11 +79,6 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	private Utils mUtils = null;
 
-	/** Number of rows to return in each cursor. No tuning has been done to pick this number. */
-	private final static int CURSOR_SIZE = 20;
-	/** Size of MRU list. Not based on tuning; just set to more than 2*3+1. */
-	private final static int MRU_LIST_SIZE = 8;
-
 	/**
 	 * Constructor
 	 * 
@@ -97,10 +86,7 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	 */
 	BooklistPseudoCursor(BooklistBuilder builder) {
 		mBuilder = builder;
-		mCursors = new Hashtable<Integer, BooklistCursor>();
-		mMruList = new int[MRU_LIST_SIZE];
-		for(int i = 0; i < MRU_LIST_SIZE; i++)
-			mMruList[i] = -1;
+		mPager = new BooklistCursorPager(builder);
 		
 		Tracker.handleEvent(this, "Created " + this.toString(), Tracker.States.Running);
 	}
@@ -134,124 +120,27 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	}
 
 	/**
-	 * Handle a position change. Manage cursor based on new position.
+	 * Handle a position change. The pager takes care of building or finding the right cursor.
 	 */
 	@Override
 	public boolean onMove(int oldPosition, int newPosition) {
 		if (newPosition < 0 || newPosition >= getCount())
 			return false;
-		// Get the ID we use for the cursor at the new position
-		Integer cursorId = newPosition / CURSOR_SIZE;
-		// Determine the actual start position
-		int cursorStartPos = cursorId * CURSOR_SIZE;
 
 		// Synchronize cursor adjustments. Just in case.
 		synchronized(this) {
-			if (!mCursors.containsKey(cursorId)) {
-				// Get a new cursor
-				System.out.println("Getting cursor at " + cursorId);
-				mCursors.put(cursorId, mBuilder.getOffsetCursor(cursorStartPos, CURSOR_SIZE));
-
-				// Add this cursor id to the 'top' of the MRU list.
-				mMruListPos = (mMruListPos + 1) % MRU_LIST_SIZE;
-				mMruList[mMruListPos] = cursorId;
-
-				// Remove any stale cursors
-				purgeOldCursors(cursorId);
-			} else {
-				// Bring to top of MRU list, if present. It may not be in the MRU list if it was
-				// preserved because it was in the window
-				int oldPos = -1;
-				for(int i = 0; i < MRU_LIST_SIZE; i++) {
-					if (mMruList[i] == cursorId) {
-						// TODO (4.1+): Remove Sanity check for com.eleybourn.bookcatalogue.debug; should just 'break' from loop after setting oldPos
-						if (oldPos >= 0)
-							throw new RuntimeException("Cursor appears twice in MRU list");
-						oldPos = i;
-					}
-				}
-				if (oldPos < 0) {
-					// Not in MRU; just add it to the top
-					mMruListPos = (mMruListPos + 1) % MRU_LIST_SIZE;
-					mMruList[mMruListPos] = cursorId;
-				} else {
-					if (oldPos <= mMruListPos) {
-						// Just shuffle intervening items down
-						int n = oldPos;
-						int i;
-						while(n < mMruListPos) {
-							i = n++;
-							mMruList[i] = mMruList[n];
-						}
-					} else {
-						// Need to shuffle intervening items 'down' with a wrap; this code
-						// would actually work for the above case, but it's slower. Not sure
-						// it really matters.
-						int n = oldPos; // 'next' position
-						int i; // current position
-						// Count of rows to move
-						int c = (MRU_LIST_SIZE - (oldPos - mMruListPos)) % MRU_LIST_SIZE; // Only really need '%' for case where oldPos<=listPos.
-						while(c-- > 0) {
-							i = n;
-							n = (n + 1) % MRU_LIST_SIZE;
-							mMruList[i] = mMruList[n];
-						}
-					}
-					mMruList[mMruListPos] = cursorId;					
-				}
-
-			}
-			// DEBUG: Remove dump of MRU list!
-			//System.out.print("MRU: ");
-			//for(int i = 0; i < MRU_LIST_SIZE; i++)
-			//	System.out.print(mMruList[(mMruListPos+1+i)%MRU_LIST_SIZE] + " ");
-			//System.out.println();
-
-			// Set the active cursor, and set its position correctly
-			mActiveCursor = mCursors.get(cursorId);
-			mActiveCursor.moveToPosition(newPosition - cursorStartPos);
+			mActiveCursor = mPager.moveTo(newPosition, getCount());
 		}
 		return true;			
 	}
 
 	/**
-	 * Remove any old cursors that can be purged.
+	 * Get a snapshot of the paging counters for this cursor.
 	 * 
-	 * @param currentId		Current cursor ID
-	 */
-	private void purgeOldCursors(final Integer currentId) {
-		// List of cursors to purge
-		ArrayList<Integer> toPurge = new ArrayList<Integer>();
-		// Scan the hash
-		for(Entry<Integer, BooklistCursor> cursorEntry: mCursors.entrySet()) {
-			// If it is more than 3 'pages' from the current position, it's a candidate
-			final Integer thisKey = cursorEntry.getKey();
-			if ( Math.abs(thisKey) > 3 ) {
-				// Must not be in the MRU list
-				if (!checkMru(thisKey))
-					toPurge.add(thisKey);
-			}
-		}
-		// Purge them
-		for(Integer i: toPurge) {
-			System.out.println("Removing cursor at " + i);
-			BooklistCursor c = mCursors.remove(i);
-			c.close();
-		}
-	}
-
-	/**
-	 * Check if the passed cursor ID is in the MRU list
-	 * 
-	 * @param id
 	 * @return
 	 */
-	private boolean checkMru(Integer id) {
-		for(int i: mMruList) {
-			if (id == i)
-				return true;
-		}
-		return false;
+	public BooklistCursorPager.Stats getPagerStats() {
+		return mPager.getStats();
 	}
 
 	/**
@@ -366,17 +255,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 	}
 
 	private void clearCursors() {
-		for(Entry<Integer, BooklistCursor> cursorEntry: mCursors.entrySet()) {
-			cursorEntry.getValue().close();
-		}
-		mCursors.clear();
-//		if (mActiveCursor != null)
-//			mActiveCursor.close();
-
+		mPager.clear();
 		mActiveCursor = null;
-
-		for(int i = 0 ; i < mMruList.length; i++)
-			mMruList[i] = -1;
 	}
 
 	/**
@@ -388,7 +268,8 @@ public class BooklistPseudoCursor extends AbstractCursor implements BooklistSupp
 		super.close();
 
 
-		clearCursors();
+		mPager.close();
+		mActiveCursor = null;
 
 		if (mUtils != null) {
 			mUtils.close();
@@ -118,13 +118,13 @@ public class BooklistRowView {
 	}
 
 	/**
-	 * Return the thumbnail size in DP.
+	 * Return the thumbnail size in pixels.
 	 * 
 	 * @param extras	Flags for style
 	 * 
 	 * @return	Requested thumbnail size
 	 */
-	private int computeThumbnailSize(int extras) {
+	public static int computeThumbnailSize(int extras) {
 		int maxSize;
 
 		if ( (extras & BooklistStyle.EXTRAS_THUMBNAIL_LARGE) != 0) {
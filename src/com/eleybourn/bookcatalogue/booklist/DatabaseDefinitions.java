@@ -65,6 +65,9 @@ public class DatabaseDefinitions {
 	private static final String ALIAS_BOOK_BOOKSHELF = "bbsh";
 	private static final String ALIAS_BOOKSHELF = "bsh";
 	private static final String ALIAS_BOOK_LIST_NODE_SETTINGS = "blns";
+	private static final String ALIAS_BOOK_LIST_CACHE = "blc";
+	private static final String ALIAS_BOOK_CHANGES = "bc";
+	private static final String ALIAS_BOOKS_FTS_QUEUE = "fq";
 	private static final String ALIAS_BOOK_LIST_STYLES = "bls";
 	private static final String ALIAS_BOOK_SERIES = "bs";
 	private static final String ALIAS_SERIES = "s";
@@ -100,6 +103,9 @@ public class DatabaseDefinitions {
 	public static final DomainDefinition DOM_BOOK_UUID = new DomainDefinition("book_uuid", "text", "default (lower(hex(randomblob(16))))", "not null");
 	public static final DomainDefinition DOM_BOOKSHELF_NAME = new DomainDefinition(KEY_BOOKSHELF, "text", "",  "not null");
 	public static final DomainDefinition DOM_BOOKSHELF_ID = new DomainDefinition(KEY_BOOKSHELF, "integer", "",  "not null");
+	public static final DomainDefinition DOM_CACHE_KEY = new DomainDefinition("cache_key", "text", "", "not null");
+	public static final DomainDefinition DOM_CACHE_SIGNATURE = new DomainDefinition("cache_signature", "text", "", "not null");
+	public static final DomainDefinition DOM_CHANGE_COUNTER = new DomainDefinition("change_counter", "integer", "default 0", "not null");
 	public static final DomainDefinition DOM_DESCRIPTION = new DomainDefinition(KEY_DESCRIPTION, "text", "", "");
 	public static final DomainDefinition DOM_EXPANDED = new DomainDefinition("expanded", "int", "default 0", "");
 	public static final DomainDefinition DOM_FAMILY_NAME = new DomainDefinition(KEY_FAMILY_NAME, "text", "", "");
@@ -149,6 +155,11 @@ public class DatabaseDefinitions {
 			DOM_DESCRIPTION, DOM_NOTES, DOM_PUBLISHER, DOM_GENRE, DOM_LOCATION, DOM_ISBN)
 					.setType(TableTypes.FTS3);
 
+	/** Definition for the queue of books whose FTS rows have not yet been rebuilt */
+	public static final TableDefinition TBL_BOOKS_FTS_QUEUE = new TableDefinition("books_fts_queue", DOM_BOOK)
+		.setAlias(ALIAS_BOOKS_FTS_QUEUE)
+		.setPrimaryKey(DOM_BOOK);
+
 	/** Temporary table used to store flattened bok lists */
 	public static final TableDefinition TBL_BOOK_LIST_DEFN = new TableDefinition(TBL_BOOK_LIST_NAME, DOM_ID, DOM_LEVEL, DOM_KIND, 
 			// Many others...this is a temp table created at runtime.
@@ -254,6 +265,24 @@ public class DatabaseDefinitions {
 		.setAlias(ALIAS_BOOK_LIST_STYLES)
 		.addIndex("id", true, DOM_ID)
 		;
+
+	/** Definition for the directory of saved booklists. Each entry has a table named TBL_BOOK_LIST_CACHE_DATA_PREFIX + id */
+	public static final TableDefinition TBL_BOOK_LIST_CACHE = new TableDefinition(TBL_BOOK_LIST_NAME + "_cache",
+			DOM_ID, DOM_CACHE_KEY, DOM_CACHE_SIGNATURE, DOM_CHANGE_COUNTER, DOM_LAST_UPDATE_DATE)
+		.setAlias(ALIAS_BOOK_LIST_CACHE)
+		.setPrimaryKey(DOM_ID)
+		.addIndex("key", true, DOM_CACHE_KEY)
+		;
+
+	/** Prefix for the names of the tables holding saved booklists */
+	public static final String TBL_BOOK_LIST_CACHE_DATA_PREFIX = TBL_BOOK_LIST_NAME + "_cache_";
+
+	/** Definition for the single-row table holding a counter incremented whenever books are changed */
+	public static final TableDefinition TBL_BOOK_CHANGES = new TableDefinition("book_changes",
+			DOM_ID, DOM_CHANGE_COUNTER)
+		.setAlias(ALIAS_BOOK_CHANGES)
+		.setPrimaryKey(DOM_ID)
+		;
 		
 		
 }
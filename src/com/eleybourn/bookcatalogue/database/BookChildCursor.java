@@ -0,0 +1,94 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import android.database.Cursor;
+
+/**
+ * Wrapper for a cursor over rows belonging to books (authors, series etc.) that is sorted by
+ * the book ID in column 0.
+ * 
+ * Used to read the child rows for many books with one query rather than one query per book:
+ * as a books cursor sorted by ID is read, moveToNextFor() is called to merge in the child rows
+ * for each book.
+ * 
+ * @author Philip Warner
+ */
+public class BookChildCursor {
+	/** Underlying cursor */
+	private final Cursor mCursor;
+	/** true if the cursor is on a row */
+	private boolean mHasRow;
+	/** true if the current row has been returned by moveToNextFor() */
+	private boolean mUsed = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param c		Cursor sorted by book ID, which must be in column 0
+	 */
+	public BookChildCursor(Cursor c) {
+		mCursor = c;
+		mHasRow = c.moveToNext();
+	}
+
+	/**
+	 * Move to the next row for the passed book. Rows for books with a lower ID are skipped,
+	 * so books must be requested in ascending ID order.
+	 * 
+	 * @param bookId	Book ID
+	 * 
+	 * @return	true if the cursor is on a row for the book
+	 */
+	public boolean moveToNextFor(long bookId) {
+		if (mUsed) {
+			mHasRow = mCursor.moveToNext();
+			mUsed = false;
+		}
+		while (mHasRow && mCursor.getLong(0) < bookId)
+			mHasRow = mCursor.moveToNext();
+		if (mHasRow && mCursor.getLong(0) == bookId) {
+			mUsed = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the underlying cursor, for reading the current row.
+	 */
+	public Cursor getCursor() {
+		return mCursor;
+	}
+
+	public String getString(int col) {
+		return mCursor.getString(col);
+	}
+
+	public long getLong(int col) {
+		return mCursor.getLong(col);
+	}
+
+	public void close() {
+		try { mCursor.close(); } catch (Exception e) {};
+	}
+}
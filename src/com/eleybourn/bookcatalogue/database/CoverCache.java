@@ -0,0 +1,133 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ * 
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import java.util.Date;
+
+import android.graphics.Bitmap;
+
+/**
+ * Interface for the cover thumbnail cache. Entries are compressed images accessed by
+ * 'file names' built by Utils.getCoverCacheId().
+ * 
+ * Implemented by CoversDbHelper (a SQLite database) and CoverPackFile (a memory-mapped,
+ * append-only file).
+ * 
+ * @author Philip Warner
+ */
+public interface CoverCache {
+	/**
+	 * Cache occupancy and hit rate
+	 * 
+	 * @author Philip Warner
+	 */
+	public static class CacheStats {
+		/** Number of entries */
+		public final long count;
+		/** Total size of images */
+		public final long bytes;
+		/** Reads that found a valid entry since the app started */
+		public final long hits;
+		/** Reads that did not */
+		public final long misses;
+
+		CacheStats(long count, long bytes, long hits, long misses) {
+			this.count = count;
+			this.bytes = bytes;
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		/** Percentage of reads that found a valid entry */
+		public int getHitRate() {
+			final long reads = hits + misses;
+			return reads == 0 ? 0 : (int)(hits * 100 / reads);
+		}
+
+		@Override
+		public String toString() {
+			return count + " covers, " + (bytes / 1024) + "K, " + getHitRate() + "% hit rate (" + hits + " of " + (hits + misses) + ")";
+		}
+	}
+
+	/**
+	 * Get the named 'file' if it was written after the passed date.
+	 * 
+	 * @return	byte[] of image data, or null
+	 */
+	public byte[] getFile(String filename, Date lastModified);
+
+	/**
+	 * Check if the named 'file' exists and was written after the passed date.
+	 */
+	public boolean isEntryValid(String filename, Date lastModified);
+
+	/**
+	 * Compress the passed bitmap and save it to a 'file'
+	 */
+	public void saveFile(String filename, Bitmap bm);
+
+	/**
+	 * Save the passed encoded image data to a 'file'
+	 */
+	public void saveFile(String filename, int height, int width, byte[] bytes);
+
+	/**
+	 * Delete the cached covers whose names start with the passed hash
+	 */
+	public void deleteBookCover(String bookHash);
+
+	/**
+	 * Erase all cached images relating to the passed book UUID.
+	 * 
+	 * @return	Number of images erased
+	 */
+	public int eraseCachedBookCover(String uuid);
+
+	/**
+	 * Erase all images in the cache
+	 */
+	public void eraseCoverCache();
+
+	/**
+	 * Keep the cache within its budget; should be run in a background thread.
+	 * 
+	 * @param maxBytes	Budget for the total size of images; 0 for no limit
+	 * 
+	 * @return	Number of entries deleted
+	 */
+	public int trimCache(long maxBytes);
+
+	/**
+	 * Get the current cache occupancy and hit rate.
+	 */
+	public CacheStats getCacheStats();
+
+	/**
+	 * Optimize the underlying storage, if it needs it.
+	 */
+	public void analyze();
+
+	/**
+	 * Release this object; the underlying storage is shared and stays open.
+	 */
+	public void close();
+}
@@ -0,0 +1,812 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.StorageUtils;
+
+/**
+ * Cover thumbnail cache kept in a single append-only 'pack' file on external storage.
+ *
+ * Each image is appended as a record; replacing or deleting an image appends a new record,
+ * and the old one becomes dead space. An in-memory index maps each name to the offset and
+ * length of its data, so a lookup is a hash lookup and one copy out of a read-only memory
+ * mapping of the file; there is no query, and no copy through a CursorWindow. Images written
+ * since the file was mapped are read directly from the file until enough have been written
+ * to make remapping worthwhile.
+ *
+ * The index is rebuilt from the record headers when the file is opened. A record that was
+ * only partly written (eg. the app was killed) ends the file and is discarded.
+ *
+ * trimCache() drops the least recently used images when over budget and, if enough of the
+ * file is dead space, rewrites it with only the live images. The rewrite runs without
+ * blocking readers; records written while it runs are copied across at the end.
+ *
+ * Like CoversDbHelper, all instances share the same file and index.
+ *
+ * File format (big-endian):
+ *
+ * 		int		FILE_MAGIC
+ * 		int		FILE_VERSION
+ * 		records...
+ *
+ * Record:
+ *
+ * 		int		RECORD_MAGIC
+ * 		short	name length
+ * 		byte[]	name (UTF-8)
+ * 		long	date written
+ * 		int		width
+ * 		int		height
+ * 		int		data length, or -1 if the record deletes the name
+ * 		byte[]	data
+ *
+ * @author Philip Warner
+ */
+public class CoverPackFile implements CoverCache {
+	/** File location */
+	private static final String PACK_FILE_NAME = StorageUtils.getSharedStoragePath() + "/covers.pack";
+	/** File in use; PACK_FILE_NAME unless changed by setPackFile() */
+	private static String mPackFileName = PACK_FILE_NAME;
+
+	private static final int FILE_MAGIC = 0x42435043;	// "BCPC"
+	private static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+	private static final int RECORD_MAGIC = 0x52656331;	// "Rec1"
+	/** Size of fixed part of record header */
+	private static final int RECORD_FIXED_SIZE = 4 + 2 + 8 + 4 + 4 + 4;
+	/** Data length of a record that deletes a name */
+	private static final int DELETED = -1;
+
+	/** Only rewrite the file if at least this much is dead space... */
+	private static final long MIN_DEAD_BYTES = 1024 * 1024;
+	/** ...and at least this percentage of the file is dead */
+	private static final int MIN_DEAD_PERCENT = 30;
+	/** When trimming, remove entries until the cache is this percentage of its budget */
+	private static final int TRIM_TARGET_PERCENT = 90;
+	/** Only remap the file for a read if at least this much has been written since it was mapped... */
+	private static final long REMAP_MIN_BYTES = 1024 * 1024;
+	/** ...and at least this percentage of the mapped size */
+	private static final int REMAP_MIN_PERCENT = 25;
+	/** Largest file that can be mapped (and addressed by a ByteBuffer) in one piece */
+	private static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+	/** Space kept free for deleting records once the file is too full to add images */
+	private static final long DELETE_RESERVE = 1024 * 1024;
+
+	/**
+	 * Index entry for one image
+	 *
+	 * @author Philip Warner
+	 */
+	private static class Entry {
+		final String name;
+		/** Offset of record */
+		final long recordOffset;
+		/** Offset of image data */
+		final long offset;
+		final int length;
+		final long date;
+		final int width;
+		final int height;
+		/** Last time read or written; not saved, so starts as the write date */
+		volatile long lastAccess;
+
+		Entry(String name, long recordOffset, long offset, int length, long date, int width, int height) {
+			this.name = name;
+			this.recordOffset = recordOffset;
+			this.offset = offset;
+			this.length = length;
+			this.date = date;
+			this.width = width;
+			this.height = height;
+			this.lastAccess = date;
+		}
+
+		/** Total size of the record */
+		long getRecordSize() {
+			return offset + length - recordOffset;
+		}
+	}
+
+	/** Lock for all shared data */
+	private static final Object mLock = new Object();
+	/** Open file; null if not yet open */
+	private static RandomAccessFile mFile = null;
+	/** Channel for mFile */
+	private static FileChannel mChannel = null;
+	/** Length of valid data in file */
+	private static long mLength = 0;
+	/** Read-only mapping of the file; may be shorter than mLength after writes; see getFile() */
+	private static MappedByteBuffer mMap = null;
+	/** Index of live images */
+	private static HashMap<String, Entry> mIndex = new HashMap<String, Entry>();
+	/** Incremented each time the file is replaced by an empty one; see compact() */
+	private static long mGeneration = 0;
+	/** Set if the file could not be opened */
+	private static boolean mUnavailable = false;
+	/** Stats: reads that found a valid entry */
+	private static long mHits = 0;
+	/** Stats: reads that did not */
+	private static long mMisses = 0;
+
+	/** Debug counter */
+	private static Integer mInstanceCount = 0;
+
+	/**
+	 * Constructor. Opens the shared file if necessary.
+	 */
+	public CoverPackFile() {
+		synchronized(mLock) {
+			if (mUnavailable)
+				throw new RuntimeException("Covers pack file unavailable");
+			if (mFile == null) {
+				try {
+					open();
+				} catch (Exception e) {
+					// Assume exception means file corrupt. Log, rename, and retry
+					Logger.logError(e, "Failed to open covers pack file");
+					closeFile();
+					File f = new File(mPackFileName);
+					f.renameTo(new File(mPackFileName + ".dead"));
+					try {
+						open();
+					} catch (Exception e2) {
+						// If we fail a second time (creating a new file), then just give up.
+						closeFile();
+						mUnavailable = true;
+						throw new RuntimeException("Covers pack file unavailable");
+					}
+				}
+			}
+		}
+		synchronized(mInstanceCount) {
+			mInstanceCount++;
+			System.out.println("CovPack instances: " + mInstanceCount);
+		}
+	}
+
+	/**
+	 * Use a different file for all CoverPackFile objects created after this call, or return to
+	 * the default file if path is null. DEBUG ONLY; used by the benchmarks so they do not touch
+	 * the real cache.
+	 *
+	 * Must only be called when there are no CoverPackFile objects in use.
+	 *
+	 * @param path	Full path of pack file, or null
+	 */
+	public static void setPackFile(String path) {
+		if (path == null)
+			path = PACK_FILE_NAME;
+		synchronized(mInstanceCount) {
+			synchronized(mLock) {
+				if (path.equals(mPackFileName))
+					return;
+				if (mInstanceCount != 0)
+					throw new RuntimeException("Can not change covers pack file while " + mInstanceCount + " instances are in use");
+				closeFile();
+				mIndex = new HashMap<String, Entry>();
+				mGeneration++;
+				mUnavailable = false;
+				mHits = 0;
+				mMisses = 0;
+				mPackFileName = path;
+			}
+		}
+	}
+
+	/**
+	 * Open the file and build the index from its records. Called with mLock held.
+	 */
+	private static void open() throws IOException {
+		mFile = new RandomAccessFile(mPackFileName, "rw");
+		mChannel = mFile.getChannel();
+		mIndex = new HashMap<String, Entry>();
+
+		final long fileLength = mChannel.size();
+		if (fileLength < FILE_HEADER_SIZE) {
+			// New (or empty) file
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+			mChannel.truncate(0);
+			mChannel.write(header, 0);
+			mLength = FILE_HEADER_SIZE;
+			mMap = null;
+			return;
+		}
+
+		if (fileLength > MAX_PACK_SIZE)
+			throw new IOException("Covers pack file is too large to map");
+
+		mLength = fileLength;
+		remap();
+		ByteBuffer b = mMap.duplicate();
+		if (b.getInt() != FILE_MAGIC)
+			throw new IOException("Not a covers pack file");
+		if (b.getInt() > FILE_VERSION)
+			throw new IOException("Covers pack file is from a newer version");
+
+		long pos = FILE_HEADER_SIZE;
+		while (pos < fileLength) {
+			Entry e = readRecord(b, pos, fileLength);
+			if (e == null)
+				break;
+			// Deleting records have no data; don't index them
+			if (e.length == DELETED) {
+				removeFromIndex(e.name);
+				pos = e.offset;
+			} else {
+				addToIndex(e);
+				pos = e.offset + e.length;
+			}
+		}
+
+		if (pos < fileLength) {
+			// Discard the partial record at the end
+			System.out.println("Covers pack file truncated from " + fileLength + " to " + pos);
+			mChannel.truncate(pos);
+			mLength = pos;
+			mMap = null;
+		}
+	}
+
+	/**
+	 * Read the record header at the passed position.
+	 *
+	 * @return	Entry for record (with length DELETED and offset at the next record, for
+	 * 			deleting records), or null if the record is incomplete or invalid.
+	 */
+	private static Entry readRecord(ByteBuffer b, long pos, long limit) {
+		if (pos + RECORD_FIXED_SIZE > limit)
+			return null;
+		b.position((int)pos);
+		if (b.getInt() != RECORD_MAGIC)
+			return null;
+		final int nameLen = b.getShort() & 0xFFFF;
+		if (b.position() + nameLen + RECORD_FIXED_SIZE - 6 > limit)
+			return null;
+		byte[] nameBytes = new byte[nameLen];
+		b.get(nameBytes);
+		final long date = b.getLong();
+		final int width = b.getInt();
+		final int height = b.getInt();
+		final int length = b.getInt();
+		final long dataOffset = b.position();
+		if (length < DELETED || dataOffset + Math.max(length, 0) > limit)
+			return null;
+		String name;
+		try {
+			name = new String(nameBytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Can't happen
+			return null;
+		}
+		return new Entry(name, pos, dataOffset, length, date, width, height);
+	}
+
+	/**
+	 * (Re)map the whole file. Called with mLock held.
+	 */
+	private static void remap() throws IOException {
+		mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+	}
+
+	/**
+	 * Get a read-only buffer covering the whole file, remapping it if necessary. Called with mLock held.
+	 */
+	private static ByteBuffer getBuffer() throws IOException {
+		if (mMap == null || mMap.capacity() < mLength)
+			remap();
+		return mMap.duplicate();
+	}
+
+	/**
+	 * Check if the data for an entry is in the current mapping. Called with mLock held.
+	 */
+	private static boolean isMapped(Entry e) {
+		return mMap != null && e.offset + e.length <= mMap.capacity();
+	}
+
+	/**
+	 * Check if enough has been written since the file was mapped to make remapping worthwhile.
+	 * Called with mLock held.
+	 */
+	private static boolean isRemapDue() {
+		if (mMap == null)
+			return true;
+		final long mapped = mMap.capacity();
+		return mLength - mapped >= Math.max(REMAP_MIN_BYTES, mapped * REMAP_MIN_PERCENT / 100);
+	}
+
+	/**
+	 * Read the data for an entry from the file rather than the mapping. Called with mLock held.
+	 */
+	private static byte[] readData(Entry e) throws IOException {
+		byte[] bytes = new byte[e.length];
+		ByteBuffer b = ByteBuffer.wrap(bytes);
+		long pos = e.offset;
+		while (b.hasRemaining()) {
+			final int n = mChannel.read(b, pos);
+			if (n < 0)
+				throw new IOException("Unexpected end of covers pack file");
+			pos += n;
+		}
+		return bytes;
+	}
+
+	/** Add an entry to the index. Called with mLock held. */
+	private static void addToIndex(Entry e) {
+		mIndex.put(e.name, e);
+	}
+
+	/** Remove an entry from the index. Called with mLock held. */
+	private static void removeFromIndex(String name) {
+		mIndex.remove(name);
+	}
+
+	/** Close the file. Called with mLock held. */
+	private static void closeFile() {
+		try {
+			if (mFile != null)
+				mFile.close();
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to close covers pack file");
+		}
+		mFile = null;
+		mChannel = null;
+		mMap = null;
+	}
+
+	/**
+	 * Replace the file with a new, empty, one. Called with mLock held.
+	 *
+	 * The old file is deleted rather than truncated: getFile() copies from the mapping without
+	 * the lock, and truncating a mapped file makes those reads fault. The mapping of a deleted
+	 * file stays valid until it is released.
+	 */
+	private static void resetFile() throws IOException {
+		closeFile();
+		mIndex = new HashMap<String, Entry>();
+		mGeneration++;
+		File f = new File(mPackFileName);
+		if (f.exists() && !f.delete()) {
+			open();
+			throw new IOException("Unable to delete covers pack file");
+		}
+		open();
+	}
+
+	/**
+	 * Build a record.
+	 *
+	 * @param bytes		Image data, or null for a deleting record
+	 */
+	private static ByteBuffer buildRecord(String name, long date, int width, int height, byte[] bytes) {
+		byte[] nameBytes;
+		try {
+			nameBytes = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Can't happen
+			throw new RuntimeException(e);
+		}
+		final int length = bytes == null ? 0 : bytes.length;
+		ByteBuffer b = ByteBuffer.allocate(RECORD_FIXED_SIZE + nameBytes.length + length);
+		b.putInt(RECORD_MAGIC);
+		b.putShort((short)nameBytes.length);
+		b.put(nameBytes);
+		b.putLong(date);
+		b.putInt(width);
+		b.putInt(height);
+		b.putInt(bytes == null ? DELETED : bytes.length);
+		if (bytes != null)
+			b.put(bytes);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Append a record to the end of the file. Called with mLock held.
+	 *
+	 * The file is never allowed to grow past MAX_PACK_SIZE; images are refused DELETE_RESERVE
+	 * bytes before that so that deletions can still be recorded.
+	 *
+	 * @return	Entry for the new record, or null if the file is full
+	 */
+	private static Entry append(String name, long date, int width, int height, byte[] bytes) throws IOException {
+		ByteBuffer b = buildRecord(name, date, width, height, bytes);
+		final long recordOffset = mLength;
+		final int size = b.remaining();
+		final long limit = bytes == null ? MAX_PACK_SIZE : MAX_PACK_SIZE - DELETE_RESERVE;
+		if (recordOffset + size > limit)
+			return null;
+		long pos = recordOffset;
+		while (b.hasRemaining())
+			pos += mChannel.write(b, pos);
+		mLength += size;
+		final int length = bytes == null ? DELETED : bytes.length;
+		final long offset = recordOffset + size - Math.max(length, 0);
+		return new Entry(name, recordOffset, offset, length, date, width, height);
+	}
+
+	/**
+	 * Get the named 'file'
+	 *
+	 * @param filename
+	 * @param lastModified	Entries written before this date are not valid
+	 *
+	 * @return	byte[] of image data
+	 */
+	public byte[] getFile(final String filename, final Date lastModified) {
+		Entry e;
+		ByteBuffer b = null;
+		byte[] bytes = null;
+		synchronized(mLock) {
+			e = mIndex.get(filename);
+			if (mChannel == null || e == null || e.date <= lastModified.getTime()) {
+				mMisses++;
+				return null;
+			}
+			try {
+				if (!isMapped(e) && isRemapDue())
+					remap();
+				if (isMapped(e)) {
+					b = mMap.duplicate();
+				} else {
+					// Written recently; read it directly rather than remapping the whole file for each new image
+					bytes = readData(e);
+				}
+			} catch (IOException ex) {
+				Logger.logError(ex, "Failed to read covers pack file");
+				return null;
+			}
+			mHits++;
+		}
+		e.lastAccess = System.currentTimeMillis();
+		if (bytes == null) {
+			// Records are never changed once written, so can be read without the lock
+			bytes = new byte[e.length];
+			b.position((int)e.offset);
+			b.get(bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Check if the named 'file' exists and is valid.
+	 */
+	public boolean isEntryValid(String filename, Date lastModified) {
+		synchronized(mLock) {
+			Entry e = mIndex.get(filename);
+			return e != null && e.date > lastModified.getTime();
+		}
+	}
+
+	/**
+	 * Save the passed bitmap to a 'file'
+	 *
+	 * @param filename
+	 * @param bm
+	 */
+	public void saveFile(final String filename, final Bitmap bm) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.JPEG, 70, out);
+		byte[] bytes = out.toByteArray();
+
+		saveFile(filename, bm.getHeight(), bm.getWidth(), bytes);
+	}
+
+	/**
+	 * Save the passed encoded image data to a 'file'
+	 */
+	public void saveFile(final String filename, final int height, final int width, final byte[] bytes) {
+		synchronized(mLock) {
+			if (mChannel == null)
+				return;
+			try {
+				// If the file is full, just don't cache the image; trimCache() will make space
+				// if there is a budget.
+				Entry e = append(filename, System.currentTimeMillis(), width, height, bytes);
+				if (e != null)
+					addToIndex(e);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write to covers pack file", e);
+			}
+		}
+	}
+
+	/**
+	 * Delete the named entries. Called with mLock held.
+	 */
+	private static int delete(ArrayList<String> names) {
+		int count = 0;
+		try {
+			for(String name: names) {
+				if (append(name, System.currentTimeMillis(), 0, 0, null) == null) {
+					// No room even for a deleting record; throw the whole cache away rather
+					// than leave a stale image in it.
+					resetFile();
+					return names.size();
+				}
+				removeFromIndex(name);
+				count++;
+			}
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to delete from covers pack file");
+		}
+		return count;
+	}
+
+	/**
+	 * Get names in the index that start with the passed prefix. Called with mLock held.
+	 */
+	private static ArrayList<String> findNames(String prefix) {
+		ArrayList<String> names = new ArrayList<String>();
+		for(String name: mIndex.keySet()) {
+			if (name.startsWith(prefix))
+				names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Delete the cached covers associated with the passed hash
+	 */
+	public void deleteBookCover(final String bookHash) {
+		synchronized(mLock) {
+			if (mChannel != null)
+				delete(findNames(bookHash));
+		}
+	}
+
+	/**
+	 * Erase all cached images relating to the passed book UUID.
+	 */
+	public int eraseCachedBookCover(String uuid) {
+		synchronized(mLock) {
+			if (mChannel == null)
+				return 0;
+			return delete(findNames(uuid + "."));
+		}
+	}
+
+	/**
+	 * Erase all images in the covers cache
+	 */
+	public void eraseCoverCache() {
+		synchronized(mLock) {
+			if (mChannel == null)
+				return;
+			try {
+				resetFile();
+			} catch (IOException e) {
+				Logger.logError(e, "Failed to erase covers pack file");
+			}
+		}
+	}
+
+	/**
+	 * Get the current cache occupancy and hit rate.
+	 */
+	public CacheStats getCacheStats() {
+		synchronized(mLock) {
+			long bytes = 0;
+			for(Entry e: mIndex.values())
+				bytes += e.length;
+			return new CacheStats(mIndex.size(), bytes, mHits, mMisses);
+		}
+	}
+
+	/**
+	 * Drop the least recently used images if over budget, and rewrite the file if enough
+	 * of it is dead space.
+	 *
+	 * @param maxBytes	Budget for the total size of images; 0 for no limit
+	 *
+	 * @return	Number of entries deleted
+	 */
+	public int trimCache(long maxBytes) {
+		ArrayList<Entry> entries;
+		long oldLength;
+		ByteBuffer oldData;
+		long generation;
+		synchronized(mLock) {
+			if (mChannel == null)
+				return 0;
+			entries = new ArrayList<Entry>(mIndex.values());
+			oldLength = mLength;
+			generation = mGeneration;
+			try {
+				oldData = getBuffer();
+			} catch (IOException e) {
+				Logger.logError(e, "Failed to map covers pack file");
+				return 0;
+			}
+		}
+
+		// Most recently used first
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry lhs, Entry rhs) {
+				final long l = lhs.lastAccess;
+				final long r = rhs.lastAccess;
+				return l > r ? -1 : (l < r ? 1 : 0);
+			}});
+
+		// Decide what to keep
+		long total = 0;
+		long liveBytes = 0;
+		for(Entry e: entries) {
+			total += e.length;
+			liveBytes += e.getRecordSize();
+		}
+		int keep = entries.size();
+		if (maxBytes > 0 && total > maxBytes) {
+			final long target = maxBytes * TRIM_TARGET_PERCENT / 100;
+			long kept = 0;
+			keep = 0;
+			while (keep < entries.size() && kept + entries.get(keep).length <= target) {
+				kept += entries.get(keep).length;
+				keep++;
+			}
+		}
+		final long dead = oldLength - FILE_HEADER_SIZE - liveBytes;
+		if (keep == entries.size() && (dead < MIN_DEAD_BYTES || dead * 100 / oldLength < MIN_DEAD_PERCENT))
+			return 0;
+
+		final int dropped = entries.size() - keep;
+		try {
+			if (!compact(entries.subList(0, keep), oldLength, oldData, generation))
+				return 0;
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to compact covers pack file");
+			return 0;
+		}
+		synchronized(mLock) {
+			System.out.println("Covers pack file compacted from " + oldLength + " to " + mLength + " bytes, dropped " + dropped + " entries; now " + getCacheStats());
+		}
+		return dropped;
+	}
+
+	/**
+	 * Write the passed entries to a new file, then replace the current file with it.
+	 *
+	 * @param keep			Entries to keep, most recently used first
+	 * @param oldLength		Length of the file when the entries were chosen
+	 * @param oldData		Buffer covering the file when the entries were chosen
+	 * @param generation	Value of mGeneration when the entries were chosen
+	 *
+	 * @return	true if the file was replaced, false if it was erased while copying
+	 */
+	private static boolean compact(List<Entry> keep, long oldLength, ByteBuffer oldData, long generation) throws IOException {
+		final File tmpFile = new File(mPackFileName + ".tmp");
+		RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+		boolean done = false;
+		try {
+			FileChannel out = tmp.getChannel();
+			out.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+			long pos = out.write(header, 0);
+
+			// Copy the chosen records without the lock; they never change. Oldest first, so the
+			// file is roughly in access order.
+			HashMap<Entry, Entry> copied = new HashMap<Entry, Entry>();
+			for(int i = keep.size() - 1; i >= 0; i--) {
+				Entry e = keep.get(i);
+				Entry n = copyRecord(e, oldData, out, pos);
+				pos += n.getRecordSize();
+				copied.put(e, n);
+			}
+
+			synchronized(mLock) {
+				// If the cache was erased while copying, the copies are of images that are gone
+				if (generation != mGeneration || mChannel == null)
+					return false;
+
+				// The index may have changed while copying. Keep copies of entries that are still
+				// current, and copy entries written since.
+				HashMap<String, Entry> index = new HashMap<String, Entry>();
+				ByteBuffer current = getBuffer();
+				Iterator<Map.Entry<String, Entry>> it = mIndex.entrySet().iterator();
+				while (it.hasNext()) {
+					Entry e = it.next().getValue();
+					Entry n = copied.get(e);
+					if (n == null && e.recordOffset >= oldLength) {
+						n = copyRecord(e, current, out, pos);
+						pos += n.getRecordSize();
+					}
+					if (n != null) {
+						n.lastAccess = e.lastAccess;
+						index.put(n.name, n);
+					}
+				}
+				out.force(false);
+				tmp.close();
+				done = true;
+
+				// Swap in the new file. Readers holding the old mapping can still use it.
+				closeFile();
+				if (!tmpFile.renameTo(new File(mPackFileName))) {
+					tmpFile.delete();
+					open();
+					throw new IOException("Unable to replace covers pack file");
+				}
+				mFile = new RandomAccessFile(mPackFileName, "rw");
+				mChannel = mFile.getChannel();
+				mLength = pos;
+				mMap = null;
+				mIndex = index;
+			}
+			return true;
+		} finally {
+			if (!done) {
+				tmp.close();
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Copy one record to the passed channel.
+	 *
+	 * @return	Entry for the copy
+	 */
+	private static Entry copyRecord(Entry e, ByteBuffer from, FileChannel out, long pos) throws IOException {
+		ByteBuffer b = from.duplicate();
+		b.position((int)e.recordOffset);
+		b.limit((int)(e.offset + e.length));
+		long p = pos;
+		while (b.hasRemaining())
+			p += out.write(b, p);
+		return new Entry(e.name, pos, pos + (e.offset - e.recordOffset), e.length, e.date, e.width, e.height);
+	}
+
+	/**
+	 * Nothing to do; the file needs no maintenance other than trimCache().
+	 */
+	public void analyze() {
+	}
+
+	public void close() {
+		synchronized(mInstanceCount) {
+			mInstanceCount--;
+			System.out.println("CovPack instances: " + mInstanceCount);
+		}
+	}
+}
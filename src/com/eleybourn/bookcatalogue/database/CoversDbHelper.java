@@ -22,7 +22,10 @@ package com.eleybourn.bookcatalogue.database;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -50,9 +53,15 @@ import com.eleybourn.bookcatalogue.utils.Utils;
  * In the initial pass, the covers database has a single table whose members are accessed via unique
  * 'file names'.
  * 
+ * The table is a cache with a size budget: each entry records its size and when it was last read,
+ * and trimCache() removes the least recently used entries when the total is over budget. Reads
+ * happen in the UI thread, so access times are only noted in memory, and written by trimCache().
+ * 
+ * See CoverPackFile for an alternative that avoids the database.
+ * 
  * @author Philip Warner
  */
-public class CoversDbHelper {
+public class CoversDbHelper implements CoverCache {
 	private static GenericOpenHelper mHelper;
 	private static SynchronizedDb mSharedDb;
 	private static boolean mSharedDbUnavailable = false;
@@ -61,15 +70,27 @@ public class CoversDbHelper {
 	private static Integer mInstanceCount = 0;
 
 	/** Synchronizer to coordinate DB access. Must be STATIC so all instances share same sync */
-	private static final Synchronizer mSynchronizer = new Synchronizer();
+	private static final Synchronizer mSynchronizer = DbSync.newSynchronizer();
 
 	/** List of statements we create so we can close them when object is closed. */
 	private SqlStatementManager mStatements = new SqlStatementManager();
 
 	/** DB location */
 	private static final String COVERS_DATABASE_NAME = StorageUtils.getSharedStoragePath() + "/covers.db";
+	/** DB in use; COVERS_DATABASE_NAME unless changed by setDatabaseFile() */
+	private static String mDatabaseFile = COVERS_DATABASE_NAME;
 	/** DB Version */
-	private static final int COVERS_DATABASE_VERSION = 1;
+	private static final int COVERS_DATABASE_VERSION = 2;
+
+	/** When trimming, remove entries until the cache is this percentage of its budget */
+	private static final int TRIM_TARGET_PERCENT = 90;
+
+	/** Access times not yet written to the database, by file name */
+	private static final HashMap<String, String> mPendingAccess = new HashMap<String, String>();
+	/** Stats: reads that found a valid entry */
+	private static long mHits = 0;
+	/** Stats: reads that did not */
+	private static long mMisses = 0;
 
 	// Domain and table definitions
 	
@@ -104,7 +125,13 @@ public class CoversDbHelper {
 		 */
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			throw new RuntimeException("Upgrades not handled yet!");
+			if (oldVersion < 2) {
+				// Add access times; treat every existing entry as last used when it was written
+				// (SQLite does not allow 'default current_timestamp' when adding a column)
+				db.execSQL("Alter Table " + TBL_IMAGE + " Add " + DOM_LAST_ACCESS + " datetime not null default ''");
+				db.execSQL("Update " + TBL_IMAGE + " Set " + DOM_LAST_ACCESS + " = " + DOM_DATE);
+				db.execSQL("Create Index " + TBL_IMAGE + "_IX4_last_access On " + TBL_IMAGE + " (" + DOM_LAST_ACCESS + ")");
+			}
 		}
 
 	}
@@ -116,12 +143,14 @@ public class CoversDbHelper {
 	public static final DomainDefinition DOM_HEIGHT = new DomainDefinition( "height", "integer", "",  "not null");
 	public static final DomainDefinition DOM_SIZE = new DomainDefinition( "size", "integer", "",  "not null");
 	public static final DomainDefinition DOM_FILENAME = new DomainDefinition( "filename", "text", "", "");
-	public static final TableDefinition TBL_IMAGE = new TableDefinition("image", DOM_ID, DOM_TYPE, DOM_IMAGE, DOM_DATE, DOM_WIDTH, DOM_HEIGHT, DOM_SIZE, DOM_FILENAME );
+	public static final DomainDefinition DOM_LAST_ACCESS = new DomainDefinition( "last_access", "datetime", "default current_timestamp", "not null");
+	public static final TableDefinition TBL_IMAGE = new TableDefinition("image", DOM_ID, DOM_TYPE, DOM_IMAGE, DOM_DATE, DOM_WIDTH, DOM_HEIGHT, DOM_SIZE, DOM_FILENAME, DOM_LAST_ACCESS );
 	static {
 		TBL_IMAGE
 			.addIndex("id", true, DOM_ID)
 			.addIndex("file", true, DOM_FILENAME)
-			.addIndex("file_date", true, DOM_FILENAME, DOM_DATE);
+			.addIndex("file_date", true, DOM_FILENAME, DOM_DATE)
+			.addIndex("last_access", false, DOM_LAST_ACCESS);
 	};
 
 	public static final TableDefinition TABLES[] = new TableDefinition[] {TBL_IMAGE};
@@ -134,7 +163,7 @@ public class CoversDbHelper {
 			throw new RuntimeException("Covers database unavailable");
 
 		if (mHelper == null) {
-			mHelper = new CoversHelper(COVERS_DATABASE_NAME, mTrackedCursorFactory, COVERS_DATABASE_VERSION);
+			mHelper = new CoversHelper(mDatabaseFile, mTrackedCursorFactory, COVERS_DATABASE_VERSION);
 		}
 		if (mSharedDb == null) {
 			// Try to connect.
@@ -143,8 +172,8 @@ public class CoversDbHelper {
 			} catch (Exception e) {
 				// Assume exception means DB corrupt. Log, rename, and retry
 				Logger.logError(e, "Failed to open covers db");
-				File f = new File(COVERS_DATABASE_NAME);
-				f.renameTo(new File(COVERS_DATABASE_NAME + ".dead"));
+				File f = new File(mDatabaseFile);
+				f.renameTo(new File(mDatabaseFile + ".dead"));
 
 				// Connect again...
 				try {
@@ -155,6 +184,9 @@ public class CoversDbHelper {
 					throw new RuntimeException("Covers database unavailable");
 				}
 			}
+			// Let cover lookups run while thumbnails are being written. The covers database has no
+			// TEMP tables or connection settings, so reading through a pool of connections is safe.
+			mSharedDb.enableWriteAheadLogging();
 		}
 		synchronized(mInstanceCount) {
 			mInstanceCount++;
@@ -162,6 +194,39 @@ public class CoversDbHelper {
 		}
 	}
 
+	/**
+	 * Use a different database file for all CoversDbHelper objects created after this call, or
+	 * return to the default file if path is null. DEBUG ONLY; used by the benchmarks so they
+	 * do not touch the real cache.
+	 * 
+	 * Must only be called when there are no CoversDbHelper objects in use. Access times not
+	 * yet written are discarded.
+	 * 
+	 * @param path	Full path of database file, or null
+	 */
+	public static void setDatabaseFile(String path) {
+		if (path == null)
+			path = COVERS_DATABASE_NAME;
+		synchronized(mInstanceCount) {
+			if (path.equals(mDatabaseFile))
+				return;
+			if (mInstanceCount != 0)
+				throw new RuntimeException("Can not change covers database while " + mInstanceCount + " instances are in use");
+			if (mHelper != null) {
+				try { mHelper.close(); } catch (Exception e) { Logger.logError(e); }
+			}
+			mHelper = null;
+			mSharedDb = null;
+			mSharedDbUnavailable = false;
+			synchronized(mPendingAccess) {
+				mPendingAccess.clear();
+				mHits = 0;
+				mMisses = 0;
+			}
+			mDatabaseFile = path;
+		}
+	}
+
 	private SynchronizedDb getDb() {
 		return mSharedDb;
 	}
@@ -220,8 +285,16 @@ public class CoversDbHelper {
 		Cursor c = db.query(TBL_IMAGE.getName(), new String[]{DOM_IMAGE.name}, DOM_FILENAME + "=? and " + DOM_DATE + " > ?", 
 							new String[]{filename, Utils.toSqlDateTime(lastModified)}, null, null, null);
 		try {
-			if (!c.moveToFirst())
+			if (!c.moveToFirst()) {
+				synchronized(mPendingAccess) {
+					mMisses++;
+				}
 				return null;		
+			}
+			synchronized(mPendingAccess) {
+				mHits++;
+				mPendingAccess.put(filename, Utils.toSqlDateTime(new Date()));
+			}
 			return c.getBlob(0);
 		} finally {
 			c.close();
@@ -279,7 +352,9 @@ public class CoversDbHelper {
 		cv.put(DOM_FILENAME.name, filename);
 		cv.put(DOM_IMAGE.name, bytes);
 
-		cv.put(DOM_DATE.name, Utils.toSqlDateTime(new Date()));
+		final String now = Utils.toSqlDateTime(new Date());
+		cv.put(DOM_DATE.name, now);
+		cv.put(DOM_LAST_ACCESS.name, now);
 		cv.put(DOM_TYPE.name, "T");
 		cv.put(DOM_WIDTH.name, height);
 		cv.put(DOM_HEIGHT.name, width);
@@ -330,6 +405,110 @@ public class CoversDbHelper {
 		return db.delete(TBL_IMAGE.getName(), sql, CatalogueDBAdapter.EMPTY_STRING_ARRAY);
 	}
 	
+	/**
+	 * Get the current cache occupancy and hit rate.
+	 */
+	private SynchronizedStatement mCountStmt = null;
+	private SynchronizedStatement mTotalSizeStmt = null;
+	public CacheStats getCacheStats() {
+		SynchronizedDb db = this.getDb();
+		if (mCountStmt == null) {
+			mCountStmt = mStatements.add(db, "mCountStmt", "Select Count(*) From " + TBL_IMAGE);
+			mTotalSizeStmt = mStatements.add(db, "mTotalSizeStmt", "Select Coalesce(Sum(" + DOM_SIZE + "), 0) From " + TBL_IMAGE);
+		}
+		synchronized(mPendingAccess) {
+			return new CacheStats(mCountStmt.simpleQueryForLong(), mTotalSizeStmt.simpleQueryForLong(), mHits, mMisses);
+		}
+	}
+
+	/**
+	 * Write the access times noted by getFile() to the database.
+	 */
+	private SynchronizedStatement mSetAccessStmt = null;
+	private void flushAccessTimes() {
+		HashMap<String, String> pending;
+		synchronized(mPendingAccess) {
+			if (mPendingAccess.size() == 0)
+				return;
+			pending = new HashMap<String, String>(mPendingAccess);
+			mPendingAccess.clear();
+		}
+
+		SynchronizedDb db = this.getDb();
+		if (mSetAccessStmt == null) {
+			String sql = "Update " + TBL_IMAGE + " Set " + DOM_LAST_ACCESS + " = ? Where " + DOM_FILENAME + " = ?";
+			mSetAccessStmt = mStatements.add(db, "mSetAccessStmt", sql);
+		}
+
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			for(Map.Entry<String, String> e: pending.entrySet()) {
+				mSetAccessStmt.bindString(1, e.getValue());
+				mSetAccessStmt.bindString(2, e.getKey());
+				mSetAccessStmt.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+	}
+
+	/**
+	 * Keep the cache within its budget by deleting the least recently used entries. When
+	 * over budget, entries are removed until the cache is TRIM_TARGET_PERCENT of the budget,
+	 * so a cache that is full does not need trimming after every write. Of entries last used
+	 * at the same time, the largest go first.
+	 * 
+	 * Should be run in a background thread.
+	 * 
+	 * @param maxBytes	Budget for the total size of images; 0 for no limit
+	 * 
+	 * @return	Number of entries deleted
+	 */
+	private SynchronizedStatement mDeleteIdStmt = null;
+	public int trimCache(long maxBytes) {
+		flushAccessTimes();
+		if (maxBytes <= 0)
+			return 0;
+
+		CacheStats stats = getCacheStats();
+		if (stats.bytes <= maxBytes)
+			return 0;
+
+		// Find the entries to remove, oldest first
+		final long toFree = stats.bytes - maxBytes * TRIM_TARGET_PERCENT / 100;
+		ArrayList<Long> ids = new ArrayList<Long>();
+		long freed = 0;
+		SynchronizedDb db = this.getDb();
+		Cursor c = db.rawQuery("Select " + DOM_ID + ", " + DOM_SIZE + " From " + TBL_IMAGE 
+								+ " Order By " + DOM_LAST_ACCESS + ", " + DOM_SIZE + " Desc");
+		try {
+			while (freed < toFree && c.moveToNext()) {
+				ids.add(c.getLong(0));
+				freed += c.getLong(1);
+			}
+		} finally {
+			c.close();
+		}
+
+		if (mDeleteIdStmt == null) {
+			String sql = "Delete From " + TBL_IMAGE + " Where " + DOM_ID + " = ?";
+			mDeleteIdStmt = mStatements.add(db, "mDeleteIdStmt", sql);
+		}
+		SyncLock txLock = db.beginTransaction(true);
+		try {
+			for(Long id: ids) {
+				mDeleteIdStmt.bindLong(1, id);
+				mDeleteIdStmt.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction(txLock);
+		}
+		System.out.println("Covers cache trimmed " + ids.size() + " entries (" + (freed / 1024) + "K); now " + getCacheStats());
+		return ids.size();
+	}
+
 	/**
 	 * Analyze the database
 	 */
@@ -22,10 +22,17 @@ package com.eleybourn.bookcatalogue.database;
 
 import java.lang.reflect.Field;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteClosable;
@@ -36,7 +43,10 @@ import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQuery;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.LockTypes;
 import com.eleybourn.bookcatalogue.database.DbSync.Synchronizer.SyncLock;
@@ -49,7 +59,30 @@ import com.eleybourn.bookcatalogue.utils.Logger;
  */
 public class DbSync {
 	/**
-	 * Implementation of a Readers/Writer lock that is fully reentrant.
+	 * Create a new Synchronizer for a logical database. The original ReentrantSynchronizer is used
+	 * if PREF_USE_REENTRANT_DB_LOCKING is set, otherwise ReadWriteSynchronizer.
+	 * 
+	 * Synchronizers are created when the database classes are loaded, so a change to the
+	 * preference takes effect when the app is restarted.
+	 * 
+	 * @return	Synchronizer of the currently selected implementation
+	 */
+	public static Synchronizer newSynchronizer() {
+		boolean useReentrant;
+		try {
+			useReentrant = BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_USE_REENTRANT_DB_LOCKING, false);
+		} catch (Exception e) {
+			Logger.logError(e, "Unable to read database locking preference");
+			useReentrant = false;
+		}
+		if (useReentrant)
+			return new ReentrantSynchronizer();
+		else
+			return new ReadWriteSynchronizer();
+	}
+
+	/**
+	 * Base class for Readers/Writer locks that are fully reentrant.
 	 * 
 	 * Because SQLite throws exception on locking conflicts, this class can be used to serialize WRITE
 	 * access while allowing concurrent read access.
@@ -61,23 +94,32 @@ public class DbSync {
 	 * 
 	 * These can be called in any order and locks in the current thread never block requests.
 	 * 
-	 * Deadlocks are not possible because the implementation involves a single lock object.
-	 * 
-	 * NOTE: This lock can cause writer starvation since it does not introduce pending locks.
+	 * Subclasses may record contention statistics (time spent waiting for and holding locks, and the
+	 * number of threads waiting) which can be retrieved with getStatistics().
 	 * 
 	 * @author Philip Warner
 	 */
-	public static class Synchronizer {
-		/** Main lock for synchronization */
-		private final ReentrantLock mLock = new ReentrantLock();
-		/** Condition fired when a reader releases a lock */
-		private final Condition mReleased = mLock.newCondition();
-		/** Collection of threads that have shared locks */
-		private final Hashtable<Thread,Integer> mSharedOwners = new Hashtable<Thread,Integer>();
+	public static abstract class Synchronizer {
+		/** Waits longer than this are reported as they happen */
+		private static final long LONG_WAIT_NANOS = 200 * 1000000L;
+
 		/** Lock used to pass back to consumers of shared locks */
-		private final SharedLock mSharedLock = new SharedLock();
+		protected final SharedLock mSharedLock = new SharedLock();
 		/** Lock used to pass back to consumers of exclusive locks */
-		private final ExclusiveLock mExclusiveLock = new ExclusiveLock();
+		protected final ExclusiveLock mExclusiveLock = new ExclusiveLock();
+
+		/** Number of locks granted that were not already held by the thread */
+		private final AtomicLong mLockCount = new AtomicLong();
+		/** Number of those locks that had to wait for another thread */
+		private final AtomicLong mWaitCount = new AtomicLong();
+		/** Total time spent waiting */
+		private final AtomicLong mWaitNanos = new AtomicLong();
+		/** Longest wait */
+		private final AtomicLong mMaxWaitNanos = new AtomicLong();
+		/** Total time locks were held by threads */
+		private final AtomicLong mHoldNanos = new AtomicLong();
+		/** Largest number of threads waiting at the same time */
+		private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
 
 		/** Enum of lock types supported */
 		public enum LockTypes { shared, exclusive };
@@ -123,6 +165,104 @@ public class DbSync {
 			}
 		}
 
+		/**
+		 * Get a shared lock; the caller must call unlock() on the returned object when done.
+		 * 
+		 * @return	Lock
+		 */
+		public abstract SyncLock getSharedLock();
+		/**
+		 * Release a shared lock.
+		 */
+		public abstract void releaseSharedLock();
+		/**
+		 * Get an exclusive lock; the caller must call unlock() on the returned object when done.
+		 * 
+		 * @return	Lock
+		 */
+		public abstract SyncLock getExclusiveLock();
+		/**
+		 * Release an exclusive lock.
+		 */
+		public abstract void releaseExclusiveLock();
+
+		/**
+		 * Called when the database uses write-ahead logging, so readers do not conflict with the writer
+		 * and shared locks need not be taken.
+		 * 
+		 * @param concurrent	true if readers can run concurrently with a writer
+		 * 
+		 * @return	true if this implementation supports concurrent readers
+		 */
+		public boolean setConcurrentReaders(boolean concurrent) {
+			return false;
+		}
+
+		/**
+		 * Record that a thread acquired its first lock.
+		 * 
+		 * @param waitNanos		Time spent waiting for other threads; 0 if no wait
+		 * @param queueDepth	Number of threads waiting, including this one, if it waited
+		 */
+		protected void recordAcquired(long waitNanos, int queueDepth) {
+			mLockCount.incrementAndGet();
+			if (waitNanos <= 0)
+				return;
+
+			mWaitCount.incrementAndGet();
+			mWaitNanos.addAndGet(waitNanos);
+			long max = mMaxWaitNanos.get();
+			while (waitNanos > max && !mMaxWaitNanos.compareAndSet(max, waitNanos))
+				max = mMaxWaitNanos.get();
+			int depth = mMaxQueueDepth.get();
+			while (queueDepth > depth && !mMaxQueueDepth.compareAndSet(depth, queueDepth))
+				depth = mMaxQueueDepth.get();
+
+			if (waitNanos > LONG_WAIT_NANOS)
+				System.out.println(Thread.currentThread().getName() + " waited " + (waitNanos / 1000000) + "ms for database lock; " + getStatistics());
+		}
+
+		/**
+		 * Record that a thread released its last lock.
+		 * 
+		 * @param holdNanos		Time the thread held locks
+		 */
+		protected void recordReleased(long holdNanos) {
+			mHoldNanos.addAndGet(holdNanos);
+		}
+
+		/**
+		 * Get a description of the lock contention so far.
+		 * 
+		 * @return	Statistics
+		 */
+		public String getStatistics() {
+			final long locks = mLockCount.get();
+			final long waits = mWaitCount.get();
+			return getClass().getSimpleName() + ": " + locks + " locks, " + waits + " waited"
+					+ " (total " + (mWaitNanos.get() / 1000000) + "ms, max " + (mMaxWaitNanos.get() / 1000000) + "ms, max queue " + mMaxQueueDepth.get() + ")"
+					+ ", held " + (mHoldNanos.get() / 1000000) + "ms";
+		}
+	}
+
+	/**
+	 * Original Synchronizer implementation: a single ReentrantLock protecting a table of threads
+	 * that hold shared locks. Does not record contention statistics.
+	 * 
+	 * Deadlocks are not possible because the implementation involves a single lock object.
+	 * 
+	 * NOTE: This lock can cause writer starvation since it does not introduce pending locks.
+	 * 
+	 * @author Philip Warner
+	 */
+	public static class ReentrantSynchronizer extends Synchronizer {
+		/** Main lock for synchronization */
+		private final ReentrantLock mLock = new ReentrantLock();
+		/** Condition fired when a reader releases a lock */
+		private final Condition mReleased = mLock.newCondition();
+		/** Collection of threads that have shared locks */
+		private final Hashtable<Thread,Integer> mSharedOwners = new Hashtable<Thread,Integer>();
+
 		/**
 		 * Routine to purge shared locks held by dead threads. Can only be called 
 		 * while mLock is held.
@@ -145,6 +285,7 @@ public class DbSync {
 		 * 
 		 * @return
 		 */
+		@Override
 		public SyncLock getSharedLock() {
 			final Thread t = Thread.currentThread();
 			//System.out.println(t.getName() + " requesting SHARED lock");
@@ -169,6 +310,7 @@ public class DbSync {
 		/**
 		 * Release a shared lock. If no more locks in thread, remove from list.
 		 */
+		@Override
 		public void releaseSharedLock() {
 			final Thread t = Thread.currentThread();
 			//System.out.println(t.getName() + " releasing SHARED lock");
@@ -205,6 +347,7 @@ public class DbSync {
 		 * 
 		 * @return
 		 */
+		@Override
 		public SyncLock getExclusiveLock() {
 			final Thread t = Thread.currentThread();
 			//long t0 = System.currentTimeMillis();
@@ -245,6 +388,7 @@ public class DbSync {
 		/**
 		 * Release the lock previously taken
 		 */
+		@Override
 		public void releaseExclusiveLock() {
 			//final Thread t = Thread.currentThread();
 			//System.out.println(t.getName() + " releasing EXCLUSIVE lock");
@@ -255,6 +399,249 @@ public class DbSync {
 			//System.out.println(t.getName() + " released EXCLUSIVE lock");
 		}
 	}
+
+	/**
+	 * Synchronizer that keeps each thread's lock counts in a ThreadLocal, so reentrant requests
+	 * (the majority) need no shared data at all, and the first lock taken by a thread only needs a
+	 * short synchronized block to update the reader count or writer.
+	 * 
+	 * As with ReentrantSynchronizer, a thread that is the only holder of a shared lock can upgrade
+	 * to an exclusive lock, and a thread holding an exclusive lock can take shared locks. Unlike
+	 * ReentrantSynchronizer, new readers wait while a writer is waiting, so writers can not be starved.
+	 * 
+	 * Records contention statistics; see Synchronizer.getStatistics().
+	 * 
+	 * When the database uses write-ahead logging, setConcurrentReaders() stops shared locks being taken
+	 * at all; exclusive locks then only serialize writers.
+	 * 
+	 * Locks held by threads that die without releasing them are released when another thread has
+	 * waited DEAD_THREAD_CHECK_MILLIS for a lock, as ReentrantSynchronizer does in purgeOldLocks().
+	 * 
+	 * @author Philip Warner
+	 */
+	public static class ReadWriteSynchronizer extends Synchronizer {
+		/**
+		 * Locks held by a thread
+		 * 
+		 * @author Philip Warner
+		 */
+		private static class ThreadLocks {
+			/** Number of shared locks held */
+			int shared = 0;
+			/** Number of exclusive locks held */
+			int exclusive = 0;
+			/** Set if this thread is in mReaders */
+			boolean isReader = false;
+			/** Time the thread took its first lock */
+			long heldSince;
+		}
+
+		/** Locks held by each thread */
+		private final ThreadLocal<ThreadLocks> mThreadLocks = new ThreadLocal<ThreadLocks>() {
+			@Override
+			protected ThreadLocks initialValue() {
+				return new ThreadLocks();
+			}
+		};
+
+		/** Object used to synchronize changes to the fields below */
+		private final Object mMonitor = new Object();
+		/** Waits longer than this check for locks held by threads that have died */
+		private static final long DEAD_THREAD_CHECK_MILLIS = 1000;
+
+		/** Threads holding shared locks */
+		private final HashSet<Thread> mReaders = new HashSet<Thread>();
+		/** Thread holding the exclusive lock, if any */
+		private Thread mWriter = null;
+		/** Number of threads waiting for an exclusive lock */
+		private int mWaitingWriters = 0;
+		/** Number of threads waiting for any lock */
+		private int mWaiting = 0;
+
+		/** Set when readers do not need to be synchronized with the writer; see setConcurrentReaders() */
+		private volatile boolean mConcurrentReaders = false;
+		/** Lock returned for shared locks when readers are not synchronized */
+		private final SyncLock mUnsyncedSharedLock = new SyncLock() {
+			@Override
+			public void unlock() {
+			}
+			@Override
+			public LockTypes getType() {
+				return LockTypes.shared;
+			}
+		};
+
+		@Override
+		public boolean setConcurrentReaders(boolean concurrent) {
+			mConcurrentReaders = concurrent;
+			return true;
+		}
+
+		@Override
+		public SyncLock getSharedLock() {
+			// With write-ahead logging readers never conflict with the writer
+			if (mConcurrentReaders)
+				return mUnsyncedSharedLock;
+
+			final ThreadLocks locks = mThreadLocks.get();
+			if (locks.shared > 0 || locks.exclusive > 0) {
+				// Already have access
+				locks.shared++;
+				return mSharedLock;
+			}
+
+			long waitNanos = 0;
+			int queueDepth = 0;
+			boolean interrupted = false;
+			synchronized(mMonitor) {
+				if (mWriter != null || mWaitingWriters > 0) {
+					final long t0 = System.nanoTime();
+					queueDepth = ++mWaiting;
+					while (mWriter != null || mWaitingWriters > 0) {
+						try {
+							waitForRelease();
+						} catch (InterruptedException e) {
+							// Shared locks have always been uninterruptible; remember and keep waiting
+							interrupted = true;
+						}
+					}
+					mWaiting--;
+					waitNanos = System.nanoTime() - t0;
+				}
+				mReaders.add(Thread.currentThread());
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			locks.shared = 1;
+			locks.isReader = true;
+			locks.heldSince = System.nanoTime();
+			recordAcquired(waitNanos, queueDepth);
+			return mSharedLock;
+		}
+
+		@Override
+		public void releaseSharedLock() {
+			final ThreadLocks locks = mThreadLocks.get();
+			if (locks.shared <= 0)
+				throw new RuntimeException("Release a lock when not held");
+
+			locks.shared--;
+			if (locks.shared == 0 && locks.isReader) {
+				locks.isReader = false;
+				synchronized(mMonitor) {
+					mReaders.remove(Thread.currentThread());
+					if (mWaiting > 0)
+						mMonitor.notifyAll();
+				}
+				if (locks.exclusive == 0)
+					recordReleased(System.nanoTime() - locks.heldSince);
+			}
+		}
+
+		@Override
+		public SyncLock getExclusiveLock() {
+			final ThreadLocks locks = mThreadLocks.get();
+			if (locks.exclusive > 0) {
+				locks.exclusive++;
+				return mExclusiveLock;
+			}
+
+			// If we are a reader, we will be waiting for the other readers
+			final int ownReader = locks.isReader ? 1 : 0;
+			long waitNanos = 0;
+			int queueDepth = 0;
+			synchronized(mMonitor) {
+				if (mWriter != null || mReaders.size() > ownReader) {
+					final long t0 = System.nanoTime();
+					queueDepth = ++mWaiting;
+					mWaitingWriters++;
+					try {
+						while (mWriter != null || mReaders.size() > ownReader)
+							waitForRelease();
+					} catch (InterruptedException e) {
+						// Probably happens because thread was interrupted. Just die.
+						throw new RuntimeException("Unable to get exclusive lock", e);
+					} finally {
+						mWaitingWriters--;
+						mWaiting--;
+						// Readers may have been waiting for us to finish waiting
+						if (mWaiting > 0)
+							mMonitor.notifyAll();
+					}
+					waitNanos = System.nanoTime() - t0;
+				}
+				mWriter = Thread.currentThread();
+			}
+
+			locks.exclusive = 1;
+			if (locks.shared == 0) {
+				locks.heldSince = System.nanoTime();
+				recordAcquired(waitNanos, queueDepth);
+			} else if (waitNanos > 0) {
+				// Upgrade; the hold time is already being counted
+				recordAcquired(waitNanos, queueDepth);
+			}
+			return mExclusiveLock;
+		}
+
+		@Override
+		public void releaseExclusiveLock() {
+			final ThreadLocks locks = mThreadLocks.get();
+			if (locks.exclusive <= 0)
+				throw new RuntimeException("Exclusive Lock is not held by this thread");
+
+			locks.exclusive--;
+			if (locks.exclusive == 0) {
+				synchronized(mMonitor) {
+					mWriter = null;
+					// Shared locks taken while exclusive were not counted as readers; they are now.
+					if (locks.shared > 0 && !locks.isReader) {
+						locks.isReader = true;
+						mReaders.add(Thread.currentThread());
+					}
+					if (mWaiting > 0)
+						mMonitor.notifyAll();
+				}
+				if (locks.shared == 0)
+					recordReleased(System.nanoTime() - locks.heldSince);
+			}
+		}
+
+		/**
+		 * Wait for a lock to be released. If nothing happens for DEAD_THREAD_CHECK_MILLIS, release
+		 * any locks held by threads that have died. Must be called while synchronized on mMonitor.
+		 */
+		private void waitForRelease() throws InterruptedException {
+			final long t0 = System.nanoTime();
+			mMonitor.wait(DEAD_THREAD_CHECK_MILLIS);
+			if (System.nanoTime() - t0 >= DEAD_THREAD_CHECK_MILLIS * 1000000L)
+				purgeOldLocks();
+		}
+
+		/**
+		 * Routine to purge locks held by dead threads. Must be called while synchronized on mMonitor.
+		 */
+		private void purgeOldLocks() {
+			boolean purged = false;
+			Iterator<Thread> it = mReaders.iterator();
+			while (it.hasNext()) {
+				Thread t = it.next();
+				if (!t.isAlive()) {
+					Logger.logError(new RuntimeException("Shared lock held by dead thread " + t.getName() + " released"));
+					it.remove();
+					purged = true;
+				}
+			}
+			if (mWriter != null && !mWriter.isAlive()) {
+				Logger.logError(new RuntimeException("Exclusive lock held by dead thread " + mWriter.getName() + " released"));
+				mWriter = null;
+				purged = true;
+			}
+			if (purged)
+				mMonitor.notifyAll();
+		}
+	}
 	
 	/**
 	 * Database wrapper class that performs thread synchronization on all operations.
@@ -268,6 +655,17 @@ public class DbSync {
 		final Synchronizer mSync;
 		/** Currently held transaction lock, if any */
 		private SyncLock mTxLock = null;
+		/** Set when write-ahead logging has been enabled */
+		private boolean mIsWal = false;
+
+		/** Time without writes after which the write-ahead log is checkpointed */
+		private static final long CHECKPOINT_DELAY = 5000;
+		/** Timer used to run checkpoints for all databases */
+		private static Timer mCheckpointTimer = null;
+		/** Time of the most recent write */
+		private volatile long mLastWriteTime = 0;
+		/** Set while a checkpoint is scheduled */
+		private boolean mCheckpointScheduled = false;
 
 		/**
 		 * Constructor. Use of this method is not recommended. It is better to use
@@ -444,6 +842,7 @@ public class DbSync {
 					mDb.execSQL(sql);
 				} finally {
 					l.unlock();
+					writeDone();
 				}				
 			}
 		}
@@ -492,8 +891,10 @@ public class DbSync {
 			try {
 				return mDb.insertOrThrow(table, nullColumnHack, values);				
 			} finally {
-				if (l != null)
+				if (l != null) {
 					l.unlock();
+					writeDone();
+				}
 			}
 		}
 
@@ -517,8 +918,10 @@ public class DbSync {
 			try {
 				return mDb.update(table, values, whereClause, whereArgs);				
 			} finally {
-				if (l != null)
+				if (l != null) {
 					l.unlock();
+					writeDone();
+				}
 			}
 		}
 
@@ -540,8 +943,10 @@ public class DbSync {
 			try {
 				return mDb.delete(table, whereClause, whereArgs);				
 			} finally {
-				if (l != null)
+				if (l != null) {
 					l.unlock();
+					writeDone();
+				}
 			}
 		}
 
@@ -631,7 +1036,10 @@ public class DbSync {
 				if (mTxLock != null)
 					throw new RuntimeException("Starting a transaction when one is already started");
 
-				mDb.beginTransaction();
+				if (mIsWal && !isUpdate)
+					beginTransactionNonExclusive();
+				else
+					mDb.beginTransaction();
 			} catch (Exception e) {
 				l.unlock();
 				throw new RuntimeException("Unable to start database transaction: " + e.getMessage(), e);
@@ -657,6 +1065,126 @@ public class DbSync {
 				// see the old lock when it gets the lock
 				mTxLock = null;
 				l.unlock();
+				if (l.getType() == LockTypes.exclusive)
+					writeDone();
+			}
+		}
+
+		/**
+		 * Start a transaction that does not block readers; only used with write-ahead logging.
+		 */
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		private void beginTransactionNonExclusive() {
+			mDb.beginTransactionNonExclusive();
+		}
+
+		/**
+		 * Try to enable write-ahead logging (Android 3.0 and later). Readers (eg. list paging and cover
+		 * lookups) can then run at the same time as a single writer, so the synchronizer is told not to
+		 * take shared locks, and the log is checkpointed in the background once writes stop.
+		 * 
+		 * Must be called before the database is used by other threads.
+		 * 
+		 * NOTE: With write-ahead logging Android reads through a pool of connections, but PRAGMAs
+		 * and TEMP tables and triggers (eg. those used by BooklistBuilder) only exist on the
+		 * primary connection. Do not use this on a database that relies on them until that work
+		 * is pinned to a single connection; for now it is only used for the covers database.
+		 * 
+		 * @return	true if write-ahead logging is enabled
+		 */
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		public boolean enableWriteAheadLogging() {
+			if (mIsWal)
+				return true;
+			if (Build.VERSION.SDK_INT < 11)
+				return false;
+
+			SyncLock l = mSync.getExclusiveLock();
+			try {
+				mIsWal = mDb.enableWriteAheadLogging();
+			} catch (Exception e) {
+				Logger.logError(e, "Unable to enable write-ahead logging");
+				mIsWal = false;
+			} finally {
+				l.unlock();
+			}
+
+			if (mIsWal)
+				mSync.setConcurrentReaders(true);
+			System.out.println("Write-ahead logging " + (mIsWal ? "enabled" : "not available") + " for " + mDb.getPath());
+			return mIsWal;
+		}
+
+		/**
+		 * Accessor
+		 * 
+		 * @return	true if write-ahead logging is enabled
+		 */
+		public boolean isWriteAheadLoggingEnabled() {
+			return mIsWal;
+		}
+
+		/**
+		 * Called after a write outside a transaction, or at the end of an update transaction, to
+		 * schedule a checkpoint when the writes have stopped.
+		 */
+		private void writeDone() {
+			if (!mIsWal)
+				return;
+			mLastWriteTime = System.currentTimeMillis();
+			synchronized(this) {
+				if (mCheckpointScheduled)
+					return;
+				mCheckpointScheduled = true;
+			}
+			scheduleCheckpoint(CHECKPOINT_DELAY);
+		}
+
+		/**
+		 * Queue a checkpoint check after the passed delay.
+		 * 
+		 * @param delay	Milliseconds
+		 */
+		private void scheduleCheckpoint(long delay) {
+			synchronized(SynchronizedDb.class) {
+				if (mCheckpointTimer == null)
+					mCheckpointTimer = new Timer("checkpoint", true);
+				mCheckpointTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						checkpointIfIdle();
+					}}, delay);
+			}
+		}
+
+		/**
+		 * Checkpoint the write-ahead log if there have been no writes for CHECKPOINT_DELAY, otherwise
+		 * check again later. Uses a PASSIVE checkpoint so readers are never blocked.
+		 */
+		private void checkpointIfIdle() {
+			final long idle = System.currentTimeMillis() - mLastWriteTime;
+			if (idle < CHECKPOINT_DELAY) {
+				scheduleCheckpoint(CHECKPOINT_DELAY - idle);
+				return;
+			}
+			synchronized(this) {
+				mCheckpointScheduled = false;
+			}
+			if (!mDb.isOpen())
+				return;
+
+			SyncLock l = mSync.getExclusiveLock();
+			try {
+				Cursor c = mDb.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", CatalogueDBAdapter.EMPTY_STRING_ARRAY);
+				try {
+					c.moveToFirst();
+				} finally {
+					c.close();
+				}
+			} catch (Exception e) {
+				Logger.logError(e, "Write-ahead log checkpoint failed");
+			} finally {
+				l.unlock();
 			}
 		}
 		/**
@@ -0,0 +1,673 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.eleybourn.bookcatalogue.debug;
+
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_BOOK_UUID;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_READ;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.DOM_TITLE;
+import static com.eleybourn.bookcatalogue.booklist.DatabaseDefinitions.TBL_BOOKS;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.graphics.Bitmap;
+
+import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookDetailsAbstract;
+import com.eleybourn.bookcatalogue.BooksCursor;
+import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
+import com.eleybourn.bookcatalogue.backup.CsvExporter;
+import com.eleybourn.bookcatalogue.backup.CsvImporter;
+import com.eleybourn.bookcatalogue.backup.Exporter;
+import com.eleybourn.bookcatalogue.backup.Importer;
+import com.eleybourn.bookcatalogue.booklist.BooklistBuilder;
+import com.eleybourn.bookcatalogue.booklist.BooklistPreferencesActivity;
+import com.eleybourn.bookcatalogue.booklist.BooklistPseudoCursor;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyle;
+import com.eleybourn.bookcatalogue.booklist.BooklistStyles;
+import com.eleybourn.bookcatalogue.database.CoverCache;
+import com.eleybourn.bookcatalogue.database.CoverPackFile;
+import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.utils.BitmapPool;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
+import com.eleybourn.bookcatalogue.utils.Logger;
+import com.eleybourn.bookcatalogue.utils.StorageUtils;
+import com.eleybourn.bookcatalogue.utils.Utils;
+
+/**
+ * Benchmark module. DEBUG ONLY!
+ *
+ * Switches CatalogueDBAdapter to the scratch database SCRATCH_DATABASE, and the cover caches to
+ * scratch files, seeds them with a synthetic catalogue of the requested size, times the main
+ * database, cover and booklist paths against it, then deletes the scratch files; the real
+ * catalogue and cover cache are not touched. All synthetic books are on BENCHMARK_SHELF (and
+ * every third one also on BENCHMARK_SHELF_2).
+ *
+ * Book cover files can only live in the covers directory, so the synthetic ones are written
+ * there; their books have UUIDs starting with BOOK_UUID_PREFIX, which real UUIDs never do, and
+ * cleanup deletes them, including leftovers from an interrupted run.
+ *
+ * Each benchmark reports the number of timed operations, their throughput, and the mean,
+ * median, 90th, 99th percentile and maximum latency. The report is written to System.out
+ * and to REPORT_FILE in the shared storage directory.
+ *
+ * @author Philip Warner
+ */
+public class Benchmarks {
+	/** Catalogue sizes used by runAll() */
+	public static final int[] DEFAULT_SIZES = new int[] {10000, 50000, 200000};
+
+	/** Scratch database used instead of the real catalogue */
+	private static final String SCRATCH_DATABASE = "benchmark_scratch.db";
+	/** Scratch covers database used instead of the real one */
+	private static final String SCRATCH_COVERS_DATABASE = "benchmark_covers.db";
+	/** Scratch covers pack file used instead of the real one */
+	private static final String SCRATCH_COVERS_PACK = "benchmark_covers.pack";
+	/** Prefix of all synthetic book UUIDs */
+	private static final String BOOK_UUID_PREFIX = "_benchmark_book_";
+	/** Bookshelf holding all synthetic books */
+	private static final String BENCHMARK_SHELF = "_Benchmark_";
+	/** Second bookshelf, so that books are on more than one shelf */
+	private static final String BENCHMARK_SHELF_2 = "_Benchmark_2_";
+	/** Prefix of all synthetic cover names */
+	private static final String COVER_PREFIX = "_benchmark_.";
+	/** Name of generated CSV file */
+	private static final String CSV_FILE = "benchmark.csv";
+	/** Name of exported CSV file */
+	private static final String EXPORT_FILE = "benchmark-export.csv";
+	/** Name of report file */
+	private static final String REPORT_FILE = "benchmark.txt";
+
+	/** Timed runs of each booklist style */
+	private static final int BUILD_RUNS = 3;
+	/** Random cursor moves */
+	private static final int RANDOM_MOVES = 1000;
+	/** FTS searches */
+	private static final int SEARCHES = 200;
+	/** Synthetic covers to write and read */
+	private static final int COVERS = 1000;
+	/** Size of each synthetic cover */
+	private static final int COVER_BYTES = 8 * 1024;
+	/** Size of the synthetic book cover images */
+	private static final int COVER_FILE_WIDTH = 300;
+	private static final int COVER_FILE_HEIGHT = 450;
+	/** Size of the thumbnails made from them; as used by the book list */
+	private static final int THUMBNAIL_SIZE = 120;
+
+	/** Words used to build titles, so that searches match several books */
+	private static final String[] WORDS = new String[] {"Night", "Garden", "River", "Empire", "Glass", "Winter",
+											"Shadow", "Machine", "Island", "Letters", "Storm", "Silver"};
+
+	/** Fixed seed so that runs are comparable */
+	private static final long SEED = 1234567L;
+
+	/**
+	 * Run the benchmarks for each of the DEFAULT_SIZES.
+	 *
+	 * @return	Report
+	 */
+	public static String runAll() {
+		return run(DEFAULT_SIZES);
+	}
+
+	/**
+	 * Run the benchmarks for each of the passed catalogue sizes.
+	 *
+	 * @param sizes		Number of synthetic books to create for each run
+	 *
+	 * @return	Report
+	 */
+	public static String run(int... sizes) {
+		StringBuilder report = new StringBuilder();
+		// Remove any scratch files left by an interrupted run
+		deleteScratchFiles();
+		try {
+			CatalogueDBAdapter.setDatabaseName(SCRATCH_DATABASE);
+			CoversDbHelper.setDatabaseFile(getFile(SCRATCH_COVERS_DATABASE).getPath());
+			CoverPackFile.setPackFile(getFile(SCRATCH_COVERS_PACK).getPath());
+
+			CatalogueDBAdapter db = new CatalogueDBAdapter(BookCatalogueApp.context);
+			db.open();
+			try {
+				for(int size: sizes) {
+					report(report, "==== " + size + " books (" + db.countBooks() + " in database before seeding) ====");
+					try {
+						cleanup(db);
+						runSize(db, size, report);
+					} catch (Exception e) {
+						Logger.logError(e, "Benchmark failed for " + size + " books");
+						report(report, "FAILED: " + e.getMessage());
+					} finally {
+						cleanup(db);
+					}
+				}
+			} finally {
+				db.close();
+			}
+		} catch (Exception e) {
+			Logger.logError(e, "Benchmark failed");
+			report(report, "FAILED: " + e.getMessage());
+		} finally {
+			try {
+				CatalogueDBAdapter.setDatabaseName(null);
+				CoversDbHelper.setDatabaseFile(null);
+				CoverPackFile.setPackFile(null);
+			} finally {
+				deleteScratchFiles();
+			}
+		}
+
+		// Save a copy for later comparison
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(getFile(REPORT_FILE)), "UTF8");
+			try {
+				out.write(report.toString());
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Logger.logError(e, "Failed to save benchmark report");
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Seed the database with the requested number of books and run each benchmark.
+	 *
+	 * @param db		Database
+	 * @param size		Number of books
+	 * @param report	Report to append to
+	 */
+	private static void runSize(CatalogueDBAdapter db, int size, StringBuilder report) throws IOException {
+		final Random rnd = new Random(SEED);
+
+		// Seed the books via a CSV import; the import is itself one of the benchmarks.
+		File csv = getFile(CSV_FILE);
+		writeCsv(csv, size, rnd);
+		Timings t = new Timings("CsvImporter.importBooks");
+		InputStream in = new FileInputStream(csv);
+		try {
+			t.start();
+			new CsvImporter().importBooks(in, null, new ImportListener(), Importer.IMPORT_ALL);
+			t.stop();
+		} finally {
+			in.close();
+			csv.delete();
+		}
+		report(report, t.report(size));
+
+		seedCoverFiles(size, report);
+		benchmarkCovers(size, rnd, report);
+		benchmarkCoverFiles(db, size, rnd, report);
+		benchmarkBuilds(db, report);
+		benchmarkPaging(db, rnd, report);
+		benchmarkSearch(db, size, rnd, report);
+		benchmarkExport(db, report);
+	}
+
+	/**
+	 * Write a cover file for the first COVERS books.
+	 */
+	private static void seedCoverFiles(int size, StringBuilder report) throws IOException {
+		final int count = Math.min(size, COVERS);
+		final byte[] image = makeCoverImage();
+
+		Timings t = new Timings("Cover file write");
+		for(int i = 0; i < count; i++) {
+			final String uuid = BOOK_UUID_PREFIX + i;
+			t.start();
+			OutputStream out = new FileOutputStream(CoverFileIndex.getCoverFile(uuid));
+			try {
+				out.write(image);
+			} finally {
+				out.close();
+			}
+			CoverFileIndex.coverChanged(uuid);
+			t.stop();
+		}
+		report(report, t.report(1));
+	}
+
+	/**
+	 * Make a JPEG image the size of a typical cover.
+	 */
+	private static byte[] makeCoverImage() {
+		Bitmap bm = Bitmap.createBitmap(COVER_FILE_WIDTH, COVER_FILE_HEIGHT, Bitmap.Config.RGB_565);
+		try {
+			for(int y = 0; y < COVER_FILE_HEIGHT; y++) {
+				for(int x = 0; x < COVER_FILE_WIDTH; x++)
+					bm.setPixel(x, y, 0xff000000 | (x * 0x010203 + y * 0x030201));
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			bm.compress(Bitmap.CompressFormat.JPEG, 70, out);
+			return out.toByteArray();
+		} finally {
+			bm.recycle();
+		}
+	}
+
+	/**
+	 * Time making book list thumbnails from the cover files when they are not cached.
+	 */
+	private static void benchmarkCoverFiles(CatalogueDBAdapter db, int size, Random rnd, StringBuilder report) {
+		final int count = Math.min(size, COVERS);
+		Timings t = new Timings("Utils.fetchBookCoverIntoImageView (not cached)");
+		for(int i = 0; i < count; i++) {
+			final String uuid = BOOK_UUID_PREFIX + rnd.nextInt(count);
+			t.start();
+			Bitmap bm = db.getUtils().fetchBookCoverIntoImageView(null, THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, uuid, true, false);
+			t.stop();
+			if (bm != null)
+				BitmapPool.release(bm);
+		}
+		report(report, t.report(1));
+	}
+
+	/**
+	 * Time the cover cache writes and reads.
+	 */
+	private static void benchmarkCovers(int size, Random rnd, StringBuilder report) {
+		final int count = Math.min(size, COVERS);
+		final byte[] image = new byte[COVER_BYTES];
+		rnd.nextBytes(image);
+
+		CoverCache coversDb = Utils.openCoverCache();
+		try {
+			Timings write = new Timings(coversDb.getClass().getSimpleName() + ".saveFile");
+			for(int i = 0; i < count; i++) {
+				write.start();
+				coversDb.saveFile(COVER_PREFIX + i, 150, 100, image);
+				write.stop();
+			}
+			report(report, write.report(1));
+
+			// Anything written before now is valid
+			final Date since = new Date(0);
+			Timings read = new Timings(coversDb.getClass().getSimpleName() + ".getFile");
+			for(int i = 0; i < count; i++) {
+				final String name = COVER_PREFIX + rnd.nextInt(count);
+				read.start();
+				coversDb.getFile(name, since);
+				read.stop();
+			}
+			report(report, read.report(1));
+		} finally {
+			coversDb.close();
+		}
+	}
+
+	/**
+	 * Time BooklistBuilder.build() for each builtin style. The book change counter is changed
+	 * before each build, so the list is built rather than restored from BooklistCache.
+	 */
+	private static void benchmarkBuilds(CatalogueDBAdapter db, StringBuilder report) {
+		for(BooklistStyle style: BooklistStyles.getAllStyles(db)) {
+			if (style.isUserDefined())
+				continue;
+			Timings t = new Timings("BooklistBuilder.build [" + style.getDisplayName() + "]");
+			for(int i = 0; i < BUILD_RUNS; i++) {
+				db.setAllBooksChanged();
+				BooklistBuilder builder = newBuilder(db, style);
+				try {
+					t.start();
+					builder.build(BooklistPreferencesActivity.BOOKLISTS_ALWAYS_EXPANDED, 0, BENCHMARK_SHELF, "", "", "", "", "");
+					t.stop();
+				} finally {
+					builder.close();
+				}
+			}
+			report(report, t.report(1));
+		}
+	}
+
+	/**
+	 * Time sequential and random movement through a BooklistPseudoCursor for the default style.
+	 */
+	private static void benchmarkPaging(CatalogueDBAdapter db, Random rnd, StringBuilder report) {
+		BooklistBuilder builder = newBuilder(db, BooklistStyles.getAllStyles(db).get(0));
+		try {
+			builder.build(BooklistPreferencesActivity.BOOKLISTS_ALWAYS_EXPANDED, 0, BENCHMARK_SHELF, "", "", "", "", "");
+			BooklistPseudoCursor list = builder.getList();
+			try {
+				final int count = list.getCount();
+				final int col = list.getColumnIndex(DOM_TITLE.name);
+
+				Timings seq = new Timings("BooklistPseudoCursor sequential (" + count + " rows)");
+				for(int i = 0; i < count; i++) {
+					seq.start();
+					list.moveToPosition(i);
+					list.getString(col);
+					seq.stop();
+				}
+				report(report, seq.report(1));
+
+				Timings random = new Timings("BooklistPseudoCursor random");
+				for(int i = 0; i < RANDOM_MOVES && count > 0; i++) {
+					final int pos = rnd.nextInt(count);
+					random.start();
+					list.moveToPosition(pos);
+					list.getString(col);
+					random.stop();
+				}
+				report(report, random.report(1));
+			} finally {
+				list.close();
+			}
+		} finally {
+			builder.close();
+		}
+	}
+
+	/**
+	 * Time CatalogueDBAdapter.searchFts() for a mix of author, title and keyword searches.
+	 */
+	private static void benchmarkSearch(CatalogueDBAdapter db, int size, Random rnd, StringBuilder report) {
+		Timings t = new Timings("CatalogueDBAdapter.searchFts");
+		long rows = 0;
+		for(int i = 0; i < SEARCHES; i++) {
+			String author = "";
+			String title = "";
+			String anywhere = "";
+			switch(i % 3) {
+			case 0:
+				author = getFamilyName(rnd.nextInt(getAuthorCount(size)));
+				break;
+			case 1:
+				title = WORDS[rnd.nextInt(WORDS.length)];
+				break;
+			default:
+				anywhere = WORDS[rnd.nextInt(WORDS.length)] + " " + getFamilyName(rnd.nextInt(getAuthorCount(size)));
+				break;
+			}
+			t.start();
+			Cursor c = db.searchFts(author, title, anywhere);
+			try {
+				if (c != null)
+					rows += c.getCount();
+			} finally {
+				if (c != null)
+					c.close();
+			}
+			t.stop();
+		}
+		report(report, t.report(1) + ", " + rows + " rows found");
+	}
+
+	/**
+	 * Time CsvExporter.export() of the whole database.
+	 */
+	private static void benchmarkExport(CatalogueDBAdapter db, StringBuilder report) throws IOException {
+		final int books = db.countBooks();
+		File f = getFile(EXPORT_FILE);
+		Timings t = new Timings("CsvExporter.export (" + books + " books)");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		try {
+			t.start();
+			new CsvExporter().export(out, new ExportListener(), Exporter.EXPORT_ALL, null);
+			out.flush();
+			t.stop();
+		} finally {
+			out.close();
+		}
+		report(report, t.report(books) + ", " + f.length() + " bytes");
+		f.delete();
+	}
+
+	/**
+	 * Remove all synthetic books, bookshelves and covers.
+	 *
+	 * @param db	Database
+	 */
+	private static void cleanup(CatalogueDBAdapter db) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		BooksCursor c = db.fetchAllBooks("", BENCHMARK_SHELF, "", "", "", "", "");
+		try {
+			while (c.moveToNext())
+				ids.add(c.getId());
+		} finally {
+			c.close();
+		}
+		for(Long id: ids)
+			db.deleteBook(id);
+		db.purgeAuthors();
+		db.purgeSeries();
+
+		for(String shelf: new String[] {BENCHMARK_SHELF, BENCHMARK_SHELF_2}) {
+			final long shelfId = db.fetchBookshelfIdByName(shelf);
+			if (shelfId != 0)
+				db.deleteBookshelf(shelfId);
+		}
+
+		CoverCache coversDb = Utils.openCoverCache();
+		try {
+			coversDb.deleteBookCover(COVER_PREFIX);
+		} finally {
+			coversDb.close();
+		}
+
+		// Delete cover files whose books are gone; eg. from an interrupted run
+		final File dir = CoverFileIndex.getCoverFile(BOOK_UUID_PREFIX).getParentFile();
+		final String[] names = dir.list();
+		if (names != null) {
+			for(String name: names) {
+				if (name.startsWith(BOOK_UUID_PREFIX))
+					CoverFileIndex.deleteCover(name.substring(0, name.lastIndexOf('.')));
+			}
+		}
+		// Only succeeds if empty; it was created for the synthetic covers
+		dir.delete();
+	}
+
+	/**
+	 * Delete the scratch database and cover caches, and any files that go with them.
+	 */
+	private static void deleteScratchFiles() {
+		BookCatalogueApp.context.deleteDatabase(SCRATCH_DATABASE);
+		for(String suffix: new String[] {"", "-journal", "-wal", "-shm", ".dead"})
+			getFile(SCRATCH_COVERS_DATABASE + suffix).delete();
+		for(String suffix: new String[] {"", ".tmp", ".dead"})
+			getFile(SCRATCH_COVERS_PACK + suffix).delete();
+	}
+
+	/**
+	 * Write a CSV file in the format understood by CsvImporter containing synthetic books.
+	 * There is one author for every 10 books, one series for every 20 books and some books
+	 * have two authors.
+	 *
+	 * @param f			File to write
+	 * @param size		Number of books
+	 * @param rnd		Random number source
+	 */
+	private static void writeCsv(File f, int size, Random rnd) throws IOException {
+		final int authors = getAuthorCount(size);
+		final int series = Math.max(1, size / 20);
+		final String shelves = BENCHMARK_SHELF + BookDetailsAbstract.BOOKSHELF_SEPERATOR + BENCHMARK_SHELF_2;
+
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF8"), 65536);
+		try {
+			writeRow(out, CatalogueDBAdapter.KEY_ROWID, DOM_BOOK_UUID.name, CatalogueDBAdapter.KEY_AUTHOR_DETAILS, CatalogueDBAdapter.KEY_TITLE,
+					CatalogueDBAdapter.KEY_ISBN, CatalogueDBAdapter.KEY_BOOKSHELF, CatalogueDBAdapter.KEY_SERIES_DETAILS,
+					CatalogueDBAdapter.KEY_READ, CatalogueDBAdapter.KEY_GENRE, CatalogueDBAdapter.KEY_DESCRIPTION);
+			for(int i = 0; i < size; i++) {
+				String author = getAuthorName(rnd.nextInt(authors));
+				if (i % 7 == 0)
+					author += "|" + getAuthorName(rnd.nextInt(authors));
+				final String title = WORDS[rnd.nextInt(WORDS.length)] + " of the " + WORDS[rnd.nextInt(WORDS.length)] + " " + i;
+				final String seriesDetails = (i % 2 == 0) ? "Series " + rnd.nextInt(series) + " (" + (i % 12 + 1) + ")" : "";
+				writeRow(out, "", BOOK_UUID_PREFIX + i, author, title,
+						String.format("978%010d", i),
+						(i % 3 == 0) ? shelves : BENCHMARK_SHELF,
+						seriesDetails,
+						(i % 4 == 0) ? "1" : "0",
+						"Genre " + (i % 25),
+						"Synthetic book " + i + " about " + WORDS[i % WORDS.length]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a single quoted CSV row.
+	 */
+	private static void writeRow(Writer out, String...values) throws IOException {
+		for(int i = 0; i < values.length; i++) {
+			if (i > 0)
+				out.write(',');
+			out.write('"');
+			out.write(values[i].replace("\"", "\"\""));
+			out.write('"');
+		}
+		out.write('\n');
+	}
+
+	private static int getAuthorCount(int size) {
+		return Math.max(1, size / 10);
+	}
+
+	private static String getFamilyName(int author) {
+		return "Author" + author;
+	}
+
+	private static String getAuthorName(int author) {
+		return getFamilyName(author) + ", " + WORDS[author % WORDS.length];
+	}
+
+	/**
+	 * Create a builder with the same extra domains used by BooksOnBookshelf.
+	 */
+	private static BooklistBuilder newBuilder(CatalogueDBAdapter db, BooklistStyle style) {
+		BooklistBuilder builder = new BooklistBuilder(db, style);
+		builder.requireDomain(DOM_TITLE, TBL_BOOKS.dot(DOM_TITLE), true);
+		builder.requireDomain(DOM_READ, TBL_BOOKS.dot(DOM_READ), false);
+		return builder;
+	}
+
+	private static File getFile(String name) {
+		return new File(StorageUtils.getSharedStoragePath() + "/" + name);
+	}
+
+	private static void report(StringBuilder report, String line) {
+		System.out.println("BENCHMARK: " + line);
+		report.append(line);
+		report.append('\n');
+	}
+
+	/**
+	 * Collection of elapsed times for one benchmark.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class Timings {
+		private final String mName;
+		private long[] mTimes = new long[256];
+		private int mCount = 0;
+		private long mStart;
+
+		Timings(String name) {
+			mName = name;
+		}
+
+		void start() {
+			mStart = System.nanoTime();
+		}
+
+		void stop() {
+			final long elapsed = System.nanoTime() - mStart;
+			if (mCount == mTimes.length) {
+				long[] times = new long[mCount * 2];
+				System.arraycopy(mTimes, 0, times, 0, mCount);
+				mTimes = times;
+			}
+			mTimes[mCount++] = elapsed;
+		}
+
+		/**
+		 * Summarise the times.
+		 *
+		 * @param opsPerRun		Number of logical operations (eg. books) in each timed run; used for throughput.
+		 *
+		 * @return	Description
+		 */
+		String report(int opsPerRun) {
+			if (mCount == 0)
+				return mName + ": no runs";
+
+			long[] sorted = new long[mCount];
+			System.arraycopy(mTimes, 0, sorted, 0, mCount);
+			Arrays.sort(sorted);
+			long total = 0;
+			for(long t: sorted)
+				total += t;
+
+			final double opsPerSec = total == 0 ? 0 : (double)mCount * opsPerRun * 1000000000.0 / total;
+			return String.format("%s: %d runs, %.1f ops/s, mean %.3fms, p50 %.3fms, p90 %.3fms, p99 %.3fms, max %.3fms",
+					mName, mCount, opsPerSec, toMs(total / mCount),
+					toMs(percentile(sorted, 50)), toMs(percentile(sorted, 90)), toMs(percentile(sorted, 99)), toMs(sorted[mCount - 1]));
+		}
+
+		private static long percentile(long[] sorted, int pct) {
+			int i = (int)Math.ceil(sorted.length * pct / 100.0) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+		}
+
+		private static double toMs(long nanos) {
+			return nanos / 1000000.0;
+		}
+	}
+
+	/**
+	 * Import listener that ignores progress.
+	 */
+	private static class ImportListener implements Importer.OnImporterListener {
+		@Override
+		public void onProgress(String message, int position) {}
+		@Override
+		public boolean isCancelled() { return false; }
+		@Override
+		public void setMax(int max) {}
+	}
+
+	/**
+	 * Export listener that ignores progress.
+	 */
+	private static class ExportListener implements Exporter.ExportListener {
+		@Override
+		public void setMax(int max) {}
+		@Override
+		public void onProgress(String message, int position) {}
+		@Override
+		public boolean isCancelled() { return false; }
+	}
+}
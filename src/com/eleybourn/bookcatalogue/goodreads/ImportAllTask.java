@@ -49,8 +49,10 @@ import com.eleybourn.bookcatalogue.BooksRowView;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.Series;
+import com.eleybourn.bookcatalogue.ThumbnailPregenerateTask;
 import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler;
 import com.eleybourn.bookcatalogue.goodreads.api.ListReviewsApiHandler.ListReviewsFieldNames;
+import com.eleybourn.bookcatalogue.utils.CoverFileIndex;
 import com.eleybourn.bookcatalogue.utils.Logger;
 import com.eleybourn.bookcatalogue.utils.Utils;
 
@@ -353,7 +355,10 @@ public class ImportAllTask extends GenericTask {
 			String uuid = db.getBookUuid(id);
 			File thumb = CatalogueDBAdapter.getTempThumbnail();
 			File real = CatalogueDBAdapter.fetchThumbnailByUuid(uuid);
-			thumb.renameTo(real);			
+			if (thumb.renameTo(real)) {
+				CoverFileIndex.coverChanged(uuid);
+				ThumbnailPregenerateTask.queue(uuid);
+			}
 		}
 		//db.setGoodreadsSyncDate(id);
 	}
@@ -0,0 +1,413 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+import android.widget.ImageView;
+
+import com.eleybourn.bookcatalogue.R;
+
+/**
+ * Pool of unused thumbnail bitmaps that new thumbnails are decoded into (using
+ * BitmapFactory.Options.inBitmap) or drawn into, so that scrolling a list of covers does not
+ * allocate a new bitmap for every row.
+ *
+ * Bitmaps created here are reference counted, and only go back to the pool when every holder
+ * has released them:
+ *
+ * - the code that created it holds the first reference.
+ * - CoverMemoryCache holds one while the bitmap is cached, and gives one to each caller of getBitmap().
+ * - ThumbnailCacheWriterTask holds one until the bitmap is written.
+ * - a list ImageView holds one while it shows the bitmap; see setImageBitmap().
+ *
+ * A reference that is never released is harmless; the bitmap is simply left to the garbage
+ * collector. So code should only release a bitmap when it knows it is finished with it. Bitmaps
+ * not created here are ignored, and release() returns false so the caller can recycle them as before.
+ *
+ * Before KitKat, a bitmap can only be reused for an image of exactly the same size, and only when
+ * not sub-sampling, so free bitmaps are kept by size. From KitKat any bitmap that is big enough
+ * can be used, so they are kept in buckets by power-of-two byte count. Before Honeycomb bitmaps
+ * can not be reused and the pool does nothing.
+ *
+ * @author Philip Warner
+ */
+public class BitmapPool {
+	/** Set if bitmaps can be reused at all */
+	private static final boolean ENABLED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	/** Set if a bitmap can be reused for any image that fits in it */
+	private static final boolean ANY_SIZE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	/** Maximum bytes of free bitmaps to keep */
+	private static final long MAX_FREE_BYTES = Runtime.getRuntime().maxMemory() / 16;
+	/** Config of pooled bitmaps; the default when decoding */
+	private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+	private static final int BYTES_PER_PIXEL = 4;
+	/** Set to TRUE to log statistics every STATS_INTERVAL bitmaps. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_STATS = false;
+	/** Number of bitmaps between statistics reports */
+	private static final int STATS_INTERVAL = 500;
+
+	/** Reference counts of bitmaps created here. Weak, so bitmaps that are never released can be collected */
+	private static final WeakHashMap<Bitmap, Integer> mRefs = new WeakHashMap<Bitmap, Integer>();
+	/** Free bitmaps by key; see getKey() */
+	private static final HashMap<String, ArrayList<Bitmap>> mFree = new HashMap<String, ArrayList<Bitmap>>();
+	/** Free bitmaps, oldest first */
+	private static final LinkedList<Bitmap> mFreeOrder = new LinkedList<Bitmap>();
+	/** Total size of free bitmaps */
+	private static long mFreeBytes = 0;
+
+	/** Bitmaps allocated because none could be reused */
+	private static long mAllocated = 0;
+	/** Bitmaps reused from the pool */
+	private static long mReused = 0;
+	/** Bitmaps returned to the pool */
+	private static long mReturned = 0;
+	/** Bitmaps dropped because the pool was full, or rejected by the decoder */
+	private static long mDiscarded = 0;
+
+	/**
+	 * Decode image data (eg. a thumbnail from the covers database) at full size.
+	 *
+	 * @param data	Image data
+	 *
+	 * @return	Bitmap with one reference held by the caller, or null if the data could not be decoded
+	 */
+	public static Bitmap decodeByteArray(byte[] data) {
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		if (ENABLED) {
+			// Get the size; this only reads the header
+			opt.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+			opt.inJustDecodeBounds = false;
+			if (opt.outWidth <= 0 || opt.outHeight <= 0)
+				return null;
+		}
+		return decode(null, data, opt);
+	}
+
+	/**
+	 * Decode an image file.
+	 *
+	 * @param filename	Image file
+	 * @param opt		Options, with outWidth and outHeight set by a bounds decode and the
+	 * 					required inSampleSize
+	 *
+	 * @return	Bitmap with one reference held by the caller, or null if the file could not be decoded
+	 */
+	public static Bitmap decodeFile(String filename, BitmapFactory.Options opt) {
+		return decode(filename, null, opt);
+	}
+
+	/**
+	 * Scale a bitmap, drawing into a pooled bitmap if possible. Like Bitmap.createBitmap() with a
+	 * scaling matrix and filtering, except that the source bitmap is never returned.
+	 *
+	 * @param src		Bitmap to scale
+	 * @param ratio		Scale
+	 *
+	 * @return	Bitmap with one reference held by the caller
+	 */
+	public static Bitmap createScaledBitmap(Bitmap src, float ratio) {
+		final int width = Math.max(1, Math.round(src.getWidth() * ratio));
+		final int height = Math.max(1, Math.round(src.getHeight() * ratio));
+
+		Bitmap bm = ENABLED ? take(width, height) : null;
+		final boolean reused = (bm != null);
+		if (reused) {
+			if (ANY_SIZE)
+				reconfigure(bm, width, height);
+			// Old image may show through a transparent one
+			bm.eraseColor(Color.TRANSPARENT);
+		} else {
+			bm = Bitmap.createBitmap(width, height, CONFIG);
+		}
+
+		Matrix matrix = new Matrix();
+		matrix.setScale((float)width / src.getWidth(), (float)height / src.getHeight());
+		Canvas canvas = new Canvas(bm);
+		canvas.drawBitmap(src, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+		if (ENABLED)
+			register(bm, reused);
+		return bm;
+	}
+
+	/**
+	 * Add a reference to a bitmap.
+	 *
+	 * @param bm	Bitmap; ignored if not created here
+	 */
+	public static synchronized void retain(Bitmap bm) {
+		Integer refs = mRefs.get(bm);
+		if (refs != null)
+			mRefs.put(bm, refs + 1);
+	}
+
+	/**
+	 * Remove a reference to a bitmap, returning it to the pool if it was the last.
+	 *
+	 * @param bm	Bitmap
+	 *
+	 * @return	true if the bitmap was created here, in which case it must NOT be recycled
+	 */
+	public static synchronized boolean release(Bitmap bm) {
+		Integer refs = mRefs.get(bm);
+		if (refs == null)
+			return false;
+		if (refs > 1) {
+			mRefs.put(bm, refs - 1);
+		} else {
+			mRefs.remove(bm);
+			mReturned++;
+			putFree(bm);
+		}
+		return true;
+	}
+
+	/**
+	 * Show a bitmap in a list ImageView. The view holds a reference to the bitmap until it is
+	 * given another one (or null) by this method, so the old bitmap can be reused once it is
+	 * no longer needed elsewhere.
+	 *
+	 * Must be called in the UI thread.
+	 *
+	 * @param v		View
+	 * @param bm	Bitmap, or null to clear the view
+	 */
+	public static void setImageBitmap(ImageView v, Bitmap bm) {
+		final Bitmap old = (Bitmap)ViewTagger.getTag(v, R.id.TAG_POOLED_BITMAP);
+		// Retain first, in case it is the same bitmap
+		if (bm != null)
+			retain(bm);
+		ViewTagger.setTag(v, R.id.TAG_POOLED_BITMAP, bm);
+		v.setImageBitmap(bm);
+		if (old != null)
+			release(old);
+	}
+
+	/**
+	 * Get the number of bitmaps allocated because none could be reused
+	 */
+	public static synchronized long getAllocatedCount() {
+		return mAllocated;
+	}
+
+	/**
+	 * Get the number of bitmaps reused from the pool
+	 */
+	public static synchronized long getReusedCount() {
+		return mReused;
+	}
+
+	/**
+	 * Get a description of the pool usage and reuse rate.
+	 *
+	 * @return	Statistics
+	 */
+	public static synchronized String getStatistics() {
+		final long total = mAllocated + mReused;
+		final long reusePct = total == 0 ? 0 : mReused * 100 / total;
+		return "Bitmap pool: " + (ENABLED ? "" : "(disabled) ") + total + " bitmaps, " + reusePct + "% reused ("
+				+ mAllocated + " allocated, " + mReused + " reused); "
+				+ mReturned + " returned, " + mDiscarded + " discarded; "
+				+ mFreeOrder.size() + " free (" + mFreeBytes + "/" + MAX_FREE_BYTES + " bytes)";
+	}
+
+	/**
+	 * Decode a file or image data, reusing a free bitmap if possible.
+	 */
+	private static Bitmap decode(String filename, byte[] data, BitmapFactory.Options opt) {
+		Bitmap reuse = null;
+		if (ENABLED) {
+			final int sample = opt.inSampleSize < 1 ? 1 : opt.inSampleSize;
+			setMutable(opt);
+			if (ANY_SIZE || sample == 1) {
+				// Round up, so the bitmap is never too small
+				reuse = take((opt.outWidth + sample - 1) / sample, (opt.outHeight + sample - 1) / sample);
+				setInBitmap(opt, reuse);
+			}
+		}
+
+		Bitmap bm;
+		try {
+			bm = decodeOnce(filename, data, opt);
+		} catch (IllegalArgumentException e) {
+			// The decoder could not use the free bitmap (eg. an unsupported format); decode normally
+			synchronized(BitmapPool.class) {
+				mDiscarded++;
+			}
+			reuse = null;
+			setInBitmap(opt, null);
+			bm = decodeOnce(filename, data, opt);
+		}
+
+		if (reuse != null && bm != reuse) {
+			// Not used
+			synchronized(BitmapPool.class) {
+				putFree(reuse);
+			}
+		}
+		if (bm != null && ENABLED)
+			register(bm, bm == reuse);
+		return bm;
+	}
+
+	/**
+	 * Decode a file or image data using the passed options.
+	 */
+	private static Bitmap decodeOnce(String filename, byte[] data, BitmapFactory.Options opt) {
+		if (filename != null)
+			return BitmapFactory.decodeFile(filename, opt);
+		else
+			return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+	}
+
+	/**
+	 * Start counting references to a new bitmap, with one held by the caller.
+	 *
+	 * @param bm		Bitmap
+	 * @param reused	true if it came from the pool
+	 */
+	private static synchronized void register(Bitmap bm, boolean reused) {
+		mRefs.put(bm, 1);
+		if (reused)
+			mReused++;
+		else
+			mAllocated++;
+		if (DEBUG_STATS && (mAllocated + mReused) % STATS_INTERVAL == 0)
+			System.out.println(getStatistics());
+	}
+
+	/**
+	 * Remove a free bitmap that can hold an image of the passed size from the pool.
+	 *
+	 * @return	Bitmap, or null if there is none
+	 */
+	private static synchronized Bitmap take(int width, int height) {
+		ArrayList<Bitmap> list = null;
+		if (ANY_SIZE) {
+			// Any bitmap in the bucket for the next power of two is big enough; look one
+			// bucket further, but no more, so small images don't take much bigger bitmaps.
+			final int bucket = log2((long)width * height * BYTES_PER_PIXEL, true);
+			for(int i = bucket; i <= bucket + 1 && (list == null || list.size() == 0); i++)
+				list = mFree.get("b" + i);
+		} else {
+			list = mFree.get(width + "x" + height);
+		}
+		if (list == null || list.size() == 0)
+			return null;
+
+		Bitmap bm = list.remove(list.size() - 1);
+		mFreeOrder.remove(bm);
+		mFreeBytes -= getSize(bm);
+		return bm;
+	}
+
+	/**
+	 * Add a bitmap to the free bitmaps, discarding the oldest if the pool is full.
+	 * Called with the class lock held.
+	 */
+	private static void putFree(Bitmap bm) {
+		final long size = getSize(bm);
+		// Don't let one huge bitmap (eg. a full cover) flush everything else
+		if (bm.isRecycled() || !bm.isMutable() || bm.getConfig() != CONFIG || size > MAX_FREE_BYTES / 8) {
+			mDiscarded++;
+			return;
+		}
+
+		final String key = getKey(bm);
+		ArrayList<Bitmap> list = mFree.get(key);
+		if (list == null) {
+			list = new ArrayList<Bitmap>();
+			mFree.put(key, list);
+		}
+		list.add(bm);
+		mFreeOrder.add(bm);
+		mFreeBytes += size;
+
+		while (mFreeBytes > MAX_FREE_BYTES && mFreeOrder.size() > 0) {
+			Bitmap old = mFreeOrder.removeFirst();
+			mFree.get(getKey(old)).remove(old);
+			mFreeBytes -= getSize(old);
+			mDiscarded++;
+			// No one has a reference, so it can be freed now
+			old.recycle();
+		}
+	}
+
+	/**
+	 * Get the key of the free list for a bitmap; see take().
+	 */
+	private static String getKey(Bitmap bm) {
+		if (ANY_SIZE)
+			return "b" + log2(getSize(bm), false);
+		else
+			return bm.getWidth() + "x" + bm.getHeight();
+	}
+
+	/**
+	 * Get the number of bytes available in a bitmap.
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static long getSize(Bitmap bm) {
+		if (ANY_SIZE)
+			return bm.getAllocationByteCount();
+		else
+			return bm.getRowBytes() * bm.getHeight();
+	}
+
+	/**
+	 * Get the base-2 log of a number, rounded up or down.
+	 */
+	private static int log2(long n, boolean roundUp) {
+		int log = 63 - Long.numberOfLeadingZeros(n);
+		if (roundUp && (n & (n - 1)) != 0)
+			log++;
+		return log;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void setMutable(BitmapFactory.Options opt) {
+		// Needed for a bitmap to be reused later
+		opt.inMutable = true;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void setInBitmap(BitmapFactory.Options opt, Bitmap bm) {
+		opt.inBitmap = bm;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static void reconfigure(Bitmap bm, int width, int height) {
+		bm.reconfigure(width, height, CONFIG);
+	}
+}
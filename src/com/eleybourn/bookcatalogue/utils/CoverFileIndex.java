@@ -0,0 +1,543 @@
+/*
+ * @copyright 2013 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Index of the cover image files, so that finding a book's cover (and its size and date) does not
+ * need to look at the file system.
+ *
+ * Covers used to be kept in the shared storage directory, as '<uuid>.jpg' or '<uuid>.png'. They
+ * are now kept in a subdirectory of COVERS_DIR named by the first characters of the UUID, so
+ * no directory gets too large. Covers found in the shared storage directory (from older
+ * versions, or copied there by the user) are still used, and are moved in the background.
+ *
+ * The index is built when first needed and saved to INDEX_FILE in COVERS_DIR, along with the
+ * date of each directory. When the saved index is loaded, only directories whose date has
+ * changed (ie. files were added or removed by something else) are scanned again.
+ *
+ * Code that writes, renames or deletes a cover file must call coverChanged() so the index stays
+ * correct. The saved index is deleted on the first change after it is saved, and saved again
+ * shortly after the last change, so a saved index is never out of date.
+ *
+ * @author Philip Warner
+ */
+public class CoverFileIndex {
+	/** Subdirectory of shared storage for new covers */
+	public static final String COVERS_DIR = "covers";
+	/** Number of UUID characters used to name the subdirectory for a cover */
+	private static final int HASH_CHARS = 2;
+	/** Saved index, in COVERS_DIR */
+	private static final String INDEX_FILE = "covers.idx";
+	private static final String HEADER = "BookCatalogue-CoverIndex";
+	private static final int VERSION = 1;
+	private static final String KEY_DIR = "dir";
+	private static final String KEY_COVER = "cover";
+	/** Time to wait after a change before saving the index */
+	private static final long SAVE_DELAY = 2000;
+	/** Set to TRUE to log index loads and cover moves. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_STATS = false;
+
+	/**
+	 * Details of one cover file
+	 *
+	 * @author Philip Warner
+	 */
+	public static class CoverInfo {
+		public final File file;
+		public final long size;
+		public final long modified;
+
+		CoverInfo(File file, long size, long modified) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/** Check if the file is a PNG; if not, it is a JPEG */
+		public boolean isPng() {
+			return file.getName().endsWith(".png");
+		}
+	}
+
+	/** Covers by UUID; null until loaded */
+	private static HashMap<String, CoverInfo> mCovers = null;
+	/** Dates of indexed directories */
+	private static HashMap<File, Long> mDirDates = new HashMap<File, Long>();
+	/** Set when the index has changed since it was saved */
+	private static boolean mDirty = false;
+	/** Set while a save is waiting to run */
+	private static boolean mSaveQueued = false;
+	/** Set once covers in the shared storage directory have been queued to be moved */
+	private static boolean mMoveStarted = false;
+	/** Number of backups and restores running; covers are not moved while there are any */
+	private static int mMoveHolds = 0;
+
+	/**
+	 * Get the cover file for a book: the existing file if there is one, otherwise the file to
+	 * create for a new JPEG cover.
+	 *
+	 * @param uuid	Book UUID
+	 */
+	public static synchronized File getCoverFile(String uuid) {
+		CoverInfo info = getIndex().get(uuid);
+		if (info != null)
+			return info.file;
+		else
+			return getNewCoverFile(uuid + ".jpg");
+	}
+
+	/**
+	 * Get the details of a book's cover.
+	 *
+	 * @param uuid	Book UUID
+	 *
+	 * @return	Details, or null if the book has no cover
+	 */
+	public static synchronized CoverInfo getInfo(String uuid) {
+		return getIndex().get(uuid);
+	}
+
+	/**
+	 * Get the file to write for a cover with the passed file name (eg. from a backup): the
+	 * existing file if it has the same name, otherwise a new file in the cover subdirectories.
+	 *
+	 * @param name	File name; '<uuid>.jpg' or '<uuid>.png'
+	 */
+	public static synchronized File getFileForName(String name) {
+		CoverInfo info = getIndex().get(getUuid(name));
+		if (info != null && info.file.getName().equals(name))
+			return info.file;
+		else
+			return getNewCoverFile(name);
+	}
+
+	/**
+	 * Get the file for a new cover, creating its directory if necessary.
+	 *
+	 * @param name	File name; '<uuid>.jpg' or '<uuid>.png'
+	 */
+	private static File getNewCoverFile(String name) {
+		File dir = getHashDir(name);
+		if (!dir.exists() && dir.mkdirs()) {
+			noteDirDate(dir);
+			noteDirDate(dir.getParentFile());
+		}
+		return new File(dir, name);
+	}
+
+	/**
+	 * Get the subdirectory for a cover
+	 *
+	 * @param name	UUID or file name
+	 */
+	private static File getHashDir(String name) {
+		final String hash = name.length() < HASH_CHARS ? name : name.substring(0, HASH_CHARS);
+		return new File(getCoversDir(), hash.toLowerCase());
+	}
+
+	/**
+	 * Get the directory holding the cover subdirectories
+	 */
+	private static File getCoversDir() {
+		return new File(StorageUtils.getSharedStorage(), COVERS_DIR);
+	}
+
+	/**
+	 * Record the current date of an indexed directory after changing it ourselves, so it
+	 * will not be scanned again. Called with the class lock held.
+	 */
+	private static void noteDirDate(File dir) {
+		final long modified = dir.lastModified();
+		if (modified == 0)
+			mDirDates.remove(dir);
+		else
+			mDirDates.put(dir, modified);
+	}
+
+	/**
+	 * Update the index after a book's cover file has been written, renamed or deleted.
+	 *
+	 * @param uuid	Book UUID
+	 */
+	public static synchronized void coverChanged(String uuid) {
+		if (uuid == null || uuid.equals(""))
+			return;
+		HashMap<String, CoverInfo> index = getIndex();
+
+		// Look in the places a cover can be, in order of preference
+		final File shared = StorageUtils.getSharedStorage();
+		final File hashed = getHashDir(uuid);
+		File[] candidates = new File[] {
+				new File(hashed, uuid + ".jpg"), new File(hashed, uuid + ".png"),
+				new File(shared, uuid + ".jpg"), new File(shared, uuid + ".png") };
+		CoverInfo info = null;
+		for(File f: candidates) {
+			final long modified = f.lastModified();
+			if (modified != 0) {
+				info = new CoverInfo(f, f.length(), modified);
+				break;
+			}
+		}
+
+		if (info == null)
+			index.remove(uuid);
+		else
+			index.put(uuid, info);
+		noteDirDate(hashed);
+		noteDirDate(shared);
+		changed();
+	}
+
+	/**
+	 * Update the index after a cover file has been written, renamed or deleted.
+	 *
+	 * @param file	Cover file; '<uuid>.jpg' or '<uuid>.png'
+	 */
+	public static void coverChanged(File file) {
+		coverChanged(getUuid(file.getName()));
+	}
+
+	/**
+	 * Delete all cover files for a book.
+	 *
+	 * @param uuid	Book UUID
+	 */
+	public static synchronized void deleteCover(String uuid) {
+		CoverInfo info = getIndex().get(uuid);
+		while (info != null) {
+			if (!info.file.delete() && info.file.exists()) {
+				Logger.logError(new RuntimeException("Unable to delete cover " + info.file.getAbsolutePath()));
+				break;
+			}
+			// There may be another (eg. a PNG as well as a JPEG)
+			coverChanged(uuid);
+			info = getIndex().get(uuid);
+		}
+	}
+
+	/**
+	 * Stop covers being moved into the cover subdirectories until releaseMoves() is called.
+	 * A backup holds a list of cover files, and a restore may be writing to them, so the files
+	 * must not be moved under them.
+	 */
+	public static synchronized void holdMoves() {
+		mMoveHolds++;
+	}
+
+	/**
+	 * Allow covers to be moved again; see holdMoves().
+	 */
+	public static synchronized void releaseMoves() {
+		mMoveHolds--;
+		CoverFileIndex.class.notifyAll();
+	}
+
+	/**
+	 * Get the UUID part of a cover file name
+	 */
+	private static String getUuid(String name) {
+		final int pos = name.lastIndexOf('.');
+		return pos < 0 ? name : name.substring(0, pos);
+	}
+
+	/**
+	 * Get the index, loading or building it if necessary. Called with the class lock held.
+	 */
+	private static HashMap<String, CoverInfo> getIndex() {
+		if (mCovers == null) {
+			final long t0 = System.currentTimeMillis();
+			mCovers = new HashMap<String, CoverInfo>();
+			mDirDates = new HashMap<File, Long>();
+			try {
+				load();
+			} catch (Exception e) {
+				Logger.logError(e, "Failed to load cover index; rebuilding");
+				mCovers.clear();
+				mDirDates.clear();
+			}
+			final int rescanned = refresh();
+			if (DEBUG_STATS)
+				System.out.println("Cover index: " + mCovers.size() + " covers, " + rescanned + " directories scanned in " + (System.currentTimeMillis() - t0) + "ms");
+			if (rescanned > 0)
+				changed();
+			startMove();
+		}
+		return mCovers;
+	}
+
+	/**
+	 * Start a thread to move any covers in the shared storage directory into the cover
+	 * subdirectories. Called with the class lock held.
+	 */
+	private static void startMove() {
+		if (mMoveStarted)
+			return;
+		final File shared = StorageUtils.getSharedStorage();
+		boolean found = false;
+		for(CoverInfo info: mCovers.values()) {
+			if (shared.equals(info.file.getParentFile())) {
+				found = true;
+				break;
+			}
+		}
+		if (!found)
+			return;
+
+		mMoveStarted = true;
+		Thread t = new Thread("CoverFileIndex-move") {
+			@Override
+			public void run() {
+				int moved = 0;
+				String[] uuids;
+				synchronized(CoverFileIndex.class) {
+					uuids = mCovers.keySet().toArray(new String[0]);
+				}
+				// Take the lock for each file, so lookups are not held up
+				for(String uuid: uuids) {
+					synchronized(CoverFileIndex.class) {
+						try {
+							while (mMoveHolds > 0)
+								CoverFileIndex.class.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+						CoverInfo info = mCovers.get(uuid);
+						if (info == null || !shared.equals(info.file.getParentFile()))
+							continue;
+						File dest = getNewCoverFile(info.file.getName());
+						if (dest.exists()) {
+							// Already moved (eg. the original could not be deleted); the file in the
+							// subdirectory is the one used, so the original is just a duplicate.
+							if (info.file.delete())
+								coverChanged(uuid);
+						} else if (info.file.renameTo(dest)) {
+							coverChanged(uuid);
+							moved++;
+						}
+					}
+				}
+				if (DEBUG_STATS)
+					System.out.println("Moved " + moved + " covers into " + COVERS_DIR);
+			}};
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Scan any directory that is new or has changed since it was indexed, and forget any that
+	 * has gone. Called with the class lock held.
+	 *
+	 * @return	Number of directories scanned
+	 */
+	private static int refresh() {
+		int scanned = 0;
+		final File shared = StorageUtils.getSharedStorage();
+		final File coversDir = getCoversDir();
+
+		// Forget directories that have gone
+		Iterator<File> it = mDirDates.keySet().iterator();
+		while (it.hasNext()) {
+			File dir = it.next();
+			if (!dir.isDirectory()) {
+				forgetDir(dir);
+				it.remove();
+			}
+		}
+
+		if (refreshDir(shared))
+			scanned++;
+		if (coversDir.isDirectory()) {
+			// The subdirectory list only needs reading if one has been added or removed. Saving
+			// the index also changes the date, so reading the list does not count as a change.
+			Long date = mDirDates.get(coversDir);
+			final long modified = coversDir.lastModified();
+			if (date == null || date != modified) {
+				mDirDates.put(coversDir, modified);
+				File[] dirs = coversDir.listFiles();
+				if (dirs != null) {
+					for(File dir: dirs) {
+						if (dir.isDirectory() && !mDirDates.containsKey(dir) && refreshDir(dir))
+							scanned++;
+					}
+				}
+			}
+			for(File dir: mDirDates.keySet().toArray(new File[0])) {
+				if (coversDir.equals(dir.getParentFile()) && refreshDir(dir))
+					scanned++;
+			}
+		}
+		return scanned;
+	}
+
+	/**
+	 * Scan one directory if it is new or has changed. Called with the class lock held.
+	 *
+	 * @return	true if scanned
+	 */
+	private static boolean refreshDir(File dir) {
+		final long modified = dir.lastModified();
+		Long date = mDirDates.get(dir);
+		if (date != null && date == modified)
+			return false;
+
+		forgetDir(dir);
+		mDirDates.put(dir, modified);
+		File[] files = dir.listFiles();
+		if (files == null)
+			return true;
+		for(File f: files) {
+			final String name = f.getName();
+			// Temp images are not covers
+			if (name.startsWith("tmp") || !(name.endsWith(".jpg") || name.endsWith(".png")))
+				continue;
+			final String uuid = getUuid(name);
+			CoverInfo info = new CoverInfo(f, f.length(), f.lastModified());
+			CoverInfo prev = mCovers.get(uuid);
+			if (prev == null || isPreferred(info.file, prev.file))
+				mCovers.put(uuid, info);
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the first file should be used in preference to the second when a book has
+	 * more than one: covers subdirectories first, then JPEG before PNG.
+	 */
+	private static boolean isPreferred(File f1, File f2) {
+		final boolean hashed1 = !f1.getParentFile().equals(StorageUtils.getSharedStorage());
+		final boolean hashed2 = !f2.getParentFile().equals(StorageUtils.getSharedStorage());
+		if (hashed1 != hashed2)
+			return hashed1;
+		return f1.getName().endsWith(".jpg") && f2.getName().endsWith(".png");
+	}
+
+	/**
+	 * Remove all covers in the passed directory from the index. Called with the class lock held.
+	 */
+	private static void forgetDir(File dir) {
+		Iterator<CoverInfo> it = mCovers.values().iterator();
+		while (it.hasNext()) {
+			if (dir.equals(it.next().file.getParentFile()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Note a change: delete the saved index, and queue a save. Called with the class lock held.
+	 */
+	private static void changed() {
+		if (!mDirty) {
+			mDirty = true;
+			new File(getCoversDir(), INDEX_FILE).delete();
+		}
+		if (!mSaveQueued) {
+			mSaveQueued = true;
+			Thread t = new Thread("CoverFileIndex-save") {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(SAVE_DELAY);
+					} catch (InterruptedException e) {
+						// Save now
+					}
+					synchronized(CoverFileIndex.class) {
+						mSaveQueued = false;
+						if (mDirty) {
+							try {
+								save();
+								mDirty = false;
+							} catch (Exception e) {
+								Logger.logError(e, "Failed to save cover index");
+							}
+						}
+					}
+				}};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Load the saved index, if present. Called with the class lock held.
+	 */
+	private static void load() throws IOException {
+		final File file = new File(getCoversDir(), INDEX_FILE);
+		if (!file.exists())
+			return;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 65536);
+		try {
+			String line = in.readLine();
+			if (line == null || !line.equals(HEADER + " " + VERSION))
+				return;
+			while ( (line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields[0].equals(KEY_DIR) && fields.length == 3) {
+					mDirDates.put(new File(fields[1]), Long.parseLong(fields[2]));
+				} else if (fields[0].equals(KEY_COVER) && fields.length == 5) {
+					mCovers.put(fields[1], new CoverInfo(new File(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the index. Written to a temp file first so an incomplete index is never loaded.
+	 * Called with the class lock held.
+	 */
+	private static void save() throws IOException {
+		final File dir = getCoversDir();
+		if (!dir.exists())
+			dir.mkdirs();
+		final File file = new File(dir, INDEX_FILE);
+		final File temp = new File(dir, INDEX_FILE + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"), 65536);
+		try {
+			out.write(HEADER + " " + VERSION + "\n");
+			for(Map.Entry<File, Long> e: mDirDates.entrySet())
+				out.write(KEY_DIR + "\t" + e.getKey().getPath() + "\t" + e.getValue() + "\n");
+			for(Map.Entry<String, CoverInfo> e: mCovers.entrySet()) {
+				CoverInfo info = e.getValue();
+				out.write(KEY_COVER + "\t" + e.getKey() + "\t" + info.file.getPath() + "\t" + info.size + "\t" + info.modified + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to save cover index");
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * @copyright 2012 Philip Warner
+ * @license GNU General Public License
+ *
+ * This file is part of Book Catalogue.
+ *
+ * Book Catalogue is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Book Catalogue is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Book Catalogue.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.eleybourn.bookcatalogue.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Static in-memory cache of cover thumbnails that sits in front of the covers database.
+ *
+ * There are two tiers, both keyed by Utils.getCoverCacheId() and both least-recently-used:
+ *
+ * - decoded bitmaps; a hit needs no database read and no decode.
+ * - compressed (JPEG) image data as stored in the covers database; a hit needs a decode but
+ *   no database read. Compressed data is much smaller, so many more covers fit in this tier.
+ *
+ * Each tier is limited by a byte budget based on the maximum heap size. Like the covers database,
+ * an entry is only valid if it was cached after the original cover file was last modified.
+ *
+ * Bitmaps returned from this cache may be in use elsewhere and must NOT be recycled. The cache holds
+ * a BitmapPool reference to each bitmap, and getBitmap() adds one for the caller.
+ *
+ * @author Philip Warner
+ */
+public class CoverMemoryCache {
+	/** Maximum bytes of decoded bitmaps to keep */
+	private static final long MAX_BITMAP_BYTES = Runtime.getRuntime().maxMemory() / 8;
+	/** Maximum bytes of compressed image data to keep */
+	private static final long MAX_COMPRESSED_BYTES = Runtime.getRuntime().maxMemory() / 16;
+	/** Set to TRUE to log statistics every STATS_INTERVAL lookups. Otherwise the code is optimized out. */
+	private static final boolean DEBUG_STATS = false;
+	/** Number of lookups between statistics reports */
+	private static final int STATS_INTERVAL = 500;
+
+	/** Decoded bitmaps */
+	private static final LruTier<Bitmap> mBitmaps = new LruTier<Bitmap>(MAX_BITMAP_BYTES) {
+		@Override
+		void onAdded(Bitmap bm) {
+			BitmapPool.retain(bm);
+		}
+
+		@Override
+		void onRemoved(Bitmap bm) {
+			BitmapPool.release(bm);
+		}
+	};
+	/** Compressed image data */
+	private static final LruTier<byte[]> mCompressed = new LruTier<byte[]>(MAX_COMPRESSED_BYTES);
+
+	/** Lookups satisfied by a decoded bitmap */
+	private static long mBitmapHits = 0;
+	/** Lookups satisfied by compressed data */
+	private static long mCompressedHits = 0;
+	/** Lookups that were not satisfied by either tier */
+	private static long mMisses = 0;
+
+	/**
+	 * Get a decoded bitmap.
+	 *
+	 * @param cacheId		ID from Utils.getCoverCacheId()
+	 * @param notBefore		Time the original cover was last modified; older entries are discarded
+	 *
+	 * @return	Bitmap with a BitmapPool reference held by the caller, or null if not cached
+	 */
+	public static synchronized Bitmap getBitmap(String cacheId, long notBefore) {
+		Bitmap bm = mBitmaps.get(cacheId, notBefore);
+		if (bm != null && bm.isRecycled()) {
+			// Should not happen, but a recycled bitmap is no use to anyone
+			mBitmaps.remove(cacheId);
+			bm = null;
+		}
+		if (bm != null) {
+			BitmapPool.retain(bm);
+			recordLookup(true, false);
+		}
+		return bm;
+	}
+
+	/**
+	 * Get compressed image data. Should be called after getBitmap() has failed.
+	 *
+	 * @param cacheId		ID from Utils.getCoverCacheId()
+	 * @param notBefore		Time the original cover was last modified; older entries are discarded
+	 *
+	 * @return	Image data, or null if not cached
+	 */
+	public static synchronized byte[] getCompressed(String cacheId, long notBefore) {
+		byte[] bytes = mCompressed.get(cacheId, notBefore);
+		recordLookup(false, bytes != null);
+		return bytes;
+	}
+
+	/**
+	 * Add a decoded bitmap. The bitmap must not be recycled by the caller.
+	 *
+	 * @param cacheId	ID from Utils.getCoverCacheId()
+	 * @param bm		Bitmap
+	 */
+	public static synchronized void putBitmap(String cacheId, Bitmap bm) {
+		mBitmaps.put(cacheId, bm, bm.getRowBytes() * bm.getHeight());
+	}
+
+	/**
+	 * Add compressed image data.
+	 *
+	 * @param cacheId	ID from Utils.getCoverCacheId()
+	 * @param bytes		Image data
+	 */
+	public static synchronized void putCompressed(String cacheId, byte[] bytes) {
+		mCompressed.put(cacheId, bytes, bytes.length);
+	}
+
+	/**
+	 * Remove all entries for the passed book.
+	 *
+	 * @param hash	Book UUID
+	 */
+	public static synchronized void removeBook(String hash) {
+		// See Utils.getCoverCacheId()
+		final String prefix = hash + ".";
+		mBitmaps.removePrefix(prefix);
+		mCompressed.removePrefix(prefix);
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public static synchronized void clear() {
+		mBitmaps.clear();
+		mCompressed.clear();
+	}
+
+	/**
+	 * Get a description of the cache usage and hit rates.
+	 *
+	 * @return	Statistics
+	 */
+	public static synchronized String getStatistics() {
+		final long lookups = mBitmapHits + mCompressedHits + mMisses;
+		final long hitPct = lookups == 0 ? 0 : (mBitmapHits + mCompressedHits) * 100 / lookups;
+		return "Cover memory cache: " + lookups + " lookups, " + hitPct + "% hits ("
+				+ mBitmapHits + " bitmap, " + mCompressedHits + " compressed, " + mMisses + " misses); "
+				+ "bitmaps " + mBitmaps.size() + " (" + mBitmaps.getBytes() + "/" + MAX_BITMAP_BYTES + " bytes, " + mBitmaps.getEvictions() + " evicted), "
+				+ "compressed " + mCompressed.size() + " (" + mCompressed.getBytes() + "/" + MAX_COMPRESSED_BYTES + " bytes, " + mCompressed.getEvictions() + " evicted)";
+	}
+
+	/**
+	 * Update the hit counts and report them periodically.
+	 *
+	 * @param bitmapHit		true if a bitmap was found
+	 * @param compressedHit	true if compressed data was found
+	 */
+	private static void recordLookup(boolean bitmapHit, boolean compressedHit) {
+		if (bitmapHit)
+			mBitmapHits++;
+		else if (compressedHit)
+			mCompressedHits++;
+		else
+			mMisses++;
+
+		if (DEBUG_STATS && (mBitmapHits + mCompressedHits + mMisses) % STATS_INTERVAL == 0)
+			System.out.println(getStatistics());
+	}
+
+	/**
+	 * Entry in a tier
+	 *
+	 * @author Philip Warner
+	 */
+	private static class CacheEntry<T> {
+		final T value;
+		final long size;
+		final long cachedAt;
+
+		CacheEntry(T value, long size) {
+			this.value = value;
+			this.size = size;
+			this.cachedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Least-recently-used collection of entries limited by their total size.
+	 *
+	 * @author Philip Warner
+	 */
+	private static class LruTier<T> {
+		/** Entries in access order, least recently used first */
+		private final LinkedHashMap<String, CacheEntry<T>> mEntries = new LinkedHashMap<String, CacheEntry<T>>(64, 0.75f, true);
+		/** Maximum total size */
+		private final long mMaxBytes;
+		/** Current total size */
+		private long mBytes = 0;
+		/** Number of entries removed to make space */
+		private long mEvictions = 0;
+
+		LruTier(long maxBytes) {
+			mMaxBytes = maxBytes;
+		}
+
+		T get(String key, long notBefore) {
+			CacheEntry<T> e = mEntries.get(key);
+			if (e == null)
+				return null;
+			if (e.cachedAt <= notBefore) {
+				// Original has changed since it was cached
+				remove(key);
+				return null;
+			}
+			return e.value;
+		}
+
+		void put(String key, T value, long size) {
+			remove(key);
+			// Don't let one huge entry flush everything else
+			if (size > mMaxBytes / 4)
+				return;
+			mEntries.put(key, new CacheEntry<T>(value, size));
+			mBytes += size;
+			onAdded(value);
+
+			Iterator<CacheEntry<T>> i = mEntries.values().iterator();
+			while (mBytes > mMaxBytes && i.hasNext()) {
+				CacheEntry<T> e = i.next();
+				i.remove();
+				mBytes -= e.size;
+				mEvictions++;
+				onRemoved(e.value);
+			}
+		}
+
+		void remove(String key) {
+			CacheEntry<T> e = mEntries.remove(key);
+			if (e != null) {
+				mBytes -= e.size;
+				onRemoved(e.value);
+			}
+		}
+
+		void removePrefix(String prefix) {
+			ArrayList<String> keys = new ArrayList<String>();
+			for(Map.Entry<String, CacheEntry<T>> e: mEntries.entrySet()) {
+				if (e.getKey().startsWith(prefix))
+					keys.add(e.getKey());
+			}
+			for(String k: keys)
+				remove(k);
+		}
+
+		void clear() {
+			for(CacheEntry<T> e: mEntries.values())
+				onRemoved(e.value);
+			mEntries.clear();
+			mBytes = 0;
+		}
+
+		/** Called when a value is added */
+		void onAdded(T value) {
+		}
+
+		/** Called when a value is removed, replaced or evicted */
+		void onRemoved(T value) {
+		}
+
+		int size() {
+			return mEntries.size();
+		}
+
+		long getBytes() {
+			return mBytes;
+		}
+
+		long getEvictions() {
+			return mEvictions;
+		}
+	}
+}
@@ -28,7 +28,7 @@ import android.os.Handler;
 
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
-import com.eleybourn.bookcatalogue.database.CoversDbHelper;
+import com.eleybourn.bookcatalogue.database.CoverCache;
 
 /**
  * Class to perform time consuming but light-weight tasks in a worker thread. Users of this
@@ -68,6 +68,8 @@ public class SimpleTaskQueue {
 	private ArrayList<SimpleTaskQueueThread> mThreads = new ArrayList<SimpleTaskQueueThread>();
 	/** Max number of threads to create */
 	private int mMaxTasks;
+	/** Priority of threads created */
+	private int mThreadPriority = Thread.NORM_PRIORITY;
 	/** Number of currently queued, executing (or starting/finishing) tasks */
 	private int mManagedTaskCount = 0;
 
@@ -186,7 +188,7 @@ public class SimpleTaskQueue {
 			return activeThread.getDb();
 		}
 		@Override
-		public CoversDbHelper getCoversDb() {
+		public CoverCache getCoversDb() {
 			if (activeThread == null)
 				throw new RuntimeException("SimpleTaskWrapper can only be used a context during the run() stage");
 			return activeThread.getCoversDb();
@@ -235,6 +237,30 @@ public class SimpleTaskQueue {
 			throw new RuntimeException("Illegal value for maxTasks");
 	}
 
+	/**
+	 * Change the maximum number of threads. Existing threads above the new limit will exit
+	 * when they are idle.
+	 * 
+	 * @param maxTasks	Max number of threads
+	 */
+	public void setMaxTasks(int maxTasks) {
+		if (maxTasks < 1 || maxTasks > 10)
+			throw new RuntimeException("Illegal value for maxTasks");
+		synchronized(this) {
+			mMaxTasks = maxTasks;
+		}
+	}
+
+	/**
+	 * Set the priority of threads created by this queue. Low priority queues (eg. cache writers)
+	 * should not compete with queues whose results are waited for by the user.
+	 * 
+	 * @param priority	Java Thread priority
+	 */
+	public void setThreadPriority(int priority) {
+		mThreadPriority = priority;
+	}
+
 	/**
 	 * Terminate processing.
 	 */
@@ -450,7 +476,7 @@ public class SimpleTaskQueue {
 	public static interface SimpleTaskContext {
 		public CatalogueDBAdapter getDb();
 		/** 'Covers' database helper */
-		public CoversDbHelper getCoversDb();
+		public CoverCache getCoversDb();
 		/** Utils object */
 		public Utils getUtils();
 		/** Accessor */
@@ -471,7 +497,7 @@ public class SimpleTaskQueue {
 		/** DB Connection, if task requests one. Survives while thread is alive */
 		CatalogueDBAdapter mDb = null;
 		/** Covers DB Connection, if task requests one. Survives while thread is alive */
-		CoversDbHelper mCoversDb = null;
+		CoverCache mCoversDb = null;
 		/** Utils object, if needed. Survives while thread is alive */
 		Utils mUtils = null;
 
@@ -481,6 +507,7 @@ public class SimpleTaskQueue {
 		public void run() {
 			try {
 				this.setName(mName);
+				this.setPriority(mThreadPriority);
 				while (!mTerminate) {
 					SimpleTaskWrapper req = mQueue.pop(15000);
 
@@ -498,6 +525,14 @@ public class SimpleTaskQueue {
 
 					//System.out.println("SimpleTaskQueue(run): " + mQueue.size());						
 					handleRequest(this, req);
+
+					// If the limit has been reduced, exit the surplus threads.
+					synchronized(SimpleTaskQueue.this) {
+						if (mThreads.size() > mMaxTasks) {
+							mThreads.remove(this);
+							return;
+						}
+					}
 				}
 			} catch (InterruptedException e) {
 				// Ignore; these will happen when object is destroyed
@@ -533,9 +568,9 @@ public class SimpleTaskQueue {
 			return mUtils;
 		}
 
-		public CoversDbHelper getCoversDb() {
+		public CoverCache getCoversDb() {
 			if (mCoversDb == null)
-				mCoversDb = new CoversDbHelper();
+				mCoversDb = Utils.openCoverCache();
 			return mCoversDb;
 		}
 	}
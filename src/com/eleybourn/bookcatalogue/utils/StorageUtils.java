@@ -347,6 +347,19 @@ public class StorageUtils {
 
 		message += "\nHistory:\n" + Tracker.getEventsInfo() + "\n";
 
+		// Covers cache
+		try {
+			Utils utils = new Utils();
+			try {
+				message += "Covers cache: " + utils.getCoverCacheStats() + "\n";
+				message += BitmapPool.getStatistics() + "\n";
+			} finally {
+				utils.close();
+			}
+		} catch (Exception e) {
+			// Not much we can do inside error logger...
+		}
+
 		// Scanners installed
 		try {
 	        message += "Pref. Scanner: " + BookCatalogueApp.getAppPreferences().getInt( ScannerManager.PREF_PREFERRED_SCANNER, -1) + "\n";
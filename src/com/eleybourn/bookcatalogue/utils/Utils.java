@@ -91,6 +91,7 @@ import android.widget.Toast;
 import com.actionbarsherlock.app.SherlockFragment;
 import com.eleybourn.bookcatalogue.Author;
 import com.eleybourn.bookcatalogue.BookCatalogueApp;
+import com.eleybourn.bookcatalogue.BookCataloguePreferences;
 import com.eleybourn.bookcatalogue.CatalogueDBAdapter;
 import com.eleybourn.bookcatalogue.GetThumbnailTask;
 import com.eleybourn.bookcatalogue.LibraryThingManager;
@@ -98,6 +99,8 @@ import com.eleybourn.bookcatalogue.R;
 import com.eleybourn.bookcatalogue.Series;
 import com.eleybourn.bookcatalogue.ThumbnailCacheWriterTask;
 import com.eleybourn.bookcatalogue.amazon.AmazonUtils;
+import com.eleybourn.bookcatalogue.database.CoverCache;
+import com.eleybourn.bookcatalogue.database.CoverPackFile;
 import com.eleybourn.bookcatalogue.database.CoversDbHelper;
 import com.eleybourn.bookcatalogue.dialogs.PartialDatePickerFragment;
 import com.eleybourn.bookcatalogue.dialogs.StandardDialogs;
@@ -107,7 +110,7 @@ public class Utils {
 	// External DB for cover thumbnails
 	private boolean mCoversDbCreateFail = false;
 	/** Database is non-static member so we don't make it linger longer than necessary */
-	private CoversDbHelper mCoversDb = null;
+	private CoverCache mCoversDb = null;
 
 	// Used for formatting dates for sql; everything is assumed to be UTC, or converted to UTC since 
 	// UTC is the default SQLite TZ. 
@@ -1201,7 +1204,7 @@ public class Utils {
 	/**
 	 * Construct the cache ID for a given thumbnail spec.
 	 * 
-	 * NOTE: Any changes to the resulting name MUST be reflect in CoversDbHelper.eraseCachedBookCover()
+	 * NOTE: Any changes to the resulting name MUST be reflect in CoversDbHelper.eraseCachedBookCover() and CoverPackFile.eraseCachedBookCover()
 	 * 
 	 * @param hash
 	 * @param maxWidth
@@ -1209,7 +1212,7 @@ public class Utils {
 	 * @return
 	 */
 	public static final String getCoverCacheId(final String hash, final int maxWidth, final int maxHeight) {
-		// NOTE: Any changes to the resulting name MUST be reflect in CoversDbHelper.eraseCachedBookCover()
+		// NOTE: Any changes to the resulting name MUST be reflect in CoversDbHelper.eraseCachedBookCover() and CoverPackFile.eraseCachedBookCover()
 		return hash + ".thumb." + maxWidth + "x" + maxHeight + ".jpg";
 	}
 
@@ -1217,7 +1220,8 @@ public class Utils {
 	 * Utility routine to delete all cached covers of a specified book
 	 */
 	public void deleteCachedBookCovers(String hash) {
-		CoversDbHelper coversDb = getCoversDb();
+		CoverMemoryCache.removeBook(hash);
+		CoverCache coversDb = getCoversDb();
 		if (coversDb != null) {
 			coversDb.deleteBookCover(hash);
 		}
@@ -1232,29 +1236,72 @@ public class Utils {
 	 * @return				Bitmap (if cached) or NULL (if not cached)
 	 */
 	public Bitmap fetchCachedImageIntoImageView(final File originalFile, final ImageView destView, final String cacheId) {
+		return fetchCachedImageIntoImageView(originalFile, destView, cacheId, true);
+	}
+
+	/**
+	 * Called in the UI thread, will return a cached image OR NULL. The memory cache is checked
+	 * first, then (if allowed) the covers database.
+	 * 
+	 * @param originalFile	File representing original image file
+	 * @param destView		View to populate
+	 * @param cacheId		ID of the image in the cache
+	 * @param checkDb		Indicates if the covers database should be checked
+	 * 
+	 * @return				Bitmap (if cached) or NULL (if not cached)
+	 */
+	public Bitmap fetchCachedImageIntoImageView(final File originalFile, final ImageView destView, final String cacheId, final boolean checkDb) {
+		// Cached images are only valid if created after the original was last modified
+		final long lastModified;
+		if (originalFile == null)
+			lastModified = 0L;
+		else
+			lastModified = originalFile.lastModified();
+
+		return fetchCachedImageIntoImageView(lastModified, destView, cacheId, checkDb);
+	}
+
+	/**
+	 * Called in the UI thread, will return a cached image OR NULL. The memory cache is checked
+	 * first, then (if allowed) the covers database.
+	 * 
+	 * The caller holds a BitmapPool reference to the returned bitmap. If destView is non-null,
+	 * the view holds its own.
+	 * 
+	 * @param lastModified	Date of the original image file; cached images older than this are ignored
+	 * @param destView		View to populate
+	 * @param cacheId		ID of the image in the cache
+	 * @param checkDb		Indicates if the covers database should be checked
+	 * 
+	 * @return				Bitmap (if cached) or NULL (if not cached)
+	 */
+	public Bitmap fetchCachedImageIntoImageView(final long lastModified, final ImageView destView, final String cacheId, final boolean checkDb) {
 		Bitmap bm = null;					// resultant Bitmap (which we will return) 
 
-		// Get the db
-		CoversDbHelper coversDb = getCoversDb();
-		if (coversDb != null) {
-			byte[] bytes;
-			// Wrap in try/catch. It's possible the SDCard got removed and DB is now inaccessible
-			Date expiry;
-			if (originalFile == null)
-				expiry = new Date(0L);
-			else
-				expiry = new Date(originalFile.lastModified());
-
-			try { bytes = coversDb.getFile(cacheId, expiry); } 
-				catch (Exception e) {
-					bytes = null;
-				};
+		bm = CoverMemoryCache.getBitmap(cacheId, lastModified);
+		if (bm == null) {
+			byte[] bytes = CoverMemoryCache.getCompressed(cacheId, lastModified);
+			if (bytes == null && checkDb) {
+				// Get the db
+				CoverCache coversDb = getCoversDb();
+				if (coversDb != null) {
+					// Wrap in try/catch. It's possible the SDCard got removed and DB is now inaccessible
+					try { bytes = coversDb.getFile(cacheId, new Date(lastModified)); } 
+						catch (Exception e) {
+							bytes = null;
+						};
+					if (bytes != null)
+						CoverMemoryCache.putCompressed(cacheId, bytes);
+				}
+			}
 			if (bytes != null) {
 				try {
-					bm = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+					bm = BitmapPool.decodeByteArray(bytes);
 				} catch (Exception e) {
-					bytes = null;
+					bm = null;
 				};
+				if (bm != null)
+					CoverMemoryCache.putBitmap(cacheId, bm);
 			}
 		}
 
@@ -1269,7 +1316,7 @@ public class Utils {
 
 			// We found it in cache
 			if (destView != null)
-				destView.setImageBitmap(bm);
+				BitmapPool.setImageBitmap(destView, bm);
 			// Return the image
 		}
 		return bm;
@@ -1281,6 +1328,8 @@ public class Utils {
 	 * If a cached image is used a background task is still started to check the file date vs the cache date. If the
 	 * cached image date is < the file, it is rebuilt.
 	 * 
+	 * If destView is non-null, the view holds the BitmapPool reference to a cached image; otherwise the caller does.
+	 * 
 	 * @param destView			View to populate
 	 * @param maxWidth			Max width of resulting image
 	 * @param maxHeight			Max height of resulting image
@@ -1293,8 +1342,11 @@ public class Utils {
 	 */
 	public final Bitmap fetchBookCoverIntoImageView(final ImageView destView, int maxWidth, int maxHeight, final boolean exact, final String hash, final boolean checkCache, final boolean allowBackground) {
 
-		// Get the original file so we can use the modification date, path etc
-		File coverFile = CatalogueDBAdapter.fetchThumbnailByUuid(hash);
+		// Get the original file so we can use the modification date, path etc. The index has
+		// the date, so the file system is not touched for books that are in the cache.
+		final CoverFileIndex.CoverInfo coverInfo = CoverFileIndex.getInfo(hash);
+		final long coverDate = coverInfo == null ? 0L : coverInfo.modified;
+		File coverFile = coverInfo == null ? CatalogueDBAdapter.fetchThumbnailByUuid(hash) : coverInfo.file;
 
 		Bitmap bm = null;
 		boolean cacheWasChecked = false;
@@ -1302,14 +1354,22 @@ public class Utils {
 		// If we want to check the cache, AND we dont have cache building happening, then check it.
 		if (checkCache && !GetThumbnailTask.hasActiveTasks() && !ThumbnailCacheWriterTask.hasActiveTasks()) {
 			final String cacheId = getCoverCacheId(hash, maxWidth, maxHeight);
-			bm = fetchCachedImageIntoImageView(coverFile, destView, cacheId);
+			bm = fetchCachedImageIntoImageView(coverDate, destView, cacheId, true);
 			cacheWasChecked = true;
+		} else if (checkCache) {
+			// Cache building is happening, but the memory cache does not touch the database so check it anyway.
+			final String cacheId = getCoverCacheId(hash, maxWidth, maxHeight);
+			bm = fetchCachedImageIntoImageView(coverDate, destView, cacheId, false);
 		} else {
 			//System.out.println("Skipping cache check");
 		}
 
-		if (bm != null)
+		if (bm != null) {
+			// The view has its own reference
+			if (destView != null)
+				BitmapPool.release(bm);
 			return bm;
+		}
 
 		// Check the file exists. Otherwise set 'help' icon and exit.
 		//if (!coverFile.exists()) {
@@ -1320,7 +1380,8 @@ public class Utils {
 
 		// If we get here, the image is not in the cache but the original exists. See if we can queue it.
 		if (allowBackground) {
-			destView.setImageBitmap(null);
+			// Let the old image be reused for the new one
+			BitmapPool.setImageBitmap(destView, null);
 			GetThumbnailTask.getThumbnail(hash, destView, maxWidth, maxHeight, cacheWasChecked);
 			return null;
 		}
@@ -1336,6 +1397,8 @@ public class Utils {
 	 * Shrinks the passed image file spec into the specificed dimensions, and returns the bitmap. If the view 
 	 * is non-null, the image is also placed in the view.
 	 * 
+	 * The bitmaps are allocated from BitmapPool where possible, and the caller holds a reference to the result.
+	 * 
 	 * @param destView
 	 * @param filename
 	 * @param maxWidth
@@ -1381,28 +1444,25 @@ public class Utils {
 				opt.inSampleSize = samplePow2 / 2;
 				if (opt.inSampleSize < 1)
 					opt.inSampleSize = 1;
-				Bitmap tmpBm = BitmapFactory.decodeFile( filename, opt );
+				Bitmap tmpBm = BitmapPool.decodeFile( filename, opt );
 				if (tmpBm == null) {
 					// We ran out of memory, most likely
 					// TODO: Need a way to try loading images after GC(), or something. Otherwise, covers in cover browser wil stay blank.
 					Logger.logError(new RuntimeException("Unexpectedly failed to decode bitmap; memory exhausted?"));
 					return null;
 				}
-				android.graphics.Matrix matrix = new android.graphics.Matrix();
 				// Fixup ratio based on new sample size and scale it.
 				ratio = ratio / (1.0f / opt.inSampleSize);
-				matrix.postScale(ratio, ratio);
-				bm = Bitmap.createBitmap(tmpBm, 0, 0, opt.outWidth, opt.outHeight, matrix, true);
-				// Recycle if original was not returned
-				if (bm != tmpBm) {
+				bm = BitmapPool.createScaledBitmap(tmpBm, ratio);
+				// Return the original to the pool
+				if (!BitmapPool.release(tmpBm))
 					tmpBm.recycle();
-					tmpBm = null;
-				}
+				tmpBm = null;
 			} else {
 				// Use a scale that will make image *no larger than* the desired size
 				if (ratio < 1.0f)
 					opt.inSampleSize = samplePow2;
-				bm = BitmapFactory.decodeFile( filename, opt );
+				bm = BitmapPool.decodeFile( filename, opt );
 			}
 		} catch (OutOfMemoryError e) {
 			return null;
@@ -1415,6 +1475,67 @@ public class Utils {
 		return bm;		
 	}
 
+	/**
+	 * Shrinks the passed image file to several sizes, decoding the file only once. Each image
+	 * is scaled to fit its bbox exactly, as shrinkFileIntoImageView() does when 'exact' is set.
+	 * 
+	 * @param filename		Image file
+	 * @param maxWidths		Width of each bbox
+	 * @param maxHeights	Height of each bbox
+	 * 
+	 * @return	Bitmap for each size, or null if the file could not be decoded. The caller holds a
+	 * 			BitmapPool reference to each.
+	 */
+	public static Bitmap[] shrinkFileToSizes(String filename, int[] maxWidths, int[] maxHeights) {
+		// Read the file to get file size
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		opt.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile( filename, opt );
+		if ( opt.outHeight <= 0 || opt.outWidth <= 0 || (opt.outHeight== 1 && opt.outWidth == 1) )
+			return null;
+
+		// Work out the scale for each size; decode using the sample size needed by the largest
+		final float[] ratios = new float[maxWidths.length];
+		float maxRatio = 0;
+		for(int i = 0; i < maxWidths.length; i++) {
+			float widthRatio = (float)maxWidths[i] / opt.outWidth; 
+			float heightRatio = (float)maxHeights[i] / opt.outHeight;
+			ratios[i] = widthRatio < heightRatio ? widthRatio : heightRatio;
+			if (ratios[i] > maxRatio)
+				maxRatio = ratios[i];
+		}
+		int idealSampleSize = (int)android.util.FloatMath.ceil(1/maxRatio);
+		int samplePow2 = (int)Math.pow(2, Math.ceil(Math.log(idealSampleSize)/Math.log(2)));
+		// As for 'exact' above, decode one bigger than needed to improve quality
+		opt.inJustDecodeBounds = false;
+		opt.inSampleSize = samplePow2 / 2;
+		if (opt.inSampleSize < 1)
+			opt.inSampleSize = 1;
+
+		Bitmap[] result = new Bitmap[maxWidths.length];
+		Bitmap tmpBm = null;
+		try {
+			tmpBm = BitmapPool.decodeFile( filename, opt );
+			if (tmpBm == null)
+				return null;
+			for(int i = 0; i < maxWidths.length; i++) {
+				// Fixup ratio based on the sample size and scale it.
+				final float ratio = ratios[i] * opt.inSampleSize;
+				result[i] = BitmapPool.createScaledBitmap(tmpBm, ratio);
+			}
+		} catch (OutOfMemoryError e) {
+			for(Bitmap bm: result) {
+				if (bm != null && !BitmapPool.release(bm))
+					bm.recycle();
+			}
+			return null;
+		} finally {
+			if (tmpBm != null && !BitmapPool.release(tmpBm))
+				tmpBm.recycle();
+		}
+		return result;
+	}
+
 	public static void showLtAlertIfNecessary(Context context, boolean always, String suffix) {
 		if (USE_LT) {
 			LibraryThingManager ltm = new LibraryThingManager(context);
@@ -1492,14 +1613,26 @@ public class Utils {
 	}
 	
 	/**
-	 * Get the 'covers' DB from external storage.
+	 * Open the covers cache chosen in preferences: the covers database, or the pack file.
+	 * 
+	 * @throws RuntimeException	if the cache is unavailable
+	 */
+	public static CoverCache openCoverCache() {
+		if (BookCatalogueApp.getAppPreferences().getBoolean(BookCataloguePreferences.PREF_COVER_CACHE_PACK_FILE, false))
+			return new CoverPackFile();
+		else
+			return new CoversDbHelper();
+	}
+
+	/**
+	 * Get the 'covers' cache from external storage.
 	 */
-	public final CoversDbHelper getCoversDb() {
+	public final CoverCache getCoversDb() {
 		if (mCoversDb == null) {
 			if (mCoversDbCreateFail)
 				return null;
 			try {
-				mCoversDb = new CoversDbHelper();
+				mCoversDb = openCoverCache();
 			} catch (Exception e) {
 				mCoversDbCreateFail = true;
 			}
@@ -1519,16 +1652,28 @@ public class Utils {
 	 * Analyze the covers db
 	 */
 	public void analyzeCovers() {
-		CoversDbHelper db = getCoversDb();
+		CoverCache db = getCoversDb();
 		if (db != null)
 			db.analyze();
 	}
 
+	/**
+	 * Get the covers cache occupancy and hit rate, or null if the covers db is unavailable
+	 */
+	public CoverCache.CacheStats getCoverCacheStats() {
+		CoverCache db = getCoversDb();
+		if (db != null)
+			return db.getCacheStats();
+		else
+			return null;
+	}
+
 	/**
 	 * Erase contents of covers cache
 	 */
 	public void eraseCoverCache() {
-		CoversDbHelper db = getCoversDb();
+		CoverMemoryCache.clear();
+		CoverCache db = getCoversDb();
 		if (db != null)
 			db.eraseCoverCache();
 	}
@@ -1537,7 +1682,8 @@ public class Utils {
 	 * Erase contents of covers cache
 	 */
 	public int eraseCachedBookCover(String uuid) {
-		CoversDbHelper db = getCoversDb();
+		CoverMemoryCache.removeBook(uuid);
+		CoverCache db = getCoversDb();
 		if (db != null)
 			return db.eraseCachedBookCover(uuid);
 		else 
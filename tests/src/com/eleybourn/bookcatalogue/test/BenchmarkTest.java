@@ -0,0 +1,50 @@
+/**
+ * 
+ */
+package com.eleybourn.bookcatalogue.test;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import com.eleybourn.bookcatalogue.debug.Benchmarks;
+
+/**
+ * Runs the database and booklist benchmarks. The results are in logcat (BENCHMARK:) and
+ * in benchmark.txt in the bookCatalogue directory.
+ * 
+ * Slow: each size seeds that many books in a scratch database, which is deleted afterwards.
+ * So the benchmarks only run when asked for with an instrumentation argument (Android 4.3+):
+ * 
+ * 		adb shell am instrument -w -e benchmarks true -e class com.eleybourn.bookcatalogue.test.BenchmarkTest \
+ * 			com.eleybourn.bookcatalogue.test/android.test.InstrumentationTestRunner
+ * 
+ * @author Philip Warner
+ */
+public class BenchmarkTest extends InstrumentationTestCase {
+	/** Instrumentation argument that must be 'true' to run the benchmarks */
+	private static final String ARG_BENCHMARKS = "benchmarks";
+
+	public void testBenchmarks() {
+		if (!isRequested()) {
+			Log.i("BenchmarkTest", "Skipped; pass '-e " + ARG_BENCHMARKS + " true' to run the benchmarks");
+			return;
+		}
+		String report = Benchmarks.runAll();
+		assertFalse("A benchmark failed:\n" + report, report.contains("FAILED"));
+	}
+
+	/**
+	 * Check if the benchmarks were requested by an instrumentation argument.
+	 */
+	@TargetApi(18)
+	private boolean isRequested() {
+		if (Build.VERSION.SDK_INT < 18 || !(getInstrumentation() instanceof InstrumentationTestRunner))
+			return false;
+		Bundle args = ((InstrumentationTestRunner)getInstrumentation()).getArguments();
+		return args != null && "true".equals(args.getString(ARG_BENCHMARKS));
+	}
+}